@@ -0,0 +1,137 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import com.microsoft.azure.servicebus.samples.messagebrowse.MessageBrowser;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Browses a queue of {@link #messageCount} messages on the emulator at the given round-trip
+ * latency. {@code peekOne} peeks one message per call, as far as {@link #PEEK_ONE_LIMIT} messages
+ * per browse; {@code paged} uses the MessageBrowse sample's {@link MessageBrowser} with one
+ * receiver and pages of {@link #pageSize}; {@code parallel} uses it with {@link #receiverCount}
+ * receivers over twice as many sequence-number ranges. Both browsers buffer at most
+ * {@link #MAX_BUFFERED_PAGES} pages. The {@code messages} and {@code pages} counters are per
+ * second; the score is browses per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class BrowseBenchmark {
+
+    static final int PEEK_ONE_LIMIT = 1000;
+    static final int MAX_BUFFERED_PAGES = 16;
+
+    @Param({"500000"})
+    public int messageCount;
+
+    @Param({"1000"})
+    public int roundTripLatencyMicros;
+
+    @Param({"100"})
+    public int pageSize;
+
+    @Param({"8"})
+    public int receiverCount;
+
+    private ServiceBusEmulator emulator;
+    private List<IMessageReceiver> receivers;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Browsed {
+        public long messages;
+        public long pages;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.emulator = new ServiceBusEmulator();
+        IMessageSender feeder = this.emulator.createMessageSender("BasicQueue");
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < this.messageCount; i++) {
+            Message message = new Message(new byte[64]);
+            message.setLabel("Scientist");
+            batch.add(message);
+            if (batch.size() == 1000) {
+                feeder.sendBatch(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            feeder.sendBatch(batch);
+        }
+        feeder.close();
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.receivers = new ArrayList<>();
+        for (int i = 0; i < this.receiverCount; i++) {
+            this.receivers.add(this.emulator.createMessageReceiver("BasicQueue"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (IMessageReceiver receiver : this.receivers) {
+            receiver.close();
+        }
+        this.emulator.close();
+    }
+
+    @Benchmark
+    public long peekOne(Browsed browsed) throws Exception {
+        IMessageReceiver receiver = this.receivers.get(0);
+        long next = 1;
+        for (int i = 0; i < PEEK_ONE_LIMIT; i++) {
+            IMessage message = receiver.peek(next);
+            if (message == null) {
+                break;
+            }
+            next = message.getSequenceNumber() + 1;
+            browsed.messages++;
+            browsed.pages++;
+        }
+        return next;
+    }
+
+    @Benchmark
+    public long paged(Browsed browsed) {
+        try (MessageBrowser browser = new MessageBrowser(this.receivers.subList(0, 1), Collections.singletonList(MessageBrowser.ALL),
+                this.pageSize, MAX_BUFFERED_PAGES)) {
+            return browse(browser, browsed);
+        }
+    }
+
+    @Benchmark
+    public long parallel(Browsed browsed) {
+        List<MessageBrowser.Range> ranges = MessageBrowser.splitRange(1, this.messageCount + 1, this.receiverCount * 2);
+        try (MessageBrowser browser = new MessageBrowser(this.receivers, ranges, this.pageSize, MAX_BUFFERED_PAGES)) {
+            return browse(browser, browsed);
+        }
+    }
+
+    private static long browse(MessageBrowser browser, Browsed browsed) {
+        long lastSequenceNumber = 0;
+        List<IMessage> page;
+        while ((page = browser.nextPage()) != null) {
+            lastSequenceNumber = Math.max(lastSequenceNumber, page.get(page.size() - 1).getSequenceNumber());
+        }
+        browsed.messages += browser.getMessageCount();
+        browsed.pages += browser.getPageCount();
+        return lastSequenceNumber;
+    }
+}
@@ -0,0 +1,102 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import com.microsoft.azure.servicebus.samples.scheduledmessages.BulkScheduler;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules {@link #groupSize} reminders of an order batch on the emulator at the given round-trip
+ * latency, then cancels them all. {@code serial} calls {@code scheduleMessage} and
+ * {@code cancelScheduledMessage} one message at a time and keeps the sequence numbers in an array;
+ * {@code bulk} uses the ScheduledMessages sample's {@link BulkScheduler} with up to
+ * {@link #maxCallsInFlight} calls in flight and cancels with {@code cancelGroup}. Scores are
+ * milliseconds per batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkScheduleBenchmark {
+
+    @Param({"1000"})
+    public int roundTripLatencyMicros;
+
+    @Param({"1000"})
+    public int groupSize;
+
+    @Param({"64"})
+    public int maxCallsInFlight;
+
+    private ServiceBusEmulator emulator;
+    private IMessageSender sender;
+    private BulkScheduler scheduler;
+    private long[] keys;
+    private long group;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.emulator = new ServiceBusEmulator();
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.sender = this.emulator.createMessageSender("BasicQueue");
+        this.scheduler = new BulkScheduler(this.sender, this.maxCallsInFlight);
+        this.keys = new long[this.groupSize];
+        for (int i = 0; i < this.groupSize; i++) {
+            this.keys[i] = i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.sender.close();
+        this.emulator.close();
+    }
+
+    @Benchmark
+    public long serial() throws Exception {
+        List<Message> reminders = this.reminders();
+        long[] sequenceNumbers = new long[this.groupSize];
+        for (int i = 0; i < this.groupSize; i++) {
+            sequenceNumbers[i] = this.sender.scheduleMessage(reminders.get(i), reminders.get(i).getScheduledEnqueueTimeUtc());
+        }
+        for (long sequenceNumber : sequenceNumbers) {
+            this.sender.cancelScheduledMessage(sequenceNumber);
+        }
+        return sequenceNumbers[this.groupSize - 1];
+    }
+
+    @Benchmark
+    public int bulk() throws Exception {
+        long group = this.group++;
+        BulkScheduler.Outcome scheduled = this.scheduler.schedule(group, this.keys, this.reminders());
+        BulkScheduler.Outcome cancelled = this.scheduler.cancelGroup(group);
+        if (scheduled.getFailedCount() + cancelled.getFailedCount() > 0) {
+            throw new IllegalStateException("Failed: " + scheduled + "; " + cancelled);
+        }
+        return cancelled.getSucceededCount();
+    }
+
+    private List<Message> reminders() {
+        Instant due = Instant.now().plus(Duration.ofDays(1));
+        List<Message> reminders = new ArrayList<>(this.groupSize);
+        for (int i = 0; i < this.groupSize; i++) {
+            Message message = new Message(new byte[16]);
+            message.setLabel("Reminder");
+            message.setScheduledEnqueueTimeUtc(due.plusSeconds(i));
+            reminders.add(message);
+        }
+        return reminders;
+    }
+}
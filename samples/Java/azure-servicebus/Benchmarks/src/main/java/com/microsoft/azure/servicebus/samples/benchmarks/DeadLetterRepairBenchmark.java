@@ -0,0 +1,147 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.IQueueClient;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.MessageHandlerOptions;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.deadletterqueue.DeadLetterRepairPipeline;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repairs {@link #MESSAGE_COUNT} dead-lettered messages and resubmits them to another queue: once
+ * with a message handler of one concurrent call that sends each message with a blocking
+ * {@code send} and then completes it, as the DeadletterQueue and TimeToLive samples used to, and
+ * once with the DeadletterQueue sample's {@link DeadLetterRepairPipeline}. Every receive, send and
+ * complete costs one round trip. Scores are messages per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeadLetterRepairBenchmark {
+
+    static final String QUEUE_NAME = "BasicQueue";
+    static final String DEADLETTER_PATH = QUEUE_NAME + "/$deadletterqueue";
+    static final String TARGET_QUEUE_NAME = "FixedQueue";
+    static final int MESSAGE_COUNT = 1000;
+
+    @Param({"1000"})
+    public int roundTripLatencyMicros;
+
+    @Param({"100"})
+    public int batchSize;
+
+    @Param({"4"})
+    public int parallelBatches;
+
+    private ServiceBusEmulator emulator;
+    // created before the latency is set, so that filling the dead-letter queue is fast
+    private IMessageSender feeder;
+    private IMessageReceiver deadLetterer;
+    private IMessageSender resubmitSender;
+    private ExecutorService executorService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.emulator = new ServiceBusEmulator();
+        this.feeder = this.emulator.createMessageSender(QUEUE_NAME);
+        this.deadLetterer = this.emulator.createMessageReceiver(QUEUE_NAME, ReceiveMode.PEEKLOCK);
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.resubmitSender = this.emulator.createMessageSender(TARGET_QUEUE_NAME);
+        this.executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.resubmitSender.close();
+        this.deadLetterer.close();
+        this.feeder.close();
+        this.executorService.shutdown();
+        this.emulator.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void fillDeadLetterQueue() throws Exception {
+        List<Message> messages = new ArrayList<>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            messages.add(new Message(new byte[100]));
+        }
+        this.feeder.sendBatch(messages);
+        int deadLettered = 0;
+        while (deadLettered < MESSAGE_COUNT) {
+            Collection<IMessage> batch = this.deadLetterer.receiveBatch(MESSAGE_COUNT, Duration.ofSeconds(1));
+            List<CompletableFuture<Void>> settlements = new ArrayList<>(batch.size());
+            for (IMessage message : batch) {
+                settlements.add(this.deadLetterer.deadLetterAsync(message.getLockToken()));
+            }
+            CompletableFuture.allOf(settlements.toArray(new CompletableFuture<?>[0])).join();
+            deadLettered += batch.size();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void singleMessageHandler() throws Exception {
+        CountDownLatch repaired = new CountDownLatch(MESSAGE_COUNT);
+        IQueueClient client = this.emulator.createQueueClient(DEADLETTER_PATH, ReceiveMode.PEEKLOCK);
+        client.registerMessageHandler(new IMessageHandler() {
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                try {
+                    resubmitSender.send(fix(message));
+                    return client.completeAsync(message.getLockToken()).thenRun(repaired::countDown);
+                } catch (Exception e) {
+                    CompletableFuture<Void> failure = new CompletableFuture<>();
+                    failure.completeExceptionally(e);
+                    return failure;
+                }
+            }
+
+            public void notifyException(Throwable throwable, ExceptionPhase exceptionPhase) {
+            }
+        }, new MessageHandlerOptions(1, false, Duration.ofMinutes(1)), this.executorService);
+        repaired.await();
+        client.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public DeadLetterRepairPipeline.Report pipeline() throws Exception {
+        IMessageReceiver receiver = this.emulator.createMessageReceiver(DEADLETTER_PATH, ReceiveMode.PEEKLOCK);
+        // the lanes end after a receive that waited in vain, which the score includes
+        DeadLetterRepairPipeline pipeline = new DeadLetterRepairPipeline(receiver, this.resubmitSender,
+                DeadLetterRepairBenchmark::fix, this.executorService,
+                this.batchSize, this.parallelBatches, Duration.ofMillis(10), 0);
+        DeadLetterRepairPipeline.Report report = pipeline.start().get();
+        receiver.close();
+        return report;
+    }
+
+    static IMessage fix(IMessage message) {
+        Message resubmitMessage = new Message(message.getBody());
+        resubmitMessage.setLabel("Fixed");
+        // the target queue does not grow during the run
+        resubmitMessage.setTimeToLive(Duration.ofSeconds(1));
+        return resubmitMessage;
+    }
+}
@@ -0,0 +1,155 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.deadletterqueue.DeadLetterIndex;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers triage questions about a dead-letter queue with the DeadletterQueue sample's
+ * {@link DeadLetterIndex}: an index of {@link #messageCount} dead letters with 20 reasons, 1000
+ * error descriptions, 50 labels, 3 content types and a day of enqueued times is queried for counts
+ * by reason, a drill-down into one reason and label, and a count per hour. For comparison,
+ * {@code browseAndCount} answers one question by browsing a dead-letter queue of
+ * {@link #BROWSE_COUNT} messages in the emulator in pages of 1000, as a tool without an index has
+ * to, paying the round-trip latency for every page. Scores are milliseconds per question.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class DeadLetterTriageBenchmark {
+
+    static final String DEADLETTER_PATH = "BasicQueue/$deadletterqueue";
+    static final int BROWSE_COUNT = 100_000;
+    static final long START_MILLIS = Instant.parse("2026-01-01T00:00:00Z").toEpochMilli();
+    static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    @Param({"1000000"})
+    public int messageCount;
+
+    // of the browser's peeks
+    @Param({"1000"})
+    public int roundTripLatencyMicros;
+
+    private DeadLetterIndex index;
+    private ServiceBusEmulator emulator;
+    private IMessageReceiver browser;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.index = new DeadLetterIndex();
+        List<IMessage> page = new ArrayList<>(1000);
+        for (int i = 0; i < this.messageCount; i++) {
+            page.add(browsedMessage(i + 1, START_MILLIS + (long) i * DAY_MILLIS / this.messageCount));
+            if (page.size() == 1000) {
+                this.index.addAll(page);
+                page.clear();
+            }
+        }
+        this.index.addAll(page);
+
+        this.emulator = new ServiceBusEmulator();
+        IMessageSender sender = this.emulator.createMessageSender(DEADLETTER_PATH);
+        for (int batch = 0; batch < BROWSE_COUNT / 1000; batch++) {
+            List<Message> messages = new ArrayList<>(1000);
+            for (int i = 0; i < 1000; i++) {
+                Message message = new Message(new byte[100]);
+                message.setLabel("label" + i % 50);
+                message.getProperties().put("DeadLetterReason", "reason" + i % 20);
+                messages.add(message);
+            }
+            sender.sendBatch(messages);
+        }
+        sender.close();
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.browser = this.emulator.createMessageReceiver(DEADLETTER_PATH);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.browser.close();
+        this.emulator.close();
+    }
+
+    @Benchmark
+    public Map<String, Long> countByReason() {
+        return this.index.select().countBy(DeadLetterIndex.Dimension.DEAD_LETTER_REASON);
+    }
+
+    @Benchmark
+    public Map<String, Long> drillDown() {
+        return this.index.select()
+                .where(DeadLetterIndex.Dimension.DEAD_LETTER_REASON, "reason7")
+                .where(DeadLetterIndex.Dimension.LABEL, "label13")
+                .countBy(DeadLetterIndex.Dimension.DEAD_LETTER_ERROR_DESCRIPTION);
+    }
+
+    @Benchmark
+    public SortedMap<Instant, Long> countByHour() {
+        return this.index.select().where(DeadLetterIndex.Dimension.CONTENT_TYPE, "application/json").countByEnqueuedTime();
+    }
+
+    @Benchmark
+    public long browseAndCount() throws Exception {
+        long count = 0;
+        long next = 1;
+        while (true) {
+            Collection<IMessage> messages = this.browser.peekBatch(next, 1000);
+            if (messages == null || messages.isEmpty()) {
+                return count;
+            }
+            for (IMessage message : messages) {
+                if ("reason7".equals(message.getProperties().get("DeadLetterReason"))) {
+                    count++;
+                }
+                next = message.getSequenceNumber() + 1;
+            }
+        }
+    }
+
+    // Message has no public setters for the broker-assigned properties
+    private static IMessage browsedMessage(long sequenceNumber, long enqueuedMillis) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("DeadLetterReason", "reason" + sequenceNumber % 20);
+        properties.put("DeadLetterErrorDescription", "description" + sequenceNumber % 1000);
+        String label = "label" + sequenceNumber % 50;
+        String contentType = sequenceNumber % 3 == 0 ? "application/json" : sequenceNumber % 3 == 1 ? "text/plain" : "application/xml";
+        Instant enqueued = Instant.ofEpochMilli(enqueuedMillis);
+        return (IMessage) Proxy.newProxyInstance(IMessage.class.getClassLoader(), new Class<?>[]{IMessage.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getSequenceNumber":
+                    return sequenceNumber;
+                case "getEnqueuedTimeUtc":
+                    return enqueued;
+                case "getLabel":
+                    return label;
+                case "getContentType":
+                    return contentType;
+                case "getProperties":
+                    return properties;
+                default:
+                    return null;
+            }
+        });
+    }
+}
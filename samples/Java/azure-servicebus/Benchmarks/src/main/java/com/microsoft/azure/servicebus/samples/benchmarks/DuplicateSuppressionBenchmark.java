@@ -0,0 +1,110 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.duplicatedetection.DeduplicatingMessageSender;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends {@link #MESSAGE_COUNT} messages to a queue with duplicate detection, where a share of
+ * {@link #duplicatePercent} percent repeat the id of a message sent before, as retried sends do:
+ * once with a plain sender, where the broker drops the duplicates, and once with the DuplicateDetection
+ * sample's {@link DeduplicatingMessageSender}, which does not send them. Scores are messages per
+ * second; the {@code transferred} counter reports how many of them per second reached the broker.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DuplicateSuppressionBenchmark {
+
+    static final String QUEUE_NAME = "DupdetectQueue";
+    static final int MESSAGE_COUNT = 1000;
+
+    @Param({"0", "10", "50"})
+    public int duplicatePercent;
+
+    @Param({"500"})
+    public int roundTripLatencyMicros;
+
+    private ServiceBusEmulator emulator;
+    private IMessageSender sender;
+    private DeduplicatingMessageSender deduplicatingSender;
+    private long nextId;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Transfers {
+        public long transferred;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.transferred = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.emulator = new ServiceBusEmulator();
+        this.emulator.setDuplicateDetectionHistoryTimeWindow(Duration.ofMinutes(10));
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.sender = this.emulator.createMessageSender(QUEUE_NAME);
+        this.deduplicatingSender = new DeduplicatingMessageSender(this.emulator.createMessageSender(QUEUE_NAME),
+                Duration.ofMinutes(10), 1_000_000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.sender.close();
+        this.deduplicatingSender.close();
+        this.emulator.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void plainSender(Transfers transfers) {
+        this.sendAll(this.sender);
+        transfers.transferred += MESSAGE_COUNT;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void deduplicatingSender(Transfers transfers) {
+        long suppressed = this.deduplicatingSender.getSuppressedCount();
+        this.sendAll(this.deduplicatingSender);
+        suppressed = this.deduplicatingSender.getSuppressedCount() - suppressed;
+        transfers.transferred += MESSAGE_COUNT - suppressed;
+    }
+
+    // every message whose index falls into the duplicate share repeats the id sent just before
+    private void sendAll(IMessageSender sender) {
+        List<CompletableFuture<Void>> sends = new ArrayList<>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            if (i % 100 >= this.duplicatePercent) {
+                this.nextId++;
+            }
+            Message message = new Message(new byte[100]);
+            message.setMessageId(Long.toString(this.nextId));
+            // the queue does not grow during the run
+            message.setTimeToLive(Duration.ofSeconds(1));
+            sends.add(sender.sendAsync(message));
+            if (i % 100 == 99) {
+                // duplicates are usually retries of sends that have completed
+                CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()])).join();
+                sends.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.rules.CorrelationFilter;
+import com.microsoft.azure.servicebus.rules.Filter;
+import com.microsoft.azure.servicebus.rules.SqlFilter;
+import com.microsoft.azure.servicebus.rules.SqlRuleAction;
+import com.microsoft.azure.servicebus.samples.topicfilters.RuleEvaluator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Evaluates subscription rules on the client with the TopicFilters sample's {@link RuleEvaluator}:
+ * {@code compiled} runs the lambdas a rule compiles into, {@code interpreted} walks the parsed
+ * rule for every message. The rules are the ManagingTopicRules sample's {@code simple} filter
+ * {@code Color = 'Red'}, a {@code composite} filter with {@code OR}, {@code IN}, a numeric
+ * comparison, {@code LIKE} and {@code IS NOT NULL}, its {@code correlation} filter, and an
+ * {@code action} that sets a user and a system property. Each invocation evaluates the rule for
+ * {@link #MESSAGE_COUNT} messages with random properties; scores are evaluations per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterEvaluationBenchmark {
+
+    static final int MESSAGE_COUNT = 1024;
+    static final String[] COLORS = {"Red", "Blue", "Green", "Yellow"};
+    static final String[] PRIORITIES = {"important", "notimportant", null};
+    static final String COMPOSITE = "(Color = 'Red' OR Color IN ('Blue', 'Green')) AND Quantity > 5"
+            + " AND sys.Label LIKE 'order%' AND Priority IS NOT NULL";
+    static final String ACTION = "SET Total = Quantity * 2; SET sys.To = 'processed'";
+
+    @Param({"simple", "composite", "correlation", "action"})
+    public String rule;
+
+    private final IMessage[] messages = new IMessage[MESSAGE_COUNT];
+    private Predicate<IMessage> compiledFilter;
+    private Predicate<IMessage> interpretedFilter;
+    private Consumer<IMessage> compiledAction;
+    private Consumer<IMessage> interpretedAction;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            String color = COLORS[random.nextInt(COLORS.length)];
+            String priority = PRIORITIES[random.nextInt(PRIORITIES.length)];
+            Message message = new Message("order");
+            message.setLabel(random.nextBoolean() ? color : "order-" + i);
+            message.setCorrelationId(priority);
+            Map<String, String> properties = new HashMap<>();
+            properties.put("Color", color);
+            properties.put("Quantity", Integer.toString(random.nextInt(20)));
+            if (priority != null) {
+                properties.put("Priority", priority);
+            }
+            message.setProperties(properties);
+            this.messages[i] = message;
+        }
+        switch (this.rule) {
+            case "simple":
+                this.setFilter(new SqlFilter("Color = 'Red'"));
+                break;
+            case "composite":
+                this.setFilter(new SqlFilter(COMPOSITE));
+                break;
+            case "correlation":
+                CorrelationFilter correlation = new CorrelationFilter();
+                correlation.setCorrelationId("important");
+                correlation.setLabel("Red");
+                this.setFilter(correlation);
+                break;
+            default:
+                this.compiledAction = RuleEvaluator.compileAction(new SqlRuleAction(ACTION));
+                this.interpretedAction = RuleEvaluator.interpretAction(new SqlRuleAction(ACTION));
+                break;
+        }
+    }
+
+    private void setFilter(Filter filter) {
+        this.compiledFilter = RuleEvaluator.compileFilter(filter);
+        this.interpretedFilter = RuleEvaluator.interpretFilter(filter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public int compiled() {
+        return this.run(this.compiledFilter, this.compiledAction);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public int interpreted() {
+        return this.run(this.interpretedFilter, this.interpretedAction);
+    }
+
+    private int run(Predicate<IMessage> filter, Consumer<IMessage> action) {
+        int matched = 0;
+        if (filter != null) {
+            for (IMessage message : this.messages) {
+                if (filter.test(message)) {
+                    matched++;
+                }
+            }
+        } else {
+            for (IMessage message : this.messages) {
+                action.accept(message);
+            }
+        }
+        return matched;
+    }
+}
@@ -0,0 +1,115 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.*;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import com.microsoft.azure.servicebus.samples.queuesgettingstarted.HandlerExecutionMode;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A message handler that blocks on a synchronous {@code send} for every message, as the
+ * DeadletterQueue sample does when it resubmits, run on a fixed pool, a cached pool and virtual
+ * threads. Scores are messages per second.
+ * <p>
+ * The fixed pool has one thread per processor, so it caps the calls in flight no matter what
+ * {@code maxConcurrentCalls} allows. The cached pool creates a platform thread per call in flight.
+ * {@code VIRTUAL_THREADS} needs a build with the {@code java21} profile; in a Java 8 build its
+ * runs fail in setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandlerExecutorBenchmark {
+
+    static final String QUEUE_NAME = "BasicQueue";
+    static final String RESUBMIT_QUEUE_NAME = "ResubmitQueue";
+    static final int MESSAGE_COUNT = 2000;
+    // keeps each feeder batch below the 256 KB batch size limit
+    static final int FEED_BATCH_SIZE = 1000;
+
+    @Param({"FIXED_POOL", "CACHED_POOL", "VIRTUAL_THREADS"})
+    public HandlerExecutionMode executionMode;
+
+    @Param({"16", "256", "2048"})
+    public int maxConcurrentCalls;
+
+    @Param({"1000"})
+    public int roundTripLatencyMicros;
+
+    private ServiceBusEmulator emulator;
+    private IMessageSender feeder;
+    private IQueueClient client;
+    private ExecutorService executorService;
+    private List<Message> messages;
+    private volatile CountDownLatch handled;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // the mode falls back to a cached pool, which would be measured twice under another name
+        if (this.executionMode.resolve() != this.executionMode) {
+            throw new UnsupportedOperationException(this.executionMode + " needs a build with the java21 profile.");
+        }
+        this.executorService = this.executionMode.newExecutor(Runtime.getRuntime().availableProcessors());
+        this.emulator = new ServiceBusEmulator();
+        this.feeder = this.emulator.createMessageSender(QUEUE_NAME);
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.client = this.emulator.createQueueClient(QUEUE_NAME, ReceiveMode.PEEKLOCK);
+        IMessageSender resubmitSender = this.emulator.createMessageSender(RESUBMIT_QUEUE_NAME);
+
+        this.messages = new ArrayList<>(FEED_BATCH_SIZE);
+        for (int i = 0; i < FEED_BATCH_SIZE; i++) {
+            this.messages.add(new Message(new byte[100]));
+        }
+        this.handled = new CountDownLatch(0);
+
+        this.client.registerMessageHandler(new IMessageHandler() {
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                Message resubmit = new Message(message.getBody());
+                // resubmitted messages expire, so the sink queue does not grow during the run
+                resubmit.setTimeToLive(Duration.ofSeconds(1));
+                try {
+                    resubmitSender.send(resubmit);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                handled.countDown();
+                return CompletableFuture.completedFuture(null);
+            }
+
+            public void notifyException(Throwable throwable, ExceptionPhase exceptionPhase) {
+                System.out.printf(exceptionPhase + "-" + throwable.getMessage());
+            }
+        }, new MessageHandlerOptions(this.maxConcurrentCalls, true, Duration.ofMinutes(1)), this.executorService);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.client.close();
+        this.feeder.close();
+        this.executorService.shutdownNow();
+        this.emulator.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void blockingHandler() throws Exception {
+        this.handled = new CountDownLatch(MESSAGE_COUNT);
+        for (int sent = 0; sent < MESSAGE_COUNT; sent += FEED_BATCH_SIZE) {
+            this.feeder.sendBatch(this.messages);
+        }
+        this.handled.await();
+    }
+}
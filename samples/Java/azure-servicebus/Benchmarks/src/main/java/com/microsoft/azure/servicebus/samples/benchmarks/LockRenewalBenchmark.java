@@ -0,0 +1,116 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import com.microsoft.azure.servicebus.samples.receiveloop.LockRenewalScheduler;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the locks of {@link #lockCount} received messages and releases them again, as a receiver
+ * does when the messages are settled: once with the {@link LockRenewalScheduler} timing wheel,
+ * once with a timer task per message on a {@code ScheduledThreadPoolExecutor}, which is how the
+ * message handler renews locks. Scores are per lock. Run with {@code -prof gc} to compare the
+ * allocation per lock.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LockRenewalBenchmark {
+
+    static final String QUEUE_NAME = "BasicQueue";
+    static final int SEND_BATCH_SIZE = 1000;
+
+    @Param({"100000"})
+    public int lockCount;
+
+    private ServiceBusEmulator emulator;
+    private IMessageReceiver receiver;
+    private List<IMessage> messages;
+    private LockRenewalScheduler scheduler;
+    private LockRenewalScheduler.LockRenewer renewer;
+    private ScheduledThreadPoolExecutor timer;
+    private ScheduledFuture<?>[] timers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.emulator = new ServiceBusEmulator();
+        // long enough that nothing becomes due during a trial
+        this.emulator.setLockDuration(Duration.ofMinutes(30));
+        IMessageSender sender = this.emulator.createMessageSender(QUEUE_NAME);
+        this.receiver = this.emulator.createMessageReceiver(QUEUE_NAME, ReceiveMode.PEEKLOCK);
+        this.messages = new ArrayList<>(this.lockCount);
+        for (int sent = 0; sent < this.lockCount; sent += SEND_BATCH_SIZE) {
+            List<Message> batch = new ArrayList<>(SEND_BATCH_SIZE);
+            for (int i = sent; i < Math.min(this.lockCount, sent + SEND_BATCH_SIZE); i++) {
+                batch.add(new Message(Integer.toString(i)));
+            }
+            sender.sendBatch(batch);
+            this.messages.addAll(this.receiver.receiveBatch(batch.size(), Duration.ofSeconds(5)));
+        }
+        sender.close();
+        if (this.messages.size() != this.lockCount) {
+            throw new IllegalStateException("Received " + this.messages.size() + " of " + this.lockCount + " messages.");
+        }
+
+        this.scheduler = new LockRenewalScheduler();
+        this.renewer = LockRenewalScheduler.renewerOf(this.receiver);
+        this.timer = new ScheduledThreadPoolExecutor(1);
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.timers = new ScheduledFuture<?>[this.lockCount];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.scheduler.close();
+        this.timer.shutdownNow();
+        this.receiver.close();
+        this.emulator.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100000)
+    public int timingWheel() {
+        for (IMessage message : this.messages) {
+            this.scheduler.register(message, this.renewer, null);
+        }
+        int tracked = this.scheduler.getTrackedLockCount();
+        for (IMessage message : this.messages) {
+            this.scheduler.unregister(message.getLockToken());
+        }
+        return tracked;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100000)
+    public int timerPerMessage() {
+        long renewAhead = LockRenewalScheduler.DEFAULT_RENEW_AHEAD.toNanos();
+        for (int i = 0; i < this.messages.size(); i++) {
+            IMessage message = this.messages.get(i);
+            long delay = Duration.between(Instant.now(), message.getLockedUntilUtc()).toNanos() - renewAhead;
+            this.timers[i] = this.timer.schedule(() -> this.receiver.renewMessageLockAsync(message), delay, TimeUnit.NANOSECONDS);
+        }
+        int tracked = this.timer.getQueue().size();
+        for (ScheduledFuture<?> future : this.timers) {
+            future.cancel(false);
+        }
+        return tracked;
+    }
+}
@@ -0,0 +1,105 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import com.microsoft.azure.servicebus.samples.receiveloop.MultiLinkReceiver;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains {@link #MESSAGE_COUNT} messages from one queue with a {@link MultiLinkReceiver} of
+ * {@link #linkCount} links that completes every message. Each link is a separate emulator receiver
+ * that pays the round-trip latency for every receive and every complete. Scores are messages per
+ * second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MultiLinkBenchmark {
+
+    static final String QUEUE_NAME = "BasicQueue";
+    static final int MESSAGE_COUNT = 2000;
+    // keeps each feeder batch below the 256 KB batch size limit
+    static final int FEED_BATCH_SIZE = 1000;
+
+    @Param({"1", "2", "4", "8", "16"})
+    public int linkCount;
+
+    @Param({"20"})
+    public int batchSize;
+
+    @Param({"1000"})
+    public int roundTripLatencyMicros;
+
+    private ServiceBusEmulator emulator;
+    private IMessageSender feeder;
+    private ExecutorService executorService;
+    private MultiLinkReceiver receiver;
+    private List<Message> messages;
+    private volatile CountDownLatch handled;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.emulator = new ServiceBusEmulator();
+        this.feeder = this.emulator.createMessageSender(QUEUE_NAME);
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.receiver = new MultiLinkReceiver(
+                linkIndex -> CompletableFuture.completedFuture(this.emulator.createMessageReceiver(QUEUE_NAME, ReceiveMode.PEEKLOCK)),
+                this.linkCount, this.executorService, this.batchSize, Duration.ofSeconds(5));
+
+        this.messages = new ArrayList<>(FEED_BATCH_SIZE);
+        for (int i = 0; i < FEED_BATCH_SIZE; i++) {
+            this.messages.add(new Message(new byte[100]));
+        }
+        this.handled = new CountDownLatch(0);
+
+        this.receiver.startAsync(new IMessageHandler() {
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                handled.countDown();
+                return CompletableFuture.completedFuture(null);
+            }
+
+            public void notifyException(Throwable throwable, ExceptionPhase exceptionPhase) {
+                System.out.printf(exceptionPhase + "-" + throwable.getMessage());
+            }
+        }, true).get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.receiver.close();
+        this.feeder.close();
+        this.executorService.shutdownNow();
+        this.emulator.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void drain() throws Exception {
+        this.handled = new CountDownLatch(MESSAGE_COUNT);
+        for (int sent = 0; sent < MESSAGE_COUNT; sent += FEED_BATCH_SIZE) {
+            this.feeder.sendBatch(this.messages);
+        }
+        this.handled.await();
+    }
+}
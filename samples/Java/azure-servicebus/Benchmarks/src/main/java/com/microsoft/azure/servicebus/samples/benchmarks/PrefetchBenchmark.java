@@ -0,0 +1,184 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.EmulatedEntity;
+import com.microsoft.azure.servicebus.samples.emulator.EmulatedMessage;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The receive and settle loop of the Prefetch sample, measured per message against the emulator.
+ * <p>
+ * Every combination of prefetch count, payload size, receive mode and settle mode is run with the
+ * configured round-trip latency. {@link #receiveAndSettle} reports messages per second and
+ * {@link #receiveAndSettleLatency} the p50, p99 and p999 latency of a single receive and settle.
+ * In {@code RECEIVEANDDELETE} mode there is nothing to settle, so the settle mode has no effect.
+ * <p>
+ * A feeder thread keeps the queue stocked while the benchmark runs, so the measured operations
+ * never include a send. It sends batches that stay within the emulator's batch size limit.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PrefetchBenchmark {
+
+    public enum SettleMode {
+        // complete and wait for the round trip, as the Prefetch sample does
+        COMPLETE,
+        // complete without waiting; the next receive overlaps the round trip
+        COMPLETE_ASYNC
+    }
+
+    static final String QUEUE_NAME = "BasicQueue";
+    // the feeder sends when fewer messages than this are in the queue
+    static final int LOW_WATERMARK = 4096;
+    static final Duration SERVER_WAIT_TIME = Duration.ofSeconds(5);
+
+    @Param({"0", "50", "500"})
+    public int prefetchCount;
+
+    @Param({"100", "4096"})
+    public int payloadSize;
+
+    @Param({"PEEKLOCK", "RECEIVEANDDELETE"})
+    public ReceiveMode receiveMode;
+
+    @Param({"COMPLETE", "COMPLETE_ASYNC"})
+    public SettleMode settleMode;
+
+    @Param({"0", "500"})
+    public int roundTripLatencyMicros;
+
+    private ServiceBusEmulator emulator;
+    private IMessageSender feeder;
+    private IMessageReceiver receiver;
+    private Thread feederThread;
+    private volatile boolean running;
+    private volatile Exception feederError;
+    private CompletableFuture<Void> lastSettle = CompletableFuture.completedFuture(null);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.emulator = new ServiceBusEmulator();
+
+        // the feeder keeps the queue stocked without paying the latency under test
+        this.feeder = this.emulator.createMessageSender(QUEUE_NAME);
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.receiver = this.emulator.createMessageReceiver(QUEUE_NAME, this.receiveMode);
+        this.receiver.setPrefetchCount(this.prefetchCount);
+
+        List<List<Message>> batches = this.refillBatches();
+        EmulatedEntity queue = this.emulator.getEntity(QUEUE_NAME);
+        this.fill(queue, batches);
+        this.running = true;
+        this.feederThread = new Thread(() -> {
+            try {
+                while (this.running) {
+                    if (!this.fill(queue, batches)) {
+                        Thread.sleep(1);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closing
+            } catch (Exception e) {
+                this.feederError = e;
+            }
+        }, "prefetch-benchmark-feeder");
+        this.feederThread.setDaemon(true);
+        this.feederThread.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void drainSettlements() {
+        this.lastSettle.join();
+        if (this.feederError != null) {
+            throw new IllegalStateException("The feeder failed.", this.feederError);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.running = false;
+        this.feederThread.interrupt();
+        this.feederThread.join();
+        this.receiver.close();
+        this.feeder.close();
+        this.emulator.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public IMessage receiveAndSettle() throws Exception {
+        return this.receiveAndSettleOne();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public IMessage receiveAndSettleLatency() throws Exception {
+        return this.receiveAndSettleOne();
+    }
+
+    private IMessage receiveAndSettleOne() throws Exception {
+        IMessage message = this.receiver.receive(SERVER_WAIT_TIME);
+        if (this.receiveMode == ReceiveMode.PEEKLOCK) {
+            if (this.settleMode == SettleMode.COMPLETE) {
+                this.receiver.complete(message.getLockToken());
+            } else {
+                this.lastSettle = this.receiver.completeAsync(message.getLockToken());
+            }
+        }
+        return message;
+    }
+
+    // sends the batches if the queue runs low; returns whether it sent
+    private boolean fill(EmulatedEntity queue, List<List<Message>> batches) throws Exception {
+        if (queue.getMessageCount() >= LOW_WATERMARK) {
+            return false;
+        }
+        for (List<Message> batch : batches) {
+            this.feeder.sendBatch(batch);
+        }
+        return true;
+    }
+
+    // 2 * LOW_WATERMARK messages, split into batches by size rather than count
+    private List<List<Message>> refillBatches() {
+        byte[] payload = new byte[this.payloadSize];
+        new Random(0).nextBytes(payload);
+        int maxBatchSize = this.emulator.getMaxMessageSizeInBytes();
+        List<List<Message>> batches = new ArrayList<>();
+        List<Message> batch = new ArrayList<>();
+        int batchSize = 0;
+        for (int i = 0; i < 2 * LOW_WATERMARK; i++) {
+            Message message = new Message(payload);
+            message.setTimeToLive(Duration.ofMinutes(5));
+            int size = EmulatedMessage.estimateSize(message);
+            if (!batch.isEmpty() && batchSize + size > maxBatchSize) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchSize = 0;
+            }
+            batch.add(message);
+            batchSize += size;
+        }
+        batches.add(batch);
+        return batches;
+    }
+}
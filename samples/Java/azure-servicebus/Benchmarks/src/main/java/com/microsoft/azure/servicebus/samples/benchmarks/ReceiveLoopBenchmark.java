@@ -0,0 +1,134 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import com.microsoft.azure.servicebus.samples.receiveloop.AsyncReceiveLoop;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link #loopCount} receive loops on one queue and measures how long a message takes from
+ * {@code send} until a loop has handled and completed it. The {@code BLOCKING} loops are the
+ * ReceiveLoop sample's former loop, a thread per loop blocked in {@code receive}; the
+ * {@code ASYNC} loops are {@link AsyncReceiveLoop}s sharing a pool of one thread per processor.
+ * The {@code liveThreads} counter reports the threads of the JVM while the loops run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReceiveLoopBenchmark {
+
+    static final String QUEUE_NAME = "BasicQueue";
+    static final Duration SERVER_WAIT_TIME = Duration.ofSeconds(5);
+
+    public enum LoopKind {
+        BLOCKING,
+        ASYNC
+    }
+
+    @Param({"BLOCKING", "ASYNC"})
+    public LoopKind loopKind;
+
+    @Param({"16", "256", "1024"})
+    public int loopCount;
+
+    @Param({"500"})
+    public int roundTripLatencyMicros;
+
+    private ServiceBusEmulator emulator;
+    private IMessageSender sender;
+    private List<IMessageReceiver> receivers;
+    private List<CompletableFuture<Void>> loops;
+    private ExecutorService executorService;
+    private volatile boolean running;
+    private volatile CompletableFuture<Void> handled;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class ThreadCount {
+        public long liveThreads;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.emulator = new ServiceBusEmulator();
+        this.sender = this.emulator.createMessageSender(QUEUE_NAME);
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.executorService = this.loopKind == LoopKind.BLOCKING
+                ? Executors.newCachedThreadPool()
+                : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.handled = new CompletableFuture<>();
+        this.running = true;
+        this.receivers = new ArrayList<>(this.loopCount);
+        this.loops = new ArrayList<>(this.loopCount);
+        for (int i = 0; i < this.loopCount; i++) {
+            IMessageReceiver receiver = this.emulator.createMessageReceiver(QUEUE_NAME, ReceiveMode.PEEKLOCK);
+            this.receivers.add(receiver);
+            if (this.loopKind == LoopKind.BLOCKING) {
+                this.loops.add(CompletableFuture.runAsync(() -> this.receiveBlocking(receiver), this.executorService));
+            } else {
+                this.loops.add(new AsyncReceiveLoop(receiver, message -> this.handle(receiver, message),
+                        this.executorService, 1, SERVER_WAIT_TIME).start());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.running = false;
+        for (CompletableFuture<Void> loop : this.loops) {
+            loop.cancel(true);
+        }
+        for (IMessageReceiver receiver : this.receivers) {
+            receiver.close();
+        }
+        this.sender.close();
+        this.executorService.shutdownNow();
+        this.emulator.close();
+    }
+
+    @Benchmark
+    public void sendToHandled(ThreadCount threadCount) throws Exception {
+        CompletableFuture<Void> handled = new CompletableFuture<>();
+        this.handled = handled;
+        this.sender.send(new Message(new byte[100]));
+        handled.get(10, TimeUnit.SECONDS);
+        threadCount.liveThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    private void receiveBlocking(IMessageReceiver receiver) {
+        while (this.running) {
+            try {
+                IMessage message = receiver.receive(SERVER_WAIT_TIME);
+                if (message != null) {
+                    this.handle(receiver, message);
+                }
+            } catch (Exception e) {
+                return;
+            }
+        }
+    }
+
+    private CompletableFuture<Void> handle(IMessageReceiver receiver, IMessage message) {
+        this.handled.complete(null);
+        return receiver.completeAsync(message.getLockToken());
+    }
+}
@@ -0,0 +1,106 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import com.microsoft.azure.servicebus.samples.prefetch.BatchedReceivePipeline;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains a queue of {@link #MESSAGE_COUNT} messages with the Prefetch sample's receive and complete
+ * loop, and with the {@link BatchedReceivePipeline}. Scores are per message.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceivePipelineBenchmark {
+
+    static final String QUEUE_NAME = "BasicQueue";
+    static final int MESSAGE_COUNT = 1000;
+    static final Duration SERVER_WAIT_TIME = Duration.ofSeconds(5);
+
+    @Param({"0", "500"})
+    public int roundTripLatencyMicros;
+
+    @Param({"50"})
+    public int prefetchCount;
+
+    @Param({"20", "100"})
+    public int batchSize;
+
+    // simulated handler work, in Blackhole.consumeCPU tokens
+    @Param({"0", "1000"})
+    public int handlerWork;
+
+    private ServiceBusEmulator emulator;
+    private IMessageSender feeder;
+    private IMessageReceiver receiver;
+    private ExecutorService executorService;
+    private BatchedReceivePipeline pipeline;
+    private List<Message> messages;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.emulator = new ServiceBusEmulator();
+        this.feeder = this.emulator.createMessageSender(QUEUE_NAME);
+        this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+        this.receiver = this.emulator.createMessageReceiver(QUEUE_NAME, ReceiveMode.PEEKLOCK);
+        this.receiver.setPrefetchCount(this.prefetchCount);
+        this.executorService = Executors.newFixedThreadPool(4);
+        this.pipeline = new BatchedReceivePipeline(this.receiver, this.batchSize, this.batchSize, Duration.ofMillis(1), this.executorService);
+
+        this.messages = new ArrayList<>(MESSAGE_COUNT);
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            Message message = new Message(new byte[100]);
+            message.setTimeToLive(Duration.ofMinutes(5));
+            this.messages.add(message);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() throws Exception {
+        this.feeder.sendBatch(this.messages);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.pipeline.close();
+        this.executorService.shutdown();
+        this.receiver.close();
+        this.feeder.close();
+        this.emulator.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public void receiveAndCompleteLoop() throws Exception {
+        for (int remaining = MESSAGE_COUNT; remaining > 0; remaining--) {
+            IMessage message = this.receiver.receive(SERVER_WAIT_TIME);
+            Blackhole.consumeCPU(this.handlerWork);
+            this.receiver.complete(message.getLockToken());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_COUNT)
+    public long batchedPipeline() {
+        return this.pipeline.processAsync(MESSAGE_COUNT, SERVER_WAIT_TIME, message -> Blackhole.consumeCPU(this.handlerWork)).join();
+    }
+}
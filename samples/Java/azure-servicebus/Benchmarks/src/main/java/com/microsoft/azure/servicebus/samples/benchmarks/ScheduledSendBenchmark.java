@@ -0,0 +1,196 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import com.microsoft.azure.servicebus.samples.scheduledmessages.ScheduledSendEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Schedules and cancels reminders while {@link #pendingCount} of them are pending: each operation
+ * cancels a pending reminder and schedules a new one, due at a random time within 30 days.
+ * {@code engine} uses the ScheduledMessages sample's {@link ScheduledSendEngine}, which journals
+ * each reminder; {@code executor} uses a {@link ScheduledThreadPoolExecutor} that removes cancelled
+ * tasks, with tasks that hold no message and are lost when the process ends; {@code broker}
+ * schedules and cancels on the emulator with {@code scheduleMessageAsync} and
+ * {@code cancelScheduledMessageAsync} at the given round-trip latency, with
+ * {@link #BROKER_PENDING_COUNT} pending. Scores are operations per second. {@code recoverEngine}
+ * measures how long reopening an engine with {@link #pendingCount} pending reminders takes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ScheduledSendBenchmark {
+
+    static final long HORIZON_MILLIS = TimeUnit.DAYS.toMillis(30);
+    static final int BROKER_PENDING_COUNT = 10_000;
+
+    @State(Scope.Benchmark)
+    public static class EngineState {
+        @Param({"10000000"})
+        public int pendingCount;
+
+        Path directory;
+        ServiceBusEmulator emulator;
+        IMessageSender sender;
+        ScheduledSendEngine engine;
+        long[] scheduleIds;
+        final Random random = new Random(42);
+        long start;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            this.directory = Files.createTempDirectory("scheduled-send");
+            this.emulator = new ServiceBusEmulator();
+            this.sender = this.emulator.createMessageSender("BasicQueue");
+            this.engine = new ScheduledSendEngine(this.sender, this.directory);
+            this.start = System.currentTimeMillis();
+            this.scheduleIds = new long[this.pendingCount];
+            for (int i = 0; i < this.pendingCount; i++) {
+                this.scheduleIds[i] = this.engine.schedule(reminder(i), this.nextDue());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.engine.close();
+            this.emulator.close();
+            delete(this.directory);
+        }
+
+        Instant nextDue() {
+            return Instant.ofEpochMilli(this.start + HORIZON_MILLIS / 2 + (long) (this.random.nextDouble() * HORIZON_MILLIS));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ExecutorState {
+        @Param({"10000000"})
+        public int pendingCount;
+
+        ScheduledThreadPoolExecutor executor;
+        ScheduledFuture<?>[] futures;
+        final Random random = new Random(42);
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.executor = new ScheduledThreadPoolExecutor(1);
+            this.executor.setRemoveOnCancelPolicy(true);
+            this.futures = new ScheduledFuture<?>[this.pendingCount];
+            for (int i = 0; i < this.pendingCount; i++) {
+                this.futures[i] = this.executor.schedule(ExecutorState::send, this.nextDelay(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.executor.shutdownNow();
+        }
+
+        long nextDelay() {
+            return HORIZON_MILLIS / 2 + (long) (this.random.nextDouble() * HORIZON_MILLIS);
+        }
+
+        static void send() {
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BrokerState {
+        @Param({"1000"})
+        public int roundTripLatencyMicros;
+
+        ServiceBusEmulator emulator;
+        IMessageSender sender;
+        long[] sequenceNumbers;
+        final Random random = new Random(42);
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            this.emulator = new ServiceBusEmulator();
+            IMessageSender feeder = this.emulator.createMessageSender("BasicQueue");
+            this.sequenceNumbers = new long[BROKER_PENDING_COUNT];
+            for (int i = 0; i < BROKER_PENDING_COUNT; i++) {
+                this.sequenceNumbers[i] = feeder.scheduleMessage(reminder(i), this.nextDue());
+            }
+            feeder.close();
+            this.emulator.setRoundTripLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(this.roundTripLatencyMicros)));
+            this.sender = this.emulator.createMessageSender("BasicQueue");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            this.sender.close();
+            this.emulator.close();
+        }
+
+        Instant nextDue() {
+            return Instant.now().plusMillis(HORIZON_MILLIS / 2 + (long) (this.random.nextDouble() * HORIZON_MILLIS));
+        }
+    }
+
+    @Benchmark
+    public long engine(EngineState state) throws Exception {
+        int slot = state.next++ % state.pendingCount;
+        state.engine.cancel(state.scheduleIds[slot]);
+        return state.scheduleIds[slot] = state.engine.schedule(reminder(slot), state.nextDue());
+    }
+
+    @Benchmark
+    public ScheduledFuture<?> executor(ExecutorState state) {
+        int slot = state.next++ % state.pendingCount;
+        state.futures[slot].cancel(false);
+        return state.futures[slot] = state.executor.schedule(ExecutorState::send, state.nextDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    public long broker(BrokerState state) throws Exception {
+        int slot = state.next++ % BROKER_PENDING_COUNT;
+        state.sender.cancelScheduledMessage(state.sequenceNumbers[slot]);
+        return state.sequenceNumbers[slot] = state.sender.scheduleMessage(reminder(slot), state.nextDue());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 3)
+    public long recoverEngine(EngineState state) throws Exception {
+        state.engine.close();
+        state.engine = new ScheduledSendEngine(state.sender, state.directory);
+        return state.engine.getRecoveredCount();
+    }
+
+    static Message reminder(int i) {
+        Message message = new Message(new byte[16]);
+        message.setMessageId("reminder-" + i);
+        message.setLabel("Reminder");
+        return message;
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.benchmarks;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import com.microsoft.azure.servicebus.samples.messagebrowse.QueueSnapshot;
+import com.microsoft.azure.servicebus.samples.messagebrowse.SnapshotWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries a snapshot of {@link #messageCount} messages written with the MessageBrowse sample's
+ * {@link SnapshotWriter}, without bodies. The messages pass through the emulator in batches, so
+ * that they carry the sequence numbers and enqueued times a broker sets; each has one of eight
+ * labels, one of two content types and a time to live of up to a day. {@code countByLabel} and
+ * {@code expiring} read every message; {@code sequenceRange} aggregates 1% of the sequence
+ * numbers and {@code label} counts one label and content type in 1% of the enqueued time span,
+ * which read only the blocks that can match. {@code openSnapshot} measures opening the file. Scores are
+ * milliseconds per query.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotQueryBenchmark {
+
+    static final String[] LABELS = {"Order", "Payment", "Shipment", "Invoice", "Refund", "Reminder", "Audit", "Scientist"};
+    static final int BATCH_SIZE = 1000;
+
+    @Param({"5000000"})
+    public int messageCount;
+
+    private Path file;
+    private QueueSnapshot snapshot;
+    private long firstSequenceNumber;
+    private Instant firstEnqueuedTime;
+    private Duration enqueuedTimeSpan;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.file = Files.createTempFile("snapshot", ".bin");
+        Random random = new Random(42);
+        ServiceBusEmulator emulator = new ServiceBusEmulator();
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.RECEIVEANDDELETE);
+        try (SnapshotWriter writer = new SnapshotWriter(this.file, false)) {
+            List<Message> batch = new ArrayList<>(BATCH_SIZE);
+            for (int sent = 0; sent < this.messageCount; sent += batch.size()) {
+                batch.clear();
+                for (int i = 0; i < Math.min(BATCH_SIZE, this.messageCount - sent); i++) {
+                    Message message = new Message(new byte[64]);
+                    message.setLabel(LABELS[random.nextInt(LABELS.length)]);
+                    message.setContentType(random.nextInt(4) == 0 ? "text/plain" : "application/json");
+                    message.setTimeToLive(Duration.ofMinutes(1 + random.nextInt(24 * 60)));
+                    batch.add(message);
+                }
+                sender.sendBatch(batch);
+                for (int received = 0; received < batch.size(); ) {
+                    for (IMessage message : receiver.receiveBatch(batch.size() - received, Duration.ofSeconds(1))) {
+                        writer.append(message);
+                        received++;
+                    }
+                }
+            }
+        } finally {
+            receiver.close();
+            sender.close();
+            emulator.close();
+        }
+        this.snapshot = QueueSnapshot.open(this.file);
+        QueueSnapshot.Aggregate all = this.snapshot.query().aggregate();
+        this.firstSequenceNumber = this.snapshot.query().sequenceNumbers(1)[0];
+        this.firstEnqueuedTime = all.getMinEnqueuedTime();
+        this.enqueuedTimeSpan = Duration.between(all.getMinEnqueuedTime(), all.getMaxEnqueuedTime());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.snapshot.close();
+        Files.deleteIfExists(this.file);
+    }
+
+    @Benchmark
+    public Map<String, Long> countByLabel() {
+        return this.snapshot.query().countByLabel();
+    }
+
+    @Benchmark
+    public long expiring() {
+        return this.snapshot.query().expiresBefore(this.firstEnqueuedTime.plus(Duration.ofHours(12))).count();
+    }
+
+    @Benchmark
+    public QueueSnapshot.Aggregate sequenceRange() {
+        long from = this.firstSequenceNumber + this.messageCount / 2;
+        return this.snapshot.query().sequenceNumbers(from, from + this.messageCount / 100).aggregate();
+    }
+
+    @Benchmark
+    public long label() {
+        Instant from = this.firstEnqueuedTime.plus(this.enqueuedTimeSpan.dividedBy(3));
+        return this.snapshot.query().label("Payment").contentType("text/plain").enqueuedBetween(from, from.plus(this.enqueuedTimeSpan.dividedBy(100))).count();
+    }
+
+    @Benchmark
+    public long openSnapshot() throws IOException {
+        try (QueueSnapshot opened = QueueSnapshot.open(this.file)) {
+            return opened.getMessageCount();
+        }
+    }
+}
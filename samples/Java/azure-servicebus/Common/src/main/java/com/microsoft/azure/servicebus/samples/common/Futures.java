@@ -0,0 +1,42 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.common;
+
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Helpers for the synchronous methods of the senders and receivers in these samples, which are
+ * implemented on top of their asynchronous counterparts.
+ */
+public final class Futures {
+
+    private Futures() {
+    }
+
+    /**
+     * Waits for the future and surfaces its failure the way the client library's synchronous methods
+     * do: a {@link ServiceBusException} or a {@link RuntimeException} is rethrown as is, and any other
+     * cause is wrapped in a {@link ServiceBusException}.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws InterruptedException, ServiceBusException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceBusException) {
+                throw (ServiceBusException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ServiceBusException(false, cause);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.common;
+
+import com.microsoft.azure.servicebus.IMessage;
+
+import java.util.Map;
+
+/**
+ * Estimates how many bytes a message takes in a batch: the body, the UTF-8 encoded system and
+ * application properties, and a fixed allowance for the AMQP encoding.
+ * <p>
+ * The batching, windowed and partition-aware senders of the samples all count their limits with this
+ * estimate, so their batches are sized alike.
+ */
+public final class MessageSize {
+
+    // allowance for the AMQP framing and encoding of a message inside a batch
+    public static final int OVERHEAD_IN_BYTES = 64;
+
+    private MessageSize() {
+    }
+
+    public static int estimate(IMessage message) {
+        int size = OVERHEAD_IN_BYTES + (message.getBody() == null ? 0 : message.getBody().length);
+        size += utf8Length(message.getMessageId()) + utf8Length(message.getContentType()) + utf8Length(message.getLabel())
+                + utf8Length(message.getSessionId()) + utf8Length(message.getPartitionKey()) + utf8Length(message.getCorrelationId())
+                + utf8Length(message.getTo()) + utf8Length(message.getReplyTo()) + utf8Length(message.getReplyToSessionId());
+        if (message.getProperties() != null) {
+            for (Map.Entry<String, String> property : message.getProperties().entrySet()) {
+                size += utf8Length(property.getKey()) + utf8Length(property.getValue());
+            }
+        }
+        return size;
+    }
+
+    // the UTF-8 length without encoding the string
+    public static int utf8Length(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
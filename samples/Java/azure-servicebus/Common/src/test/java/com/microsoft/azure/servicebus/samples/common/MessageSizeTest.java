@@ -0,0 +1,20 @@
+package com.microsoft.azure.servicebus.samples.common;
+
+import com.microsoft.azure.servicebus.Message;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageSizeTest {
+
+    @Test
+    public void sizeCountsUtf8Bytes() {
+        Message ascii = new Message("body");
+        ascii.setLabel("abc");
+        Message accented = new Message("body");
+        accented.setLabel("\u00e9\u00e9\u00e9");
+        Message emoji = new Message("body");
+        emoji.setLabel("\ud83d\ude00");
+        Assert.assertEquals(MessageSize.estimate(ascii) + 3, MessageSize.estimate(accented));
+        Assert.assertEquals(MessageSize.estimate(ascii) + 1, MessageSize.estimate(emoji));
+    }
+}
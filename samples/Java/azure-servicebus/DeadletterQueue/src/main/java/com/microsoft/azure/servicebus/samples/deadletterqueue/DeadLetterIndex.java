@@ -0,0 +1,405 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.deadletterqueue;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of the messages in a dead-letter queue for triage, built by browsing the queue.
+ * <p>
+ * {@link #scanAsync} pages through the queue with {@code peekBatchAsync}, which neither locks nor
+ * removes the messages, and adds each message to the index. The index keeps only what triage
+ * needs: the sequence number, the enqueued time and the {@link Dimension dimensions}
+ * {@code DeadLetterReason}, {@code DeadLetterErrorDescription}, label and content type. Each
+ * dimension value is stored once, as a number, together with the list of messages that have it,
+ * so an index of millions of messages takes a few tens of bytes per message. A later
+ * {@code scanAsync} continues after the last indexed sequence number, so it only adds the messages
+ * dead-lettered since.
+ * <p>
+ * Questions are asked with {@link #select()}: a {@link Selection} narrows the messages down by
+ * dimension values and enqueued time, and then counts them, groups them by a dimension or by
+ * enqueued time bucket, or lists their sequence numbers. A selection starts from the shortest list
+ * of messages among its dimension values and checks the other criteria per message, without
+ * browsing the queue again. Scans and selections can run at the same time.
+ */
+public class DeadLetterIndex {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final Duration DEFAULT_BUCKET_WIDTH = Duration.ofHours(1);
+
+    static final String DEAD_LETTER_REASON = "DeadLetterReason";
+    static final String DEAD_LETTER_ERROR_DESCRIPTION = "DeadLetterErrorDescription";
+    // the code of a missing value
+    private static final int NONE = 0;
+
+    public enum Dimension {
+        DEAD_LETTER_REASON,
+        DEAD_LETTER_ERROR_DESCRIPTION,
+        LABEL,
+        CONTENT_TYPE
+    }
+
+    private final long bucketWidthMillis;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Dimension, Column> columns = new EnumMap<>(Dimension.class);
+    private long[] sequenceNumbers = new long[1024];
+    private long[] enqueuedTimes = new long[1024];
+    private int size;
+    private volatile long lastSequenceNumber;
+
+    public DeadLetterIndex() {
+        this(DEFAULT_BUCKET_WIDTH);
+    }
+
+    /**
+     * @param bucketWidth the width of the enqueued time buckets of {@link Selection#countByEnqueuedTime()}
+     */
+    public DeadLetterIndex(Duration bucketWidth) {
+        if (bucketWidth.toMillis() <= 0) {
+            throw new IllegalArgumentException("bucketWidth must be at least one millisecond.");
+        }
+        this.bucketWidthMillis = bucketWidth.toMillis();
+        for (Dimension dimension : Dimension.values()) {
+            this.columns.put(dimension, new Column());
+        }
+    }
+
+    /**
+     * Browses the dead-letter queue from after the last indexed message to its end and indexes the
+     * messages. The future completes with the number of messages added.
+     *
+     * @param deadLetterReceiver a receiver of the {@code $deadletterqueue} path
+     */
+    public CompletableFuture<Long> scanAsync(IMessageReceiver deadLetterReceiver, int pageSize, Executor executor) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be greater than 0.");
+        }
+        CompletableFuture<Long> scan = new CompletableFuture<>();
+        this.scanNextAsync(deadLetterReceiver, pageSize, executor, scan, 0);
+        return scan;
+    }
+
+    public CompletableFuture<Long> scanAsync(IMessageReceiver deadLetterReceiver, Executor executor) {
+        return this.scanAsync(deadLetterReceiver, DEFAULT_PAGE_SIZE, executor);
+    }
+
+    private void scanNextAsync(IMessageReceiver receiver, int pageSize, Executor executor, CompletableFuture<Long> scan, long added) {
+        if (scan.isDone()) {
+            return;
+        }
+        CompletableFuture<Collection<IMessage>> peek;
+        try {
+            peek = receiver.peekBatchAsync(this.lastSequenceNumber + 1, pageSize);
+        } catch (RuntimeException e) {
+            peek = new CompletableFuture<>();
+            peek.completeExceptionally(e);
+        }
+        // each page continues on the executor, so no thread is held while a peek is pending
+        peek.whenCompleteAsync((messages, error) -> {
+            if (error != null) {
+                scan.completeExceptionally(error);
+                return;
+            }
+            if (messages == null || messages.isEmpty()) {
+                scan.complete(added);
+                return;
+            }
+            this.addAll(messages);
+            this.scanNextAsync(receiver, pageSize, executor, scan, added + messages.size());
+        }, executor);
+    }
+
+    /**
+     * Adds browsed messages to the index; messages at or below the last indexed sequence number are skipped.
+     */
+    public void addAll(Collection<IMessage> messages) {
+        this.lock.writeLock().lock();
+        try {
+            for (IMessage message : messages) {
+                long sequenceNumber = message.getSequenceNumber();
+                if (sequenceNumber <= this.lastSequenceNumber) {
+                    continue;
+                }
+                if (this.size == this.sequenceNumbers.length) {
+                    this.sequenceNumbers = Arrays.copyOf(this.sequenceNumbers, this.size * 2);
+                    this.enqueuedTimes = Arrays.copyOf(this.enqueuedTimes, this.size * 2);
+                }
+                Map<String, String> properties = message.getProperties();
+                this.columns.get(Dimension.DEAD_LETTER_REASON).add(this.size, properties == null ? null : properties.get(DEAD_LETTER_REASON));
+                this.columns.get(Dimension.DEAD_LETTER_ERROR_DESCRIPTION).add(this.size, properties == null ? null : properties.get(DEAD_LETTER_ERROR_DESCRIPTION));
+                this.columns.get(Dimension.LABEL).add(this.size, message.getLabel());
+                this.columns.get(Dimension.CONTENT_TYPE).add(this.size, message.getContentType());
+                this.sequenceNumbers[this.size] = sequenceNumber;
+                Instant enqueued = message.getEnqueuedTimeUtc();
+                this.enqueuedTimes[this.size] = enqueued == null ? 0 : enqueued.toEpochMilli();
+                this.size++;
+                this.lastSequenceNumber = sequenceNumber;
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The number of indexed messages.
+     */
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public long getLastSequenceNumber() {
+        return this.lastSequenceNumber;
+    }
+
+    /**
+     * A selection of all indexed messages.
+     */
+    public Selection select() {
+        return new Selection();
+    }
+
+    /**
+     * A set of criteria on the indexed messages; a message is selected if it meets all of them.
+     * Every query evaluates the criteria against the index as it is at that moment.
+     */
+    public final class Selection {
+        private final Map<Dimension, String> values = new EnumMap<>(Dimension.class);
+        private long fromMillis = Long.MIN_VALUE;
+        private long toMillis = Long.MAX_VALUE;
+
+        private Selection() {
+        }
+
+        /**
+         * Selects the messages with the value, or without a value if {@code value} is {@code null}.
+         */
+        public Selection where(Dimension dimension, String value) {
+            this.values.put(dimension, value);
+            return this;
+        }
+
+        /**
+         * Selects the messages enqueued at or after {@code from} and before {@code to}.
+         */
+        public Selection enqueuedBetween(Instant from, Instant to) {
+            this.fromMillis = toEpochMilli(from);
+            this.toMillis = toEpochMilli(to);
+            return this;
+        }
+
+        public long count() {
+            long[] count = new long[1];
+            this.forEach(ordinal -> count[0]++);
+            return count[0];
+        }
+
+        /**
+         * The sequence numbers of up to {@code limit} selected messages, lowest first.
+         */
+        public long[] sequenceNumbers(int limit) {
+            long[] result = new long[Math.max(0, limit)];
+            int[] count = new int[1];
+            this.forEach(ordinal -> {
+                if (count[0] < result.length) {
+                    result[count[0]++] = DeadLetterIndex.this.sequenceNumbers[ordinal];
+                }
+            });
+            return Arrays.copyOf(result, count[0]);
+        }
+
+        /**
+         * The number of selected messages per value of the dimension, most frequent first; messages
+         * without a value are counted under {@code null}.
+         */
+        public Map<String, Long> countBy(Dimension dimension) {
+            Column column = DeadLetterIndex.this.columns.get(dimension);
+            long[] counts;
+            List<String> names;
+            DeadLetterIndex.this.lock.readLock().lock();
+            try {
+                // one counter per code, so counting does not allocate per message
+                long[] codeCounts = new long[column.values.size() + 1];
+                int[] codes = column.codes;
+                this.forEachLocked(ordinal -> codeCounts[codes[ordinal]]++);
+                counts = codeCounts;
+                names = new ArrayList<>(column.values);
+            } finally {
+                DeadLetterIndex.this.lock.readLock().unlock();
+            }
+            List<Integer> selected = new ArrayList<>();
+            for (int code = 0; code < counts.length; code++) {
+                if (counts[code] > 0) {
+                    selected.add(code);
+                }
+            }
+            selected.sort(Comparator.comparingLong((Integer code) -> counts[code]).reversed());
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (int code : selected) {
+                result.put(code == NONE ? null : names.get(code - 1), counts[code]);
+            }
+            return result;
+        }
+
+        /**
+         * The number of selected messages per enqueued time bucket, keyed by the start of the bucket.
+         */
+        public SortedMap<Instant, Long> countByEnqueuedTime() {
+            long width = DeadLetterIndex.this.bucketWidthMillis;
+            Map<Long, long[]> counts = new HashMap<>();
+            // messages are indexed in sequence order, so consecutive ones mostly share a bucket
+            long[] last = {Long.MIN_VALUE};
+            long[][] lastCount = {null};
+            this.forEach(ordinal -> {
+                long bucket = Math.floorDiv(DeadLetterIndex.this.enqueuedTimes[ordinal], width);
+                if (bucket != last[0]) {
+                    last[0] = bucket;
+                    lastCount[0] = counts.computeIfAbsent(bucket, b -> new long[1]);
+                }
+                lastCount[0][0]++;
+            });
+            SortedMap<Instant, Long> result = new TreeMap<>();
+            for (Map.Entry<Long, long[]> entry : counts.entrySet()) {
+                result.put(Instant.ofEpochMilli(entry.getKey() * width), entry.getValue()[0]);
+            }
+            return result;
+        }
+
+        private void forEach(OrdinalConsumer consumer) {
+            DeadLetterIndex.this.lock.readLock().lock();
+            try {
+                this.forEachLocked(consumer);
+            } finally {
+                DeadLetterIndex.this.lock.readLock().unlock();
+            }
+        }
+
+        private void forEachLocked(OrdinalConsumer consumer) {
+            Column[] criteria = new Column[this.values.size()];
+            int[] codes = new int[this.values.size()];
+            // the shortest list of messages to start from, or all messages
+            Column.Postings shortest = null;
+            int i = 0;
+            for (Map.Entry<Dimension, String> value : this.values.entrySet()) {
+                Column column = DeadLetterIndex.this.columns.get(value.getKey());
+                int code = column.codeOf(value.getValue());
+                if (code < 0) {
+                    // a value no message has
+                    return;
+                }
+                Column.Postings postings = column.postings.get(code);
+                if (shortest == null || postings.size < shortest.size) {
+                    shortest = postings;
+                }
+                criteria[i] = column;
+                codes[i++] = code;
+            }
+            int count = shortest == null ? DeadLetterIndex.this.size : shortest.size;
+            for (int n = 0; n < count; n++) {
+                int ordinal = shortest == null ? n : shortest.ordinals[n];
+                long enqueued = DeadLetterIndex.this.enqueuedTimes[ordinal];
+                if (enqueued < this.fromMillis || enqueued >= this.toMillis) {
+                    continue;
+                }
+                boolean selected = true;
+                for (int c = 0; c < criteria.length && selected; c++) {
+                    selected = criteria[c].codes[ordinal] == codes[c];
+                }
+                if (selected) {
+                    consumer.accept(ordinal);
+                }
+            }
+        }
+    }
+
+    // Instant.MIN and Instant.MAX are beyond the range of epoch milliseconds
+    private static long toEpochMilli(Instant instant) {
+        try {
+            return instant.toEpochMilli();
+        } catch (ArithmeticException e) {
+            return instant.isBefore(Instant.EPOCH) ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    @FunctionalInterface
+    private interface OrdinalConsumer {
+        void accept(int ordinal);
+    }
+
+    // the values of one dimension: a code per message, and per code the messages that have it
+    private static final class Column {
+        private final Map<String, Integer> codesByValue = new HashMap<>();
+        // the value of code c is at c - 1
+        private final List<String> values = new ArrayList<>();
+        private final List<Postings> postings = new ArrayList<>();
+        private int[] codes = new int[1024];
+
+        Column() {
+            this.postings.add(new Postings());
+        }
+
+        void add(int ordinal, String value) {
+            int code = NONE;
+            if (value != null) {
+                Integer known = this.codesByValue.get(value);
+                if (known == null) {
+                    this.values.add(value);
+                    this.postings.add(new Postings());
+                    known = this.values.size();
+                    this.codesByValue.put(value, known);
+                }
+                code = known;
+            }
+            if (ordinal == this.codes.length) {
+                this.codes = Arrays.copyOf(this.codes, ordinal * 2);
+            }
+            this.codes[ordinal] = code;
+            this.postings.get(code).add(ordinal);
+        }
+
+        int codeOf(String value) {
+            if (value == null) {
+                return NONE;
+            }
+            Integer code = this.codesByValue.get(value);
+            return code == null ? -1 : code;
+        }
+
+        // message ordinals in ascending order
+        static final class Postings {
+            private int[] ordinals = new int[16];
+            private int size;
+
+            void add(int ordinal) {
+                if (this.size == this.ordinals.length) {
+                    this.ordinals = Arrays.copyOf(this.ordinals, this.size * 2);
+                }
+                this.ordinals[this.size++] = ordinal;
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.deadletterqueue;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.samples.common.MessageSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Drains a dead-letter queue in batches, repairing each message with a fix function and
+ * resubmitting the repaired messages in batches.
+ * <p>
+ * {@code parallelBatches} lanes each receive a batch of up to {@code batchSize} messages from the
+ * dead-letter receiver, apply the fix function to all of them in parallel on the executor, send the
+ * repaired messages with {@code sendBatchAsync} in chunks that stay below
+ * {@link #MAX_BATCH_SIZE_IN_BYTES}, and complete the dead-lettered messages of a chunk once the
+ * chunk is sent. The fix function returns the message to resubmit, or {@code null} to remove the
+ * message from the dead-letter queue without resubmitting it. A lane ends when a receive returns no
+ * messages within {@code serverWaitTime}, or, with {@link #setRunUntilStopped}, only once the
+ * pipeline is stopped; the pipeline ends when all lanes have ended.
+ * <p>
+ * If the fix function throws, the message is deferred, so that the drain does not pick it up again;
+ * its sequence number is kept in {@link #getDeferredSequenceNumbers()}. If a send fails, the messages
+ * of the chunk are abandoned and stay in the dead-letter queue, and the pipeline stops with the
+ * error. A message whose completion fails after it was resubmitted is received and resubmitted
+ * again, so resubmitted messages should keep their {@code MessageId} for the target entity's
+ * duplicate detection.
+ * <p>
+ * With {@code maxMessagesPerSecond}, the lanes together receive no more messages per second than
+ * that; a lane waits before its next receive rather than holding locked messages. A checkpoint
+ * handler set with {@link #setCheckpointHandler} gets a {@link Report} each time another
+ * {@code checkpointInterval} messages have been processed.
+ * <p>
+ * The 1.2.8 receiver has no batch disposition, so the lock tokens of a chunk are completed back to back.
+ */
+public class DeadLetterRepairPipeline {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_PARALLEL_BATCHES = 4;
+    public static final Duration DEFAULT_SERVER_WAIT_TIME = Duration.ofSeconds(5);
+    // the largest batch a Standard tier entity accepts
+    public static final int MAX_BATCH_SIZE_IN_BYTES = 256 * 1024;
+
+    private final IMessageReceiver deadLetterReceiver;
+    private final IMessageSender resubmitSender;
+    private final Function<IMessage, IMessage> fix;
+    private final Executor executor;
+    private final int batchSize;
+    private final int parallelBatches;
+    private final Duration serverWaitTime;
+    private final RateLimiter rateLimiter;
+    private final ScheduledExecutorService timer;
+
+    // completes when the last lane has finished, whatever happened to the future start() returned
+    private final CompletableFuture<Report> termination = new CompletableFuture<>();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicInteger runningLanes = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Long> deferredSequenceNumbers = new ConcurrentLinkedQueue<>();
+    private volatile boolean started;
+    private volatile boolean stopped;
+    private volatile boolean runUntilStopped;
+    private volatile long startNanos;
+    private volatile long endNanos;
+
+    // checkpoints
+    private volatile Consumer<Report> checkpointHandler;
+    private volatile long checkpointInterval;
+    private final AtomicLong nextCheckpoint = new AtomicLong();
+
+    // metrics
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder receivedCount = new LongAdder();
+    private final LongAdder resubmittedCount = new LongAdder();
+    private final LongAdder discardedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    public DeadLetterRepairPipeline(IMessageReceiver deadLetterReceiver, IMessageSender resubmitSender,
+                                    Function<IMessage, IMessage> fix, Executor executor) {
+        this(deadLetterReceiver, resubmitSender, fix, executor, DEFAULT_BATCH_SIZE, DEFAULT_PARALLEL_BATCHES, DEFAULT_SERVER_WAIT_TIME, 0);
+    }
+
+    /**
+     * @param maxMessagesPerSecond the most messages received per second, or 0 for no limit
+     */
+    public DeadLetterRepairPipeline(IMessageReceiver deadLetterReceiver, IMessageSender resubmitSender,
+                                    Function<IMessage, IMessage> fix, Executor executor,
+                                    int batchSize, int parallelBatches, Duration serverWaitTime, double maxMessagesPerSecond) {
+        if (batchSize <= 0 || parallelBatches <= 0) {
+            throw new IllegalArgumentException("batchSize and parallelBatches must be greater than 0.");
+        }
+        if (maxMessagesPerSecond < 0) {
+            throw new IllegalArgumentException("maxMessagesPerSecond must not be negative.");
+        }
+        this.deadLetterReceiver = deadLetterReceiver;
+        this.resubmitSender = resubmitSender;
+        this.fix = fix;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.parallelBatches = parallelBatches;
+        this.serverWaitTime = serverWaitTime;
+        if (maxMessagesPerSecond > 0) {
+            this.rateLimiter = new RateLimiter(maxMessagesPerSecond);
+            this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "dead-letter-repair-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.rateLimiter = null;
+            this.timer = null;
+        }
+    }
+
+    /**
+     * Calls the handler with the progress each time another {@code checkpointInterval} messages
+     * have been resubmitted, discarded or deferred. The handler runs on the executor and should not block.
+     */
+    public void setCheckpointHandler(long checkpointInterval, Consumer<Report> checkpointHandler) {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("checkpointInterval must be greater than 0.");
+        }
+        this.checkpointInterval = checkpointInterval;
+        this.nextCheckpoint.set(checkpointInterval);
+        this.checkpointHandler = checkpointHandler;
+    }
+
+    /**
+     * Keeps the lanes receiving once the dead-letter queue is drained, so that messages dead-lettered
+     * later are repaired as well, until {@link #stop()} is called or the future {@link #start()}
+     * returned is cancelled. By default the lanes end at the first receive that returns no messages.
+     */
+    public void setRunUntilStopped(boolean runUntilStopped) {
+        this.runUntilStopped = runUntilStopped;
+    }
+
+    /**
+     * Starts the lanes. The returned future completes with the final report once the dead-letter
+     * queue is drained or {@link #stop()} was called and the batches in progress are done, or fails
+     * with the first receive or send error. Cancelling the future calls {@link #stop()}; the lanes
+     * may still be receiving, sending or completing then, so close the receiver and the sender only
+     * once {@link #getTermination()} has completed.
+     */
+    public synchronized CompletableFuture<Report> start() {
+        if (this.started) {
+            throw new IllegalStateException("The pipeline has already been started.");
+        }
+        this.started = true;
+        this.startNanos = System.nanoTime();
+        CompletableFuture<Report> result = new CompletableFuture<>();
+        result.whenComplete((r, t) -> this.stop());
+        this.termination.whenComplete((report, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(report);
+            }
+        });
+        this.runningLanes.set(this.parallelBatches);
+        for (int i = 0; i < this.parallelBatches; i++) {
+            this.executor.execute(() -> this.nextBatch(0));
+        }
+        return result;
+    }
+
+    /**
+     * A future that completes like the one {@link #start()} returns, but only once the last lane has
+     * finished, also when that one was cancelled. Cancelling this future has no effect on the pipeline.
+     */
+    public CompletableFuture<Report> getTermination() {
+        return this.termination.thenApply(Function.identity());
+    }
+
+    /**
+     * Lets the lanes finish their current batches and receive no more.
+     */
+    public void stop() {
+        this.stopped = true;
+    }
+
+    /**
+     * The sequence numbers of the messages that were deferred because the fix function threw;
+     * they can be received with {@code receiveDeferredMessageAsync}.
+     */
+    public List<Long> getDeferredSequenceNumbers() {
+        return new ArrayList<>(this.deferredSequenceNumbers);
+    }
+
+    /**
+     * The progress so far.
+     */
+    public Report getReport() {
+        long end = this.endNanos;
+        return new Report(
+                this.batchCount.sum(),
+                this.receivedCount.sum(),
+                this.resubmittedCount.sum(),
+                this.discardedCount.sum(),
+                this.failedCount.sum(),
+                Duration.ofNanos(this.startNanos == 0 ? 0 : (end != 0 ? end : System.nanoTime()) - this.startNanos));
+    }
+
+    private void nextBatch(long delayNanos) {
+        if (this.stopped) {
+            this.laneDone();
+            return;
+        }
+        if (delayNanos > 0) {
+            try {
+                this.timer.schedule(() -> this.nextBatch(0), delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                this.laneDone();
+            }
+            return;
+        }
+        CompletableFuture<Collection<IMessage>> receive;
+        try {
+            receive = this.deadLetterReceiver.receiveBatchAsync(this.batchSize, this.serverWaitTime);
+        } catch (RuntimeException e) {
+            receive = new CompletableFuture<>();
+            receive.completeExceptionally(e);
+        }
+        receive.whenCompleteAsync((messages, error) -> {
+            if (error != null) {
+                this.fail(error);
+                this.laneDone();
+                return;
+            }
+            if (messages == null || messages.isEmpty()) {
+                if (this.runUntilStopped) {
+                    // drained for now; wait for the next dead-lettered messages
+                    this.nextBatch(0);
+                } else {
+                    // drained
+                    this.laneDone();
+                }
+                return;
+            }
+            this.batchCount.increment();
+            this.receivedCount.add(messages.size());
+            long delay = this.rateLimiter == null ? 0 : this.rateLimiter.reserve(messages.size());
+            this.repairAsync(messages).whenComplete((v, repairError) -> {
+                if (repairError != null) {
+                    this.fail(repairError);
+                }
+                this.checkpoint();
+                this.nextBatch(delay);
+            });
+        }, this.executor);
+    }
+
+    private CompletableFuture<Void> repairAsync(Collection<IMessage> messages) {
+        List<IMessage> originals = new ArrayList<>(messages);
+        List<CompletableFuture<IMessage>> fixes = new ArrayList<>(originals.size());
+        for (IMessage message : originals) {
+            fixes.add(CompletableFuture.supplyAsync(() -> this.fix.apply(message), this.executor));
+        }
+        return CompletableFuture.allOf(fixes.toArray(new CompletableFuture<?>[0]))
+                .handle((v, ignored) -> {
+                    List<CompletableFuture<Void>> pending = new ArrayList<>();
+                    List<IMessage> chunkOriginals = new ArrayList<>();
+                    List<IMessage> chunk = new ArrayList<>();
+                    int chunkBytes = 0;
+                    for (int i = 0; i < originals.size(); i++) {
+                        IMessage original = originals.get(i);
+                        IMessage repaired;
+                        try {
+                            repaired = fixes.get(i).join();
+                        } catch (RuntimeException e) {
+                            pending.add(this.deferAsync(original));
+                            continue;
+                        }
+                        if (repaired == null) {
+                            pending.add(this.settleAsync(original, this.discardedCount));
+                            continue;
+                        }
+                        int size = MessageSize.estimate(repaired);
+                        if (!chunk.isEmpty() && chunkBytes + size > MAX_BATCH_SIZE_IN_BYTES) {
+                            pending.add(this.resubmitAsync(chunkOriginals, chunk));
+                            chunkOriginals = new ArrayList<>();
+                            chunk = new ArrayList<>();
+                            chunkBytes = 0;
+                        }
+                        chunkOriginals.add(original);
+                        chunk.add(repaired);
+                        chunkBytes += size;
+                    }
+                    if (!chunk.isEmpty()) {
+                        pending.add(this.resubmitAsync(chunkOriginals, chunk));
+                    }
+                    return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]));
+                })
+                .thenCompose(pending -> pending);
+    }
+
+    private CompletableFuture<Void> resubmitAsync(List<IMessage> originals, List<IMessage> repaired) {
+        CompletableFuture<Void> send;
+        try {
+            send = this.resubmitSender.sendBatchAsync(repaired);
+        } catch (RuntimeException e) {
+            send = new CompletableFuture<>();
+            send.completeExceptionally(e);
+        }
+        return send.handle((v, error) -> {
+            List<CompletableFuture<Void>> settlements = new ArrayList<>(originals.size());
+            for (IMessage original : originals) {
+                if (error != null) {
+                    // left in the dead-letter queue for another run
+                    settlements.add(this.deadLetterReceiver.abandonAsync(original.getLockToken()).handle((r, t) -> null));
+                } else {
+                    settlements.add(this.settleAsync(original, this.resubmittedCount));
+                }
+            }
+            CompletableFuture<Void> all = CompletableFuture.allOf(settlements.toArray(new CompletableFuture<?>[0]));
+            if (error == null) {
+                return all;
+            }
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            all.whenComplete((r, t) -> failed.completeExceptionally(error));
+            return failed;
+        }).thenCompose(settled -> settled);
+    }
+
+    private CompletableFuture<Void> settleAsync(IMessage original, LongAdder counter) {
+        CompletableFuture<Void> complete;
+        try {
+            complete = this.deadLetterReceiver.completeAsync(original.getLockToken());
+        } catch (RuntimeException e) {
+            complete = new CompletableFuture<>();
+            complete.completeExceptionally(e);
+        }
+        // a message whose completion failed is still in the dead-letter queue
+        return complete.handle((v, error) -> {
+            (error == null ? counter : this.failedCount).increment();
+            return null;
+        });
+    }
+
+    private CompletableFuture<Void> deferAsync(IMessage original) {
+        CompletableFuture<Void> defer;
+        try {
+            defer = this.deadLetterReceiver.deferAsync(original.getLockToken());
+        } catch (RuntimeException e) {
+            defer = new CompletableFuture<>();
+            defer.completeExceptionally(e);
+        }
+        return defer.handle((v, error) -> {
+            if (error == null) {
+                this.deferredSequenceNumbers.add(original.getSequenceNumber());
+            }
+            this.failedCount.increment();
+            return null;
+        });
+    }
+
+    private void checkpoint() {
+        Consumer<Report> handler = this.checkpointHandler;
+        if (handler == null) {
+            return;
+        }
+        long processed = this.resubmittedCount.sum() + this.discardedCount.sum() + this.failedCount.sum();
+        long next = this.nextCheckpoint.get();
+        if (processed >= next && this.nextCheckpoint.compareAndSet(next, (processed / this.checkpointInterval + 1) * this.checkpointInterval)) {
+            handler.accept(this.getReport());
+        }
+    }
+
+    private void fail(Throwable error) {
+        if (this.failure.compareAndSet(null, error)) {
+            this.stop();
+        }
+    }
+
+    private void laneDone() {
+        if (this.runningLanes.decrementAndGet() == 0) {
+            this.endNanos = System.nanoTime();
+            if (this.timer != null) {
+                this.timer.shutdown();
+            }
+            Throwable error = this.failure.get();
+            if (error != null) {
+                this.termination.completeExceptionally(error);
+            } else {
+                this.termination.complete(this.getReport());
+            }
+        }
+    }
+
+    /**
+     * The counts and throughput of a pipeline run.
+     */
+    public static final class Report {
+        private final long batchCount;
+        private final long receivedCount;
+        private final long resubmittedCount;
+        private final long discardedCount;
+        private final long failedCount;
+        private final Duration elapsed;
+
+        Report(long batchCount, long receivedCount, long resubmittedCount, long discardedCount, long failedCount, Duration elapsed) {
+            this.batchCount = batchCount;
+            this.receivedCount = receivedCount;
+            this.resubmittedCount = resubmittedCount;
+            this.discardedCount = discardedCount;
+            this.failedCount = failedCount;
+            this.elapsed = elapsed;
+        }
+
+        public long getBatchCount() {
+            return this.batchCount;
+        }
+
+        public long getReceivedCount() {
+            return this.receivedCount;
+        }
+
+        /** Messages that were resubmitted and removed from the dead-letter queue. */
+        public long getResubmittedCount() {
+            return this.resubmittedCount;
+        }
+
+        /** Messages the fix function returned {@code null} for, removed from the dead-letter queue. */
+        public long getDiscardedCount() {
+            return this.discardedCount;
+        }
+
+        /** Messages that were deferred, or whose completion failed. */
+        public long getFailedCount() {
+            return this.failedCount;
+        }
+
+        public Duration getElapsed() {
+            return this.elapsed;
+        }
+
+        /** Messages removed from the dead-letter queue per second. */
+        public double getMessagesPerSecond() {
+            long nanos = this.elapsed.toNanos();
+            return nanos == 0 ? 0 : (this.resubmittedCount + this.discardedCount) * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d received in %d batches, %d resubmitted, %d discarded, %d failed in %d ms (%.0f msg/s)",
+                    this.receivedCount, this.batchCount, this.resubmittedCount, this.discardedCount, this.failedCount,
+                    this.elapsed.toMillis(), this.getMessagesPerSecond());
+        }
+    }
+
+    // hands out permits at a fixed rate; a reservation is paid for by the reservations after it
+    static final class RateLimiter {
+        private final double nanosPerPermit;
+        private long nextFreeNanos = System.nanoTime();
+
+        RateLimiter(double permitsPerSecond) {
+            this.nanosPerPermit = 1e9 / permitsPerSecond;
+        }
+
+        synchronized long reserve(int permits) {
+            long now = System.nanoTime();
+            long start = Math.max(this.nextFreeNanos, now);
+            this.nextFreeNanos = start + (long) (permits * this.nanosPerPermit);
+            return this.nextFreeNanos - now;
+        }
+    }
+}
@@ -25,10 +25,14 @@ public class DeadletterQueue {
     public void run(String connectionString) throws Exception {
 
         CompletableFuture<Void> receiveTask;
-        CompletableFuture<Void> fixUpTask;
+        CompletableFuture<DeadLetterRepairPipeline.Report> fixUpTask;
         IMessageSender sendClient;
 
-        sendClient = ClientFactory.createMessageSenderFromConnectionStringBuilder(new ConnectionStringBuilder(connectionString, "BasicQueue"));
+        // Keep at most 100 messages or 1 MB in flight; sendAsync waits for room in the window
+        // instead of queuing an unbounded number of pending sends
+        sendClient = new WindowedMessageSender(
+                ClientFactory.createMessageSenderFromConnectionStringBuilder(new ConnectionStringBuilder(connectionString, "BasicQueue")),
+                100, 1024 * 1024);
 
         // max delivery-count scenario
         this.sendMessagesAsync(sendClient, 1).join();
@@ -38,7 +42,8 @@ public class DeadletterQueue {
         this.sendMessagesAsync(sendClient, Integer.MAX_VALUE);
         ExecutorService executorService = Executors.newCachedThreadPool();
         receiveTask = this.receiveMessagesAsync(connectionString, "BasicQueue", executorService);
-        fixUpTask = this.PickUpAndFixDeadletters(connectionString, "BasicQueue", sendClient, executorService);
+        DeadLetterRepairPipeline fixUp = this.PickUpAndFixDeadletters(connectionString, "BasicQueue", sendClient, executorService);
+        fixUpTask = fixUp.start();
 
 
         // wait for ENTER or 10 seconds elapsing
@@ -48,9 +53,10 @@ public class DeadletterQueue {
         fixUpTask.cancel(true);
 
         CompletableFuture.allOf(
-                sendClient.closeAsync(),
                 receiveTask.exceptionally(t -> {if (t instanceof CancellationException) {return null;} throw new RuntimeException((Throwable) t);}),
-                fixUpTask.exceptionally(t -> {if (t instanceof CancellationException) {return null;} throw new RuntimeException((Throwable) t);})
+                // cancelling stops the pipeline, but its lanes may still be sending with sendClient,
+                // so it is closed only once the last lane is done
+                fixUp.getTermination().handle((report, t) -> null).thenCompose(v -> sendClient.closeAsync())
         ).join();
         
         executorService.shutdown();
@@ -106,15 +112,25 @@ public class DeadletterQueue {
         receiver.close();
 
         IMessageReceiver deadletterReceiver = ClientFactory.createMessageReceiverFromConnectionStringBuilder(new ConnectionStringBuilder(connectionString, "BasicQueue/$deadletterqueue"), ReceiveMode.PEEKLOCK);
+
+        // browse the dead-letter queue without locking the messages and index them once; the
+        // triage questions below are answered from the index rather than by printing every message
+        DeadLetterIndex index = new DeadLetterIndex();
+        index.scanAsync(deadletterReceiver, ForkJoinPool.commonPool()).join();
+        System.out.printf("\nDeadletter messages: %d\n", index.size());
+        for (Map.Entry<String, Long> reason : index.select().countBy(DeadLetterIndex.Dimension.DEAD_LETTER_REASON).entrySet()) {
+            System.out.printf("\tDeadLetterReason=%s: %d\n", reason.getKey(), reason.getValue());
+            Map<String, Long> descriptions = index.select()
+                    .where(DeadLetterIndex.Dimension.DEAD_LETTER_REASON, reason.getKey())
+                    .countBy(DeadLetterIndex.Dimension.DEAD_LETTER_ERROR_DESCRIPTION);
+            for (Map.Entry<String, Long> description : descriptions.entrySet()) {
+                System.out.printf("\t\tDeadLetterErrorDescription=%s: %d\n", description.getKey(), description.getValue());
+            }
+        }
+
         while (true) {
             IMessage msg = deadletterReceiver.receive(Duration.ofSeconds(2));
             if (msg != null) {
-                System.out.printf("\nDeadletter message:\n");
-                if (msg.getProperties() != null) {
-                    for (String prop : msg.getProperties().keySet()) {
-                        System.out.printf("\t%s=%s\n", prop, msg.getProperties().get(prop));
-                    }
-                }
                 deadletterReceiver.complete(msg.getLockToken());
             } else {
                 break;
@@ -128,9 +144,13 @@ public class DeadletterQueue {
 
         CompletableFuture running = new CompletableFuture();
         QueueClient receiver = new QueueClient(new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK);
+        // Settlements of concurrently handled messages are collected and issued together, every
+        // 64 lock tokens or 20 milliseconds, whichever comes first
+        SettlementCoalescer settlements = new SettlementCoalescer(SettlementCoalescer.settlerOf(receiver));
 
         running.whenComplete((r, t) -> {
             try {
+                settlements.close();
                 receiver.close();
             } catch (ServiceBusException e) {
                 System.out.printf(e.getMessage());
@@ -163,9 +183,9 @@ public class DeadletterQueue {
                                     scientist != null ? scientist.get("firstName") : "",
                                     scientist != null ? scientist.get("name") : "");
                         } else {
-                            return receiver.deadLetterAsync(message.getLockToken());
+                            return settlements.deadLetterAsync(message.getLockToken());
                         }
-                        return receiver.completeAsync(message.getLockToken());
+                        return settlements.completeAsync(message.getLockToken());
                     }
 
                     // callback invoked when the message handler has an exception to report
@@ -173,62 +193,59 @@ public class DeadletterQueue {
                         System.out.printf(exceptionPhase + "-" + throwable.getMessage());
                     }
                 },
-                // 1 concurrent call, messages are auto-completed, auto-renew duration
-                new MessageHandlerOptions(1, false, Duration.ofMinutes(1)),
+                // 16 concurrent calls so that settlements can be coalesced, messages are settled by the handler, auto-renew duration
+                new MessageHandlerOptions(16, false, Duration.ofMinutes(1)),
                 executorService);
 
         return running;
     }
 
-    CompletableFuture PickUpAndFixDeadletters(String connectionString, String queueName, IMessageSender resubmitSender, ExecutorService executorService) throws Exception {
-        CompletableFuture running = new CompletableFuture();
-        QueueClient receiver = new QueueClient(new ConnectionStringBuilder(connectionString, "BasicQueue/$deadletterqueue"), ReceiveMode.PEEKLOCK);
-
-        running.whenComplete((r, t) -> {
+    DeadLetterRepairPipeline PickUpAndFixDeadletters(String connectionString, String queueName, IMessageSender resubmitSender, ExecutorService executorService) throws Exception {
+        IMessageReceiver receiver = ClientFactory.createMessageReceiverFromConnectionStringBuilder(new ConnectionStringBuilder(connectionString, "BasicQueue/$deadletterqueue"), ReceiveMode.PEEKLOCK);
+
+        // 4 lanes receive batches of up to 100 dead-lettered messages, fix them in parallel,
+        // resubmit them with sendBatchAsync and complete them; at most 1000 messages per second.
+        // Messages keep being dead-lettered while the sample runs, so the lanes keep receiving
+        // until the sample stops the pipeline rather than ending at the first 5 second idle wait
+        DeadLetterRepairPipeline pipeline = new DeadLetterRepairPipeline(
+                receiver,
+                resubmitSender,
+                message -> {
+                    if (message.getLabel() == null || !message.getLabel().contentEquals("Physicist")) {
+                        // removed from the dead-letter queue without being resubmitted
+                        return null;
+                    }
+                    System.out.printf(
+                            "\n\t\tFixing: \n\t\t\tMessageId = %s, \n\t\t\tSequenceNumber = %s, \n\t\t\tLabel = %s\n",
+                            message.getMessageId(),
+                            message.getSequenceNumber(),
+                            message.getLabel());
+                    IMessage resubmitMessage = new Message(message.getBody());
+                    resubmitMessage.setMessageId(message.getMessageId());
+                    resubmitMessage.setLabel("Scientist");
+                    resubmitMessage.setContentType(message.getContentType());
+                    resubmitMessage.setTimeToLive(Duration.ofMinutes(2));
+                    return resubmitMessage;
+                },
+                executorService,
+                100, 4, Duration.ofSeconds(5), 1000);
+        pipeline.setRunUntilStopped(true);
+        pipeline.setCheckpointHandler(100, report -> System.out.printf("\n\t\tRepair checkpoint: %s\n", report));
+
+        // the report is printed and the receiver closed when the last lane is done, also after a cancel
+        pipeline.getTermination().whenComplete((report, t) -> {
+            if (report != null) {
+                System.out.printf("\n\t\tRepair done: %s\n", report);
+            } else {
+                System.out.printf("\n\t\tRepair failed: %s\n", t);
+            }
             try {
                 receiver.close();
             } catch (ServiceBusException e) {
                 System.out.printf(e.getMessage());
             }
         });
-
-        // register the RegisterMessageHandler callback
-        receiver.registerMessageHandler(
-                new IMessageHandler() {
-                    // callback invoked when the message handler loop has obtained a message
-                    public CompletableFuture<Void> onMessageAsync(IMessage message) {
-                        try {
-                            IMessage resubmitMessage = new Message(message.getBody());
-                            if (message.getLabel() != null && message.getLabel().contentEquals("Physicist")) {
-                                System.out.printf(
-                                        "\n\t\tFixing: \n\t\t\tMessageId = %s, \n\t\t\tSequenceNumber = %s, \n\t\t\tLabel = %s\n",
-                                        message.getMessageId(),
-                                        message.getSequenceNumber(),
-                                        message.getLabel());
-                                resubmitMessage.setMessageId(message.getMessageId());
-                                resubmitMessage.setLabel("Scientist");
-                                resubmitMessage.setContentType(message.getContentType());
-                                resubmitMessage.setTimeToLive(Duration.ofMinutes(2));
-                                resubmitSender.send(resubmitMessage);
-                            }
-                            return receiver.completeAsync(message.getLockToken());
-                        } catch (Exception e) {
-                            CompletableFuture failure = new CompletableFuture();
-                            failure.completeExceptionally(e);
-                            return failure;
-                        }
-                    }
-
-                    // callback invoked when the message handler has an exception to report
-                    public void notifyException(Throwable throwable, ExceptionPhase exceptionPhase) {
-                        System.out.printf(exceptionPhase + "-" + throwable.getMessage());
-                    }
-                },
-                // 1 concurrent call, messages are auto-completed, auto-renew duration
-                new MessageHandlerOptions(1, false, Duration.ofMinutes(1)),
-                executorService);
-
-        return running;
+        return pipeline;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,323 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.deadletterqueue;
+
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IQueueClient;
+import com.microsoft.azure.servicebus.ISubscriptionClient;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Collects message settlements of one receiver and issues them in batches.
+ * <p>
+ * {@code completeAsync}, {@code abandonAsync} and {@code deadLetterAsync} queue the lock token
+ * with the other tokens of the same disposition. The queue for a disposition is flushed when it
+ * holds {@code maxBatchSize} tokens, or when {@code maxDelay} has passed since its first token.
+ * Each caller gets its own future, which completes, or fails, with the settlement of its token.
+ * <p>
+ * The 1.2.8 client has no public batch disposition, so the settlers of {@link #settlerOf} issue
+ * one {@code completeAsync}, {@code abandonAsync} or {@code deadLetterAsync} per lock token of a
+ * flush, back to back; the calls share the link and their round trips overlap. A transport with
+ * a batch disposition can be plugged in as a {@link Settler}. Settle the messages before their
+ * locks expire; a {@code maxDelay} in the tens of milliseconds is well below any lock duration.
+ */
+public class SettlementCoalescer implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final Duration DEFAULT_MAX_DELAY = Duration.ofMillis(20);
+
+    public enum Disposition {
+        COMPLETE,
+        ABANDON,
+        DEAD_LETTER
+    }
+
+    /**
+     * Settles the lock tokens of a flushed batch. A transport with a batch disposition settles
+     * them with one request and may return the same future for every token.
+     */
+    @FunctionalInterface
+    public interface Settler {
+        /**
+         * @return one future per lock token, in the same order
+         */
+        List<CompletableFuture<Void>> settleAsync(Disposition disposition, List<UUID> lockTokens);
+    }
+
+    /**
+     * Settles each token with its own call.
+     */
+    @FunctionalInterface
+    public interface SingleSettler {
+        CompletableFuture<Void> settleAsync(Disposition disposition, UUID lockToken);
+    }
+
+    public static Settler settlerOf(IMessageReceiver receiver) {
+        return perToken((disposition, lockToken) -> {
+            switch (disposition) {
+                case COMPLETE:
+                    return receiver.completeAsync(lockToken);
+                case ABANDON:
+                    return receiver.abandonAsync(lockToken);
+                default:
+                    return receiver.deadLetterAsync(lockToken);
+            }
+        });
+    }
+
+    public static Settler settlerOf(IQueueClient client) {
+        return perToken((disposition, lockToken) -> {
+            switch (disposition) {
+                case COMPLETE:
+                    return client.completeAsync(lockToken);
+                case ABANDON:
+                    return client.abandonAsync(lockToken);
+                default:
+                    return client.deadLetterAsync(lockToken);
+            }
+        });
+    }
+
+    public static Settler settlerOf(ISubscriptionClient client) {
+        return perToken((disposition, lockToken) -> {
+            switch (disposition) {
+                case COMPLETE:
+                    return client.completeAsync(lockToken);
+                case ABANDON:
+                    return client.abandonAsync(lockToken);
+                default:
+                    return client.deadLetterAsync(lockToken);
+            }
+        });
+    }
+
+    /**
+     * A settler that issues the tokens of a batch back to back, one call each.
+     */
+    public static Settler perToken(SingleSettler settler) {
+        return (disposition, lockTokens) -> {
+            List<CompletableFuture<Void>> futures = new ArrayList<>(lockTokens.size());
+            for (UUID lockToken : lockTokens) {
+                futures.add(call(() -> settler.settleAsync(disposition, lockToken)));
+            }
+            return futures;
+        };
+    }
+
+    private static CompletableFuture<Void> call(Supplier<CompletableFuture<Void>> call) {
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    private final Settler settler;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final ScheduledExecutorService timer;
+    private final Map<Disposition, Pending> pending = new EnumMap<>(Disposition.class);
+
+    // metrics
+    private final AtomicLong batchCount = new AtomicLong();
+    private final LongAdder settledCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAccumulator maxBatch = new LongAccumulator(Math::max, 0);
+    private final LongAdder settleLatencyNanos = new LongAdder();
+    private final LongAccumulator maxSettleLatencyNanos = new LongAccumulator(Math::max, 0);
+    private volatile boolean closed;
+
+    public SettlementCoalescer(Settler settler) {
+        this(settler, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY);
+    }
+
+    public SettlementCoalescer(Settler settler, int maxBatchSize, Duration maxDelay) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be greater than 0.");
+        }
+        this.settler = settler;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        for (Disposition disposition : Disposition.values()) {
+            this.pending.put(disposition, new Pending(disposition));
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "settlement-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletableFuture<Void> completeAsync(UUID lockToken) {
+        return this.settleAsync(Disposition.COMPLETE, lockToken);
+    }
+
+    public CompletableFuture<Void> abandonAsync(UUID lockToken) {
+        return this.settleAsync(Disposition.ABANDON, lockToken);
+    }
+
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken) {
+        return this.settleAsync(Disposition.DEAD_LETTER, lockToken);
+    }
+
+    public CompletableFuture<Void> settleAsync(Disposition disposition, UUID lockToken) {
+        if (this.closed) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("Operation not allowed after the SettlementCoalescer instance is closed."));
+            return future;
+        }
+        return this.pending.get(disposition).add(lockToken);
+    }
+
+    /**
+     * Issues all queued settlements without waiting for the count or time trigger.
+     */
+    public void flush() {
+        for (Pending queue : this.pending.values()) {
+            queue.flush();
+        }
+    }
+
+    /** Number of batches flushed so far. */
+    public long getBatchCount() {
+        return this.batchCount.get();
+    }
+
+    /** Number of settlements that succeeded. */
+    public long getSettledCount() {
+        return this.settledCount.sum();
+    }
+
+    /** Number of settlements that failed. */
+    public long getFailedCount() {
+        return this.failedCount.sum();
+    }
+
+    public long getMaxBatchSize() {
+        return this.maxBatch.get();
+    }
+
+    public double getAverageBatchSize() {
+        long batches = this.batchCount.get();
+        return batches == 0 ? 0 : (double) (this.settledCount.sum() + this.failedCount.sum()) / batches;
+    }
+
+    /** Mean time from a settle call to the completion of its future. */
+    public Duration getAverageSettleLatency() {
+        long settled = this.settledCount.sum() + this.failedCount.sum();
+        return settled == 0 ? Duration.ZERO : Duration.ofNanos(this.settleLatencyNanos.sum() / settled);
+    }
+
+    public Duration getMaxSettleLatency() {
+        return Duration.ofNanos(this.maxSettleLatencyNanos.get());
+    }
+
+    /**
+     * Flushes the queued settlements; the futures of those settlements still complete after this returns.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.flush();
+        this.timer.shutdown();
+    }
+
+    private final class Pending {
+        private final Disposition disposition;
+        private List<UUID> lockTokens = new ArrayList<>();
+        private List<CompletableFuture<Void>> futures = new ArrayList<>();
+        private List<Long> startTimes = new ArrayList<>();
+        private ScheduledFuture<?> delayedFlush;
+
+        Pending(Disposition disposition) {
+            this.disposition = disposition;
+        }
+
+        synchronized CompletableFuture<Void> add(UUID lockToken) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            this.lockTokens.add(lockToken);
+            this.futures.add(future);
+            this.startTimes.add(System.nanoTime());
+            if (this.lockTokens.size() >= SettlementCoalescer.this.maxBatchSize) {
+                this.flush();
+            } else if (this.lockTokens.size() == 1) {
+                try {
+                    this.delayedFlush = SettlementCoalescer.this.timer.schedule(this::flush, SettlementCoalescer.this.maxDelayNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // closing; settle right away
+                    this.flush();
+                }
+            }
+            return future;
+        }
+
+        synchronized void flush() {
+            if (this.delayedFlush != null) {
+                this.delayedFlush.cancel(false);
+                this.delayedFlush = null;
+            }
+            if (this.lockTokens.isEmpty()) {
+                return;
+            }
+            List<UUID> batch = this.lockTokens;
+            List<CompletableFuture<Void>> batchFutures = this.futures;
+            List<Long> batchStartTimes = this.startTimes;
+            this.lockTokens = new ArrayList<>(batch.size());
+            this.futures = new ArrayList<>(batch.size());
+            this.startTimes = new ArrayList<>(batch.size());
+
+            SettlementCoalescer.this.batchCount.incrementAndGet();
+            SettlementCoalescer.this.maxBatch.accumulate(batch.size());
+            List<CompletableFuture<Void>> settlements;
+            try {
+                settlements = SettlementCoalescer.this.settler.settleAsync(this.disposition, Collections.unmodifiableList(batch));
+            } catch (RuntimeException e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                settlements = Collections.nCopies(batch.size(), failed);
+            }
+            if (settlements.size() != batch.size()) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("The settler returned " + settlements.size() + " futures for " + batch.size() + " lock tokens."));
+                settlements = Collections.nCopies(batch.size(), failed);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                CompletableFuture<Void> future = batchFutures.get(i);
+                long start = batchStartTimes.get(i);
+                CompletableFuture<Void> settle = settlements.get(i);
+                settle.whenComplete((v, error) -> {
+                    long latency = System.nanoTime() - start;
+                    SettlementCoalescer.this.settleLatencyNanos.add(latency);
+                    SettlementCoalescer.this.maxSettleLatencyNanos.accumulate(latency);
+                    if (error != null) {
+                        SettlementCoalescer.this.failedCount.increment();
+                        future.completeExceptionally(error);
+                    } else {
+                        SettlementCoalescer.this.settledCount.increment();
+                        future.complete(null);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.deadletterqueue;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+import com.microsoft.azure.servicebus.samples.common.Futures;
+import com.microsoft.azure.servicebus.samples.common.MessageSize;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * An {@link IMessageSender} that limits how many messages, and how many bytes, are in flight.
+ * <p>
+ * {@code sendAsync} and {@code sendBatchAsync} block the calling thread until the window has room
+ * for the message or batch, then start the send and return its future. The permits are given back
+ * when the send completes, so a producer loop that calls {@code sendAsync} as fast as it can is
+ * paced by the rate at which sends are acknowledged rather than queuing an unbounded number of
+ * pending futures. If the calling thread is interrupted while waiting, the returned future fails
+ * with an {@link InterruptedException} and nothing is sent.
+ * <p>
+ * A message or batch larger than the byte window takes the whole byte window. Sizes are
+ * estimated by {@link MessageSize}.
+ */
+public class WindowedMessageSender implements IMessageSender {
+
+    private final IMessageSender sender;
+    private final int maxMessagesInFlight;
+    private final int maxBytesInFlight;
+    private final Semaphore messagePermits;
+    private final Semaphore bytePermits;
+
+    public WindowedMessageSender(IMessageSender sender, int maxMessagesInFlight, int maxBytesInFlight) {
+        if (maxMessagesInFlight <= 0 || maxBytesInFlight <= 0) {
+            throw new IllegalArgumentException("The window must allow at least one message and one byte.");
+        }
+        this.sender = sender;
+        this.maxMessagesInFlight = maxMessagesInFlight;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.messagePermits = new Semaphore(maxMessagesInFlight, true);
+        this.bytePermits = new Semaphore(maxBytesInFlight, true);
+    }
+
+    public int getMessagesInFlight() {
+        return this.maxMessagesInFlight - this.messagePermits.availablePermits();
+    }
+
+    public int getBytesInFlight() {
+        return this.maxBytesInFlight - this.bytePermits.availablePermits();
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(IMessage message) {
+        int bytes = Math.min(MessageSize.estimate(message), this.maxBytesInFlight);
+        if (!this.acquire(1, bytes)) {
+            return interrupted();
+        }
+        return this.releaseOnCompletion(() -> this.sender.sendAsync(message), 1, bytes);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendBatchAsync(Collection<? extends IMessage> messages) {
+        int count = Math.min(messages.size(), this.maxMessagesInFlight);
+        long size = 0;
+        for (IMessage message : messages) {
+            size += MessageSize.estimate(message);
+        }
+        int bytes = (int) Math.min(size, this.maxBytesInFlight);
+        if (!this.acquire(count, bytes)) {
+            return interrupted();
+        }
+        return this.releaseOnCompletion(() -> this.sender.sendBatchAsync(messages), count, bytes);
+    }
+
+    private boolean acquire(int messages, int bytes) {
+        try {
+            this.messagePermits.acquire(messages);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        try {
+            this.bytePermits.acquire(bytes);
+        } catch (InterruptedException e) {
+            this.messagePermits.release(messages);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private CompletableFuture<Void> releaseOnCompletion(Supplier<CompletableFuture<Void>> send, int messages, int bytes) {
+        CompletableFuture<Void> future;
+        try {
+            future = send.get();
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        return future.whenComplete((v, error) -> {
+            this.bytePermits.release(bytes);
+            this.messagePermits.release(messages);
+        });
+    }
+
+    private static CompletableFuture<Void> interrupted() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(new InterruptedException("Interrupted while waiting for the send window."));
+        return future;
+    }
+
+    @Override
+    public void send(IMessage message) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendAsync(message));
+    }
+
+    @Override
+    public void sendBatch(Collection<? extends IMessage> messages) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendBatchAsync(messages));
+    }
+
+    @Override
+    public CompletableFuture<Long> scheduleMessageAsync(IMessage message, Instant scheduledEnqueueTimeUtc) {
+        return this.sender.scheduleMessageAsync(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public CompletableFuture<Void> cancelScheduledMessageAsync(long sequenceNumber) {
+        return this.sender.cancelScheduledMessageAsync(sequenceNumber);
+    }
+
+    @Override
+    public long scheduleMessage(IMessage message, Instant scheduledEnqueueTimeUtc) throws InterruptedException, ServiceBusException {
+        return this.sender.scheduleMessage(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public void cancelScheduledMessage(long sequenceNumber) throws InterruptedException, ServiceBusException {
+        this.sender.cancelScheduledMessage(sequenceNumber);
+    }
+
+    @Override
+    public String getEntityPath() {
+        return this.sender.getEntityPath();
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        return this.sender.closeAsync();
+    }
+
+    @Override
+    public void close() throws ServiceBusException {
+        this.sender.close();
+    }
+}
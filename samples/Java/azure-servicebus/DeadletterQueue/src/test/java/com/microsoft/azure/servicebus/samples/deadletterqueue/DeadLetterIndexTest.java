@@ -0,0 +1,151 @@
+package com.microsoft.azure.servicebus.samples.deadletterqueue;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+public class DeadLetterIndexTest {
+
+    private static final String DEADLETTER_PATH = "BasicQueue/$deadletterqueue";
+
+    private ServiceBusEmulator emulator;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void countsAndDrillsDownByDimension() throws Exception {
+        // 60 messages labeled A or B, dead-lettered with reason r0, r1 or r2
+        deadLetter(60, i -> i % 2 == 0 ? "A" : "B", i -> "r" + (i % 3));
+        IMessageReceiver receiver = emulator.createMessageReceiver(DEADLETTER_PATH);
+        DeadLetterIndex index = new DeadLetterIndex();
+
+        Assert.assertEquals(60L, (long) index.scanAsync(receiver, 7, ForkJoinPool.commonPool()).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(60, index.size());
+        // browsing does not lock the messages
+        Assert.assertEquals(0, emulator.getEntity(DEADLETTER_PATH).getLockedMessageCount());
+
+        Map<String, Long> reasons = index.select().countBy(DeadLetterIndex.Dimension.DEAD_LETTER_REASON);
+        Assert.assertEquals(3, reasons.size());
+        Assert.assertEquals(20L, (long) reasons.get("r1"));
+
+        DeadLetterIndex.Selection drillDown = index.select()
+                .where(DeadLetterIndex.Dimension.DEAD_LETTER_REASON, "r1")
+                .where(DeadLetterIndex.Dimension.LABEL, "A");
+        Assert.assertEquals(10, drillDown.count());
+        Assert.assertEquals("description of r1", drillDown.countBy(DeadLetterIndex.Dimension.DEAD_LETTER_ERROR_DESCRIPTION).keySet().iterator().next());
+        long[] sequenceNumbers = drillDown.sequenceNumbers(3);
+        Assert.assertEquals(3, sequenceNumbers.length);
+        Assert.assertTrue(sequenceNumbers[0] < sequenceNumbers[1] && sequenceNumbers[1] < sequenceNumbers[2]);
+
+        // no message has this content type or value
+        Assert.assertEquals(60L, (long) index.select().countBy(DeadLetterIndex.Dimension.CONTENT_TYPE).get(null));
+        Assert.assertEquals(0, index.select().where(DeadLetterIndex.Dimension.LABEL, "C").count());
+    }
+
+    @Test
+    public void laterScanAddsOnlyNewDeadLettersAndBucketsByTime() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver(DEADLETTER_PATH);
+        DeadLetterIndex index = new DeadLetterIndex(Duration.ofMillis(100));
+        deadLetter(10, i -> "A", i -> "early");
+        index.scanAsync(receiver, ForkJoinPool.commonPool()).get(5, TimeUnit.SECONDS);
+        long firstLast = index.getLastSequenceNumber();
+
+        Thread.sleep(250);
+        Instant later = Instant.now();
+        deadLetter(5, i -> "A", i -> "late");
+        Assert.assertEquals(5L, (long) index.scanAsync(receiver, ForkJoinPool.commonPool()).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(15, index.size());
+        Assert.assertTrue(index.getLastSequenceNumber() > firstLast);
+
+        SortedMap<Instant, Long> buckets = index.select().countByEnqueuedTime();
+        Assert.assertTrue("buckets: " + buckets, buckets.size() >= 2);
+        Assert.assertEquals(15, buckets.values().stream().mapToLong(Long::longValue).sum());
+        Assert.assertEquals(5, index.select().enqueuedBetween(later, Instant.MAX).count());
+        Assert.assertEquals(5, index.select()
+                .enqueuedBetween(later, Instant.now().plusSeconds(1))
+                .where(DeadLetterIndex.Dimension.DEAD_LETTER_REASON, "late")
+                .count());
+    }
+
+    @Test
+    public void answersQueriesOverManyMessagesQuickly() throws Exception {
+        DeadLetterIndex index = new DeadLetterIndex();
+        IMessageSender sender = emulator.createMessageSender(DEADLETTER_PATH);
+        for (int batch = 0; batch < 200; batch++) {
+            List<Message> messages = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                Message message = new Message(new byte[0]);
+                message.setLabel("label" + (i % 10));
+                message.getProperties().put(DeadLetterIndex.DEAD_LETTER_REASON, "reason" + (i % 7));
+                messages.add(message);
+            }
+            sender.sendBatch(messages);
+        }
+        index.scanAsync(emulator.createMessageReceiver(DEADLETTER_PATH), 1000, ForkJoinPool.commonPool()).get(60, TimeUnit.SECONDS);
+        Assert.assertEquals(200_000, index.size());
+
+        long start = System.nanoTime();
+        long count = 0;
+        for (int i = 0; i < 10; i++) {
+            count += index.select().where(DeadLetterIndex.Dimension.LABEL, "label3").countBy(DeadLetterIndex.Dimension.DEAD_LETTER_REASON).size();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(70, count);
+        Assert.assertTrue("10 queries took " + millis + " ms", millis < 2000);
+    }
+
+    private void deadLetter(int count, IntFunction label, IntFunction reason) throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message(new byte[10]);
+            message.setLabel(label.apply(i));
+            message.getProperties().put("reason", reason.apply(i));
+            messages.add(message);
+        }
+        sender.sendBatch(messages);
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        int deadLettered = 0;
+        while (deadLettered < count) {
+            Collection<IMessage> batch = receiver.receiveBatch(count, Duration.ofSeconds(1));
+            List<CompletableFuture<Void>> settlements = new ArrayList<>();
+            for (IMessage message : batch) {
+                String messageReason = message.getProperties().get("reason");
+                settlements.add(receiver.deadLetterAsync(message.getLockToken(), messageReason, "description of " + messageReason));
+            }
+            CompletableFuture.allOf(settlements.toArray(new CompletableFuture<?>[0])).get();
+            deadLettered += batch.size();
+        }
+        receiver.close();
+        sender.close();
+    }
+
+    private interface IntFunction {
+        String apply(int i);
+    }
+}
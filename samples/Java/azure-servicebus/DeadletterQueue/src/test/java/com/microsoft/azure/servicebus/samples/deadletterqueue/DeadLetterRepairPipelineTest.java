@@ -0,0 +1,199 @@
+package com.microsoft.azure.servicebus.samples.deadletterqueue;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class DeadLetterRepairPipelineTest {
+
+    private static final String DEADLETTER_PATH = "BasicQueue/$deadletterqueue";
+
+    private ServiceBusEmulator emulator;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        emulator.close();
+    }
+
+    @Test
+    public void resubmitsFixedMessagesAndDrainsDeadLetterQueue() throws Exception {
+        deadLetter(1000);
+        IMessageReceiver receiver = emulator.createMessageReceiver(DEADLETTER_PATH);
+        List<DeadLetterRepairPipeline.Report> checkpoints = new ArrayList<>();
+        DeadLetterRepairPipeline pipeline = new DeadLetterRepairPipeline(receiver, emulator.createMessageSender("FixedQueue"),
+                message -> message.getSequenceNumber() % 2 == 0 ? null : new Message(message.getBody()),
+                executor, 100, 4, Duration.ofMillis(200), 0);
+        pipeline.setCheckpointHandler(250, report -> {
+            synchronized (checkpoints) {
+                checkpoints.add(report);
+            }
+        });
+
+        DeadLetterRepairPipeline.Report report = pipeline.start().get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1000, report.getReceivedCount());
+        Assert.assertEquals(500, report.getResubmittedCount());
+        Assert.assertEquals(500, report.getDiscardedCount());
+        Assert.assertEquals(0, report.getFailedCount());
+        Assert.assertTrue(report.getBatchCount() >= 10);
+        Assert.assertEquals(0, emulator.getEntity(DEADLETTER_PATH).getMessageCount());
+        Assert.assertEquals(500, emulator.getEntity("FixedQueue").getMessageCount());
+        Assert.assertTrue("checkpoints: " + checkpoints.size(), checkpoints.size() >= 3);
+    }
+
+    @Test
+    public void defersMessagesTheFixFailsForAndKeepsTheRateLimit() throws Exception {
+        deadLetter(100);
+        IMessageReceiver receiver = emulator.createMessageReceiver(DEADLETTER_PATH);
+        DeadLetterRepairPipeline pipeline = new DeadLetterRepairPipeline(receiver, emulator.createMessageSender("FixedQueue"),
+                message -> {
+                    if (message.getSequenceNumber() % 10 == 0) {
+                        throw new IllegalArgumentException("cannot fix " + message.getSequenceNumber());
+                    }
+                    return new Message(message.getBody());
+                },
+                executor, 10, 2, Duration.ofMillis(200), 200);
+
+        DeadLetterRepairPipeline.Report report = pipeline.start().get(10, TimeUnit.SECONDS);
+
+        Assert.assertEquals(90, report.getResubmittedCount());
+        Assert.assertEquals(10, report.getFailedCount());
+        Assert.assertEquals(10, pipeline.getDeferredSequenceNumbers().size());
+        Assert.assertEquals(10, emulator.getEntity(DEADLETTER_PATH).getDeferredMessageCount());
+        // the first batch of each lane is free, the other 80 messages take 400 ms
+        Assert.assertTrue("elapsed: " + report.getElapsed(), report.getElapsed().toMillis() >= 350);
+        Assert.assertTrue(report.getMessagesPerSecond() <= 250);
+    }
+
+    @Test
+    public void failedSendLeavesMessagesInDeadLetterQueue() throws Exception {
+        deadLetter(50);
+        IMessageSender sender = emulator.createMessageSender("FixedQueue");
+        sender.close();
+        DeadLetterRepairPipeline pipeline = new DeadLetterRepairPipeline(emulator.createMessageReceiver(DEADLETTER_PATH), sender,
+                message -> new Message(message.getBody()), executor, 10, 2, Duration.ofMillis(200), 0);
+
+        try {
+            pipeline.start().get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            // the sender is closed
+        }
+        Assert.assertEquals(0, pipeline.getReport().getResubmittedCount());
+        Assert.assertEquals(50, emulator.getEntity(DEADLETTER_PATH).getMessageCount());
+        Assert.assertEquals(0, emulator.getEntity(DEADLETTER_PATH).getLockedMessageCount());
+    }
+
+    @Test
+    public void cancelStopsThePipelineAndTerminationWaitsForTheLanes() throws Exception {
+        deadLetter(50);
+        CountDownLatch fixing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DeadLetterRepairPipeline pipeline = new DeadLetterRepairPipeline(emulator.createMessageReceiver(DEADLETTER_PATH),
+                emulator.createMessageSender("FixedQueue"),
+                message -> {
+                    fixing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new Message(message.getBody());
+                }, executor, 10, 1, Duration.ofMillis(200), 0);
+
+        CompletableFuture<DeadLetterRepairPipeline.Report> result = pipeline.start();
+        Assert.assertTrue(fixing.await(10, TimeUnit.SECONDS));
+        result.cancel(true);
+        try {
+            result.get();
+            Assert.fail();
+        } catch (CancellationException e) {
+            // expected
+        }
+        // the lane is still fixing its batch, so the receiver and the sender are still in use
+        CompletableFuture<DeadLetterRepairPipeline.Report> termination = pipeline.getTermination();
+        Thread.sleep(100);
+        Assert.assertFalse(termination.isDone());
+
+        release.countDown();
+        DeadLetterRepairPipeline.Report report = termination.get(10, TimeUnit.SECONDS);
+        // the batch in progress is finished, and no other is received
+        Assert.assertEquals(10, report.getResubmittedCount());
+        Assert.assertEquals(10, emulator.getEntity("FixedQueue").getMessageCount());
+        Assert.assertEquals(40, emulator.getEntity(DEADLETTER_PATH).getMessageCount());
+        Assert.assertEquals(0, emulator.getEntity(DEADLETTER_PATH).getLockedMessageCount());
+    }
+
+    @Test
+    public void pipelineThatRunsUntilStoppedRepairsMessagesDeadLetteredLater() throws Exception {
+        DeadLetterRepairPipeline pipeline = new DeadLetterRepairPipeline(emulator.createMessageReceiver(DEADLETTER_PATH),
+                emulator.createMessageSender("FixedQueue"),
+                message -> new Message(message.getBody()), executor, 10, 2, Duration.ofMillis(50), 0);
+        pipeline.setRunUntilStopped(true);
+        CompletableFuture<DeadLetterRepairPipeline.Report> result = pipeline.start();
+
+        // the lanes find the dead-letter queue empty, and keep receiving
+        Thread.sleep(200);
+        Assert.assertFalse(result.isDone());
+        deadLetter(30);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pipeline.getReport().getResubmittedCount() < 30 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(result.isDone());
+
+        pipeline.stop();
+        DeadLetterRepairPipeline.Report report = result.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(30, report.getResubmittedCount());
+        Assert.assertEquals(30, emulator.getEntity("FixedQueue").getMessageCount());
+        Assert.assertEquals(0, emulator.getEntity(DEADLETTER_PATH).getMessageCount());
+    }
+
+    private void deadLetter(int count) throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(new byte[100]));
+        }
+        sender.sendBatch(messages);
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        int deadLettered = 0;
+        while (deadLettered < count) {
+            Collection<IMessage> batch = receiver.receiveBatch(count, Duration.ofSeconds(1));
+            List<CompletableFuture<Void>> settlements = new ArrayList<>();
+            for (IMessage message : batch) {
+                settlements.add(receiver.deadLetterAsync(message.getLockToken()));
+            }
+            CompletableFuture.allOf(settlements.toArray(new CompletableFuture<?>[0])).get();
+            deadLettered += batch.size();
+        }
+        receiver.close();
+        sender.close();
+    }
+}
@@ -0,0 +1,147 @@
+package com.microsoft.azure.servicebus.samples.deadletterqueue;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SettlementCoalescerTest {
+
+    private ServiceBusEmulator emulator;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void countTriggerFlushesFullBatches() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        Collection<IMessage> messages = receive(receiver, 10);
+        SettlementCoalescer coalescer = new SettlementCoalescer(SettlementCoalescer.settlerOf(receiver), 5, Duration.ofSeconds(10));
+
+        List<CompletableFuture<Void>> settlements = new ArrayList<>();
+        for (IMessage message : messages) {
+            settlements.add(coalescer.completeAsync(message.getLockToken()));
+        }
+        CompletableFuture.allOf(settlements.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, coalescer.getBatchCount());
+        Assert.assertEquals(5, coalescer.getMaxBatchSize());
+        Assert.assertEquals(5.0, coalescer.getAverageBatchSize(), 0.0);
+        Assert.assertEquals(10, coalescer.getSettledCount());
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+        coalescer.close();
+    }
+
+    @Test
+    public void timeTriggerFlushesPartialBatch() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        Collection<IMessage> messages = receive(receiver, 3);
+        SettlementCoalescer coalescer = new SettlementCoalescer(SettlementCoalescer.settlerOf(receiver), 64, Duration.ofMillis(50));
+
+        List<CompletableFuture<Void>> settlements = new ArrayList<>();
+        for (IMessage message : messages) {
+            settlements.add(coalescer.completeAsync(message.getLockToken()));
+        }
+        Assert.assertFalse(settlements.get(0).isDone());
+        CompletableFuture.allOf(settlements.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(1, coalescer.getBatchCount());
+        Assert.assertTrue(coalescer.getMaxSettleLatency().toMillis() >= 40);
+        Assert.assertTrue(coalescer.getAverageSettleLatency().compareTo(coalescer.getMaxSettleLatency()) <= 0);
+        coalescer.close();
+    }
+
+    @Test
+    public void eachCallerGetsItsOwnOutcome() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        List<IMessage> messages = new ArrayList<>(receive(receiver, 3));
+        SettlementCoalescer coalescer = new SettlementCoalescer(SettlementCoalescer.settlerOf(receiver), 64, Duration.ofSeconds(10));
+
+        CompletableFuture<Void> first = coalescer.completeAsync(messages.get(0).getLockToken());
+        CompletableFuture<Void> unknown = coalescer.completeAsync(UUID.randomUUID());
+        CompletableFuture<Void> second = coalescer.completeAsync(messages.get(1).getLockToken());
+        CompletableFuture<Void> deadLettered = coalescer.deadLetterAsync(messages.get(2).getLockToken());
+        coalescer.flush();
+
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        deadLettered.get(5, TimeUnit.SECONDS);
+        try {
+            unknown.get(5, TimeUnit.SECONDS);
+            Assert.fail("settling an unknown lock token must fail");
+        } catch (ExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals(2, coalescer.getBatchCount());
+        Assert.assertEquals(3, coalescer.getSettledCount());
+        Assert.assertEquals(1, coalescer.getFailedCount());
+        Assert.assertEquals(1, emulator.getEntity("BasicQueue").getDeadLetterMessageCount());
+
+        coalescer.close();
+        try {
+            coalescer.completeAsync(UUID.randomUUID()).get(5, TimeUnit.SECONDS);
+            Assert.fail("settling after close must fail");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void flushSettlesEachTokenThroughTheReceiver() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        List<IMessage> messages = new ArrayList<>(receive(receiver, 5));
+        AtomicInteger calls = new AtomicInteger();
+        SettlementCoalescer coalescer = new SettlementCoalescer(SettlementCoalescer.perToken((disposition, lockToken) -> {
+            calls.incrementAndGet();
+            return receiver.completeAsync(lockToken);
+        }), 64, Duration.ofSeconds(10));
+
+        List<CompletableFuture<Void>> settlements = new ArrayList<>();
+        for (IMessage message : messages) {
+            settlements.add(coalescer.completeAsync(message.getLockToken()));
+        }
+        coalescer.flush();
+        CompletableFuture.allOf(settlements.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+
+        // one flush, one call per lock token
+        Assert.assertEquals(1, coalescer.getBatchCount());
+        Assert.assertEquals(5, calls.get());
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+        coalescer.close();
+    }
+
+    private Collection<IMessage> receive(IMessageReceiver receiver, int count) throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(Integer.toString(i)));
+        }
+        sender.sendBatch(messages);
+        sender.close();
+        Collection<IMessage> received = receiver.receiveBatch(count, Duration.ofSeconds(1));
+        Assert.assertEquals(count, received.size());
+        return received;
+    }
+}
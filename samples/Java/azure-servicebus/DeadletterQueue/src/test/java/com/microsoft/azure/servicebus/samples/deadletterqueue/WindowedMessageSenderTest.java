@@ -0,0 +1,66 @@
+package com.microsoft.azure.servicebus.samples.deadletterqueue;
+
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class WindowedMessageSenderTest {
+
+    private ServiceBusEmulator emulator;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        emulator.setRoundTripLatency(Duration.ofMillis(20));
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void messageWindowPacesProducer() throws Exception {
+        WindowedMessageSender sender = new WindowedMessageSender(emulator.createMessageSender("BasicQueue"), 4, 1024 * 1024);
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            sends.add(sender.sendAsync(new Message(Integer.toString(i))));
+            Assert.assertTrue(sender.getMessagesInFlight() <= 4);
+        }
+        // 20 messages through a window of 4 take at least 4 full round trips before the last one starts
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()])).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(0, sender.getMessagesInFlight());
+        Assert.assertEquals(0, sender.getBytesInFlight());
+        Assert.assertEquals(20, emulator.getEntity("BasicQueue").getActiveMessageCount());
+    }
+
+    @Test
+    public void byteWindowPacesProducer() throws Exception {
+        WindowedMessageSender sender = new WindowedMessageSender(emulator.createMessageSender("BasicQueue"), 100, 3000);
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sends.add(sender.sendAsync(new Message(new byte[1000])));
+            Assert.assertTrue(sender.getBytesInFlight() <= 3000);
+        }
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()])).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(10, emulator.getEntity("BasicQueue").getActiveMessageCount());
+    }
+
+    @Test
+    public void sampleSendsThroughWindow() throws Exception {
+        WindowedMessageSender sender = new WindowedMessageSender(emulator.createMessageSender("BasicQueue"), 3, 1024 * 1024);
+        new DeadletterQueue().sendMessagesAsync(sender, Integer.MAX_VALUE).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(10, emulator.getEntity("BasicQueue").getActiveMessageCount());
+    }
+}
@@ -0,0 +1,149 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.duplicatedetection;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+import com.microsoft.azure.servicebus.samples.common.Futures;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link IMessageSender} that does not send a message whose {@code MessageId} it has sent
+ * successfully within the window.
+ * <p>
+ * On an entity with duplicate detection, the broker accepts such a message and drops it. This
+ * sender completes the send of the message right away instead, the way the broker would
+ * acknowledge it, so the duplicate is neither encoded nor transferred. Ids are recorded in a
+ * {@link WindowedBloomFilter} once their send has succeeded, so a send that failed can be retried
+ * with the same id. Messages without a {@code MessageId} are always sent.
+ * <p>
+ * A false positive of the filter suppresses a message that is not a duplicate, so the false
+ * positive rate has to be chosen for the rate of lost messages the application can accept. The
+ * window should not be longer than the entity's {@code duplicateDetectionHistoryTimeWindow}; within
+ * it, the broker would have dropped a suppressed message anyway.
+ */
+public class DeduplicatingMessageSender implements IMessageSender {
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.0001;
+
+    private final IMessageSender sender;
+    private final WindowedBloomFilter sentIds;
+    private final LongAdder suppressedCount = new LongAdder();
+
+    public DeduplicatingMessageSender(IMessageSender sender, Duration window, long expectedMessagesPerWindow) {
+        this(sender, window, expectedMessagesPerWindow, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    public DeduplicatingMessageSender(IMessageSender sender, Duration window, long expectedMessagesPerWindow, double falsePositiveRate) {
+        this.sender = sender;
+        this.sentIds = new WindowedBloomFilter(window, expectedMessagesPerWindow, falsePositiveRate);
+    }
+
+    /**
+     * The number of messages that were not sent because their id had been sent.
+     */
+    public long getSuppressedCount() {
+        return this.suppressedCount.sum();
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(IMessage message) {
+        String messageId = message.getMessageId();
+        if (messageId != null && this.sentIds.mightContain(messageId)) {
+            this.suppressedCount.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> future;
+        try {
+            future = this.sender.sendAsync(message);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        return messageId == null ? future : future.thenRun(() -> this.sentIds.put(messageId));
+    }
+
+    @Override
+    public CompletableFuture<Void> sendBatchAsync(Collection<? extends IMessage> messages) {
+        List<IMessage> unsent = new ArrayList<>(messages.size());
+        for (IMessage message : messages) {
+            String messageId = message.getMessageId();
+            if (messageId != null && this.sentIds.mightContain(messageId)) {
+                this.suppressedCount.increment();
+            } else {
+                unsent.add(message);
+            }
+        }
+        if (unsent.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> future;
+        try {
+            future = this.sender.sendBatchAsync(unsent.size() == messages.size() ? messages : unsent);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        return future.thenRun(() -> {
+            for (IMessage message : unsent) {
+                if (message.getMessageId() != null) {
+                    this.sentIds.put(message.getMessageId());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void send(IMessage message) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendAsync(message));
+    }
+
+    @Override
+    public void sendBatch(Collection<? extends IMessage> messages) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendBatchAsync(messages));
+    }
+
+    @Override
+    public CompletableFuture<Long> scheduleMessageAsync(IMessage message, Instant scheduledEnqueueTimeUtc) {
+        return this.sender.scheduleMessageAsync(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public CompletableFuture<Void> cancelScheduledMessageAsync(long sequenceNumber) {
+        return this.sender.cancelScheduledMessageAsync(sequenceNumber);
+    }
+
+    @Override
+    public long scheduleMessage(IMessage message, Instant scheduledEnqueueTimeUtc) throws InterruptedException, ServiceBusException {
+        return this.sender.scheduleMessage(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public void cancelScheduledMessage(long sequenceNumber) throws InterruptedException, ServiceBusException {
+        this.sender.cancelScheduledMessage(sequenceNumber);
+    }
+
+    @Override
+    public String getEntityPath() {
+        return this.sender.getEntityPath();
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        return this.sender.closeAsync();
+    }
+
+    @Override
+    public void close() throws ServiceBusException {
+        this.sender.close();
+    }
+}
@@ -6,8 +6,15 @@ package com.microsoft.azure.servicebus.samples.duplicatedetection;
 import com.microsoft.azure.servicebus.*;
 import com.microsoft.azure.servicebus.primitives.ConnectionStringBuilder;
 
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import org.apache.commons.cli.*;
@@ -37,32 +44,69 @@ public class DuplicateDetection {
         message2.setTimeToLive(Duration.ofMinutes(1));
         sender.send(message2);
         System.out.printf("\t=> Sent a duplicate message with messageId %s\n", message.getMessageId());
+
+        // a sender that remembers the ids it has sent drops the duplicate before it is sent
+        DeduplicatingMessageSender deduplicatingSender = new DeduplicatingMessageSender(sender, Duration.ofMinutes(10), 10_000);
+        String messageId3 = UUID.randomUUID().toString();
+        for (int i = 0; i < 2; i++) {
+            IMessage message3 = new Message();
+            message3.setMessageId(messageId3);
+            message3.setTimeToLive(Duration.ofMinutes(1));
+            deduplicatingSender.send(message3);
+        }
+        System.out.printf("\t=> Sent a message and a duplicate with messageId %s, %d duplicate not sent\n",
+                messageId3, deduplicatingSender.getSuppressedCount());
         sender.close();
     }
 
     void receive(String connectionString) throws Exception {
-        IMessageReceiver receiver = ClientFactory.createMessageReceiverFromConnectionStringBuilder(new ConnectionStringBuilder(connectionString, "DupdetectQueue"), ReceiveMode.PEEKLOCK);
+        IQueueClient queueClient = new QueueClient(new ConnectionStringBuilder(connectionString, "DupdetectQueue"), ReceiveMode.PEEKLOCK);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
 
-        // receive messages from queue
-        String receivedMessageId = "";
+        // the ids of processed messages are kept in a file, so that a message that is
+        // redelivered, also after a restart of the receiver, is not processed twice
+        IdempotencyStore store = new IdempotencyStore(Paths.get(System.getProperty("java.io.tmpdir"), "DupdetectQueue.ids"), 1 << 20);
 
-        System.out.printf("\n\tWaiting up to 5 seconds for messages from %s ...\n", receiver.getEntityPath());
-        while (true) {
-            IMessage receivedMessage = receiver.receive(Duration.ofSeconds(5));
-
-            if (receivedMessage == null) {
-                break;
+        try {
+            Set<String> receivedMessageIds = ConcurrentHashMap.newKeySet();
+            AtomicBoolean duplicate = new AtomicBoolean();
+            AtomicLong lastReceived = new AtomicLong(System.currentTimeMillis());
+
+            // the idempotent handler passes each messageId on only once; a copy of a message that
+            // is still being processed waits for the first copy and is then skipped, or handled if it failed
+            IdempotentMessageHandler handler = new IdempotentMessageHandler(new IMessageHandler() {
+                public CompletableFuture<Void> onMessageAsync(IMessage receivedMessage) {
+                    lastReceived.set(System.currentTimeMillis());
+                    System.out.printf("\t<= Received a message with messageId %s\n", receivedMessage.getMessageId());
+                    if (!receivedMessageIds.add(receivedMessage.getMessageId())) {
+                        duplicate.set(true);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                public void notifyException(Throwable throwable, ExceptionPhase exceptionPhase) {
+                    System.out.printf(exceptionPhase + "-" + throwable.getMessage());
+                }
+            }, store);
+
+            System.out.printf("\n\tWaiting up to 5 seconds for messages from %s ...\n", queueClient.getEntityPath());
+            queueClient.registerMessageHandler(handler, new MessageHandlerOptions(1, true, Duration.ofMinutes(1)), executorService);
+            while (System.currentTimeMillis() - lastReceived.get() < 5000) {
+                Thread.sleep(100);
             }
-            System.out.printf("\t<= Received a message with messageId %s\n", receivedMessage.getMessageId());
-            receiver.complete(receivedMessage.getLockToken());
-            if (receivedMessageId.contentEquals(receivedMessage.getMessageId())) {
+            System.out.printf("\tDone receiving messages from %s, %d already processed messages skipped\n",
+                    queueClient.getEntityPath(), handler.getSkippedCount());
+            if (duplicate.get()) {
                 throw new Exception("Received a duplicate message!");
             }
-            receivedMessageId = receivedMessage.getMessageId();
+        } finally {
+            try {
+                queueClient.close();
+            } finally {
+                executorService.shutdown();
+                store.close();
+            }
         }
-        System.out.printf("\tDone receiving messages from %s\n", receiver.getEntityPath());
-
-        receiver.close();
     }
 
     public static void main(String[] args) {
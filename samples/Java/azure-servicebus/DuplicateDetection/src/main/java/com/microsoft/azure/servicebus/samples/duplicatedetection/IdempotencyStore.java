@@ -0,0 +1,342 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.duplicatedetection;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the {@code MessageId}s of processed messages in a memory-mapped file, so that a
+ * consumer can skip messages it has already handled, also after a restart.
+ * <p>
+ * Server-side duplicate detection only drops duplicates that are sent again. A message that is
+ * redelivered, because its lock was lost or it was abandoned after its handler did the work,
+ * reaches the handlers again; this store catches those. Handling a message takes three steps:
+ * {@link #begin} records the id as in progress and says whether the message is new, a duplicate of
+ * a processed message, or a copy of a message that is still being handled; {@link #markProcessed}
+ * keeps the id for the time-to-live once the handler has succeeded; {@link #release} forgets it
+ * when the handler failed, so the redelivery is handled again.
+ * <p>
+ * The file is a fixed-size open-addressing hash table. An id is stored as a 128-bit fingerprint
+ * together with its expiry time, in one of the 16 slots of one of the two groups its fingerprint
+ * maps to, whichever has more room. Expired slots are reused; when both groups hold only live ids,
+ * the one that expires first is evicted. Checking and recording an id reads two groups of 512 bytes
+ * under at most two of a fixed set of locks and allocates nothing. Writes go to the mapped pages; the
+ * operating system writes them to the file, also when the process dies, and {@link #flush} or
+ * {@link #close} force them to the storage device. Expiry times are wall-clock times, so they
+ * remain valid across restarts.
+ */
+public class IdempotencyStore implements AutoCloseable {
+
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofHours(1);
+    public static final Duration DEFAULT_PROCESSING_TIMEOUT = Duration.ofMinutes(5);
+    // a single mapping is limited to 2 GB
+    public static final int MAX_CAPACITY = 1 << 25;
+
+    public enum Status {
+        // the id was not known, or had expired, and is now recorded as in progress
+        NEW,
+        // the message has been processed within the time-to-live
+        PROCESSED,
+        // another copy of the message is being processed
+        IN_PROGRESS
+    }
+
+    static final int GROUP_SIZE = 16;
+    static final int SLOT_SIZE = 32;
+    static final int HEADER_SIZE = 64;
+    private static final long MAGIC = 0x5342494453544f52L;
+    private static final int VERSION = 1;
+    private static final int LOCK_COUNT = 1024;
+    // slot layout: fingerprint high and low (0 and 0 marks an empty slot), expiry millis, state
+    private static final int FINGERPRINT_HIGH = 0;
+    private static final int FINGERPRINT_LOW = 8;
+    private static final int EXPIRES_AT = 16;
+    private static final int STATE = 24;
+    private static final long STATE_IN_PROGRESS = 1;
+    private static final long STATE_PROCESSED = 2;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int groupMask;
+    private final long timeToLiveMillis;
+    private final long processingTimeoutMillis;
+    private final Object[] locks = new Object[LOCK_COUNT];
+    private final LongAdder newCount = new LongAdder();
+    private final LongAdder duplicateCount = new LongAdder();
+    private final LongAdder evictedCount = new LongAdder();
+    private volatile boolean closed;
+
+    public IdempotencyStore(Path file, int capacity) throws IOException {
+        this(file, capacity, DEFAULT_TIME_TO_LIVE, DEFAULT_PROCESSING_TIMEOUT);
+    }
+
+    /**
+     * Opens the store in the given file, or creates it.
+     *
+     * @param capacity the number of ids the store holds, rounded up to a power of two of at least 16
+     * @param timeToLive how long the id of a processed message is kept
+     * @param processingTimeout how long an id stays in progress without being marked as processed
+     *                          or released, for example because the consumer stopped while handling it
+     */
+    public IdempotencyStore(Path file, int capacity, Duration timeToLive, Duration processingTimeout) throws IOException {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be between 1 and " + MAX_CAPACITY + ".");
+        }
+        int slots = Math.max(GROUP_SIZE, Integer.highestOneBit(capacity - 1) << 1);
+        this.groupMask = slots / GROUP_SIZE - 1;
+        this.timeToLiveMillis = timeToLive.toMillis();
+        this.processingTimeoutMillis = processingTimeout.toMillis();
+        for (int i = 0; i < LOCK_COUNT; i++) {
+            this.locks[i] = new Object();
+        }
+
+        long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long existing = this.channel.size();
+            if (existing != 0 && existing != size) {
+                throw new IllegalArgumentException("The store file " + file + " has " + existing + " bytes, not the " + size + " of a capacity of " + slots + ".");
+            }
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (existing == 0) {
+                this.buffer.putLong(0, MAGIC);
+                this.buffer.putInt(8, VERSION);
+                this.buffer.putInt(12, slots);
+            } else if (this.buffer.getLong(0) != MAGIC || this.buffer.getInt(8) != VERSION || this.buffer.getInt(12) != slots) {
+                throw new IllegalArgumentException("The file " + file + " is not an idempotency store of capacity " + slots + ".");
+            }
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Records the id as in progress, unless it is already known.
+     */
+    public Status begin(String messageId) {
+        long high = fingerprintHigh(messageId);
+        long low = fingerprintLow(messageId);
+        int group1 = this.groupOf(high);
+        int group2 = this.groupOf(low);
+        long now = System.currentTimeMillis();
+        synchronized (this.locks[Math.min(group1 & (LOCK_COUNT - 1), group2 & (LOCK_COUNT - 1))]) {
+            synchronized (this.locks[Math.max(group1 & (LOCK_COUNT - 1), group2 & (LOCK_COUNT - 1))]) {
+                this.ensureOpen();
+                return this.begin(high, low, group1, group2, now);
+            }
+        }
+    }
+
+    /**
+     * Keeps the id for the time-to-live, from now on.
+     */
+    public void markProcessed(String messageId) {
+        this.update(messageId, System.currentTimeMillis() + this.timeToLiveMillis, STATE_PROCESSED);
+    }
+
+    /**
+     * Forgets the id, so the next copy of the message is handled again.
+     */
+    public void release(String messageId) {
+        this.update(messageId, 0, STATE_IN_PROGRESS);
+    }
+
+    /**
+     * Whether the id is recorded, as processed or in progress, and has not expired.
+     */
+    public boolean contains(String messageId) {
+        long high = fingerprintHigh(messageId);
+        long low = fingerprintLow(messageId);
+        int group1 = this.groupOf(high);
+        int group2 = this.groupOf(low);
+        long now = System.currentTimeMillis();
+        synchronized (this.locks[Math.min(group1 & (LOCK_COUNT - 1), group2 & (LOCK_COUNT - 1))]) {
+            synchronized (this.locks[Math.max(group1 & (LOCK_COUNT - 1), group2 & (LOCK_COUNT - 1))]) {
+                this.ensureOpen();
+                int slot = this.find(group1, group2, high, low);
+                return slot >= 0 && this.buffer.getLong(slot + EXPIRES_AT) > now;
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return (this.groupMask + 1) * GROUP_SIZE;
+    }
+
+    /** Ids recorded by {@link #begin} since the store was opened. */
+    public long getNewCount() {
+        return this.newCount.sum();
+    }
+
+    /** Calls of {@link #begin} for an id that was already known, since the store was opened. */
+    public long getDuplicateCount() {
+        return this.duplicateCount.sum();
+    }
+
+    /** Ids that were dropped before they expired because their group was full. */
+    public long getEvictedCount() {
+        return this.evictedCount.sum();
+    }
+
+    /**
+     * Forces the changes to the storage device.
+     */
+    public void flush() {
+        this.ensureOpen();
+        this.buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        // waits for operations in progress, which hold one of the locks
+        for (Object lock : this.locks) {
+            synchronized (lock) {
+                this.closed = true;
+            }
+        }
+        this.buffer.force();
+        this.channel.close();
+    }
+
+    // each id has two candidate groups and goes into the one with more room, which keeps groups
+    // from overflowing until the table is nearly full
+    private Status begin(long high, long low, int group1, int group2, long now) {
+        int reuse = -1;
+        int best = -1;
+        int bestAvailable = 0;
+        int oldest = -1;
+        long oldestExpiry = Long.MAX_VALUE;
+        for (int group = group1, pass = 0; pass < 2; group = group2, pass++) {
+            int base = HEADER_SIZE + group * GROUP_SIZE * SLOT_SIZE;
+            int available = 0;
+            int firstAvailable = -1;
+            for (int i = 0; i < GROUP_SIZE; i++) {
+                int slot = base + i * SLOT_SIZE;
+                long slotHigh = this.buffer.getLong(slot + FINGERPRINT_HIGH);
+                long slotLow = this.buffer.getLong(slot + FINGERPRINT_LOW);
+                long expiresAt = this.buffer.getLong(slot + EXPIRES_AT);
+                if (slotHigh == high && slotLow == low) {
+                    if (expiresAt > now) {
+                        this.duplicateCount.increment();
+                        return this.buffer.getLong(slot + STATE) == STATE_PROCESSED ? Status.PROCESSED : Status.IN_PROGRESS;
+                    }
+                    reuse = slot;
+                } else if (expiresAt <= now) {
+                    if (firstAvailable < 0) {
+                        firstAvailable = slot;
+                    }
+                    if (slotHigh == 0 && slotLow == 0) {
+                        // slots are filled in order and never emptied, so the rest is empty
+                        available += GROUP_SIZE - i;
+                        break;
+                    }
+                    available++;
+                } else if (expiresAt < oldestExpiry) {
+                    oldest = slot;
+                    oldestExpiry = expiresAt;
+                }
+            }
+            if (available > bestAvailable) {
+                best = firstAvailable;
+                bestAvailable = available;
+            }
+        }
+        int slot = reuse >= 0 ? reuse : best;
+        if (slot < 0) {
+            slot = oldest;
+            this.evictedCount.increment();
+        }
+        this.buffer.putLong(slot + FINGERPRINT_HIGH, high);
+        this.buffer.putLong(slot + FINGERPRINT_LOW, low);
+        this.buffer.putLong(slot + EXPIRES_AT, now + this.processingTimeoutMillis);
+        this.buffer.putLong(slot + STATE, STATE_IN_PROGRESS);
+        this.newCount.increment();
+        return Status.NEW;
+    }
+
+    private void update(String messageId, long expiresAt, long state) {
+        long high = fingerprintHigh(messageId);
+        long low = fingerprintLow(messageId);
+        int group1 = this.groupOf(high);
+        int group2 = this.groupOf(low);
+        synchronized (this.locks[Math.min(group1 & (LOCK_COUNT - 1), group2 & (LOCK_COUNT - 1))]) {
+            synchronized (this.locks[Math.max(group1 & (LOCK_COUNT - 1), group2 & (LOCK_COUNT - 1))]) {
+                this.ensureOpen();
+                int slot = this.find(group1, group2, high, low);
+                if (slot >= 0) {
+                    this.buffer.putLong(slot + EXPIRES_AT, expiresAt);
+                    this.buffer.putLong(slot + STATE, state);
+                }
+            }
+        }
+    }
+
+    // an id is stored at most once, in one of its two groups
+    private int find(int group1, int group2, long high, long low) {
+        for (int group = group1, pass = 0; pass < 2; group = group2, pass++) {
+            int base = HEADER_SIZE + group * GROUP_SIZE * SLOT_SIZE;
+            for (int i = 0; i < GROUP_SIZE; i++) {
+                int slot = base + i * SLOT_SIZE;
+                long slotHigh = this.buffer.getLong(slot + FINGERPRINT_HIGH);
+                long slotLow = this.buffer.getLong(slot + FINGERPRINT_LOW);
+                if (slotHigh == high && slotLow == low) {
+                    return slot;
+                }
+                if (slotHigh == 0 && slotLow == 0) {
+                    break;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int groupOf(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & this.groupMask;
+    }
+
+    private void ensureOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("Operation not allowed after the IdempotencyStore instance is closed.");
+        }
+    }
+
+    // two independent 64-bit hashes of the characters, computed without allocating
+    static long fingerprintHigh(String messageId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash ^= messageId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash ^ messageId.length());
+    }
+
+    static long fingerprintLow(String messageId) {
+        long hash = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash = (hash + messageId.charAt(i)) * 0xbf58476d1ce4e5b9L;
+            hash ^= hash >>> 29;
+        }
+        // never 0, so that no id has the fingerprint of an empty slot
+        return mix(hash) | 1;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.duplicatedetection;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link IMessageHandler} that passes each {@code MessageId} to the wrapped handler only once,
+ * as recorded in an {@link IdempotencyStore}.
+ * <p>
+ * A message whose id has been processed before is not passed on; the returned future completes
+ * normally, so a pump with {@code autoComplete} completes the duplicate. A message whose id is
+ * still being handled, a redelivery that arrives while the first copy is in progress, waits for
+ * that copy instead of failing: abandoning it would have the broker redeliver it at once and
+ * raise its delivery count until it is dead-lettered. When the first copy is handled by this
+ * handler, the redelivery waits for its result; otherwise, for example when a crashed process
+ * left the id in progress, it checks the store again every {@code pollInterval} until the id is
+ * processed or its processing timeout has expired. It is then skipped, or handled if the first
+ * copy failed. The pump keeps renewing the lock of a waiting message up to its
+ * {@code maxAutoRenewDuration}, which should therefore cover the processing timeout.
+ * <p>
+ * When the wrapped handler fails, the id is released and the redelivery is handled again.
+ * A message without a {@code MessageId} cannot be recognized and is always passed on.
+ */
+public class IdempotentMessageHandler implements IMessageHandler {
+
+    public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(1);
+
+    // shared by all handlers; it only schedules the next check of a waiting message
+    private static final ScheduledExecutorService POLL_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "idempotent-message-handler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final IMessageHandler handler;
+    private final IdempotencyStore store;
+    private final long pollIntervalNanos;
+    // the copies handled right now, so that a redelivery can wait for their result
+    private final Map<String, CompletableFuture<Void>> inProgress = new ConcurrentHashMap<>();
+    private final LongAdder skippedCount = new LongAdder();
+    private final LongAdder waitedCount = new LongAdder();
+
+    public IdempotentMessageHandler(IMessageHandler handler, IdempotencyStore store) {
+        this(handler, store, DEFAULT_POLL_INTERVAL);
+    }
+
+    public IdempotentMessageHandler(IMessageHandler handler, IdempotencyStore store, Duration pollInterval) {
+        this.handler = handler;
+        this.store = store;
+        this.pollIntervalNanos = pollInterval.toNanos();
+    }
+
+    @Override
+    public CompletableFuture<Void> onMessageAsync(IMessage message) {
+        String messageId = message.getMessageId();
+        if (messageId == null) {
+            return this.handler.onMessageAsync(message);
+        }
+        switch (this.store.begin(messageId)) {
+            case PROCESSED:
+                this.skippedCount.increment();
+                return CompletableFuture.completedFuture(null);
+            case IN_PROGRESS:
+                this.waitedCount.increment();
+                // begins again once the first copy is done: skipped if it succeeded, handled if it failed
+                return this.firstCopyDone(messageId).thenCompose(v -> this.onMessageAsync(message));
+            default:
+                break;
+        }
+        CompletableFuture<Void> handled;
+        try {
+            handled = this.handler.onMessageAsync(message);
+        } catch (RuntimeException e) {
+            handled = new CompletableFuture<>();
+            handled.completeExceptionally(e);
+        }
+        CompletableFuture<Void> result = handled.whenComplete((v, t) -> {
+            if (t == null) {
+                this.store.markProcessed(messageId);
+            } else {
+                this.store.release(messageId);
+            }
+        });
+        this.inProgress.put(messageId, result);
+        result.whenComplete((v, t) -> this.inProgress.remove(messageId, result));
+        return result;
+    }
+
+    @Override
+    public void notifyException(Throwable exception, ExceptionPhase phase) {
+        this.handler.notifyException(exception, phase);
+    }
+
+    /**
+     * The number of messages that were not passed on because their id had been processed.
+     */
+    public long getSkippedCount() {
+        return this.skippedCount.sum();
+    }
+
+    /**
+     * The number of times a message waited because another copy of it was in progress.
+     */
+    public long getWaitedCount() {
+        return this.waitedCount.sum();
+    }
+
+    private CompletableFuture<Void> firstCopyDone(String messageId) {
+        CompletableFuture<Void> first = this.inProgress.get(messageId);
+        if (first != null) {
+            // the store is updated before the first copy's future completes
+            return first.handle((v, t) -> null);
+        }
+        CompletableFuture<Void> poll = new CompletableFuture<>();
+        POLL_TIMER.schedule(() -> poll.complete(null), this.pollIntervalNanos, TimeUnit.NANOSECONDS);
+        return poll;
+    }
+}
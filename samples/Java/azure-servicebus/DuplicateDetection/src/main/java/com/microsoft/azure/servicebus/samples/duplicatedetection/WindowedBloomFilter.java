@@ -0,0 +1,150 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.duplicatedetection;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free blocked Bloom filter of strings that forgets them after a time window.
+ * <p>
+ * The filter consists of {@link #GENERATIONS} generations, each a blocked Bloom filter: a key sets
+ * all of its bits in a single block of 512 bits, one cache line, chosen by its hash. New keys go
+ * into the current generation, and the current generation moves on every
+ * {@code window / (GENERATIONS - 1)}; the generation it moves to is cleared first. A key is
+ * therefore remembered for at least the window and at most a third longer. Bits are set with
+ * compare-and-set, so any number of threads can add and check keys without locking.
+ * <p>
+ * Like any Bloom filter, {@link #mightContain} can return {@code true} for a key that was never
+ * added, at no more than about the configured false positive rate as long as no more than the
+ * expected number of keys are added per window, however they are spread over the window. It
+ * never returns {@code false} for a key added within the window, except for a key added while its
+ * generation is being cleared by another thread.
+ */
+public class WindowedBloomFilter {
+
+    static final int GENERATIONS = 4;
+    static final int BLOCK_BITS = 512;
+    private static final int BLOCK_LONGS = BLOCK_BITS / Long.SIZE;
+    private static final int MAX_HASH_COUNT = 16;
+
+    private final AtomicLongArray bits;
+    // the rotation number each generation was last cleared for
+    private final AtomicLongArray epochs;
+    // a power of two
+    private final int blocksPerGeneration;
+    private final int hashCount;
+    private final long rotationNanos;
+    private final long originNanos = System.nanoTime();
+
+    /**
+     * @param window how long a key is remembered, at least
+     * @param expectedInsertions the number of keys added within one window
+     * @param falsePositiveRate the fraction of keys never added that are reported as contained
+     */
+    public WindowedBloomFilter(Duration window, long expectedInsertions, double falsePositiveRate) {
+        if (window.isZero() || window.isNegative()) {
+            throw new IllegalArgumentException("window must be positive.");
+        }
+        if (expectedInsertions <= 0) {
+            throw new IllegalArgumentException("expectedInsertions must be greater than 0.");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1.");
+        }
+        this.rotationNanos = Math.max(1, window.toNanos() / (GENERATIONS - 1));
+        // a lookup checks every generation; keys need not spread evenly over the rotations of a
+        // window, so each generation is sized to hold a full window of keys on its own
+        double insertionsPerGeneration = expectedInsertions;
+        double generationRate = falsePositiveRate / GENERATIONS;
+        // blocking puts more keys into some blocks than others, which 20% more bits make up for
+        double bitCount = 1.2 * insertionsPerGeneration * -Math.log(generationRate) / (Math.log(2) * Math.log(2));
+        long blocks = Long.highestOneBit((long) Math.ceil(bitCount / BLOCK_BITS) * 2 - 1);
+        if (blocks * GENERATIONS * BLOCK_LONGS > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The filter would need more than " + Integer.MAX_VALUE + " words.");
+        }
+        this.blocksPerGeneration = (int) Math.max(1, blocks);
+        double bitsPerKey = (double) this.blocksPerGeneration * BLOCK_BITS / insertionsPerGeneration;
+        this.hashCount = (int) Math.max(1, Math.min(MAX_HASH_COUNT, Math.round(bitsPerKey * Math.log(2))));
+        this.bits = new AtomicLongArray(GENERATIONS * this.blocksPerGeneration * BLOCK_LONGS);
+        this.epochs = new AtomicLongArray(GENERATIONS);
+    }
+
+    /**
+     * Whether the key was probably added within the window.
+     */
+    public boolean mightContain(String key) {
+        long epoch = this.currentEpoch();
+        long high = IdempotencyStore.fingerprintHigh(key);
+        long low = IdempotencyStore.fingerprintLow(key);
+        for (int generation = 0; generation < GENERATIONS; generation++) {
+            if (this.epochs.get(generation) > epoch - GENERATIONS && this.contains(generation, high, low)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the key to the current generation.
+     */
+    public void put(String key) {
+        long epoch = this.currentEpoch();
+        int generation = (int) (epoch % GENERATIONS);
+        long high = IdempotencyStore.fingerprintHigh(key);
+        long low = IdempotencyStore.fingerprintLow(key);
+        int base = this.blockOf(generation, high);
+        int step = (int) (low >>> 32) | 1;
+        for (int i = 0, position = (int) low; i < this.hashCount; i++, position += step) {
+            int index = base + ((position & (BLOCK_BITS - 1)) >>> 6);
+            long bit = 1L << position;
+            long word = this.bits.get(index);
+            while ((word & bit) == 0 && !this.bits.compareAndSet(index, word, word | bit)) {
+                word = this.bits.get(index);
+            }
+        }
+    }
+
+    public int getHashCount() {
+        return this.hashCount;
+    }
+
+    /**
+     * The number of bits of all generations.
+     */
+    public long getBitCount() {
+        return (long) this.bits.length() * Long.SIZE;
+    }
+
+    private boolean contains(int generation, long high, long low) {
+        int base = this.blockOf(generation, high);
+        int step = (int) (low >>> 32) | 1;
+        for (int i = 0, position = (int) low; i < this.hashCount; i++, position += step) {
+            int index = base + ((position & (BLOCK_BITS - 1)) >>> 6);
+            if ((this.bits.get(index) & (1L << position)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int blockOf(int generation, long hash) {
+        int block = (int) (hash ^ (hash >>> 32)) & (this.blocksPerGeneration - 1);
+        return (generation * this.blocksPerGeneration + block) * BLOCK_LONGS;
+    }
+
+    // moves the current generation on when its rotation has passed, clearing it first
+    private long currentEpoch() {
+        long epoch = (System.nanoTime() - this.originNanos) / this.rotationNanos;
+        int generation = (int) (epoch % GENERATIONS);
+        long cleared = this.epochs.get(generation);
+        if (cleared < epoch && this.epochs.compareAndSet(generation, cleared, epoch)) {
+            int base = generation * this.blocksPerGeneration * BLOCK_LONGS;
+            for (int i = 0; i < this.blocksPerGeneration * BLOCK_LONGS; i++) {
+                this.bits.set(base + i, 0);
+            }
+        }
+        return epoch;
+    }
+}
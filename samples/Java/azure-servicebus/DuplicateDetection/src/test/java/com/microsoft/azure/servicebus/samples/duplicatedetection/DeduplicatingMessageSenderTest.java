@@ -0,0 +1,102 @@
+package com.microsoft.azure.servicebus.samples.duplicatedetection;
+
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class DeduplicatingMessageSenderTest {
+
+    private ServiceBusEmulator emulator;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void suppressesSentIdsOnly() throws Exception {
+        DeduplicatingMessageSender sender = new DeduplicatingMessageSender(emulator.createMessageSender("BasicQueue"), Duration.ofMinutes(1), 1000);
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(message(Integer.toString(i)));
+        }
+        sender.sendBatch(batch);
+        // five ids that were sent and five new ones
+        List<Message> retry = new ArrayList<>();
+        for (int i = 5; i < 15; i++) {
+            retry.add(message(Integer.toString(i)));
+        }
+        sender.sendBatch(retry);
+        sender.send(message("3"));
+        sender.send(new Message("no id"));
+        sender.send(new Message("no id"));
+
+        Assert.assertEquals(6, sender.getSuppressedCount());
+        // messages without an id get a generated one, so they are never suppressed
+        Assert.assertEquals(17, emulator.getEntity("BasicQueue").getMessageCount());
+    }
+
+    @Test
+    public void failedSendIsNotRecorded() throws Exception {
+        IMessageSender inner = emulator.createMessageSender("BasicQueue");
+        DeduplicatingMessageSender sender = new DeduplicatingMessageSender(inner, Duration.ofMinutes(1), 1000);
+        inner.close();
+        try {
+            sender.send(message("a"));
+            Assert.fail();
+        } catch (Exception e) {
+            // the sender is closed
+        }
+        DeduplicatingMessageSender retrying = new DeduplicatingMessageSender(emulator.createMessageSender("BasicQueue"), Duration.ofMinutes(1), 1000);
+        retrying.send(message("a"));
+        Assert.assertEquals(0, sender.getSuppressedCount());
+        Assert.assertEquals(1, emulator.getEntity("BasicQueue").getMessageCount());
+    }
+
+    @Test
+    public void filterForgetsAfterWindowAndKeepsFalsePositiveRate() throws Exception {
+        WindowedBloomFilter filter = new WindowedBloomFilter(Duration.ofMillis(300), 100_000, 0.01);
+        for (int i = 0; i < 100_000; i++) {
+            filter.put("sent-" + i);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            Assert.assertTrue(filter.mightContain("sent-" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain(UUID.randomUUID().toString())) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("false positives: " + falsePositives, falsePositives < 1000);
+
+        Thread.sleep(500);
+        int remembered = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("sent-" + i)) {
+                remembered++;
+            }
+        }
+        Assert.assertTrue("remembered: " + remembered, remembered < 1000);
+    }
+
+    private static Message message(String messageId) {
+        Message message = new Message(messageId);
+        message.setMessageId(messageId);
+        return message;
+    }
+}
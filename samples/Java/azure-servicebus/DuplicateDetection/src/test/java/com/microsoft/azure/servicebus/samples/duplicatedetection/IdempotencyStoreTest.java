@@ -0,0 +1,259 @@
+package com.microsoft.azure.servicebus.samples.duplicatedetection;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.IQueueClient;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.MessageHandlerOptions;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IdempotencyStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recognizesProcessedIdsAfterReopening() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("ids");
+        try (IdempotencyStore store = new IdempotencyStore(file, 100_000)) {
+            for (int i = 0; i < 50_000; i++) {
+                Assert.assertEquals(IdempotencyStore.Status.NEW, store.begin("message-" + i));
+                store.markProcessed("message-" + i);
+            }
+            Assert.assertEquals(IdempotencyStore.Status.PROCESSED, store.begin("message-7"));
+            Assert.assertEquals(0, store.getEvictedCount());
+        }
+
+        try (IdempotencyStore store = new IdempotencyStore(file, 100_000)) {
+            for (int i = 0; i < 50_000; i++) {
+                Assert.assertEquals(IdempotencyStore.Status.PROCESSED, store.begin("message-" + i));
+            }
+            Assert.assertEquals(IdempotencyStore.Status.NEW, store.begin("message-50000"));
+            Assert.assertEquals(50_000, store.getDuplicateCount());
+        }
+
+        try {
+            new IdempotencyStore(file, 1_000_000);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // the capacity does not match the file
+        }
+    }
+
+    @Test
+    public void expiredAndReleasedIdsAreNew() throws Exception {
+        try (IdempotencyStore store = new IdempotencyStore(folder.getRoot().toPath().resolve("ids"), 1024,
+                Duration.ofMillis(100), Duration.ofMinutes(1))) {
+            Assert.assertEquals(IdempotencyStore.Status.NEW, store.begin("a"));
+            Assert.assertEquals(IdempotencyStore.Status.IN_PROGRESS, store.begin("a"));
+            store.release("a");
+            Assert.assertFalse(store.contains("a"));
+            Assert.assertEquals(IdempotencyStore.Status.NEW, store.begin("a"));
+            store.markProcessed("a");
+            Assert.assertEquals(IdempotencyStore.Status.PROCESSED, store.begin("a"));
+
+            Thread.sleep(200);
+            Assert.assertFalse(store.contains("a"));
+            Assert.assertEquals(IdempotencyStore.Status.NEW, store.begin("a"));
+        }
+    }
+
+    @Test
+    public void handlerSkipsRedeliveredMessages() throws Exception {
+        ServiceBusEmulator emulator = new ServiceBusEmulator();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (IdempotencyStore store = new IdempotencyStore(folder.getRoot().toPath().resolve("ids"), 1024)) {
+            IMessageSender sender = emulator.createMessageSender("BasicQueue");
+            for (int i = 0; i < 20; i++) {
+                Message message = new Message(Integer.toString(i));
+                message.setMessageId(Integer.toString(i));
+                sender.send(message);
+            }
+            // the first 10 are received and processed, but their lock is lost before they are completed
+            IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK);
+            for (IMessage message : receiver.receiveBatch(10, Duration.ofSeconds(5))) {
+                Assert.assertEquals(IdempotencyStore.Status.NEW, store.begin(message.getMessageId()));
+                store.markProcessed(message.getMessageId());
+                receiver.abandon(message.getLockToken());
+            }
+
+            Set<String> handled = ConcurrentHashMap.newKeySet();
+            AtomicInteger calls = new AtomicInteger();
+            IdempotentMessageHandler handler = new IdempotentMessageHandler(new IMessageHandler() {
+                @Override
+                public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                    calls.incrementAndGet();
+                    handled.add(message.getMessageId());
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                @Override
+                public void notifyException(Throwable exception, ExceptionPhase phase) {
+                }
+            }, store);
+            IQueueClient client = emulator.createQueueClient("BasicQueue", ReceiveMode.PEEKLOCK);
+            client.registerMessageHandler(handler, new MessageHandlerOptions(4, true, Duration.ofMinutes(1)), executor);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (emulator.getEntity("BasicQueue").getMessageCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            client.close();
+            Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+            Assert.assertEquals(10, calls.get());
+            Assert.assertEquals(10, handler.getSkippedCount());
+            for (int i = 10; i < 20; i++) {
+                Assert.assertTrue(handled.contains(Integer.toString(i)));
+            }
+        } finally {
+            executor.shutdownNow();
+            emulator.close();
+        }
+    }
+
+    @Test
+    public void passesMessagesWithoutAnIdOn() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        try (IdempotencyStore store = new IdempotencyStore(folder.getRoot().toPath().resolve("ids"), 1000)) {
+            IdempotentMessageHandler handler = new IdempotentMessageHandler(new IMessageHandler() {
+                @Override
+                public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                    calls.incrementAndGet();
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                @Override
+                public void notifyException(Throwable exception, ExceptionPhase phase) {
+                }
+            }, store);
+            Message message = new Message("Einstein");
+            message.setMessageId(null);
+
+            handler.onMessageAsync(message).get();
+            handler.onMessageAsync(message).get();
+            Assert.assertEquals(2, calls.get());
+            Assert.assertEquals(0, handler.getSkippedCount());
+        }
+    }
+
+    @Test
+    public void redeliveryWaitsForTheCopyInProgress() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Void> firstCopy = new CompletableFuture<>();
+        try (IdempotencyStore store = new IdempotencyStore(folder.getRoot().toPath().resolve("ids"), 1000)) {
+            IdempotentMessageHandler handler = new IdempotentMessageHandler(new IMessageHandler() {
+                @Override
+                public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                    return calls.incrementAndGet() == 1 ? firstCopy : CompletableFuture.completedFuture(null);
+                }
+
+                @Override
+                public void notifyException(Throwable exception, ExceptionPhase phase) {
+                }
+            }, store);
+            Message message = new Message("Einstein");
+            message.setMessageId("Einstein");
+
+            CompletableFuture<Void> first = handler.onMessageAsync(message);
+            CompletableFuture<Void> redelivery = handler.onMessageAsync(message);
+            Assert.assertFalse(redelivery.isDone());
+            firstCopy.complete(null);
+
+            first.get(5, TimeUnit.SECONDS);
+            redelivery.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(1, calls.get());
+            Assert.assertEquals(1, handler.getWaitedCount());
+            Assert.assertEquals(1, handler.getSkippedCount());
+        }
+    }
+
+    @Test
+    public void redeliveryIsHandledWhenTheCopyInProgressFails() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<Void> firstCopy = new CompletableFuture<>();
+        try (IdempotencyStore store = new IdempotencyStore(folder.getRoot().toPath().resolve("ids"), 1000)) {
+            IdempotentMessageHandler handler = new IdempotentMessageHandler(new IMessageHandler() {
+                @Override
+                public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                    if (calls.incrementAndGet() == 1) {
+                        return firstCopy;
+                    }
+                    throw new IllegalStateException("fails synchronously");
+                }
+
+                @Override
+                public void notifyException(Throwable exception, ExceptionPhase phase) {
+                }
+            }, store);
+            Message message = new Message("Einstein");
+            message.setMessageId("Einstein");
+
+            CompletableFuture<Void> first = handler.onMessageAsync(message);
+            CompletableFuture<Void> redelivery = handler.onMessageAsync(message);
+            firstCopy.completeExceptionally(new RuntimeException("handler failed"));
+
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                Assert.fail("the first copy must fail");
+            } catch (ExecutionException e) {
+                // expected
+            }
+            try {
+                redelivery.get(5, TimeUnit.SECONDS);
+                Assert.fail("the redelivery must be handled, and fail with a failed future");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertEquals(2, calls.get());
+            Assert.assertFalse(store.contains("Einstein"));
+        }
+    }
+
+    @Test
+    public void idLeftInProgressByAnotherProcessIsHandledAfterTheProcessingTimeout() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Path file = folder.getRoot().toPath().resolve("ids");
+        try (IdempotencyStore store = new IdempotencyStore(file, 1000, IdempotencyStore.DEFAULT_TIME_TO_LIVE, Duration.ofMillis(300))) {
+            // a process that crashed while handling the message
+            Assert.assertEquals(IdempotencyStore.Status.NEW, store.begin("Einstein"));
+
+            IdempotentMessageHandler handler = new IdempotentMessageHandler(new IMessageHandler() {
+                @Override
+                public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                    calls.incrementAndGet();
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                @Override
+                public void notifyException(Throwable exception, ExceptionPhase phase) {
+                }
+            }, store, Duration.ofMillis(50));
+            Message message = new Message("Einstein");
+            message.setMessageId("Einstein");
+
+            handler.onMessageAsync(message).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(1, calls.get());
+            Assert.assertTrue(handler.getWaitedCount() > 1);
+            Assert.assertEquals(IdempotencyStore.Status.PROCESSED, store.begin("Einstein"));
+        }
+    }
+}
@@ -0,0 +1,642 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.emulator;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.primitives.MessageLockLostException;
+import com.microsoft.azure.servicebus.primitives.MessageNotFoundException;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A queue (or dead-letter sub-queue) inside the {@link ServiceBusEmulator}.
+ *
+ * <p>The receive and send hot paths are lock-free: available messages sit in a
+ * {@link ConcurrentLinkedQueue}, locked messages are indexed by lock token in a
+ * {@link ConcurrentHashMap}, and every live message is indexed by sequence number in a
+ * {@link ConcurrentSkipListMap} for browsing. Lock expiry, scheduled activation and
+ * time-to-live are handled by the namespace's periodic sweep.
+ */
+public final class EmulatedEntity {
+
+    static final String DEADLETTER_REASON = "DeadLetterReason";
+    static final String DEADLETTER_ERROR_DESCRIPTION = "DeadLetterErrorDescription";
+
+    private final String path;
+    private final ServiceBusEmulator namespace;
+    private final EmulatedEntity deadLetterQueue;
+    private final boolean isDeadLetterQueue;
+    private final Duration lockDuration;
+    private final int maxDeliveryCount;
+    private final Duration defaultMessageTimeToLive;
+    private final long duplicateDetectionWindowNanos;
+    private final boolean deadLetteringOnMessageExpiration;
+    private final int maxMessageSizeInBytes;
+    private final boolean enablePartitioning;
+
+    private final AtomicLong sequenceNumbers = new AtomicLong();
+    private final ConcurrentLinkedQueue<EmulatedMessage> available = new ConcurrentLinkedQueue<>();
+    private final ConcurrentSkipListMap<Long, EmulatedMessage> messages = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<UUID, EmulatedMessage> locked = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, EmulatedMessage> deferred = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, EmulatedMessage> scheduled = new ConcurrentHashMap<>();
+    private final DelayQueue<ScheduledEnqueue> scheduledDue = new DelayQueue<>();
+    private final ConcurrentHashMap<String, SentMessageId> recentMessageIds = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<Waiter> waiters = new ConcurrentLinkedDeque<>();
+    private final AtomicLong earliestExpiryMillis = new AtomicLong(Long.MAX_VALUE);
+    private final LongAdder messageCount = new LongAdder();
+    private final LongAdder scheduledCount = new LongAdder();
+    private final LongAdder deferredCount = new LongAdder();
+    private volatile long lastDuplicatePurgeNanos = System.nanoTime();
+
+    EmulatedEntity(ServiceBusEmulator namespace, String path, boolean isDeadLetterQueue) {
+        this.namespace = namespace;
+        this.path = path;
+        this.isDeadLetterQueue = isDeadLetterQueue;
+        this.lockDuration = namespace.getLockDuration();
+        this.maxDeliveryCount = namespace.getMaxDeliveryCount();
+        this.defaultMessageTimeToLive = namespace.getDefaultMessageTimeToLive();
+        Duration window = namespace.getDuplicateDetectionHistoryTimeWindow();
+        this.duplicateDetectionWindowNanos = isDeadLetterQueue || window == null ? 0 : window.toNanos();
+        this.deadLetteringOnMessageExpiration = namespace.isDeadLetteringOnMessageExpiration();
+        this.maxMessageSizeInBytes = namespace.getMaxMessageSizeInBytes();
+        this.enablePartitioning = namespace.isEnablePartitioning();
+        this.deadLetterQueue = isDeadLetterQueue ? null
+                : new EmulatedEntity(namespace, path + ServiceBusEmulator.DEADLETTERQUEUE_SUFFIX, true);
+    }
+
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * @return the dead-letter sub-queue, or null if this entity is itself a dead-letter queue
+     */
+    public EmulatedEntity getDeadLetterQueue() {
+        return this.deadLetterQueue;
+    }
+
+    public Duration getLockDuration() {
+        return this.lockDuration;
+    }
+
+    /**
+     * @return all messages held by the entity, including locked, deferred and scheduled ones
+     */
+    public long getMessageCount() {
+        return this.messageCount.sum();
+    }
+
+    public long getActiveMessageCount() {
+        return this.messageCount.sum() - this.scheduledCount.sum() - this.deferredCount.sum();
+    }
+
+    public long getScheduledMessageCount() {
+        return this.scheduledCount.sum();
+    }
+
+    public long getDeferredMessageCount() {
+        return this.deferredCount.sum();
+    }
+
+    public long getLockedMessageCount() {
+        return this.locked.size();
+    }
+
+    public long getDeadLetterMessageCount() {
+        return this.deadLetterQueue == null ? 0 : this.deadLetterQueue.getMessageCount();
+    }
+
+    // ---- send side
+
+    long enqueue(IMessage message, Instant scheduledEnqueueTimeUtc) throws ServiceBusException {
+        this.checkSize(EmulatedMessage.estimateSize(message));
+        return this.accept(new EmulatedMessage(message), scheduledEnqueueTimeUtc);
+    }
+
+    void enqueueBatch(Collection<? extends IMessage> batch) throws ServiceBusException {
+        int size = 0;
+        for (IMessage message : batch) {
+            size += EmulatedMessage.estimateSize(message);
+        }
+        this.checkSize(size);
+        if (this.enablePartitioning) {
+            checkSinglePartition(batch);
+        }
+        for (IMessage message : batch) {
+            this.accept(new EmulatedMessage(message), null);
+        }
+    }
+
+    void cancelScheduled(long sequenceNumber) throws MessageNotFoundException {
+        EmulatedMessage message = this.scheduled.remove(sequenceNumber);
+        if (message == null) {
+            throw new MessageNotFoundException("The scheduled message with SequenceNumber = " + sequenceNumber + " was not found.");
+        }
+        this.scheduledCount.decrement();
+        this.scheduledDue.removeIf(due -> due.sequenceNumber == sequenceNumber);
+        this.remove(message);
+    }
+
+    private static void checkSinglePartition(Collection<? extends IMessage> batch) throws ServiceBusException {
+        boolean first = true;
+        String partitionKey = null;
+        for (IMessage message : batch) {
+            String key = message.getSessionId() != null ? message.getSessionId() : message.getPartitionKey();
+            if (first) {
+                partitionKey = key;
+                first = false;
+            } else if (!Objects.equals(partitionKey, key)) {
+                throw new ServiceBusException(false, String.format(
+                        "The batch contains messages with partition keys '%s' and '%s'. All messages in a batch sent to a partitioned entity must have the same partition key.",
+                        partitionKey, key));
+            }
+        }
+    }
+
+    private void checkSize(int size) throws ServiceBusException {
+        if (size > this.maxMessageSizeInBytes) {
+            throw new ServiceBusException(false, String.format(
+                    "The received message (size %d bytes) exceeds the limit (%d bytes) currently allowed on the link.",
+                    size, this.maxMessageSizeInBytes));
+        }
+    }
+
+    private long accept(EmulatedMessage message, Instant scheduledEnqueueTimeUtc) {
+        boolean[] duplicate = new boolean[1];
+        long sequenceNumber = this.takeSequenceNumber(message.getMessageId(), duplicate);
+        if (duplicate[0]) {
+            return sequenceNumber;
+        }
+        message.sequenceNumber = sequenceNumber;
+        Instant now = Instant.now();
+        Instant due = scheduledEnqueueTimeUtc != null ? scheduledEnqueueTimeUtc : message.getScheduledEnqueueTimeUtc();
+        if (due != null && due.isAfter(now)) {
+            message.enqueuedTimeUtc = due;
+            this.setExpiry(message, due);
+            message.state = EmulatedMessage.SCHEDULED;
+            this.messages.put(sequenceNumber, message);
+            this.messageCount.increment();
+            this.scheduled.put(sequenceNumber, message);
+            this.scheduledCount.increment();
+            this.scheduledDue.add(new ScheduledEnqueue(sequenceNumber, Duration.between(now, due).toNanos()));
+        } else {
+            message.enqueuedTimeUtc = now;
+            this.setExpiry(message, now);
+            this.messages.put(sequenceNumber, message);
+            this.messageCount.increment();
+            this.makeAvailable(message);
+        }
+        return sequenceNumber;
+    }
+
+    // a duplicate within the detection window takes no number of its own; it gets the number of
+    // the message it duplicates, so that the number a schedule returns is the one to cancel
+    private long takeSequenceNumber(String messageId, boolean[] duplicate) {
+        if (this.duplicateDetectionWindowNanos == 0 || messageId == null) {
+            return this.sequenceNumbers.incrementAndGet();
+        }
+        long now = System.nanoTime();
+        SentMessageId sent = this.recentMessageIds.compute(messageId, (id, previous) -> {
+            if (previous != null && now - previous.sentNanos < this.duplicateDetectionWindowNanos) {
+                duplicate[0] = true;
+                return previous;
+            }
+            // first send, or the earlier send fell out of the window
+            return new SentMessageId(now, this.sequenceNumbers.incrementAndGet());
+        });
+        return sent.sequenceNumber;
+    }
+
+    private void setExpiry(EmulatedMessage message, Instant from) {
+        Duration timeToLive = message.getTimeToLive();
+        if (timeToLive == null || timeToLive.isZero() || timeToLive.isNegative()
+                || timeToLive.compareTo(this.defaultMessageTimeToLive) > 0) {
+            timeToLive = this.defaultMessageTimeToLive;
+        }
+        Instant expiresAt = from.plus(timeToLive);
+        message.expiresAtUtc = expiresAt;
+        if (this.isDeadLetterQueue) {
+            // dead-lettered messages don't expire
+            message.expiresAtMillis = Long.MAX_VALUE;
+            return;
+        }
+        message.expiresAtMillis = expiresAt.toEpochMilli();
+        if (message.expiresAtMillis < this.earliestExpiryMillis.get()) {
+            this.earliestExpiryMillis.accumulateAndGet(message.expiresAtMillis, Math::min);
+        }
+    }
+
+    // ---- receive side
+
+    CompletableFuture<IMessage> receiveAsync(ReceiveMode receiveMode, Duration serverWaitTime) {
+        EmulatedMessage message = this.pollAvailable();
+        if (message != null) {
+            return CompletableFuture.completedFuture(this.deliver(message, receiveMode));
+        }
+        if (serverWaitTime.isZero() || serverWaitTime.isNegative()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Waiter waiter = new Waiter(receiveMode);
+        this.waiters.offer(waiter);
+        try {
+            waiter.timeout = this.namespace.getScheduler().schedule(() -> {
+                if (waiter.future.complete(null)) {
+                    this.waiters.remove(waiter);
+                }
+            }, serverWaitTime.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // namespace closed
+            this.waiters.remove(waiter);
+            waiter.future.complete(null);
+        }
+        // a message may have arrived before the waiter was visible to the sender
+        this.dispatch();
+        return waiter.future;
+    }
+
+    CompletableFuture<Collection<IMessage>> receiveBatchAsync(ReceiveMode receiveMode, int maxMessageCount, Duration serverWaitTime) {
+        List<IMessage> batch = this.drain(receiveMode, maxMessageCount);
+        if (!batch.isEmpty()) {
+            return CompletableFuture.completedFuture(batch);
+        }
+        return this.receiveAsync(receiveMode, serverWaitTime).thenApply(first -> {
+            if (first == null) {
+                return null;
+            }
+            List<IMessage> result = new ArrayList<>();
+            result.add(first);
+            result.addAll(this.drain(receiveMode, maxMessageCount - 1));
+            return result;
+        });
+    }
+
+    IMessage receiveDeferred(ReceiveMode receiveMode, long sequenceNumber) throws MessageNotFoundException {
+        EmulatedMessage message = this.deferred.remove(sequenceNumber);
+        if (message == null) {
+            throw new MessageNotFoundException("Failed to lock one or more specified messages. The message does not exist.");
+        }
+        this.deferredCount.decrement();
+        message.state = EmulatedMessage.LOCKED;
+        return this.deliver(message, receiveMode);
+    }
+
+    private List<IMessage> drain(ReceiveMode receiveMode, int maxMessageCount) {
+        List<IMessage> batch = new ArrayList<>(Math.min(maxMessageCount, 64));
+        while (batch.size() < maxMessageCount) {
+            EmulatedMessage message = this.pollAvailable();
+            if (message == null) {
+                break;
+            }
+            batch.add(this.deliver(message, receiveMode));
+        }
+        return batch;
+    }
+
+    /**
+     * Takes ownership of the next available message; the returned message is in the LOCKED state.
+     */
+    private EmulatedMessage pollAvailable() {
+        for (;;) {
+            EmulatedMessage message = this.available.poll();
+            if (message == null) {
+                return null;
+            }
+            if (!message.compareAndSetState(EmulatedMessage.ACTIVE, EmulatedMessage.LOCKED)) {
+                // expired by the sweep while queued
+                continue;
+            }
+            if (message.expiresAtMillis <= System.currentTimeMillis()) {
+                this.expire(message);
+                continue;
+            }
+            return message;
+        }
+    }
+
+    private IMessage deliver(EmulatedMessage message, ReceiveMode receiveMode) {
+        message.deliveryCount++;
+        if (receiveMode == ReceiveMode.PEEKLOCK) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            UUID lockToken = new UUID(random.nextLong(), random.nextLong());
+            message.lockToken = lockToken;
+            message.lockedUntilUtc = Instant.now().plus(this.lockDuration);
+            this.locked.put(lockToken, message);
+            return message.copy();
+        }
+        this.remove(message);
+        return message.copy();
+    }
+
+    private void undeliver(EmulatedMessage message, ReceiveMode receiveMode) {
+        message.deliveryCount--;
+        if (receiveMode == ReceiveMode.PEEKLOCK) {
+            this.locked.remove(message.lockToken);
+            message.lockToken = null;
+            message.lockedUntilUtc = null;
+        } else {
+            this.messages.put(message.sequenceNumber, message);
+            this.messageCount.increment();
+        }
+        message.state = EmulatedMessage.ACTIVE;
+        this.available.offer(message);
+    }
+
+    private void makeAvailable(EmulatedMessage message) {
+        message.state = EmulatedMessage.ACTIVE;
+        this.available.offer(message);
+        if (!this.waiters.isEmpty()) {
+            this.dispatch();
+        }
+    }
+
+    private void dispatch() {
+        for (;;) {
+            Waiter waiter = this.waiters.poll();
+            if (waiter == null) {
+                return;
+            }
+            if (waiter.future.isDone()) {
+                continue;
+            }
+            EmulatedMessage message = this.pollAvailable();
+            if (message == null) {
+                this.waiters.offerFirst(waiter);
+                // re-check: a sender may have missed the waiter while it was out of the deque
+                if (this.available.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            IMessage delivered = this.deliver(message, waiter.receiveMode);
+            if (waiter.future.complete(delivered)) {
+                ScheduledFuture<?> timeout = waiter.timeout;
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            } else {
+                this.undeliver(message, waiter.receiveMode);
+            }
+        }
+    }
+
+    // ---- settlement
+
+    void complete(UUID lockToken) throws MessageLockLostException {
+        this.remove(this.takeLocked(lockToken));
+    }
+
+    void abandon(UUID lockToken, Map<String, ?> propertiesToModify) throws MessageLockLostException {
+        EmulatedMessage message = this.takeLocked(lockToken);
+        message.putProperties(propertiesToModify);
+        this.release(message);
+    }
+
+    void defer(UUID lockToken, Map<String, ?> propertiesToModify) throws MessageLockLostException {
+        EmulatedMessage message = this.takeLocked(lockToken);
+        message.putProperties(propertiesToModify);
+        message.lockToken = null;
+        message.lockedUntilUtc = null;
+        message.wasDeferred = true;
+        message.state = EmulatedMessage.DEFERRED;
+        this.deferred.put(message.sequenceNumber, message);
+        this.deferredCount.increment();
+    }
+
+    void deadLetter(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription, Map<String, ?> propertiesToModify) throws MessageLockLostException {
+        EmulatedMessage message = this.takeLocked(lockToken);
+        message.putProperties(propertiesToModify);
+        this.deadLetter(message, deadLetterReason, deadLetterErrorDescription);
+    }
+
+    Instant renewLock(UUID lockToken) throws MessageLockLostException {
+        EmulatedMessage message = lockToken == null ? null : this.locked.get(lockToken);
+        if (message == null) {
+            throw lockLost();
+        }
+        for (;;) {
+            // the sweep and the settlements clear the expiry concurrently, so it is read once and
+            // replaced only if it is still the value that was checked
+            Instant lockedUntilUtc = message.lockedUntilUtc;
+            Instant now = Instant.now();
+            if (lockedUntilUtc == null || lockedUntilUtc.isBefore(now)) {
+                throw lockLost();
+            }
+            Instant renewedUntilUtc = now.plus(this.lockDuration);
+            if (message.compareAndSetLockedUntilUtc(lockedUntilUtc, renewedUntilUtc)) {
+                return renewedUntilUtc;
+            }
+        }
+    }
+
+    private EmulatedMessage takeLocked(UUID lockToken) throws MessageLockLostException {
+        EmulatedMessage message = lockToken == null ? null : this.locked.remove(lockToken);
+        if (message == null) {
+            throw lockLost();
+        }
+        // null if the sweep claimed the expired lock but found it already taken here
+        Instant lockedUntilUtc = message.lockedUntilUtc;
+        if (lockedUntilUtc == null || lockedUntilUtc.isBefore(Instant.now())) {
+            this.release(message);
+            throw lockLost();
+        }
+        return message;
+    }
+
+    private static MessageLockLostException lockLost() {
+        return new MessageLockLostException("The lock supplied is invalid. Either the lock expired, or the message has already been removed from the queue.");
+    }
+
+    private void release(EmulatedMessage message) {
+        message.lockToken = null;
+        message.lockedUntilUtc = null;
+        if (this.deadLetterQueue != null && message.deliveryCount >= this.maxDeliveryCount) {
+            this.deadLetter(message, "MaxDeliveryCountExceeded",
+                    "Message could not be consumed after " + this.maxDeliveryCount + " delivery attempts.");
+        } else if (message.wasDeferred) {
+            message.state = EmulatedMessage.DEFERRED;
+            this.deferred.put(message.sequenceNumber, message);
+            this.deferredCount.increment();
+        } else {
+            this.makeAvailable(message);
+        }
+    }
+
+    private void remove(EmulatedMessage message) {
+        message.state = EmulatedMessage.REMOVED;
+        this.messages.remove(message.sequenceNumber);
+        this.messageCount.decrement();
+    }
+
+    private void expire(EmulatedMessage message) {
+        if (this.deadLetteringOnMessageExpiration) {
+            this.deadLetter(message, "TTLExpiredException", "The message expired and was dead lettered.");
+        } else {
+            this.remove(message);
+        }
+    }
+
+    private void deadLetter(EmulatedMessage message, String deadLetterReason, String deadLetterErrorDescription) {
+        this.remove(message);
+        if (this.deadLetterQueue == null) {
+            return;
+        }
+        EmulatedMessage deadLetter = message.copy();
+        deadLetter.lockToken = null;
+        deadLetter.lockedUntilUtc = null;
+        deadLetter.wasDeferred = false;
+        deadLetter.deadLetterSource = this.path;
+        if (deadLetterReason != null) {
+            deadLetter.getProperties().put(DEADLETTER_REASON, deadLetterReason);
+        }
+        if (deadLetterErrorDescription != null) {
+            deadLetter.getProperties().put(DEADLETTER_ERROR_DESCRIPTION, deadLetterErrorDescription);
+        }
+        this.deadLetterQueue.acceptDeadLetter(deadLetter);
+    }
+
+    private void acceptDeadLetter(EmulatedMessage message) {
+        message.sequenceNumber = this.sequenceNumbers.incrementAndGet();
+        message.expiresAtMillis = Long.MAX_VALUE;
+        this.messages.put(message.sequenceNumber, message);
+        this.messageCount.increment();
+        this.makeAvailable(message);
+    }
+
+    // ---- browse
+
+    List<IMessage> peekBatch(long fromSequenceNumber, int maxMessageCount) {
+        List<IMessage> batch = new ArrayList<>(Math.min(maxMessageCount, 64));
+        for (EmulatedMessage message : this.messages.tailMap(fromSequenceNumber, true).values()) {
+            if (batch.size() >= maxMessageCount) {
+                break;
+            }
+            if (message.state == EmulatedMessage.REMOVED) {
+                continue;
+            }
+            EmulatedMessage peeked = message.copy();
+            peeked.lockToken = null;
+            peeked.lockedUntilUtc = null;
+            batch.add(peeked);
+        }
+        return batch;
+    }
+
+    // ---- background maintenance
+
+    void sweep() {
+        for (ScheduledEnqueue due; (due = this.scheduledDue.poll()) != null; ) {
+            EmulatedMessage message = this.scheduled.remove(due.sequenceNumber);
+            if (message != null) {
+                this.scheduledCount.decrement();
+                this.earliestExpiryMillis.accumulateAndGet(message.expiresAtMillis, Math::min);
+                this.makeAvailable(message);
+            }
+        }
+
+        if (!this.locked.isEmpty()) {
+            Instant now = Instant.now();
+            for (Map.Entry<UUID, EmulatedMessage> entry : this.locked.entrySet()) {
+                EmulatedMessage message = entry.getValue();
+                Instant lockedUntilUtc = message.lockedUntilUtc;
+                // claiming the expiry first keeps a renewal that checked the old value from succeeding
+                if (lockedUntilUtc != null && lockedUntilUtc.isBefore(now)
+                        && message.compareAndSetLockedUntilUtc(lockedUntilUtc, null)
+                        && this.locked.remove(entry.getKey(), message)) {
+                    this.release(message);
+                }
+            }
+        }
+
+        long nowMillis = System.currentTimeMillis();
+        if (nowMillis >= this.earliestExpiryMillis.get()) {
+            this.earliestExpiryMillis.set(Long.MAX_VALUE);
+            long next = Long.MAX_VALUE;
+            for (EmulatedMessage message : this.messages.values()) {
+                if (message.expiresAtMillis > nowMillis) {
+                    if (message.state != EmulatedMessage.SCHEDULED) {
+                        next = Math.min(next, message.expiresAtMillis);
+                    }
+                } else if (message.compareAndSetState(EmulatedMessage.ACTIVE, EmulatedMessage.LOCKED)) {
+                    this.expire(message);
+                } else if (message.state == EmulatedMessage.DEFERRED && this.deferred.remove(message.sequenceNumber, message)) {
+                    this.deferredCount.decrement();
+                    this.expire(message);
+                }
+            }
+            this.earliestExpiryMillis.accumulateAndGet(next, Math::min);
+        }
+
+        if (this.duplicateDetectionWindowNanos != 0) {
+            long now = System.nanoTime();
+            if (now - this.lastDuplicatePurgeNanos > this.duplicateDetectionWindowNanos / 4) {
+                this.lastDuplicatePurgeNanos = now;
+                this.recentMessageIds.values().removeIf(sent -> now - sent.sentNanos >= this.duplicateDetectionWindowNanos);
+            }
+        }
+    }
+
+    private static final class SentMessageId {
+        final long sentNanos;
+        final long sequenceNumber;
+
+        SentMessageId(long sentNanos, long sequenceNumber) {
+            this.sentNanos = sentNanos;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+
+    private static final class Waiter {
+        final ReceiveMode receiveMode;
+        final CompletableFuture<IMessage> future = new CompletableFuture<>();
+        volatile ScheduledFuture<?> timeout;
+
+        Waiter(ReceiveMode receiveMode) {
+            this.receiveMode = receiveMode;
+        }
+    }
+
+    private static final class ScheduledEnqueue implements Delayed {
+        final long sequenceNumber;
+        final long dueNanos;
+
+        ScheduledEnqueue(long sequenceNumber, long delayNanos) {
+            this.sequenceNumber = sequenceNumber;
+            this.dueNanos = System.nanoTime() + delayNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(this.dueNanos, ((ScheduledEnqueue) other).dueNanos);
+        }
+    }
+}
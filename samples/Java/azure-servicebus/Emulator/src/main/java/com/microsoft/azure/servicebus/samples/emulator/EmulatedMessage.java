@@ -0,0 +1,338 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.emulator;
+
+import com.microsoft.azure.servicebus.IMessage;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Message as stored by the emulator. The client library's {@code Message} keeps the broker-assigned
+ * properties (sequence number, lock token, delivery count, ...) package-private, so the emulator
+ * carries its own {@link IMessage} implementation and hands out a copy on every delivery.
+ */
+public final class EmulatedMessage implements IMessage {
+
+    static final int ACTIVE = 0;
+    static final int LOCKED = 1;
+    static final int DEFERRED = 2;
+    static final int SCHEDULED = 3;
+    static final int REMOVED = 4;
+
+    private static final AtomicIntegerFieldUpdater<EmulatedMessage> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(EmulatedMessage.class, "state");
+    private static final AtomicReferenceFieldUpdater<EmulatedMessage, Instant> LOCKED_UNTIL_UTC =
+            AtomicReferenceFieldUpdater.newUpdater(EmulatedMessage.class, Instant.class, "lockedUntilUtc");
+
+    private String messageId;
+    private Duration timeToLive;
+    private String contentType;
+    private String sessionId;
+    private byte[] body;
+    private Map<String, String> properties;
+    private String correlationId;
+    private String to;
+    private String replyTo;
+    private String label;
+    private String replyToSessionId;
+    private String partitionKey;
+    private Instant scheduledEnqueueTimeUtc;
+
+    // broker-assigned properties
+    long sequenceNumber;
+    Instant enqueuedTimeUtc;
+    Instant expiresAtUtc;
+    long expiresAtMillis = Long.MAX_VALUE;
+    long deliveryCount;
+    volatile UUID lockToken;
+    volatile Instant lockedUntilUtc;
+    String deadLetterSource;
+
+    // entity bookkeeping, only meaningful on the stored instance
+    volatile int state;
+    boolean wasDeferred;
+
+    EmulatedMessage(IMessage source) {
+        this.messageId = source.getMessageId();
+        this.timeToLive = source.getTimeToLive();
+        this.contentType = source.getContentType();
+        this.sessionId = source.getSessionId();
+        this.body = source.getBody();
+        Map<String, String> sourceProperties = source instanceof EmulatedMessage
+                ? ((EmulatedMessage) source).properties : source.getProperties();
+        this.properties = sourceProperties == null || sourceProperties.isEmpty() ? null : new HashMap<>(sourceProperties);
+        this.correlationId = source.getCorrelationId();
+        this.to = source.getTo();
+        this.replyTo = source.getReplyTo();
+        this.label = source.getLabel();
+        this.replyToSessionId = source.getReplyToSessionId();
+        this.partitionKey = source.getPartitionKey();
+        this.scheduledEnqueueTimeUtc = source.getScheduledEnqueueTimeUtc();
+    }
+
+    private EmulatedMessage(EmulatedMessage source) {
+        this((IMessage) source);
+        this.sequenceNumber = source.sequenceNumber;
+        this.enqueuedTimeUtc = source.enqueuedTimeUtc;
+        this.expiresAtUtc = source.expiresAtUtc;
+        this.expiresAtMillis = source.expiresAtMillis;
+        this.deliveryCount = source.deliveryCount;
+        this.lockToken = source.lockToken;
+        this.lockedUntilUtc = source.lockedUntilUtc;
+        this.deadLetterSource = source.deadLetterSource;
+    }
+
+    EmulatedMessage copy() {
+        return new EmulatedMessage(this);
+    }
+
+    boolean compareAndSetState(int expect, int update) {
+        return STATE.compareAndSet(this, expect, update);
+    }
+
+    boolean compareAndSetLockedUntilUtc(Instant expect, Instant update) {
+        return LOCKED_UNTIL_UTC.compareAndSet(this, expect, update);
+    }
+
+    void putProperties(Map<String, ?> propertiesToModify) {
+        if (propertiesToModify == null || propertiesToModify.isEmpty()) {
+            return;
+        }
+        if (this.properties == null) {
+            this.properties = new HashMap<>();
+        }
+        for (Map.Entry<String, ?> entry : propertiesToModify.entrySet()) {
+            this.properties.put(entry.getKey(), entry.getValue() == null ? null : entry.getValue().toString());
+        }
+    }
+
+    /**
+     * Approximate encoded size of a message: body plus string-valued system and application
+     * properties in UTF-8 bytes. Unlike the senders' estimates it has no encoding allowance, so a
+     * batch a sender considers full always passes the entity's size check.
+     */
+    public static int estimateSize(IMessage message) {
+        int size = message.getBody() == null ? 0 : message.getBody().length;
+        size += length(message.getMessageId()) + length(message.getContentType()) + length(message.getLabel())
+                + length(message.getSessionId()) + length(message.getPartitionKey()) + length(message.getCorrelationId())
+                + length(message.getTo()) + length(message.getReplyTo()) + length(message.getReplyToSessionId());
+        if (message.getProperties() != null) {
+            for (Map.Entry<String, String> entry : message.getProperties().entrySet()) {
+                size += length(entry.getKey()) + length(entry.getValue());
+            }
+        }
+        return size;
+    }
+
+    private static int length(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public long getDeliveryCount() {
+        return this.deliveryCount;
+    }
+
+    @Override
+    public String getMessageId() {
+        return this.messageId;
+    }
+
+    @Override
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    @Override
+    public Duration getTimeToLive() {
+        return this.timeToLive;
+    }
+
+    @Override
+    public void setTimeToLive(Duration timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    @Override
+    public String getContentType() {
+        return this.contentType;
+    }
+
+    @Override
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    @Override
+    public Instant getExpiresAtUtc() {
+        return this.expiresAtUtc == null ? Instant.MAX : this.expiresAtUtc;
+    }
+
+    @Override
+    public Instant getLockedUntilUtc() {
+        return this.lockedUntilUtc;
+    }
+
+    @Override
+    public Instant getEnqueuedTimeUtc() {
+        return this.enqueuedTimeUtc;
+    }
+
+    @Override
+    public Instant getScheduledEnqueuedTimeUtc() {
+        return this.scheduledEnqueueTimeUtc;
+    }
+
+    @Override
+    public void setScheduledEnqueuedTimeUtc(Instant scheduledEnqueueTimeUtc) {
+        this.scheduledEnqueueTimeUtc = scheduledEnqueueTimeUtc;
+    }
+
+    @Override
+    public Instant getScheduledEnqueueTimeUtc() {
+        return this.scheduledEnqueueTimeUtc;
+    }
+
+    @Override
+    public void setScheduledEnqueueTimeUtc(Instant scheduledEnqueueTimeUtc) {
+        this.scheduledEnqueueTimeUtc = scheduledEnqueueTimeUtc;
+    }
+
+    @Override
+    public long getSequenceNumber() {
+        return this.sequenceNumber;
+    }
+
+    @Override
+    public String getSessionId() {
+        return this.sessionId;
+    }
+
+    @Override
+    public void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    @Override
+    public byte[] getBody() {
+        return this.body;
+    }
+
+    @Override
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    @Override
+    public Map<String, String> getProperties() {
+        if (this.properties == null) {
+            this.properties = new HashMap<>();
+        }
+        return this.properties;
+    }
+
+    @Override
+    public void setProperties(Map<String, String> properties) {
+        this.properties = properties;
+    }
+
+    @Override
+    public String getCorrelationId() {
+        return this.correlationId;
+    }
+
+    @Override
+    public void setCorrelationId(String correlationId) {
+        this.correlationId = correlationId;
+    }
+
+    @Override
+    public String getTo() {
+        return this.to;
+    }
+
+    @Override
+    public void setTo(String to) {
+        this.to = to;
+    }
+
+    @Override
+    public String getReplyTo() {
+        return this.replyTo;
+    }
+
+    @Override
+    public void setReplyTo(String replyTo) {
+        this.replyTo = replyTo;
+    }
+
+    @Override
+    public String getLabel() {
+        return this.label;
+    }
+
+    @Override
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    @Override
+    public String getReplyToSessionId() {
+        return this.replyToSessionId;
+    }
+
+    @Override
+    public void setReplyToSessionId(String replyToSessionId) {
+        this.replyToSessionId = replyToSessionId;
+    }
+
+    @Override
+    public String getPartitionKey() {
+        return this.partitionKey;
+    }
+
+    @Override
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    @Override
+    public String getDeadLetterSource() {
+        return this.deadLetterSource;
+    }
+
+    @Override
+    public UUID getLockToken() {
+        return this.lockToken;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EmulatedMessage[MessageId = %s, SequenceNumber = %d, DeliveryCount = %d]",
+                this.messageId, this.sequenceNumber, this.deliveryCount);
+    }
+}
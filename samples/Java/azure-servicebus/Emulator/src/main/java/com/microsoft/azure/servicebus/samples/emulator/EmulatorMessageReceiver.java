@@ -0,0 +1,383 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.emulator;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class EmulatorMessageReceiver implements IMessageReceiver {
+
+    static final Duration DEFAULT_SERVER_WAIT_TIME = Duration.ofSeconds(30);
+
+    private final EmulatedEntity entity;
+    private final ReceiveMode receiveMode;
+    private final RoundTrip roundTrip;
+    private final ConcurrentLinkedQueue<IMessage> prefetched = new ConcurrentLinkedQueue<>();
+    private volatile int prefetchCount;
+    private volatile long lastPeekedSequenceNumber;
+    private volatile boolean closed;
+
+    EmulatorMessageReceiver(EmulatedEntity entity, ReceiveMode receiveMode, RoundTrip roundTrip) {
+        this.entity = entity;
+        this.receiveMode = receiveMode;
+        this.roundTrip = roundTrip;
+    }
+
+    @Override
+    public ReceiveMode getReceiveMode() {
+        return this.receiveMode;
+    }
+
+    @Override
+    public String getEntityPath() {
+        return this.entity.getPath();
+    }
+
+    // like the AMQP link credit, a prefetch count above zero lets one round trip lock and buffer
+    // several messages; their locks run from the moment they are fetched
+    @Override
+    public int getPrefetchCount() {
+        return this.prefetchCount;
+    }
+
+    @Override
+    public void setPrefetchCount(int prefetchCount) throws ServiceBusException {
+        if (prefetchCount < 0) {
+            throw new IllegalArgumentException("Prefetch count cannot be negative.");
+        }
+        this.prefetchCount = prefetchCount;
+    }
+
+    // ---- receive
+
+    @Override
+    public IMessage receive() throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveAsync());
+    }
+
+    @Override
+    public IMessage receive(Duration serverWaitTime) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveAsync(serverWaitTime));
+    }
+
+    @Override
+    public CompletableFuture<IMessage> receiveAsync() {
+        return this.receiveAsync(DEFAULT_SERVER_WAIT_TIME);
+    }
+
+    @Override
+    public CompletableFuture<IMessage> receiveAsync(Duration serverWaitTime) {
+        if (this.closed) {
+            return Futures.failed(closedException());
+        }
+        IMessage buffered = this.prefetched.poll();
+        if (buffered != null) {
+            return CompletableFuture.completedFuture(buffered);
+        }
+        int credit = this.prefetchCount;
+        if (credit == 0) {
+            return this.roundTrip.complete(this.entity.receiveAsync(this.receiveMode, serverWaitTime));
+        }
+        return this.roundTrip.complete(this.entity.receiveBatchAsync(this.receiveMode, credit, serverWaitTime))
+                .thenApply(batch -> {
+                    if (batch == null) {
+                        return null;
+                    }
+                    Iterator<IMessage> messages = batch.iterator();
+                    IMessage first = messages.next();
+                    messages.forEachRemaining(this.prefetched::offer);
+                    return first;
+                });
+    }
+
+    @Override
+    public Collection<IMessage> receiveBatch(int maxMessageCount) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveBatchAsync(maxMessageCount));
+    }
+
+    @Override
+    public Collection<IMessage> receiveBatch(int maxMessageCount, Duration serverWaitTime) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveBatchAsync(maxMessageCount, serverWaitTime));
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> receiveBatchAsync(int maxMessageCount) {
+        return this.receiveBatchAsync(maxMessageCount, DEFAULT_SERVER_WAIT_TIME);
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> receiveBatchAsync(int maxMessageCount, Duration serverWaitTime) {
+        if (this.closed) {
+            return Futures.failed(closedException());
+        }
+        if (maxMessageCount <= 0) {
+            return Futures.failed(new IllegalArgumentException("maxMessageCount must be greater than 0."));
+        }
+        List<IMessage> buffered = new ArrayList<>();
+        for (IMessage message; buffered.size() < maxMessageCount && (message = this.prefetched.poll()) != null; ) {
+            buffered.add(message);
+        }
+        if (!buffered.isEmpty()) {
+            return CompletableFuture.completedFuture(buffered);
+        }
+        int credit = Math.max(maxMessageCount, this.prefetchCount);
+        return this.roundTrip.complete(this.entity.receiveBatchAsync(this.receiveMode, credit, serverWaitTime))
+                .thenApply(batch -> {
+                    if (batch == null || batch.size() <= maxMessageCount) {
+                        return batch;
+                    }
+                    List<IMessage> result = new ArrayList<>(maxMessageCount);
+                    Iterator<IMessage> messages = batch.iterator();
+                    while (result.size() < maxMessageCount) {
+                        result.add(messages.next());
+                    }
+                    messages.forEachRemaining(this.prefetched::offer);
+                    return result;
+                });
+    }
+
+    @Override
+    public IMessage receiveDeferredMessage(long sequenceNumber) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveDeferredMessageAsync(sequenceNumber));
+    }
+
+    @Override
+    public CompletableFuture<IMessage> receiveDeferredMessageAsync(long sequenceNumber) {
+        return this.roundTrip.complete(Futures.call(() -> {
+            this.checkOpen();
+            return this.entity.receiveDeferred(this.receiveMode, sequenceNumber);
+        }));
+    }
+
+    @Override
+    public Collection<IMessage> receiveDeferredMessageBatch(Collection<Long> sequenceNumbers) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveDeferredMessageBatchAsync(sequenceNumbers));
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> receiveDeferredMessageBatchAsync(Collection<Long> sequenceNumbers) {
+        return this.roundTrip.complete(Futures.call(() -> {
+            this.checkOpen();
+            List<IMessage> messages = new ArrayList<>(sequenceNumbers.size());
+            for (long sequenceNumber : sequenceNumbers) {
+                messages.add(this.entity.receiveDeferred(this.receiveMode, sequenceNumber));
+            }
+            return messages;
+        }));
+    }
+
+    // ---- settlement
+
+    @Override
+    public void complete(UUID lockToken) throws InterruptedException, ServiceBusException {
+        Futures.await(this.completeAsync(lockToken));
+    }
+
+    @Override
+    public CompletableFuture<Void> completeAsync(UUID lockToken) {
+        return this.roundTrip.complete(Futures.run(() -> {
+            this.checkPeekLock();
+            this.entity.complete(lockToken);
+        }));
+    }
+
+    @Override
+    public void abandon(UUID lockToken) throws InterruptedException, ServiceBusException {
+        Futures.await(this.abandonAsync(lockToken));
+    }
+
+    @Override
+    public void abandon(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        Futures.await(this.abandonAsync(lockToken, propertiesToModify));
+    }
+
+    @Override
+    public CompletableFuture<Void> abandonAsync(UUID lockToken) {
+        return this.abandonAsync(lockToken, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> abandonAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        return this.roundTrip.complete(Futures.run(() -> {
+            this.checkPeekLock();
+            this.entity.abandon(lockToken, propertiesToModify);
+        }));
+    }
+
+    @Override
+    public void defer(UUID lockToken) throws InterruptedException, ServiceBusException {
+        Futures.await(this.deferAsync(lockToken));
+    }
+
+    @Override
+    public void defer(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        Futures.await(this.deferAsync(lockToken, propertiesToModify));
+    }
+
+    @Override
+    public CompletableFuture<Void> deferAsync(UUID lockToken) {
+        return this.deferAsync(lockToken, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deferAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        return this.roundTrip.complete(Futures.run(() -> {
+            this.checkPeekLock();
+            this.entity.defer(lockToken, propertiesToModify);
+        }));
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken) throws InterruptedException, ServiceBusException {
+        Futures.await(this.deadLetterAsync(lockToken));
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        Futures.await(this.deadLetterAsync(lockToken, propertiesToModify));
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription) throws InterruptedException, ServiceBusException {
+        Futures.await(this.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription));
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        Futures.await(this.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription, propertiesToModify));
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken) {
+        return this.deadLetterAsync(lockToken, null, null, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        return this.deadLetterAsync(lockToken, null, null, propertiesToModify);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription) {
+        return this.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription, Map<String, Object> propertiesToModify) {
+        return this.roundTrip.complete(Futures.run(() -> {
+            this.checkPeekLock();
+            this.entity.deadLetter(lockToken, deadLetterReason, deadLetterErrorDescription, propertiesToModify);
+        }));
+    }
+
+    @Override
+    public Instant renewMessageLock(IMessage message) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.renewMessageLockAsync(message));
+    }
+
+    @Override
+    public CompletableFuture<Instant> renewMessageLockAsync(IMessage message) {
+        return this.roundTrip.complete(Futures.call(() -> {
+            this.checkPeekLock();
+            return this.entity.renewLock(message.getLockToken());
+        }));
+    }
+
+    // ---- browse
+
+    @Override
+    public IMessage peek() throws InterruptedException, ServiceBusException {
+        return Futures.await(this.peekAsync());
+    }
+
+    @Override
+    public IMessage peek(long fromSequenceNumber) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.peekAsync(fromSequenceNumber));
+    }
+
+    @Override
+    public Collection<IMessage> peekBatch(int maxMessageCount) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.peekBatchAsync(maxMessageCount));
+    }
+
+    @Override
+    public Collection<IMessage> peekBatch(long fromSequenceNumber, int maxMessageCount) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.peekBatchAsync(fromSequenceNumber, maxMessageCount));
+    }
+
+    @Override
+    public CompletableFuture<IMessage> peekAsync() {
+        return this.peekAsync(this.lastPeekedSequenceNumber + 1);
+    }
+
+    @Override
+    public CompletableFuture<IMessage> peekAsync(long fromSequenceNumber) {
+        return this.peekBatchAsync(fromSequenceNumber, 1)
+                .thenApply(batch -> batch.isEmpty() ? null : batch.iterator().next());
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> peekBatchAsync(int maxMessageCount) {
+        return this.peekBatchAsync(this.lastPeekedSequenceNumber + 1, maxMessageCount);
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> peekBatchAsync(long fromSequenceNumber, int maxMessageCount) {
+        return this.roundTrip.complete(Futures.call(() -> {
+            this.checkOpen();
+            List<IMessage> batch = this.entity.peekBatch(fromSequenceNumber, maxMessageCount);
+            if (!batch.isEmpty()) {
+                this.lastPeekedSequenceNumber = batch.get(batch.size() - 1).getSequenceNumber();
+            }
+            return batch;
+        }));
+    }
+
+    // ---- lifecycle
+
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        this.closed = true;
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void close() throws ServiceBusException {
+        this.closed = true;
+    }
+
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    private void checkOpen() {
+        if (this.closed) {
+            throw closedException();
+        }
+    }
+
+    private void checkPeekLock() {
+        this.checkOpen();
+        if (this.receiveMode == ReceiveMode.RECEIVEANDDELETE) {
+            throw new UnsupportedOperationException("Operation not supported in RECEIVEANDDELETE mode.");
+        }
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("Operation not allowed after the MessageReceiver instance is closed.");
+    }
+}
@@ -0,0 +1,98 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.emulator;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+class EmulatorMessageSender implements IMessageSender {
+
+    private final EmulatedEntity entity;
+    private final RoundTrip roundTrip;
+    private volatile boolean closed;
+
+    EmulatorMessageSender(EmulatedEntity entity, RoundTrip roundTrip) {
+        this.entity = entity;
+        this.roundTrip = roundTrip;
+    }
+
+    @Override
+    public void send(IMessage message) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendAsync(message));
+    }
+
+    @Override
+    public void sendBatch(Collection<? extends IMessage> messages) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendBatchAsync(messages));
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(IMessage message) {
+        return this.roundTrip.complete(Futures.run(() -> {
+            this.checkOpen();
+            this.entity.enqueue(message, null);
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Void> sendBatchAsync(Collection<? extends IMessage> messages) {
+        return this.roundTrip.complete(Futures.run(() -> {
+            this.checkOpen();
+            this.entity.enqueueBatch(messages);
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Long> scheduleMessageAsync(IMessage message, Instant scheduledEnqueueTimeUtc) {
+        return this.roundTrip.complete(Futures.call(() -> {
+            this.checkOpen();
+            return this.entity.enqueue(message, scheduledEnqueueTimeUtc);
+        }));
+    }
+
+    @Override
+    public CompletableFuture<Void> cancelScheduledMessageAsync(long sequenceNumber) {
+        return this.roundTrip.complete(Futures.run(() -> {
+            this.checkOpen();
+            this.entity.cancelScheduled(sequenceNumber);
+        }));
+    }
+
+    @Override
+    public long scheduleMessage(IMessage message, Instant scheduledEnqueueTimeUtc) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.scheduleMessageAsync(message, scheduledEnqueueTimeUtc));
+    }
+
+    @Override
+    public void cancelScheduledMessage(long sequenceNumber) throws InterruptedException, ServiceBusException {
+        Futures.await(this.cancelScheduledMessageAsync(sequenceNumber));
+    }
+
+    @Override
+    public String getEntityPath() {
+        return this.entity.getPath();
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        this.closed = true;
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void close() throws ServiceBusException {
+        this.closed = true;
+    }
+
+    private void checkOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("Operation not allowed after the MessageSender instance is closed.");
+        }
+    }
+}
@@ -0,0 +1,357 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.emulator;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+import com.microsoft.azure.servicebus.IQueueClient;
+import com.microsoft.azure.servicebus.ISessionHandler;
+import com.microsoft.azure.servicebus.MessageHandlerOptions;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.SessionHandlerOptions;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue client over an emulated entity, including the {@code registerMessageHandler} pump with
+ * auto-complete and automatic lock renewal. Sessions are not emulated.
+ */
+class EmulatorQueueClient implements IQueueClient {
+
+    private final EmulatedEntity entity;
+    private final EmulatorMessageSender sender;
+    private final EmulatorMessageReceiver receiver;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean handlerRegistered;
+    private volatile boolean closed;
+
+    EmulatorQueueClient(EmulatedEntity entity, ReceiveMode receiveMode, RoundTrip roundTrip, ScheduledExecutorService scheduler) {
+        this.entity = entity;
+        this.sender = new EmulatorMessageSender(entity, roundTrip);
+        this.receiver = new EmulatorMessageReceiver(entity, receiveMode, roundTrip);
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public ReceiveMode getReceiveMode() {
+        return this.receiver.getReceiveMode();
+    }
+
+    @Override
+    public String getQueueName() {
+        return this.entity.getPath();
+    }
+
+    @Override
+    public String getEntityPath() {
+        return this.entity.getPath();
+    }
+
+    // ---- message pump
+
+    @Override
+    public void registerMessageHandler(IMessageHandler handler) throws InterruptedException, ServiceBusException {
+        this.registerMessageHandler(handler, new MessageHandlerOptions(), ForkJoinPool.commonPool());
+    }
+
+    @Override
+    public void registerMessageHandler(IMessageHandler handler, ExecutorService executorService) throws InterruptedException, ServiceBusException {
+        this.registerMessageHandler(handler, new MessageHandlerOptions(), executorService);
+    }
+
+    @Override
+    public void registerMessageHandler(IMessageHandler handler, MessageHandlerOptions handlerOptions) throws InterruptedException, ServiceBusException {
+        this.registerMessageHandler(handler, handlerOptions, ForkJoinPool.commonPool());
+    }
+
+    @Override
+    public void registerMessageHandler(IMessageHandler handler, MessageHandlerOptions handlerOptions, ExecutorService executorService) throws InterruptedException, ServiceBusException {
+        if (this.handlerRegistered) {
+            throw new UnsupportedOperationException("MessageHandler already registered.");
+        }
+        this.handlerRegistered = true;
+        for (int i = 0; i < handlerOptions.getMaxConcurrentCalls(); i++) {
+            this.receiveAndPump(handler, handlerOptions, executorService);
+        }
+    }
+
+    private void receiveAndPump(IMessageHandler handler, MessageHandlerOptions handlerOptions, ExecutorService executorService) {
+        if (this.closed) {
+            return;
+        }
+        Duration waitTime = handlerOptions.getMessageWaitDuration() != null
+                ? handlerOptions.getMessageWaitDuration() : EmulatorMessageReceiver.DEFAULT_SERVER_WAIT_TIME;
+        this.receiver.receiveAsync(waitTime).handleAsync((message, receiveError) -> {
+            if (receiveError != null) {
+                if (!this.closed) {
+                    handler.notifyException(receiveError, ExceptionPhase.RECEIVE);
+                }
+            } else if (message != null) {
+                this.handle(message, handler, handlerOptions).whenComplete(
+                        (r, t) -> this.receiveAndPump(handler, handlerOptions, executorService));
+                return null;
+            }
+            this.receiveAndPump(handler, handlerOptions, executorService);
+            return null;
+        }, executorService).exceptionally(t -> {
+            // executor shut down; the pump stops
+            if (!(t.getCause() instanceof RejectedExecutionException)) {
+                handler.notifyException(t, ExceptionPhase.RECEIVE);
+            }
+            return null;
+        });
+    }
+
+    private CompletableFuture<Void> handle(IMessage message, IMessageHandler handler, MessageHandlerOptions handlerOptions) {
+        boolean peekLock = this.getReceiveMode() == ReceiveMode.PEEKLOCK;
+        LockRenewal renewal = peekLock ? new LockRenewal(message, handlerOptions.getMaxAutoRenewDuration(), handler) : null;
+
+        CompletableFuture<Void> callback;
+        try {
+            callback = handler.onMessageAsync(message);
+        } catch (Throwable t) {
+            callback = Futures.failed(t);
+        }
+        return callback.handle((r, userError) -> {
+            if (renewal != null) {
+                renewal.cancel();
+            }
+            if (userError != null) {
+                handler.notifyException(userError, ExceptionPhase.USERCALLBACK);
+            }
+            if (!peekLock || !handlerOptions.isAutoComplete()) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (userError != null) {
+                return this.receiver.abandonAsync(message.getLockToken()).exceptionally(t -> {
+                    handler.notifyException(t, ExceptionPhase.ABANDON);
+                    return null;
+                });
+            }
+            return this.receiver.completeAsync(message.getLockToken()).exceptionally(t -> {
+                handler.notifyException(t, ExceptionPhase.COMPLETE);
+                return null;
+            });
+        }).thenCompose(settle -> settle);
+    }
+
+    private final class LockRenewal implements Runnable {
+        private final IMessage message;
+        private final Instant renewUntil;
+        private final IMessageHandler handler;
+        private volatile boolean cancelled;
+
+        LockRenewal(IMessage message, Duration maxAutoRenewDuration, IMessageHandler handler) {
+            this.message = message;
+            this.renewUntil = Instant.now().plus(maxAutoRenewDuration == null ? Duration.ZERO : maxAutoRenewDuration);
+            this.handler = handler;
+            this.schedule(message.getLockedUntilUtc());
+        }
+
+        private void schedule(Instant lockedUntilUtc) {
+            Instant now = Instant.now();
+            if (this.cancelled || lockedUntilUtc == null || !now.isBefore(this.renewUntil)) {
+                return;
+            }
+            // renew once half of the remaining lock time has elapsed
+            long delayNanos = Math.max(0, Duration.between(now, lockedUntilUtc).toNanos() / 2);
+            try {
+                EmulatorQueueClient.this.scheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // namespace closed
+            }
+        }
+
+        @Override
+        public void run() {
+            if (this.cancelled) {
+                return;
+            }
+            EmulatorQueueClient.this.receiver.renewMessageLockAsync(this.message).whenComplete((lockedUntilUtc, t) -> {
+                if (t != null) {
+                    if (!this.cancelled) {
+                        this.handler.notifyException(t, ExceptionPhase.RENEWMESSAGELOCK);
+                    }
+                } else {
+                    this.schedule(lockedUntilUtc);
+                }
+            });
+        }
+
+        void cancel() {
+            this.cancelled = true;
+        }
+    }
+
+    @Override
+    public void registerSessionHandler(ISessionHandler handler) throws InterruptedException, ServiceBusException {
+        throw new UnsupportedOperationException("Sessions are not supported by the emulator.");
+    }
+
+    @Override
+    public void registerSessionHandler(ISessionHandler handler, ExecutorService executorService) throws InterruptedException, ServiceBusException {
+        throw new UnsupportedOperationException("Sessions are not supported by the emulator.");
+    }
+
+    @Override
+    public void registerSessionHandler(ISessionHandler handler, SessionHandlerOptions handlerOptions) throws InterruptedException, ServiceBusException {
+        throw new UnsupportedOperationException("Sessions are not supported by the emulator.");
+    }
+
+    @Override
+    public void registerSessionHandler(ISessionHandler handler, SessionHandlerOptions handlerOptions, ExecutorService executorService) throws InterruptedException, ServiceBusException {
+        throw new UnsupportedOperationException("Sessions are not supported by the emulator.");
+    }
+
+    // ---- settlement
+
+    @Override
+    public void abandon(UUID lockToken) throws InterruptedException, ServiceBusException {
+        this.receiver.abandon(lockToken);
+    }
+
+    @Override
+    public void abandon(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        this.receiver.abandon(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public CompletableFuture<Void> abandonAsync(UUID lockToken) {
+        return this.receiver.abandonAsync(lockToken);
+    }
+
+    @Override
+    public CompletableFuture<Void> abandonAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        return this.receiver.abandonAsync(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public void complete(UUID lockToken) throws InterruptedException, ServiceBusException {
+        this.receiver.complete(lockToken);
+    }
+
+    @Override
+    public CompletableFuture<Void> completeAsync(UUID lockToken) {
+        return this.receiver.completeAsync(lockToken);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken) throws InterruptedException, ServiceBusException {
+        this.receiver.deadLetter(lockToken);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        this.receiver.deadLetter(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription) throws InterruptedException, ServiceBusException {
+        this.receiver.deadLetter(lockToken, deadLetterReason, deadLetterErrorDescription);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        this.receiver.deadLetter(lockToken, deadLetterReason, deadLetterErrorDescription, propertiesToModify);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken) {
+        return this.receiver.deadLetterAsync(lockToken);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        return this.receiver.deadLetterAsync(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription) {
+        return this.receiver.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription, Map<String, Object> propertiesToModify) {
+        return this.receiver.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription, propertiesToModify);
+    }
+
+    @Override
+    public int getPrefetchCount() {
+        return this.receiver.getPrefetchCount();
+    }
+
+    @Override
+    public void setPrefetchCount(int prefetchCount) throws ServiceBusException {
+        this.receiver.setPrefetchCount(prefetchCount);
+    }
+
+    // ---- send
+
+    @Override
+    public void send(IMessage message) throws InterruptedException, ServiceBusException {
+        this.sender.send(message);
+    }
+
+    @Override
+    public void sendBatch(Collection<? extends IMessage> messages) throws InterruptedException, ServiceBusException {
+        this.sender.sendBatch(messages);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(IMessage message) {
+        return this.sender.sendAsync(message);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendBatchAsync(Collection<? extends IMessage> messages) {
+        return this.sender.sendBatchAsync(messages);
+    }
+
+    @Override
+    public CompletableFuture<Long> scheduleMessageAsync(IMessage message, Instant scheduledEnqueueTimeUtc) {
+        return this.sender.scheduleMessageAsync(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public CompletableFuture<Void> cancelScheduledMessageAsync(long sequenceNumber) {
+        return this.sender.cancelScheduledMessageAsync(sequenceNumber);
+    }
+
+    @Override
+    public long scheduleMessage(IMessage message, Instant scheduledEnqueueTimeUtc) throws InterruptedException, ServiceBusException {
+        return this.sender.scheduleMessage(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public void cancelScheduledMessage(long sequenceNumber) throws InterruptedException, ServiceBusException {
+        this.sender.cancelScheduledMessage(sequenceNumber);
+    }
+
+    // ---- lifecycle
+
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        this.closed = true;
+        return CompletableFuture.allOf(this.sender.closeAsync(), this.receiver.closeAsync());
+    }
+
+    @Override
+    public void close() throws ServiceBusException {
+        this.closed = true;
+        this.sender.close();
+        this.receiver.close();
+    }
+}
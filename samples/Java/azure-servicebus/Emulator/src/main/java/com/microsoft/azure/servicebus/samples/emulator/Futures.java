@@ -0,0 +1,62 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.emulator;
+
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+final class Futures {
+
+    interface Operation<T> {
+        T run() throws Exception;
+    }
+
+    interface VoidOperation {
+        void run() throws Exception;
+    }
+
+    private Futures() {
+    }
+
+    static <T> CompletableFuture<T> call(Operation<T> operation) {
+        try {
+            return CompletableFuture.completedFuture(operation.run());
+        } catch (Exception e) {
+            return failed(e);
+        }
+    }
+
+    static CompletableFuture<Void> run(VoidOperation operation) {
+        try {
+            operation.run();
+            return CompletableFuture.completedFuture(null);
+        } catch (Exception e) {
+            return failed(e);
+        }
+    }
+
+    static <T> CompletableFuture<T> failed(Throwable throwable) {
+        CompletableFuture<T> failure = new CompletableFuture<>();
+        failure.completeExceptionally(throwable);
+        return failure;
+    }
+
+    // mirrors the client library: synchronous methods surface the ServiceBusException behind a failed future
+    static <T> T await(CompletableFuture<T> future) throws InterruptedException, ServiceBusException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceBusException) {
+                throw (ServiceBusException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ServiceBusException(false, cause);
+        }
+    }
+}
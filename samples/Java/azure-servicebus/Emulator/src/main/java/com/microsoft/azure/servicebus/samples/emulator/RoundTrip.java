@@ -0,0 +1,47 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.emulator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated network round trip of a client. The broker-side effect of an operation happens
+ * immediately; its result becomes visible to the caller only after the configured latency.
+ */
+final class RoundTrip {
+
+    private final long latencyNanos;
+    private final ScheduledExecutorService network;
+
+    RoundTrip(long latencyNanos, ScheduledExecutorService network) {
+        this.latencyNanos = latencyNanos;
+        this.network = network;
+    }
+
+    <T> CompletableFuture<T> complete(CompletableFuture<T> operation) {
+        if (this.latencyNanos == 0) {
+            return operation;
+        }
+        CompletableFuture<T> response = new CompletableFuture<>();
+        operation.whenComplete((result, error) -> {
+            Runnable deliver = () -> {
+                if (error != null) {
+                    response.completeExceptionally(error);
+                } else {
+                    response.complete(result);
+                }
+            };
+            try {
+                this.network.schedule(deliver, this.latencyNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // namespace closed
+                deliver.run();
+            }
+        });
+        return response;
+    }
+}
@@ -0,0 +1,192 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.emulator;
+
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.IQueueClient;
+import com.microsoft.azure.servicebus.ReceiveMode;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in for a Service Bus namespace. Queues are created on first use and support
+ * peek-lock with lock tokens and lock expiry, delivery counting, time-to-live, the
+ * {@code $deadletterqueue} sub-queue, deferral, scheduled enqueue and duplicate detection.
+ *
+ * <p>Senders, receivers and queue clients created here implement the same interfaces as the
+ * ones returned by {@code ClientFactory} and {@code QueueClient}, so the sample code can run
+ * against the emulator without a live namespace. Entity settings apply to entities created
+ * afterwards; the round-trip latency applies to clients created afterwards.
+ */
+public class ServiceBusEmulator implements AutoCloseable {
+
+    static final String DEADLETTERQUEUE_SUFFIX = "/$deadletterqueue";
+
+    private final ConcurrentHashMap<String, EmulatedEntity> entities = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ScheduledThreadPoolExecutor network;
+
+    private volatile Duration lockDuration = Duration.ofSeconds(30);
+    private volatile int maxDeliveryCount = 10;
+    private volatile Duration defaultMessageTimeToLive = Duration.ofDays(14);
+    private volatile Duration duplicateDetectionHistoryTimeWindow = null;
+    private volatile boolean deadLetteringOnMessageExpiration = false;
+    private volatile int maxMessageSizeInBytes = 256 * 1024;
+    private volatile boolean enablePartitioning = false;
+    private volatile Duration roundTripLatency = Duration.ZERO;
+
+    public ServiceBusEmulator() {
+        this(Duration.ofMillis(50));
+    }
+
+    /**
+     * @param sweepInterval how often scheduled messages are activated, expired locks are released
+     *                      and expired messages are removed in the background
+     */
+    public ServiceBusEmulator(Duration sweepInterval) {
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "servicebus-emulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.scheduler.scheduleWithFixedDelay(this::sweep, sweepInterval.toNanos(), sweepInterval.toNanos(), TimeUnit.NANOSECONDS);
+        this.network = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread thread = new Thread(r, "servicebus-emulator-network");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public IMessageSender createMessageSender(String entityPath) {
+        return new EmulatorMessageSender(this.getEntity(entityPath), this.newRoundTrip());
+    }
+
+    public IMessageReceiver createMessageReceiver(String entityPath) {
+        return this.createMessageReceiver(entityPath, ReceiveMode.PEEKLOCK);
+    }
+
+    public IMessageReceiver createMessageReceiver(String entityPath, ReceiveMode receiveMode) {
+        return new EmulatorMessageReceiver(this.getEntity(entityPath), receiveMode, this.newRoundTrip());
+    }
+
+    public IQueueClient createQueueClient(String queueName, ReceiveMode receiveMode) {
+        return new EmulatorQueueClient(this.getEntity(queueName), receiveMode, this.newRoundTrip(), this.scheduler);
+    }
+
+    /**
+     * Returns the entity for the given path, creating it on first use. A path ending in
+     * {@code /$deadletterqueue} resolves to the dead-letter sub-queue of its parent entity.
+     */
+    public EmulatedEntity getEntity(String entityPath) {
+        String key = entityPath.toLowerCase(Locale.ROOT);
+        if (key.endsWith(DEADLETTERQUEUE_SUFFIX)) {
+            return this.getEntity(entityPath.substring(0, entityPath.length() - DEADLETTERQUEUE_SUFFIX.length()))
+                    .getDeadLetterQueue();
+        }
+        return this.entities.computeIfAbsent(key, k -> new EmulatedEntity(this, entityPath, false));
+    }
+
+    public Duration getLockDuration() {
+        return this.lockDuration;
+    }
+
+    public void setLockDuration(Duration lockDuration) {
+        this.lockDuration = lockDuration;
+    }
+
+    public int getMaxDeliveryCount() {
+        return this.maxDeliveryCount;
+    }
+
+    public void setMaxDeliveryCount(int maxDeliveryCount) {
+        this.maxDeliveryCount = maxDeliveryCount;
+    }
+
+    public Duration getDefaultMessageTimeToLive() {
+        return this.defaultMessageTimeToLive;
+    }
+
+    public void setDefaultMessageTimeToLive(Duration defaultMessageTimeToLive) {
+        this.defaultMessageTimeToLive = defaultMessageTimeToLive;
+    }
+
+    public Duration getDuplicateDetectionHistoryTimeWindow() {
+        return this.duplicateDetectionHistoryTimeWindow;
+    }
+
+    /**
+     * @param duplicateDetectionHistoryTimeWindow window in which a repeated MessageId is dropped, or null to disable
+     */
+    public void setDuplicateDetectionHistoryTimeWindow(Duration duplicateDetectionHistoryTimeWindow) {
+        this.duplicateDetectionHistoryTimeWindow = duplicateDetectionHistoryTimeWindow;
+    }
+
+    public boolean isDeadLetteringOnMessageExpiration() {
+        return this.deadLetteringOnMessageExpiration;
+    }
+
+    public void setDeadLetteringOnMessageExpiration(boolean deadLetteringOnMessageExpiration) {
+        this.deadLetteringOnMessageExpiration = deadLetteringOnMessageExpiration;
+    }
+
+    public int getMaxMessageSizeInBytes() {
+        return this.maxMessageSizeInBytes;
+    }
+
+    public void setMaxMessageSizeInBytes(int maxMessageSizeInBytes) {
+        this.maxMessageSizeInBytes = maxMessageSizeInBytes;
+    }
+
+    public boolean isEnablePartitioning() {
+        return this.enablePartitioning;
+    }
+
+    /**
+     * @param enablePartitioning whether a batch sent to an entity created afterwards must have one
+     *                           partition key, taken from SessionId or else PartitionKey
+     */
+    public void setEnablePartitioning(boolean enablePartitioning) {
+        this.enablePartitioning = enablePartitioning;
+    }
+
+    public Duration getRoundTripLatency() {
+        return this.roundTripLatency;
+    }
+
+    /**
+     * @param roundTripLatency simulated network latency added to every operation of clients created
+     *                         afterwards; a receive with prefetch pays it only when its buffer is empty
+     */
+    public void setRoundTripLatency(Duration roundTripLatency) {
+        this.roundTripLatency = roundTripLatency;
+    }
+
+    private RoundTrip newRoundTrip() {
+        return new RoundTrip(this.roundTripLatency.toNanos(), this.network);
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return this.scheduler;
+    }
+
+    private void sweep() {
+        for (EmulatedEntity entity : this.entities.values()) {
+            entity.sweep();
+            entity.getDeadLetterQueue().sweep();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+        this.network.shutdownNow();
+    }
+}
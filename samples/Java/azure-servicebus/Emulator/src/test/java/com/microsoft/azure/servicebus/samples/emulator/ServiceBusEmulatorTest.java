@@ -0,0 +1,274 @@
+package com.microsoft.azure.servicebus.samples.emulator;
+
+import com.microsoft.azure.servicebus.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class ServiceBusEmulatorTest {
+
+    private ServiceBusEmulator emulator;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator(Duration.ofMillis(10));
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void sendReceiveComplete() throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK);
+
+        Message message = new Message("hello".getBytes(UTF_8));
+        message.setMessageId("1");
+        message.setLabel("Scientist");
+        sender.send(message);
+
+        IMessage received = receiver.receive(Duration.ofSeconds(1));
+        Assert.assertNotNull(received);
+        Assert.assertEquals("1", received.getMessageId());
+        Assert.assertEquals("Scientist", received.getLabel());
+        Assert.assertEquals(1, received.getSequenceNumber());
+        Assert.assertEquals(1, received.getDeliveryCount());
+        Assert.assertNotNull(received.getLockToken());
+        Assert.assertTrue(received.getLockedUntilUtc().isAfter(Instant.now()));
+
+        receiver.complete(received.getLockToken());
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+        Assert.assertNull(receiver.receive(Duration.ofMillis(20)));
+    }
+
+    @Test
+    public void pendingReceiveIsCompletedBySend() throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.RECEIVEANDDELETE);
+
+        CompletableFuture<IMessage> pending = receiver.receiveAsync(Duration.ofSeconds(5));
+        Assert.assertFalse(pending.isDone());
+        sender.send(new Message("late"));
+
+        Assert.assertEquals("late", new String(pending.get(1, TimeUnit.SECONDS).getBody(), UTF_8));
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+    }
+
+    @Test
+    public void abandonUntilMaxDeliveryCountDeadLetters() throws Exception {
+        emulator.setMaxDeliveryCount(3);
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        sender.send(new Message("poison"));
+
+        for (int i = 1; i <= 3; i++) {
+            IMessage received = receiver.receive(Duration.ofSeconds(1));
+            Assert.assertEquals(i, received.getDeliveryCount());
+            receiver.abandon(received.getLockToken());
+        }
+        Assert.assertNull(receiver.receive(Duration.ofMillis(20)));
+
+        IMessageReceiver deadletterReceiver = emulator.createMessageReceiver("BasicQueue/$deadletterqueue");
+        IMessage deadLetter = deadletterReceiver.receive(Duration.ofSeconds(1));
+        Assert.assertNotNull(deadLetter);
+        Assert.assertEquals("MaxDeliveryCountExceeded", deadLetter.getProperties().get("DeadLetterReason"));
+        Assert.assertEquals("BasicQueue", deadLetter.getDeadLetterSource());
+    }
+
+    @Test
+    public void expiredLockIsRedelivered() throws Exception {
+        emulator.setLockDuration(Duration.ofMillis(50));
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        sender.send(new Message("slow"));
+
+        IMessage first = receiver.receive(Duration.ofSeconds(1));
+        IMessage second = receiver.receive(Duration.ofSeconds(1));
+        Assert.assertNotNull(second);
+        Assert.assertEquals(2, second.getDeliveryCount());
+        try {
+            receiver.complete(first.getLockToken());
+            Assert.fail("lock should have been lost");
+        } catch (com.microsoft.azure.servicebus.primitives.MessageLockLostException e) {
+            // expected
+        }
+        receiver.complete(second.getLockToken());
+    }
+
+    @Test
+    public void renewedLockIsNotRedelivered() throws Exception {
+        emulator.setLockDuration(Duration.ofMillis(100));
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        sender.send(new Message("renew"));
+
+        IMessage received = receiver.receive(Duration.ofSeconds(1));
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(50);
+            receiver.renewMessageLock(received);
+        }
+        receiver.complete(received.getLockToken());
+    }
+
+    @Test
+    public void expiredMessageMovesToDeadLetterQueue() throws Exception {
+        emulator.setDeadLetteringOnMessageExpiration(true);
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        Message message = new Message("short-lived");
+        message.setTimeToLive(Duration.ofMillis(30));
+        sender.send(message);
+
+        IMessageReceiver deadletterReceiver = emulator.createMessageReceiver("BasicQueue/$deadletterqueue");
+        IMessage deadLetter = deadletterReceiver.receive(Duration.ofSeconds(2));
+        Assert.assertNotNull(deadLetter);
+        Assert.assertEquals("TTLExpiredException", deadLetter.getProperties().get("DeadLetterReason"));
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+    }
+
+    @Test
+    public void scheduledMessagesActivateAndCancel() throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+
+        long kept = sender.scheduleMessage(new Message("kept"), Instant.now().plusMillis(100));
+        long cancelled = sender.scheduleMessage(new Message("cancelled"), Instant.now().plusMillis(100));
+        sender.cancelScheduledMessage(cancelled);
+        Assert.assertEquals(1, emulator.getEntity("BasicQueue").getScheduledMessageCount());
+        Assert.assertNull(receiver.receive(Duration.ofMillis(20)));
+
+        IMessage received = receiver.receive(Duration.ofSeconds(2));
+        Assert.assertEquals(kept, received.getSequenceNumber());
+        Assert.assertNull(receiver.receive(Duration.ofMillis(200)));
+    }
+
+    @Test
+    public void duplicateMessageIdsAreDropped() throws Exception {
+        emulator.setDuplicateDetectionHistoryTimeWindow(Duration.ofMinutes(1));
+        IMessageSender sender = emulator.createMessageSender("DupdetectQueue");
+        for (int i = 0; i < 2; i++) {
+            Message message = new Message("dup");
+            message.setMessageId("ABC-123");
+            sender.send(message);
+        }
+        Assert.assertEquals(1, emulator.getEntity("DupdetectQueue").getMessageCount());
+    }
+
+    @Test
+    public void scheduledDuplicateReturnsTheSequenceNumberOfTheOriginal() throws Exception {
+        emulator.setDuplicateDetectionHistoryTimeWindow(Duration.ofMinutes(1));
+        IMessageSender sender = emulator.createMessageSender("DupdetectQueue");
+        long[] sequenceNumbers = new long[2];
+        for (int i = 0; i < 2; i++) {
+            Message message = new Message("dup");
+            message.setMessageId("ABC-123");
+            sequenceNumbers[i] = sender.scheduleMessage(message, Instant.now().plusSeconds(60));
+        }
+        Assert.assertEquals(sequenceNumbers[0], sequenceNumbers[1]);
+        Assert.assertEquals(1, emulator.getEntity("DupdetectQueue").getScheduledMessageCount());
+
+        // cancelling by the number the duplicate returned removes the original
+        sender.cancelScheduledMessage(sequenceNumbers[1]);
+        Assert.assertEquals(0, emulator.getEntity("DupdetectQueue").getScheduledMessageCount());
+
+        // the duplicate took no number of its own
+        Message next = new Message("next");
+        next.setMessageId("DEF-456");
+        Assert.assertEquals(sequenceNumbers[0] + 1, sender.scheduleMessage(next, Instant.now().plusSeconds(60)));
+    }
+
+    @Test
+    public void deferredMessageIsReceivedBySequenceNumber() throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        sender.send(new Message("later"));
+
+        IMessage received = receiver.receive(Duration.ofSeconds(1));
+        receiver.defer(received.getLockToken());
+        Assert.assertNull(receiver.receive(Duration.ofMillis(20)));
+
+        IMessage deferred = receiver.receiveDeferredMessage(received.getSequenceNumber());
+        Assert.assertEquals("later", new String(deferred.getBody(), UTF_8));
+        receiver.complete(deferred.getLockToken());
+    }
+
+    @Test
+    public void peekDoesNotLock() throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        for (int i = 0; i < 10; i++) {
+            sender.send(new Message(Integer.toString(i)));
+        }
+
+        Collection<IMessage> firstPage = receiver.peekBatch(4);
+        Collection<IMessage> secondPage = receiver.peekBatch(100);
+        Assert.assertEquals(4, firstPage.size());
+        Assert.assertEquals(6, secondPage.size());
+        Assert.assertNull(firstPage.iterator().next().getLockToken());
+        Assert.assertEquals(10, receiver.receiveBatch(100).size());
+    }
+
+    @Test
+    public void messagePumpAutoCompletes() throws Exception {
+        IQueueClient client = emulator.createQueueClient("BasicQueue", ReceiveMode.PEEKLOCK);
+        int count = 1000;
+        CountDownLatch latch = new CountDownLatch(count);
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+
+        client.registerMessageHandler(new IMessageHandler() {
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                latch.countDown();
+                return CompletableFuture.completedFuture(null);
+            }
+
+            public void notifyException(Throwable throwable, ExceptionPhase exceptionPhase) {
+                System.out.printf(exceptionPhase + "-" + throwable.getMessage());
+            }
+        }, new MessageHandlerOptions(4, true, Duration.ofMinutes(1)), executorService);
+
+        for (int i = 0; i < count; i++) {
+            client.sendAsync(new Message(Integer.toString(i)));
+        }
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        // auto-complete runs after the handler returns
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (emulator.getEntity("BasicQueue").getMessageCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+        client.close();
+        executorService.shutdown();
+    }
+
+    @Test
+    public void prefetchBuffersMessagesFetchedInOneRoundTrip() throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        for (int i = 0; i < 10; i++) {
+            sender.send(new Message(Integer.toString(i)));
+        }
+        emulator.setRoundTripLatency(Duration.ofMillis(200));
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK);
+        receiver.setPrefetchCount(10);
+
+        Assert.assertNotNull(receiver.receive(Duration.ofSeconds(1)));
+        Assert.assertEquals(10, emulator.getEntity("BasicQueue").getLockedMessageCount());
+        long start = System.nanoTime();
+        for (int i = 1; i < 10; i++) {
+            Assert.assertNotNull(receiver.receiveAsync(Duration.ofSeconds(1)).getNow(null));
+        }
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+    }
+}
@@ -10,7 +10,11 @@ import com.google.gson.Gson;
 
 import static java.nio.charset.StandardCharsets.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Function;
@@ -33,7 +37,9 @@ public class MessageBrowse {
 
         sendClient = new QueueClient(
                 new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK);
-        this.sendMessagesAsync(sendClient).thenRunAsync(() -> sendClient.closeAsync());
+        // the peek loop ends at the first empty page, so the messages have to be there before it starts
+        this.sendMessagesAsync(sendClient).join();
+        sendClient.closeAsync();
 
 
         receiver = ClientFactory.createMessageReceiverFromConnectionStringBuilder(
@@ -45,9 +51,33 @@ public class MessageBrowse {
 
         receiveTask.cancel(true);
 
-        CompletableFuture.allOf(
-                receiveTask.exceptionally(t -> {if (t instanceof CancellationException) { return null;  } throw new RuntimeException((Throwable) t); }),
-                receiver.closeAsync()).join();
+        receiveTask.exceptionally(t -> {if (t instanceof CancellationException) { return null;  } throw new RuntimeException((Throwable) t); }).join();
+
+        // browse the whole queue once more in pages of 100, with memory for at most 4 pages
+        try (MessageBrowser browser = new MessageBrowser(receiver)) {
+            this.browseMessages(browser);
+        }
+
+        // take a snapshot of the queue into a local file and query it without the broker
+        Path snapshotFile = Files.createTempFile("basicqueue", ".snapshot");
+        try (MessageBrowser browser = new MessageBrowser(receiver)) {
+            this.exportSnapshot(browser, snapshotFile);
+        } finally {
+            Files.deleteIfExists(snapshotFile);
+        }
+        receiver.closeAsync().join();
+    }
+
+    long browseMessages(MessageBrowser browser) {
+        Map<String, Integer> labels = new TreeMap<>();
+        while (browser.hasNext()) {
+            IMessage message = browser.next();
+            labels.merge(message.getLabel() == null ? "(none)" : message.getLabel(), 1, Integer::sum);
+        }
+        System.out.printf("Browsed %d messages in %d pages (%.1f pages/s)\n",
+                browser.getMessageCount(), browser.getPageCount(), browser.getPagesPerSecond());
+        labels.forEach((label, count) -> System.out.printf("\tLabel = %s: %d messages\n", label, count));
+        return browser.getMessageCount();
     }
 
     CompletableFuture<Void> sendMessagesAsync(QueueClient sendClient) {
@@ -89,51 +119,72 @@ public class MessageBrowse {
     CompletableFuture peekMessagesAsync(IMessageReceiver receiver) {
 
         CompletableFuture currentTask = new CompletableFuture();
-        try {
-            CompletableFuture.runAsync(() -> {
-                while (!currentTask.isCancelled()) {
-                    try {
-                        IMessage message = receiver.peek();
-                        if (message != null) {
-                            // receives message is passed to callback
-                            if (message.getLabel() != null &&
-                                    message.getContentType() != null &&
-                                    message.getLabel().contentEquals("Scientist") &&
-                                    message.getContentType().contentEquals("application/json")) {
-
-                                byte[] body = message.getBody();
-                                Map scientist = GSON.fromJson(new String(body, UTF_8), Map.class);
-
-                                System.out.printf(
-                                        "\n\t\t\t\tMessage received: \n\t\t\t\t\t\tMessageId = %s, \n\t\t\t\t\t\tSequenceNumber = %s, \n\t\t\t\t\t\tEnqueuedTimeUtc = %s," +
-                                                "\n\t\t\t\t\t\tExpiresAtUtc = %s, \n\t\t\t\t\t\tContentType = \"%s\",  \n\t\t\t\t\t\tContent: [ firstName = %s, name = %s ]\n",
-                                        message.getMessageId(),
-                                        message.getSequenceNumber(),
-                                        message.getEnqueuedTimeUtc(),
-                                        message.getExpiresAtUtc(),
-                                        message.getContentType(),
-                                        scientist != null ? scientist.get("firstName") : "",
-                                        scientist != null ? scientist.get("name") : "");
-                            } else {
-                                currentTask.complete(null);
-                            }
-                        }
-                    } catch (Exception e) {
-                        currentTask.completeExceptionally(e);
-                    }
+        // each peek continues on the common pool when the previous one completes, so no thread
+        // is held while a peek is pending; cancelling the task stops the chain
+        this.peekNextAsync(receiver, currentTask);
+        return currentTask;
+    }
+
+    private void peekNextAsync(IMessageReceiver receiver, CompletableFuture currentTask) {
+        if (currentTask.isDone()) {
+            return;
+        }
+        receiver.peekBatchAsync(10).whenCompleteAsync((messages, error) -> {
+            if (error != null) {
+                currentTask.completeExceptionally(error);
+                return;
+            }
+            if (messages == null || messages.isEmpty()) {
+                // the browse cursor has reached the end of the queue
+                currentTask.complete(null);
+                return;
+            }
+            for (IMessage message : messages) {
+                if (currentTask.isDone()) {
+                    return;
                 }
-                if (!currentTask.isCancelled()) {
+                // receives message is passed to callback
+                if (message.getLabel() != null &&
+                        message.getContentType() != null &&
+                        message.getLabel().contentEquals("Scientist") &&
+                        message.getContentType().contentEquals("application/json")) {
+
+                    byte[] body = message.getBody();
+                    Map scientist = GSON.fromJson(new String(body, UTF_8), Map.class);
+
+                    System.out.printf(
+                            "\n\t\t\t\tMessage received: \n\t\t\t\t\t\tMessageId = %s, \n\t\t\t\t\t\tSequenceNumber = %s, \n\t\t\t\t\t\tEnqueuedTimeUtc = %s," +
+                                    "\n\t\t\t\t\t\tExpiresAtUtc = %s, \n\t\t\t\t\t\tContentType = \"%s\",  \n\t\t\t\t\t\tContent: [ firstName = %s, name = %s ]\n",
+                            message.getMessageId(),
+                            message.getSequenceNumber(),
+                            message.getEnqueuedTimeUtc(),
+                            message.getExpiresAtUtc(),
+                            message.getContentType(),
+                            scientist != null ? scientist.get("firstName") : "",
+                            scientist != null ? scientist.get("name") : "");
+                } else {
                     currentTask.complete(null);
                 }
-            });
-            return currentTask;
-        } catch (Exception e) {
-            currentTask.completeExceptionally(e);
-        }
-        return currentTask;
+            }
+            this.peekNextAsync(receiver, currentTask);
+        });
     }
 
 
+    QueueSnapshot.Aggregate exportSnapshot(MessageBrowser browser, Path snapshotFile) throws IOException {
+        long exported = SnapshotWriter.export(browser, snapshotFile, true);
+        System.out.printf("Exported %d messages to %s\n", exported, snapshotFile);
+        try (QueueSnapshot snapshot = QueueSnapshot.open(snapshotFile)) {
+            QueueSnapshot.Aggregate scientists = snapshot.query().label("Scientist").contentType("application/json").aggregate();
+            System.out.printf("\tScientists: %s\n", scientists);
+            Instant now = Instant.now();
+            System.out.printf("\tExpired but not yet removed: %d messages\n", snapshot.query().expiresBefore(now).count());
+            System.out.printf("\tEnqueued in the last minute: %d messages\n",
+                    snapshot.query().enqueuedBetween(now.minus(Duration.ofMinutes(1)), now.plusSeconds(1)).count());
+            return scientists;
+        }
+    }
+
     public static void main(String[] args) {
 
         System.exit(runApp(args, (connectionString) -> {
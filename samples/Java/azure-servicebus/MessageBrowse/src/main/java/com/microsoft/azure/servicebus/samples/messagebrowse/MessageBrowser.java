@@ -0,0 +1,351 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.messagebrowse;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Browses an entity page by page with {@code peekBatchAsync(fromSequenceNumber, pageSize)},
+ * scanning several sequence-number ranges at once with one receiver each.
+ * <p>
+ * Each receiver scans one range at a time, from its first sequence number up to the end of the
+ * range or of the entity, and then takes the next range that nobody scans yet. In a partitioned
+ * entity the top 16 bits of a sequence number are the partition, so {@link #partitionRanges}
+ * gives one range per partition; {@link #splitRange} divides a known span of sequence numbers.
+ * Messages of one range come in sequence-number order; pages of different ranges interleave.
+ * <p>
+ * At most {@code maxBufferedPages} pages are peeked or waiting to be consumed at any time: a
+ * receiver starts its next peek only when the consumer has taken a page, so the memory held does
+ * not depend on the size of the entity. The next peek of a range starts as a continuation of the
+ * previous one, so no thread is held while peeks are pending. The browse starts with the first
+ * call to {@link #hasNext} or {@link #nextPage}. The receivers are not closed by the browser.
+ * The iterator methods must be called from one thread.
+ */
+public class MessageBrowser implements Iterator<IMessage>, AutoCloseable {
+
+    public static final class Range {
+        final long fromSequenceNumber;
+        final long toSequenceNumber;
+
+        /**
+         * @param toSequenceNumber the first sequence number after the range
+         */
+        public Range(long fromSequenceNumber, long toSequenceNumber) {
+            if (fromSequenceNumber >= toSequenceNumber) {
+                throw new IllegalArgumentException("fromSequenceNumber must be less than toSequenceNumber.");
+            }
+            this.fromSequenceNumber = fromSequenceNumber;
+            this.toSequenceNumber = toSequenceNumber;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + this.fromSequenceNumber + ", " + this.toSequenceNumber + ")";
+        }
+    }
+
+    public static final Range ALL = new Range(0, Long.MAX_VALUE);
+    static final int PARTITION_SHIFT = 48;
+
+    // a page after the last one, or one that carries the error of a failed peek
+    private static final List<IMessage> END = Collections.emptyList();
+
+    private final List<? extends IMessageReceiver> receivers;
+    private final Queue<Range> pendingRanges;
+    private final int pageSize;
+    private final BlockingQueue<List<IMessage>> pages = new LinkedBlockingQueue<>();
+    private final Queue<Scanner> waitingScanners = new ArrayDeque<>();
+    private final AtomicInteger activeScanners = new AtomicInteger();
+    private final LongAdder pageCount = new LongAdder();
+    private final LongAdder messageCount = new LongAdder();
+    private int pageCredits;
+    private volatile Throwable error;
+    private volatile boolean closed;
+    private boolean started;
+    private boolean ended;
+    private Iterator<IMessage> current = Collections.emptyIterator();
+    private long startNanos;
+    private volatile long endNanos;
+
+    public MessageBrowser(IMessageReceiver receiver) {
+        this(Collections.singletonList(receiver), Collections.singletonList(ALL), 100, 4);
+    }
+
+    public MessageBrowser(List<? extends IMessageReceiver> receivers, Collection<Range> ranges, int pageSize, int maxBufferedPages) {
+        if (receivers.isEmpty()) {
+            throw new IllegalArgumentException("receivers must not be empty.");
+        }
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be greater than 0.");
+        }
+        if (maxBufferedPages <= 0) {
+            throw new IllegalArgumentException("maxBufferedPages must be greater than 0.");
+        }
+        this.receivers = new ArrayList<>(receivers);
+        this.pendingRanges = new ConcurrentLinkedQueue<>(ranges);
+        this.pageSize = pageSize;
+        this.pageCredits = maxBufferedPages;
+    }
+
+    /**
+     * One range per partition of a partitioned entity.
+     */
+    public static List<Range> partitionRanges(int partitionCount) {
+        List<Range> ranges = new ArrayList<>(partitionCount);
+        for (long partition = 0; partition < partitionCount; partition++) {
+            ranges.add(new Range(partition << PARTITION_SHIFT, (partition + 1) << PARTITION_SHIFT));
+        }
+        return ranges;
+    }
+
+    /**
+     * Divides the sequence numbers from {@code fromSequenceNumber} to {@code toSequenceNumber} into
+     * {@code count} ranges of equal length. The last range is open, so that messages sent later
+     * are browsed too.
+     */
+    public static List<Range> splitRange(long fromSequenceNumber, long toSequenceNumber, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("count must be greater than 0.");
+        }
+        List<Range> ranges = new ArrayList<>(count);
+        long length = Math.max(1, (toSequenceNumber - fromSequenceNumber) / count);
+        long from = fromSequenceNumber;
+        for (int i = 0; i < count - 1 && from + length < toSequenceNumber; i++) {
+            ranges.add(new Range(from, from + length));
+            from += length;
+        }
+        ranges.add(new Range(from, Long.MAX_VALUE));
+        return ranges;
+    }
+
+    public long getPageCount() {
+        return this.pageCount.sum();
+    }
+
+    public long getMessageCount() {
+        return this.messageCount.sum();
+    }
+
+    /** Pages peeked per second since the browse started, up to its end. */
+    public double getPagesPerSecond() {
+        if (!this.started) {
+            return 0;
+        }
+        long end = this.endNanos != 0 ? this.endNanos : System.nanoTime();
+        return end == this.startNanos ? 0 : this.getPageCount() * 1e9 / (end - this.startNanos);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!this.current.hasNext()) {
+            List<IMessage> page = this.nextPage();
+            if (page == null) {
+                return false;
+            }
+            this.current = page.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public IMessage next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return this.current.next();
+    }
+
+    /**
+     * Waits for the next page.
+     *
+     * @return the page, or null after the last one
+     * @throws CompletionException if a peek failed, or if the thread was interrupted
+     */
+    public List<IMessage> nextPage() {
+        if (this.closed) {
+            throw new IllegalStateException("Operation not allowed after the MessageBrowser instance is closed.");
+        }
+        this.start();
+        if (this.ended) {
+            return null;
+        }
+        List<IMessage> page;
+        try {
+            page = this.pages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+        if (page == END) {
+            this.ended = true;
+            if (this.error != null) {
+                throw new CompletionException(this.error);
+            }
+            return null;
+        }
+        this.returnCredit();
+        return page;
+    }
+
+    /** Stops the browse. Peeks that are pending complete, but their pages are dropped. */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.pages.clear();
+    }
+
+    private void start() {
+        if (this.started) {
+            return;
+        }
+        this.started = true;
+        this.startNanos = System.nanoTime();
+        List<Scanner> scanners = new ArrayList<>();
+        for (IMessageReceiver receiver : this.receivers) {
+            Range range = this.pendingRanges.poll();
+            if (range == null) {
+                break;
+            }
+            scanners.add(new Scanner(receiver, range));
+        }
+        this.activeScanners.set(scanners.size());
+        if (scanners.isEmpty()) {
+            this.end();
+        }
+        for (Scanner scanner : scanners) {
+            scanner.peekNext();
+        }
+    }
+
+    // a scanner needs a credit for each page it peeks; without one, it waits for the consumer
+    private synchronized boolean takeCredit(Scanner scanner) {
+        if (this.pageCredits > 0) {
+            this.pageCredits--;
+            return true;
+        }
+        this.waitingScanners.add(scanner);
+        return false;
+    }
+
+    // when the consumer takes a page, or a peek yields no page
+    private void returnCredit() {
+        Scanner waiting;
+        synchronized (this) {
+            waiting = this.waitingScanners.poll();
+            if (waiting == null) {
+                this.pageCredits++;
+            }
+        }
+        if (waiting != null) {
+            // the credit goes straight to the waiting scanner
+            waiting.peek();
+        }
+    }
+
+    private void scannerDone() {
+        if (this.activeScanners.decrementAndGet() == 0) {
+            this.end();
+        }
+    }
+
+    private void end() {
+        this.endNanos = System.nanoTime();
+        this.pages.add(END);
+    }
+
+    private final class Scanner {
+        private final IMessageReceiver receiver;
+        private Range range;
+        private long nextSequenceNumber;
+
+        Scanner(IMessageReceiver receiver, Range range) {
+            this.receiver = receiver;
+            this.setRange(range);
+        }
+
+        private void setRange(Range range) {
+            this.range = range;
+            this.nextSequenceNumber = range.fromSequenceNumber;
+        }
+
+        void peekNext() {
+            if (MessageBrowser.this.closed || MessageBrowser.this.error != null) {
+                MessageBrowser.this.scannerDone();
+                return;
+            }
+            if (MessageBrowser.this.takeCredit(this)) {
+                this.peek();
+            }
+        }
+
+        void peek() {
+            if (MessageBrowser.this.closed || MessageBrowser.this.error != null) {
+                MessageBrowser.this.returnCredit();
+                MessageBrowser.this.scannerDone();
+                return;
+            }
+            CompletableFuture<Collection<IMessage>> peek;
+            try {
+                peek = this.receiver.peekBatchAsync(this.nextSequenceNumber, MessageBrowser.this.pageSize);
+            } catch (RuntimeException e) {
+                // fails the browse like a failed peek, also when called from returnCredit on the consumer's thread
+                peek = new CompletableFuture<>();
+                peek.completeExceptionally(e);
+            }
+            peek.whenComplete((messages, peekError) -> {
+                if (peekError != null) {
+                    MessageBrowser.this.error = peekError instanceof CompletionException && peekError.getCause() != null ? peekError.getCause() : peekError;
+                    MessageBrowser.this.returnCredit();
+                    MessageBrowser.this.scannerDone();
+                    return;
+                }
+                List<IMessage> page = new ArrayList<>(messages == null ? 0 : messages.size());
+                boolean rangeDone = messages == null || messages.isEmpty();
+                if (!rangeDone) {
+                    for (IMessage message : messages) {
+                        if (message.getSequenceNumber() >= this.range.toSequenceNumber) {
+                            rangeDone = true;
+                            break;
+                        }
+                        page.add(message);
+                        this.nextSequenceNumber = message.getSequenceNumber() + 1;
+                    }
+                }
+                if (page.isEmpty() || MessageBrowser.this.closed) {
+                    MessageBrowser.this.returnCredit();
+                } else {
+                    MessageBrowser.this.pageCount.increment();
+                    MessageBrowser.this.messageCount.add(page.size());
+                    MessageBrowser.this.pages.add(page);
+                }
+                if (rangeDone) {
+                    Range next = MessageBrowser.this.pendingRanges.poll();
+                    if (next == null) {
+                        MessageBrowser.this.scannerDone();
+                        return;
+                    }
+                    this.setRange(next);
+                }
+                this.peekNext();
+            });
+        }
+    }
+}
@@ -0,0 +1,465 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.messagebrowse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A snapshot of an entity's messages, written by {@link SnapshotWriter} and read from a
+ * memory-mapped file.
+ * <p>
+ * The file holds blocks of up to 65,536 messages. A block stores each property as a column of
+ * fixed-width values: sequence number, enqueued time, time to live and, if the snapshot has
+ * bodies, body offsets as {@code long}s; body size, delivery count, label and content type as
+ * {@code int}s, the strings as indexes into a dictionary. The bodies follow the columns. The
+ * footer holds the dictionary and, for every block, the lowest and highest sequence number and
+ * enqueued time, so a {@link Query} reads only the blocks that can match, and in them only the
+ * columns it filters on. The class is thread-safe; its queries are not.
+ */
+public class QueueSnapshot implements AutoCloseable {
+
+    static final long MAGIC = 0x534253534e415053L;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int TRAILER_SIZE = 16;
+    static final int FLAG_BODIES = 1;
+    // offset, row count, body bytes, sequence number and enqueued time bounds
+    static final int BLOCK_ENTRY_SIZE = 8 + 4 + 8 + 4 * 8;
+    static final long MAX_MAPPING_SIZE = 1 << 30;
+    // index of a null label or content type
+    static final int NO_STRING = 0;
+
+    private final FileChannel channel;
+    private final boolean hasBodies;
+    private final String[] dictionary;
+    private final Map<String, Integer> dictionaryIndexes = new HashMap<>();
+    private final Block[] blocks;
+    private final long messageCount;
+    private volatile boolean closed;
+
+    private QueueSnapshot(FileChannel channel, boolean hasBodies, String[] dictionary, Block[] blocks) {
+        this.channel = channel;
+        this.hasBodies = hasBodies;
+        this.dictionary = dictionary;
+        for (int i = 1; i < dictionary.length; i++) {
+            this.dictionaryIndexes.put(dictionary[i], i);
+        }
+        this.blocks = blocks;
+        long count = 0;
+        for (Block block : blocks) {
+            count += block.rowCount;
+        }
+        this.messageCount = count;
+    }
+
+    public static QueueSnapshot open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            ByteBuffer trailer = size < HEADER_SIZE + TRAILER_SIZE ? null : read(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION || trailer == null || trailer.getLong(8) != MAGIC) {
+                throw new IllegalArgumentException("The file " + file + " is not a complete queue snapshot.");
+            }
+            boolean hasBodies = (header.getInt(12) & FLAG_BODIES) != 0;
+            long footerOffset = trailer.getLong(0);
+            ByteBuffer footer = read(channel, footerOffset, (int) (size - TRAILER_SIZE - footerOffset));
+
+            String[] dictionary = new String[footer.getInt()];
+            for (int i = 1; i < dictionary.length; i++) {
+                byte[] bytes = new byte[footer.getInt()];
+                footer.get(bytes);
+                dictionary[i] = new String(bytes, UTF_8);
+            }
+            Block[] blocks = new Block[footer.getInt()];
+            long[] offsets = new long[blocks.length + 1];
+            for (int i = 0; i < blocks.length; i++) {
+                offsets[i] = footer.getLong();
+                int rowCount = footer.getInt();
+                offsets[i + 1] = offsets[i] + blockSize(rowCount, hasBodies) + footer.getLong();
+                blocks[i] = new Block(rowCount, hasBodies, footer.getLong(), footer.getLong(), footer.getLong(), footer.getLong());
+            }
+            // consecutive blocks share one mapping of up to 1 GB, since a mapping is released only
+            // when it is garbage collected
+            for (int first = 0; first < blocks.length; ) {
+                int last = first + 1;
+                while (last < blocks.length && offsets[last + 1] - offsets[first] <= MAX_MAPPING_SIZE) {
+                    last++;
+                }
+                MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, offsets[first], offsets[last] - offsets[first]);
+                for (int i = first; i < last; i++) {
+                    ByteBuffer view = mapping.duplicate();
+                    view.position((int) (offsets[i] - offsets[first]));
+                    view.limit((int) (offsets[i + 1] - offsets[first]));
+                    blocks[i].buffer = view.slice().order(ByteOrder.LITTLE_ENDIAN);
+                }
+                first = last;
+            }
+            return new QueueSnapshot(channel, hasBodies, dictionary, blocks);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getMessageCount() {
+        return this.messageCount;
+    }
+
+    public int getBlockCount() {
+        return this.blocks.length;
+    }
+
+    public boolean hasBodies() {
+        return this.hasBodies;
+    }
+
+    public Query query() {
+        this.checkOpen();
+        return new Query();
+    }
+
+    /**
+     * @return the body of the message, or null if the snapshot has no message with the sequence
+     * number
+     */
+    public byte[] getBody(long sequenceNumber) {
+        this.checkOpen();
+        if (!this.hasBodies) {
+            throw new IllegalStateException("The snapshot was written without bodies.");
+        }
+        for (Block block : this.blocks) {
+            if (sequenceNumber < block.minSequenceNumber || sequenceNumber > block.maxSequenceNumber) {
+                continue;
+            }
+            for (int row = 0; row < block.rowCount; row++) {
+                if (block.buffer.getLong(block.column(Column.SEQUENCE_NUMBER, row)) == sequenceNumber) {
+                    long start = block.buffer.getLong(block.column(Column.BODY_OFFSET, row));
+                    long end = block.buffer.getLong(block.column(Column.BODY_OFFSET, row + 1));
+                    byte[] body = new byte[(int) (end - start)];
+                    ByteBuffer view = block.buffer.duplicate();
+                    view.position((int) (blockSize(block.rowCount, true) + start));
+                    view.get(body);
+                    return body;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        this.channel.close();
+    }
+
+    private void checkOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("Operation not allowed after the QueueSnapshot instance is closed.");
+        }
+    }
+
+    /**
+     * Selects messages by ranges of their properties and computes results over them. Each
+     * condition narrows the selection; a query without conditions selects all messages.
+     */
+    public final class Query {
+        private long fromSequenceNumber = Long.MIN_VALUE;
+        private long toSequenceNumber = Long.MAX_VALUE;
+        private long fromEnqueuedMillis = Long.MIN_VALUE;
+        private long toEnqueuedMillis = Long.MAX_VALUE;
+        private long expiresBeforeMillis = Long.MAX_VALUE;
+        private int minDeliveryCount;
+        private int label = -1;
+        private int contentType = -1;
+        private boolean empty;
+
+        private Query() {
+        }
+
+        /** Sequence numbers from {@code from} up to, but not including, {@code to}. */
+        public Query sequenceNumbers(long from, long to) {
+            this.fromSequenceNumber = Math.max(this.fromSequenceNumber, from);
+            this.toSequenceNumber = Math.min(this.toSequenceNumber, to);
+            return this;
+        }
+
+        /** Enqueued from {@code from} up to, but not including, {@code to}. */
+        public Query enqueuedBetween(Instant from, Instant to) {
+            this.fromEnqueuedMillis = Math.max(this.fromEnqueuedMillis, from.toEpochMilli());
+            this.toEnqueuedMillis = Math.min(this.toEnqueuedMillis, to.toEpochMilli());
+            return this;
+        }
+
+        /** Messages whose time to live ends before the given time. */
+        public Query expiresBefore(Instant time) {
+            this.expiresBeforeMillis = Math.min(this.expiresBeforeMillis, time.toEpochMilli());
+            return this;
+        }
+
+        public Query minDeliveryCount(int deliveryCount) {
+            this.minDeliveryCount = Math.max(this.minDeliveryCount, deliveryCount);
+            return this;
+        }
+
+        public Query label(String label) {
+            this.label = this.lookUp(label, this.label);
+            return this;
+        }
+
+        public Query contentType(String contentType) {
+            this.contentType = this.lookUp(contentType, this.contentType);
+            return this;
+        }
+
+        private int lookUp(String value, int current) {
+            // a string that is not in the dictionary, or a second different one, matches nothing
+            Integer index = value == null ? Integer.valueOf(NO_STRING) : QueueSnapshot.this.dictionaryIndexes.get(value);
+            if (index == null || (current >= 0 && current != index)) {
+                this.empty = true;
+                return current;
+            }
+            return index;
+        }
+
+        public long count() {
+            long[] count = new long[1];
+            this.scan((block, row) -> count[0]++);
+            return count[0];
+        }
+
+        public Aggregate aggregate() {
+            Aggregate aggregate = new Aggregate();
+            this.scan((block, row) -> {
+                ByteBuffer buffer = block.buffer;
+                long enqueued = buffer.getLong(block.column(Column.ENQUEUED_TIME, row));
+                aggregate.count++;
+                aggregate.totalSize += buffer.getInt(block.column(Column.SIZE, row));
+                aggregate.minEnqueuedMillis = Math.min(aggregate.minEnqueuedMillis, enqueued);
+                aggregate.maxEnqueuedMillis = Math.max(aggregate.maxEnqueuedMillis, enqueued);
+                aggregate.maxDeliveryCount = Math.max(aggregate.maxDeliveryCount, buffer.getInt(block.column(Column.DELIVERY_COUNT, row)));
+            });
+            return aggregate;
+        }
+
+        /** Counts the selected messages by label; messages without a label count under null. */
+        public Map<String, Long> countByLabel() {
+            long[] counts = new long[QueueSnapshot.this.dictionary.length];
+            this.scan((block, row) -> counts[block.buffer.getInt(block.column(Column.LABEL, row))]++);
+            Map<String, Long> result = new TreeMap<>((a, b) -> a == null ? (b == null ? 0 : -1) : b == null ? 1 : a.compareTo(b));
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    result.put(QueueSnapshot.this.dictionary[i], counts[i]);
+                }
+            }
+            return result;
+        }
+
+        /** The sequence numbers of up to {@code limit} selected messages, in file order. */
+        public long[] sequenceNumbers(int limit) {
+            List<Long> result = new ArrayList<>();
+            for (Block block : QueueSnapshot.this.blocks) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                if (this.mayMatch(block)) {
+                    for (int row = 0; row < block.rowCount && result.size() < limit; row++) {
+                        if (this.matches(block, row)) {
+                            result.add(block.buffer.getLong(block.column(Column.SEQUENCE_NUMBER, row)));
+                        }
+                    }
+                }
+            }
+            return result.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        private void scan(RowConsumer consumer) {
+            QueueSnapshot.this.checkOpen();
+            for (Block block : QueueSnapshot.this.blocks) {
+                if (!this.mayMatch(block)) {
+                    continue;
+                }
+                for (int row = 0; row < block.rowCount; row++) {
+                    if (this.matches(block, row)) {
+                        consumer.accept(block, row);
+                    }
+                }
+            }
+        }
+
+        private boolean mayMatch(Block block) {
+            return !this.empty
+                    && block.rowCount > 0
+                    && block.maxSequenceNumber >= this.fromSequenceNumber && block.minSequenceNumber < this.toSequenceNumber
+                    && block.maxEnqueuedMillis >= this.fromEnqueuedMillis && block.minEnqueuedMillis < this.toEnqueuedMillis;
+        }
+
+        private boolean matches(Block block, int row) {
+            ByteBuffer buffer = block.buffer;
+            if (this.fromSequenceNumber != Long.MIN_VALUE || this.toSequenceNumber != Long.MAX_VALUE) {
+                long sequenceNumber = buffer.getLong(block.column(Column.SEQUENCE_NUMBER, row));
+                if (sequenceNumber < this.fromSequenceNumber || sequenceNumber >= this.toSequenceNumber) {
+                    return false;
+                }
+            }
+            if (this.fromEnqueuedMillis != Long.MIN_VALUE || this.toEnqueuedMillis != Long.MAX_VALUE || this.expiresBeforeMillis != Long.MAX_VALUE) {
+                long enqueued = buffer.getLong(block.column(Column.ENQUEUED_TIME, row));
+                if (enqueued < this.fromEnqueuedMillis || enqueued >= this.toEnqueuedMillis) {
+                    return false;
+                }
+                if (this.expiresBeforeMillis != Long.MAX_VALUE
+                        && saturatedAdd(enqueued, buffer.getLong(block.column(Column.TIME_TO_LIVE, row))) >= this.expiresBeforeMillis) {
+                    return false;
+                }
+            }
+            if (this.minDeliveryCount > 0 && buffer.getInt(block.column(Column.DELIVERY_COUNT, row)) < this.minDeliveryCount) {
+                return false;
+            }
+            if (this.label >= 0 && buffer.getInt(block.column(Column.LABEL, row)) != this.label) {
+                return false;
+            }
+            return this.contentType < 0 || buffer.getInt(block.column(Column.CONTENT_TYPE, row)) == this.contentType;
+        }
+    }
+
+    public static final class Aggregate {
+        private long count;
+        private long totalSize;
+        private long minEnqueuedMillis = Long.MAX_VALUE;
+        private long maxEnqueuedMillis = Long.MIN_VALUE;
+        private int maxDeliveryCount;
+
+        public long getCount() {
+            return this.count;
+        }
+
+        /** The sum of the body sizes in bytes. */
+        public long getTotalSize() {
+            return this.totalSize;
+        }
+
+        /** The earliest enqueued time, or null if nothing was selected. */
+        public Instant getMinEnqueuedTime() {
+            return this.count == 0 ? null : Instant.ofEpochMilli(this.minEnqueuedMillis);
+        }
+
+        /** The latest enqueued time, or null if nothing was selected. */
+        public Instant getMaxEnqueuedTime() {
+            return this.count == 0 ? null : Instant.ofEpochMilli(this.maxEnqueuedMillis);
+        }
+
+        public int getMaxDeliveryCount() {
+            return this.maxDeliveryCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count = %d, totalSize = %d, enqueued = [%s, %s], maxDeliveryCount = %d",
+                    this.count, this.totalSize, this.getMinEnqueuedTime(), this.getMaxEnqueuedTime(), this.maxDeliveryCount);
+        }
+    }
+
+    // ---- file layout
+
+    enum Column {
+        SEQUENCE_NUMBER(8),
+        ENQUEUED_TIME(8),
+        TIME_TO_LIVE(8),
+        // one more value than rows, only in snapshots with bodies
+        BODY_OFFSET(8),
+        SIZE(4),
+        DELIVERY_COUNT(4),
+        LABEL(4),
+        CONTENT_TYPE(4);
+
+        final int width;
+
+        Column(int width) {
+            this.width = width;
+        }
+    }
+
+    /** The byte offset of the column in a block, up to the body region. */
+    static long columnOffset(Column column, int rowCount, boolean hasBodies) {
+        long offset = 0;
+        for (Column before : Column.values()) {
+            if (before == column) {
+                return offset;
+            }
+            offset += columnSize(before, rowCount, hasBodies);
+        }
+        return offset;
+    }
+
+    static long blockSize(int rowCount, boolean hasBodies) {
+        // the body region starts at a multiple of 8
+        return (columnOffset(null, rowCount, hasBodies) + 7) & ~7L;
+    }
+
+    private static long columnSize(Column column, int rowCount, boolean hasBodies) {
+        if (column == Column.BODY_OFFSET) {
+            return hasBodies ? (long) (rowCount + 1) * column.width : 0;
+        }
+        return (long) rowCount * column.width;
+    }
+
+    static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return ((a ^ sum) & (b ^ sum)) < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private interface RowConsumer {
+        void accept(Block block, int row);
+    }
+
+    private static final class Block {
+        final int rowCount;
+        final long minSequenceNumber;
+        final long maxSequenceNumber;
+        final long minEnqueuedMillis;
+        final long maxEnqueuedMillis;
+        final int[] columnOffsets = new int[Column.values().length];
+        ByteBuffer buffer;
+
+        Block(int rowCount, boolean hasBodies, long minSequenceNumber, long maxSequenceNumber, long minEnqueuedMillis, long maxEnqueuedMillis) {
+            this.rowCount = rowCount;
+            this.minSequenceNumber = minSequenceNumber;
+            this.maxSequenceNumber = maxSequenceNumber;
+            this.minEnqueuedMillis = minEnqueuedMillis;
+            this.maxEnqueuedMillis = maxEnqueuedMillis;
+            for (Column column : Column.values()) {
+                this.columnOffsets[column.ordinal()] = (int) columnOffset(column, rowCount, hasBodies);
+            }
+        }
+
+        int column(Column column, int row) {
+            return this.columnOffsets[column.ordinal()] + row * column.width;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.messagebrowse;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.samples.messagebrowse.QueueSnapshot.Column;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes messages, typically peeked with a {@link MessageBrowser}, into a {@link QueueSnapshot}
+ * file.
+ * <p>
+ * The writer collects the columns of one block in arrays and appends the block to the file when
+ * it is full, so it holds at most one block of messages and, with bodies, up to 64 MB of bodies
+ * in memory. {@link #close} writes the footer; a file whose writer was not closed does not open
+ * as a snapshot. The class is not thread-safe.
+ */
+public class SnapshotWriter implements AutoCloseable {
+
+    static final int DEFAULT_BLOCK_ROW_COUNT = 1 << 16;
+    static final int DEFAULT_BLOCK_BODY_BYTES = 64 << 20;
+
+    private final FileChannel channel;
+    private final boolean includeBodies;
+    private final int blockRowCount;
+    private final int blockBodyBytes;
+    private final Map<String, Integer> dictionaryIndexes = new HashMap<>();
+    private final List<String> dictionary = new ArrayList<>();
+    private final List<long[]> blockEntries = new ArrayList<>();
+    private final long[] sequenceNumbers;
+    private final long[] enqueuedMillis;
+    private final long[] timeToLiveMillis;
+    private final int[] sizes;
+    private final int[] deliveryCounts;
+    private final int[] labels;
+    private final int[] contentTypes;
+    private final long[] bodyOffsets;
+    private byte[] bodies = new byte[0];
+    private int rows;
+    private long position;
+    private long messageCount;
+    private boolean closed;
+
+    public SnapshotWriter(Path file, boolean includeBodies) throws IOException {
+        this(file, includeBodies, DEFAULT_BLOCK_ROW_COUNT, DEFAULT_BLOCK_BODY_BYTES);
+    }
+
+    SnapshotWriter(Path file, boolean includeBodies, int blockRowCount, int blockBodyBytes) throws IOException {
+        if (blockRowCount <= 0) {
+            throw new IllegalArgumentException("blockRowCount must be greater than 0.");
+        }
+        this.includeBodies = includeBodies;
+        this.blockRowCount = blockRowCount;
+        this.blockBodyBytes = blockBodyBytes;
+        this.sequenceNumbers = new long[blockRowCount];
+        this.enqueuedMillis = new long[blockRowCount];
+        this.timeToLiveMillis = new long[blockRowCount];
+        this.sizes = new int[blockRowCount];
+        this.deliveryCounts = new int[blockRowCount];
+        this.labels = new int[blockRowCount];
+        this.contentTypes = new int[blockRowCount];
+        this.bodyOffsets = new long[includeBodies ? blockRowCount + 1 : 0];
+        // index 0 stands for null
+        this.dictionary.add(null);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(QueueSnapshot.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(QueueSnapshot.MAGIC).putInt(QueueSnapshot.VERSION).putInt(includeBodies ? QueueSnapshot.FLAG_BODIES : 0);
+        header.flip();
+        this.write(header);
+    }
+
+    /**
+     * Writes all messages of the iterator into a new snapshot file.
+     *
+     * @return the number of messages written
+     */
+    public static long export(Iterator<IMessage> messages, Path file, boolean includeBodies) throws IOException {
+        try (SnapshotWriter writer = new SnapshotWriter(file, includeBodies)) {
+            while (messages.hasNext()) {
+                writer.append(messages.next());
+            }
+            return writer.getMessageCount();
+        }
+    }
+
+    public long getMessageCount() {
+        return this.messageCount;
+    }
+
+    public void append(IMessage message) throws IOException {
+        if (this.closed) {
+            throw new IllegalStateException("Operation not allowed after the SnapshotWriter instance is closed.");
+        }
+        byte[] body = message.getBody();
+        int bodyLength = body == null ? 0 : body.length;
+        if (this.includeBodies && this.rows > 0 && this.bodyOffsets[this.rows] + bodyLength > this.blockBodyBytes) {
+            this.writeBlock();
+        }
+        int row = this.rows;
+        Instant enqueued = message.getEnqueuedTimeUtc();
+        this.sequenceNumbers[row] = message.getSequenceNumber();
+        this.enqueuedMillis[row] = enqueued == null ? 0 : enqueued.toEpochMilli();
+        this.timeToLiveMillis[row] = toMillis(message.getTimeToLive());
+        this.sizes[row] = bodyLength;
+        this.deliveryCounts[row] = (int) Math.min(Integer.MAX_VALUE, message.getDeliveryCount());
+        this.labels[row] = this.indexOf(message.getLabel());
+        this.contentTypes[row] = this.indexOf(message.getContentType());
+        if (this.includeBodies) {
+            long offset = this.bodyOffsets[row];
+            if (offset + bodyLength > this.bodies.length) {
+                this.bodies = Arrays.copyOf(this.bodies, (int) Math.max(offset + bodyLength, Math.min(Integer.MAX_VALUE - 8, this.bodies.length * 2L + 1024)));
+            }
+            if (bodyLength > 0) {
+                System.arraycopy(body, 0, this.bodies, (int) offset, bodyLength);
+            }
+            this.bodyOffsets[row + 1] = offset + bodyLength;
+        }
+        this.rows++;
+        this.messageCount++;
+        if (this.rows == this.blockRowCount) {
+            this.writeBlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            if (this.rows > 0) {
+                this.writeBlock();
+            }
+            this.writeFooter();
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    private int indexOf(String value) {
+        if (value == null) {
+            return QueueSnapshot.NO_STRING;
+        }
+        Integer index = this.dictionaryIndexes.get(value);
+        if (index == null) {
+            index = this.dictionary.size();
+            this.dictionary.add(value);
+            this.dictionaryIndexes.put(value, index);
+        }
+        return index;
+    }
+
+    private void writeBlock() throws IOException {
+        int rowCount = this.rows;
+        long bodyBytes = this.includeBodies ? this.bodyOffsets[rowCount] : 0;
+        long columnsSize = QueueSnapshot.blockSize(rowCount, this.includeBodies);
+        ByteBuffer block = ByteBuffer.allocate((int) (columnsSize + bodyBytes)).order(ByteOrder.LITTLE_ENDIAN);
+        long minSequenceNumber = Long.MAX_VALUE;
+        long maxSequenceNumber = Long.MIN_VALUE;
+        long minEnqueued = Long.MAX_VALUE;
+        long maxEnqueued = Long.MIN_VALUE;
+        for (int row = 0; row < rowCount; row++) {
+            minSequenceNumber = Math.min(minSequenceNumber, this.sequenceNumbers[row]);
+            maxSequenceNumber = Math.max(maxSequenceNumber, this.sequenceNumbers[row]);
+            minEnqueued = Math.min(minEnqueued, this.enqueuedMillis[row]);
+            maxEnqueued = Math.max(maxEnqueued, this.enqueuedMillis[row]);
+        }
+        block.asLongBuffer().put(this.sequenceNumbers, 0, rowCount);
+        block.position((int) QueueSnapshot.columnOffset(Column.ENQUEUED_TIME, rowCount, this.includeBodies));
+        block.asLongBuffer().put(this.enqueuedMillis, 0, rowCount);
+        block.position((int) QueueSnapshot.columnOffset(Column.TIME_TO_LIVE, rowCount, this.includeBodies));
+        block.asLongBuffer().put(this.timeToLiveMillis, 0, rowCount);
+        if (this.includeBodies) {
+            block.position((int) QueueSnapshot.columnOffset(Column.BODY_OFFSET, rowCount, true));
+            block.asLongBuffer().put(this.bodyOffsets, 0, rowCount + 1);
+        }
+        block.position((int) QueueSnapshot.columnOffset(Column.SIZE, rowCount, this.includeBodies));
+        block.asIntBuffer().put(this.sizes, 0, rowCount);
+        block.position((int) QueueSnapshot.columnOffset(Column.DELIVERY_COUNT, rowCount, this.includeBodies));
+        block.asIntBuffer().put(this.deliveryCounts, 0, rowCount);
+        block.position((int) QueueSnapshot.columnOffset(Column.LABEL, rowCount, this.includeBodies));
+        block.asIntBuffer().put(this.labels, 0, rowCount);
+        block.position((int) QueueSnapshot.columnOffset(Column.CONTENT_TYPE, rowCount, this.includeBodies));
+        block.asIntBuffer().put(this.contentTypes, 0, rowCount);
+        block.position((int) columnsSize);
+        block.put(this.bodies, 0, (int) bodyBytes);
+        block.flip();
+
+        this.blockEntries.add(new long[]{this.position, rowCount, bodyBytes, minSequenceNumber, maxSequenceNumber, minEnqueued, maxEnqueued});
+        this.write(block);
+        this.rows = 0;
+    }
+
+    private void writeFooter() throws IOException {
+        List<byte[]> strings = new ArrayList<>();
+        int size = 4 + 4 + this.blockEntries.size() * QueueSnapshot.BLOCK_ENTRY_SIZE + QueueSnapshot.TRAILER_SIZE;
+        for (int i = 1; i < this.dictionary.size(); i++) {
+            byte[] bytes = this.dictionary.get(i).getBytes(UTF_8);
+            strings.add(bytes);
+            size += 4 + bytes.length;
+        }
+        ByteBuffer footer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        long footerOffset = this.position;
+        footer.putInt(this.dictionary.size());
+        for (byte[] bytes : strings) {
+            footer.putInt(bytes.length).put(bytes);
+        }
+        footer.putInt(this.blockEntries.size());
+        for (long[] entry : this.blockEntries) {
+            footer.putLong(entry[0]).putInt((int) entry[1]).putLong(entry[2]);
+            for (int i = 3; i < entry.length; i++) {
+                footer.putLong(entry[i]);
+            }
+        }
+        footer.putLong(footerOffset).putLong(QueueSnapshot.MAGIC);
+        footer.flip();
+        this.write(footer);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.position += this.channel.write(buffer, this.position);
+        }
+    }
+
+    private static long toMillis(Duration duration) {
+        if (duration == null) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return duration.toMillis();
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
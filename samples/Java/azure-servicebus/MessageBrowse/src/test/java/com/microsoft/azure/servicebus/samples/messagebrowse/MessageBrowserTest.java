@@ -0,0 +1,167 @@
+package com.microsoft.azure.servicebus.samples.messagebrowse;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessageBrowserTest {
+
+    private ServiceBusEmulator emulator;
+
+    @Before
+    public void setUp() throws Exception {
+        emulator = new ServiceBusEmulator();
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            batch.add(new Message("message " + i));
+            if (batch.size() == 100) {
+                sender.sendBatch(batch);
+                batch.clear();
+            }
+        }
+        sender.close();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void browsesEveryMessageOnceInPages() {
+        try (MessageBrowser browser = new MessageBrowser(emulator.createMessageReceiver("BasicQueue"))) {
+            long previous = 0;
+            int count = 0;
+            while (browser.hasNext()) {
+                IMessage message = browser.next();
+                Assert.assertTrue(message.getSequenceNumber() > previous);
+                previous = message.getSequenceNumber();
+                count++;
+            }
+            Assert.assertEquals(1000, count);
+            Assert.assertEquals(10, browser.getPageCount());
+            Assert.assertFalse(browser.hasNext());
+        }
+        Assert.assertEquals(1000, emulator.getEntity("BasicQueue").getActiveMessageCount());
+    }
+
+    @Test
+    public void scansRangesConcurrentlyWithinTheBufferLimit() throws Exception {
+        emulator.setRoundTripLatency(Duration.ofMillis(20));
+        List<IMessageReceiver> receivers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            receivers.add(emulator.createMessageReceiver("BasicQueue"));
+        }
+        // the first receiver drops 100 messages, so that the ranges have gaps
+        IMessageReceiver consumer = emulator.createMessageReceiver("BasicQueue", ReceiveMode.RECEIVEANDDELETE);
+        Assert.assertEquals(100, consumer.receiveBatch(100, Duration.ofSeconds(1)).size());
+
+        long start = System.nanoTime();
+        try (MessageBrowser browser = new MessageBrowser(receivers, MessageBrowser.splitRange(1, 1001, 10), 50, 5)) {
+            Map<Long, IMessage> seen = new HashMap<>();
+            List<IMessage> page;
+            while ((page = browser.nextPage()) != null) {
+                for (IMessage message : page) {
+                    Assert.assertNull(seen.put(message.getSequenceNumber(), message));
+                }
+                // the scanners stop once 5 pages are pending or buffered
+                Thread.sleep(5);
+            }
+            Assert.assertEquals(900, seen.size());
+            Assert.assertEquals(900, browser.getMessageCount());
+            // 20 pages of 50 messages, 5 at a time, take about 4 round trips rather than 20
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(300));
+            Assert.assertTrue(browser.getPagesPerSecond() > 0);
+        }
+    }
+
+    @Test
+    public void openLastRangeBrowsesLaterMessages() {
+        List<MessageBrowser.Range> ranges = MessageBrowser.splitRange(1, 501, 4);
+        Assert.assertEquals(4, ranges.size());
+        try (MessageBrowser browser = new MessageBrowser(Collections.singletonList(emulator.createMessageReceiver("BasicQueue")), ranges, 64, 2)) {
+            int count = 0;
+            while (browser.hasNext()) {
+                browser.next();
+                count++;
+            }
+            Assert.assertEquals(1000, count);
+        }
+    }
+
+    @Test
+    public void failedPeekEndsTheBrowse() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        receiver.close();
+        try (MessageBrowser browser = new MessageBrowser(receiver)) {
+            browser.hasNext();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertNotNull(e.getCause());
+        }
+    }
+
+    @Test
+    public void peekThatThrowsEndsTheBrowse() throws Exception {
+        IMessageReceiver inner = emulator.createMessageReceiver("BasicQueue");
+        AtomicInteger peeks = new AtomicInteger();
+        // the third peek throws instead of returning a failed future; with one buffered page it
+        // is issued from nextPage, when the consumer hands the credit back
+        IMessageReceiver receiver = (IMessageReceiver) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{IMessageReceiver.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("peekBatchAsync") && peeks.incrementAndGet() == 3) {
+                        throw new IllegalStateException("peek failed");
+                    }
+                    try {
+                        return method.invoke(inner, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        try (MessageBrowser browser = new MessageBrowser(Collections.singletonList(receiver), MessageBrowser.splitRange(1, 1001, 1), 100, 1)) {
+            CompletableFuture<Integer> browse = CompletableFuture.supplyAsync(() -> {
+                int pages = 0;
+                while (browser.nextPage() != null) {
+                    pages++;
+                }
+                return pages;
+            });
+            try {
+                browse.get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                // nextPage threw a CompletionException, which the future unwraps
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+    }
+
+    @Test
+    public void sampleBrowsesAllMessages() {
+        try (MessageBrowser browser = new MessageBrowser(emulator.createMessageReceiver("BasicQueue"))) {
+            Assert.assertEquals(1000, new MessageBrowse().browseMessages(browser));
+        }
+    }
+}
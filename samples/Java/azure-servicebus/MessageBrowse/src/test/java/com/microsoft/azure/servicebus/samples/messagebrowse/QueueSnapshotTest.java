@@ -0,0 +1,148 @@
+package com.microsoft.azure.servicebus.samples.messagebrowse;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class QueueSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ServiceBusEmulator emulator;
+    private List<IMessage> peeked;
+
+    @Before
+    public void setUp() throws Exception {
+        emulator = new ServiceBusEmulator();
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Message message = new Message(("body " + i).getBytes(UTF_8));
+            message.setLabel(i % 4 == 0 ? "Scientist" : i % 4 == 1 ? "Artist" : i % 4 == 2 ? null : "Reminder");
+            message.setContentType(i % 2 == 0 ? "application/json" : "text/plain");
+            message.setTimeToLive(i % 10 == 0 ? Duration.ofMillis(1) : Duration.ofDays(1));
+            batch.add(message);
+            if (batch.size() == 100) {
+                sender.sendBatch(batch);
+                batch.clear();
+            }
+        }
+        sender.close();
+        peeked = new ArrayList<>();
+        MessageBrowser browser = new MessageBrowser(emulator.createMessageReceiver("BasicQueue"));
+        browser.forEachRemaining(peeked::add);
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void queriesMatchTheMessages() throws Exception {
+        Path file = write(true, 64);
+        try (QueueSnapshot snapshot = QueueSnapshot.open(file)) {
+            Assert.assertEquals(1000, snapshot.getMessageCount());
+            Assert.assertEquals(16, snapshot.getBlockCount());
+
+            Map<String, Long> labels = snapshot.query().countByLabel();
+            Assert.assertEquals(250L, labels.get("Scientist").longValue());
+            Assert.assertEquals(250L, labels.get(null).longValue());
+            Assert.assertEquals(4, labels.size());
+
+            Assert.assertEquals(250, snapshot.query().label("Scientist").contentType("application/json").count());
+            Assert.assertEquals(0, snapshot.query().label("Scientist").contentType("text/plain").count());
+            Assert.assertEquals(0, snapshot.query().label("Unknown").count());
+            Assert.assertEquals(250, snapshot.query().label(null).count());
+
+            long first = peeked.get(0).getSequenceNumber();
+            QueueSnapshot.Aggregate range = snapshot.query().sequenceNumbers(first + 100, first + 200).aggregate();
+            Assert.assertEquals(100, range.getCount());
+            long size = 0;
+            for (IMessage message : peeked.subList(100, 200)) {
+                size += message.getBody().length;
+            }
+            Assert.assertEquals(size, range.getTotalSize());
+            Assert.assertEquals(peeked.get(100).getEnqueuedTimeUtc().toEpochMilli(), range.getMinEnqueuedTime().toEpochMilli());
+
+            Assert.assertEquals(100, snapshot.query().expiresBefore(Instant.now().plusSeconds(60)).count());
+            Assert.assertEquals(1000, snapshot.query().enqueuedBetween(Instant.now().minusSeconds(60), Instant.now().plusSeconds(1)).count());
+            Assert.assertEquals(0, snapshot.query().minDeliveryCount(1).count());
+            Assert.assertArrayEquals(new long[]{first + 1, first + 5}, snapshot.query().label("Artist").sequenceNumbers(2));
+            Assert.assertEquals(0, snapshot.query().sequenceNumbers(first + 2000, Long.MAX_VALUE).aggregate().getCount());
+            Assert.assertNull(snapshot.query().sequenceNumbers(first + 2000, Long.MAX_VALUE).aggregate().getMinEnqueuedTime());
+        }
+    }
+
+    @Test
+    public void bodiesAreKeptWhenRequested() throws Exception {
+        try (QueueSnapshot snapshot = QueueSnapshot.open(write(true, 100))) {
+            Assert.assertTrue(snapshot.hasBodies());
+            for (IMessage message : peeked.subList(0, 1000)) {
+                Assert.assertArrayEquals(message.getBody(), snapshot.getBody(message.getSequenceNumber()));
+            }
+            Assert.assertNull(snapshot.getBody(-1));
+        }
+        try (QueueSnapshot snapshot = QueueSnapshot.open(write(false, 100))) {
+            Assert.assertFalse(snapshot.hasBodies());
+            Assert.assertEquals(250, snapshot.query().label("Artist").count());
+            try {
+                snapshot.getBody(peeked.get(0).getSequenceNumber());
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unfinishedFileIsRejected() throws Exception {
+        Path file = folder.newFile().toPath();
+        SnapshotWriter writer = new SnapshotWriter(file, false, 64, 1 << 20);
+        for (IMessage message : peeked) {
+            writer.append(message);
+        }
+        // the writer is not closed, as if the export had been interrupted
+        QueueSnapshot.open(file);
+    }
+
+    @Test
+    public void sampleExportsAndQueriesSnapshot() throws Exception {
+        Path file = folder.newFile().toPath();
+        try (MessageBrowser browser = new MessageBrowser(emulator.createMessageReceiver("BasicQueue"))) {
+            // the scientists with a time to live of 1 ms may have been removed by now
+            long scientists = new MessageBrowse().exportSnapshot(browser, file).getCount();
+            Assert.assertTrue(scientists >= 200 && scientists <= 250);
+        }
+        Assert.assertTrue(Files.size(file) > 0);
+    }
+
+    private Path write(boolean includeBodies, int blockRowCount) throws IOException {
+        Path file = folder.newFile().toPath();
+        try (SnapshotWriter writer = new SnapshotWriter(file, includeBodies, blockRowCount, 1 << 20)) {
+            for (IMessage message : peeked) {
+                writer.append(message);
+            }
+        }
+        return file;
+    }
+}
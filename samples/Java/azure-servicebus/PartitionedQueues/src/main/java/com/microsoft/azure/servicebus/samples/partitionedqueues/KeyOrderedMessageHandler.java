@@ -0,0 +1,206 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.partitionedqueues;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * An {@link IMessageHandler} that runs another handler on a number of lanes, one message at a
+ * time per lane, with all messages of the same key on the same lane.
+ * <p>
+ * The key is the message's SessionId, or its PartitionKey when it has no session, unless a key
+ * extractor is given. Messages without a key are spread by MessageId. Messages with the same key
+ * are handled one after the other, in the order in which {@code onMessageAsync} was called for
+ * them, while messages of different keys are handled in parallel on up to {@code laneCount}
+ * threads of the executor.
+ * <p>
+ * The future {@code onMessageAsync} returns completes with the outcome of the wrapped handler,
+ * so the message pump renews the lock of a message, also while it waits on its lane, and settles
+ * it as usual. The pump therefore needs as many concurrent calls as messages should be in flight;
+ * register the handler with {@link #getMaxConcurrentCalls}, {@code laneCapacity} messages per
+ * lane. The order within a key is the order of the {@code onMessageAsync} calls; two concurrent
+ * pump calls that receive messages of the same key at nearly the same moment can call it in
+ * either order, so use sessions where that order must be strict.
+ * <p>
+ * If the executor rejects a lane, the messages queued on it fail with the rejection and are
+ * handed back to the pump, which abandons them when auto-complete is on.
+ */
+public class KeyOrderedMessageHandler implements IMessageHandler {
+
+    public static final int DEFAULT_LANE_CAPACITY = 16;
+
+    private final IMessageHandler handler;
+    private final Function<IMessage, String> keyExtractor;
+    private final Executor executor;
+    private final int laneCapacity;
+    private final Lane[] lanes;
+    private final AtomicLong handledCount = new AtomicLong();
+
+    public KeyOrderedMessageHandler(IMessageHandler handler, int laneCount, Executor executor) {
+        this(handler, laneCount, DEFAULT_LANE_CAPACITY, KeyOrderedMessageHandler::defaultKeyOf, executor);
+    }
+
+    public KeyOrderedMessageHandler(IMessageHandler handler, int laneCount, int laneCapacity, Function<IMessage, String> keyExtractor, Executor executor) {
+        if (laneCount <= 0 || laneCapacity <= 0) {
+            throw new IllegalArgumentException("laneCount and laneCapacity must be greater than 0.");
+        }
+        this.handler = handler;
+        this.keyExtractor = keyExtractor;
+        this.executor = executor;
+        this.laneCapacity = laneCapacity;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            this.lanes[i] = new Lane();
+        }
+    }
+
+    static String defaultKeyOf(IMessage message) {
+        if (message.getSessionId() != null) {
+            return message.getSessionId();
+        }
+        return message.getPartitionKey() != null ? message.getPartitionKey() : message.getMessageId();
+    }
+
+    int laneOf(IMessage message) {
+        String key = this.keyExtractor.apply(message);
+        if (key == null) {
+            return 0;
+        }
+        int hash = key.hashCode();
+        // spread the high bits, keys often differ only in their last characters
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, this.lanes.length);
+    }
+
+    public int getLaneCount() {
+        return this.lanes.length;
+    }
+
+    /**
+     * The concurrent calls to register the handler with: {@code laneCapacity} for every lane.
+     */
+    public int getMaxConcurrentCalls() {
+        return this.lanes.length * this.laneCapacity;
+    }
+
+    /**
+     * Number of messages queued on all lanes, not counting those being handled.
+     */
+    public int getQueuedMessageCount() {
+        int count = 0;
+        for (Lane lane : this.lanes) {
+            count += lane.size();
+        }
+        return count;
+    }
+
+    /**
+     * Number of messages the wrapped handler has finished with, successfully or not.
+     */
+    public long getHandledMessageCount() {
+        return this.handledCount.get();
+    }
+
+    @Override
+    public CompletableFuture<Void> onMessageAsync(IMessage message) {
+        return this.lanes[this.laneOf(message)].enqueue(message);
+    }
+
+    @Override
+    public void notifyException(Throwable exception, ExceptionPhase phase) {
+        this.handler.notifyException(exception, phase);
+    }
+
+    private static final class Pending {
+        final IMessage message;
+        final CompletableFuture<Void> handled = new CompletableFuture<>();
+
+        Pending(IMessage message) {
+            this.message = message;
+        }
+    }
+
+    private final class Lane {
+        private final Queue<Pending> messages = new ArrayDeque<>();
+        private boolean running;
+
+        synchronized int size() {
+            return this.messages.size();
+        }
+
+        CompletableFuture<Void> enqueue(IMessage message) {
+            Pending pending = new Pending(message);
+            boolean start = false;
+            synchronized (this) {
+                this.messages.add(pending);
+                if (!this.running) {
+                    this.running = true;
+                    start = true;
+                }
+            }
+            if (start) {
+                this.schedule();
+            }
+            return pending.handled;
+        }
+
+        private void schedule() {
+            try {
+                KeyOrderedMessageHandler.this.executor.execute(this::handleNext);
+            } catch (RejectedExecutionException e) {
+                // shutting down; hand the queued messages back to the pump instead of leaving their calls waiting
+                List<Pending> rejected;
+                synchronized (this) {
+                    this.running = false;
+                    rejected = new ArrayList<>(this.messages);
+                    this.messages.clear();
+                }
+                for (Pending pending : rejected) {
+                    pending.handled.completeExceptionally(e);
+                }
+            }
+        }
+
+        private void handleNext() {
+            Pending pending;
+            synchronized (this) {
+                pending = this.messages.poll();
+                if (pending == null) {
+                    this.running = false;
+                    return;
+                }
+            }
+
+            CompletableFuture<Void> handled;
+            try {
+                handled = KeyOrderedMessageHandler.this.handler.onMessageAsync(pending.message);
+            } catch (Throwable t) {
+                handled = new CompletableFuture<>();
+                handled.completeExceptionally(t);
+            }
+            handled.whenComplete((v, error) -> {
+                KeyOrderedMessageHandler.this.handledCount.incrementAndGet();
+                // the next message of the lane starts first, so the pump settling this one does not delay it
+                this.schedule();
+                if (error != null) {
+                    pending.handled.completeExceptionally(error);
+                } else {
+                    pending.handled.complete(null);
+                }
+            });
+        }
+    }
+}
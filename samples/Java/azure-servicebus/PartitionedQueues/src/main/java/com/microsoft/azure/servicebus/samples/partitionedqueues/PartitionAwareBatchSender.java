@@ -0,0 +1,350 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.partitionedqueues;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+import com.microsoft.azure.servicebus.samples.common.Futures;
+import com.microsoft.azure.servicebus.samples.common.MessageSize;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An {@link IMessageSender} for partitioned entities that batches messages per partition key.
+ * <p>
+ * All messages of a batch sent to a partitioned entity must go to the same partition, so this
+ * sender keeps one pending batch per key. The key is the message's SessionId if it has one, and
+ * its PartitionKey otherwise; messages with neither form a group of their own. Each group is
+ * flushed with {@code sendBatchAsync} when the next message would exceed the maximum batch size,
+ * or when the linger time has passed since the group's first message, independently of the other
+ * groups. Every message keeps its own future. A group is dropped once it has been flushed, so keys
+ * that are no longer used do not hold memory. A message larger than the maximum batch size is
+ * sent on its own, after the batch its key had collected before it. Sizes are estimated by
+ * {@link MessageSize}.
+ * <p>
+ * A flushed batch is queued under its group's lock and sent after the lock is released, by one
+ * thread at a time in the order the batches were queued, so a slow or throwing sender never runs
+ * while a group is locked. A send that throws fails the futures of its messages.
+ */
+public class PartitionAwareBatchSender implements IMessageSender {
+
+    // the message size limit of a Standard tier namespace, which also applies to a batch
+    public static final int DEFAULT_MAX_BATCH_SIZE_IN_BYTES = 256 * 1024;
+    public static final Duration DEFAULT_LINGER = Duration.ofMillis(10);
+
+    // group key of messages without SessionId and PartitionKey; not a valid partition key
+    private static final String NO_PARTITION_KEY = "\u0000";
+
+    private final IMessageSender sender;
+    private final int maxBatchSizeInBytes;
+    private final long lingerNanos;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentHashMap<String, PartitionBatch> batches = new ConcurrentHashMap<>();
+    private final Map<CompletableFuture<Void>, Boolean> batchesInFlight = new ConcurrentHashMap<>();
+    private final Queue<Runnable> sendQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong batchCount = new AtomicLong();
+    // adds hold the read lock, closing takes the write lock, so no message is added after the final flush
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed;
+
+    public PartitionAwareBatchSender(IMessageSender sender) {
+        this(sender, DEFAULT_MAX_BATCH_SIZE_IN_BYTES, DEFAULT_LINGER);
+    }
+
+    public PartitionAwareBatchSender(IMessageSender sender, int maxBatchSizeInBytes, Duration linger) {
+        if (maxBatchSizeInBytes <= 0) {
+            throw new IllegalArgumentException("maxBatchSizeInBytes must be greater than 0.");
+        }
+        this.sender = sender;
+        this.maxBatchSizeInBytes = maxBatchSizeInBytes;
+        this.lingerNanos = linger.toNanos();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "partition-aware-batch-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static String partitionKeyOf(IMessage message) {
+        if (message.getSessionId() != null) {
+            return message.getSessionId();
+        }
+        return message.getPartitionKey() != null ? message.getPartitionKey() : NO_PARTITION_KEY;
+    }
+
+    /**
+     * Number of batches sent so far.
+     */
+    public long getBatchCount() {
+        return this.batchCount.get();
+    }
+
+    /**
+     * Number of partition keys that currently have a pending batch.
+     */
+    public int getPendingPartitionCount() {
+        return this.batches.size();
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(IMessage message) {
+        int size = MessageSize.estimate(message);
+        String key = partitionKeyOf(message);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        this.closeLock.readLock().lock();
+        try {
+            if (this.closed) {
+                return closedFuture();
+            }
+            while (true) {
+                PartitionBatch batch = this.batches.computeIfAbsent(key, PartitionBatch::new);
+                // too large to share a batch; the service decides whether it fits on its own
+                boolean added = size > this.maxBatchSizeInBytes ? batch.addAlone(message, future) : batch.add(message, size, future);
+                if (added) {
+                    break;
+                }
+                // the batch was flushed and retired in the meantime; start a new one
+            }
+        } finally {
+            this.closeLock.readLock().unlock();
+        }
+        this.drain();
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> sendBatchAsync(Collection<? extends IMessage> messages) {
+        List<CompletableFuture<Void>> sends = new ArrayList<>(messages.size());
+        for (IMessage message : messages) {
+            sends.add(this.sendAsync(message));
+        }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()]));
+    }
+
+    /**
+     * Sends the pending batches of all partition keys without waiting for their linger time.
+     */
+    public void flush() {
+        for (PartitionBatch batch : this.batches.values()) {
+            batch.flush(true);
+        }
+        this.drain();
+    }
+
+    private CompletableFuture<Void> track(CompletableFuture<Void> send) {
+        this.batchesInFlight.put(send, Boolean.TRUE);
+        send.whenComplete((v, error) -> this.batchesInFlight.remove(send));
+        return send;
+    }
+
+    // called with the group's lock held; the batch counts as in flight from here, so that closing waits for it.
+    // A message sent alone goes through sendAsync and does not count as a batch
+    private void enqueue(List<IMessage> batch, List<CompletableFuture<Void>> batchFutures, boolean alone) {
+        CompletableFuture<Void> sent = this.track(new CompletableFuture<>());
+        sent.whenComplete((v, error) -> {
+            for (CompletableFuture<Void> future : batchFutures) {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(null);
+                }
+            }
+        });
+        if (!alone) {
+            this.batchCount.incrementAndGet();
+        }
+        this.sendQueue.add(() -> {
+            CompletableFuture<Void> send;
+            try {
+                send = alone ? this.sender.sendAsync(batch.get(0)) : this.sender.sendBatchAsync(batch);
+            } catch (RuntimeException e) {
+                sent.completeExceptionally(e);
+                return;
+            }
+            send.whenComplete((v, error) -> {
+                if (error != null) {
+                    sent.completeExceptionally(error);
+                } else {
+                    sent.complete(null);
+                }
+            });
+        });
+    }
+
+    // starts the queued sends outside the locks; one thread starts them at a time, so they keep
+    // their order, and a thread that finds another one draining leaves its batches to it
+    private void drain() {
+        while (!this.sendQueue.isEmpty() && this.draining.compareAndSet(false, true)) {
+            try {
+                for (Runnable send; (send = this.sendQueue.poll()) != null; ) {
+                    send.run();
+                }
+            } finally {
+                this.draining.set(false);
+            }
+        }
+    }
+
+    private final class PartitionBatch {
+        private final String key;
+        private List<IMessage> messages = new ArrayList<>();
+        private List<CompletableFuture<Void>> futures = new ArrayList<>();
+        private int sizeInBytes;
+        private ScheduledFuture<?> lingerFlush;
+        private boolean retired;
+
+        PartitionBatch(String key) {
+            this.key = key;
+        }
+
+        synchronized boolean add(IMessage message, int size, CompletableFuture<Void> future) {
+            if (this.retired) {
+                return false;
+            }
+            if (this.sizeInBytes + size > PartitionAwareBatchSender.this.maxBatchSizeInBytes) {
+                this.flush(false);
+            }
+            this.messages.add(message);
+            this.futures.add(future);
+            this.sizeInBytes += size;
+            if (this.messages.size() == 1) {
+                try {
+                    this.lingerFlush = PartitionAwareBatchSender.this.timer.schedule(() -> {
+                        this.flush(true);
+                        PartitionAwareBatchSender.this.drain();
+                    }, PartitionAwareBatchSender.this.lingerNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // closing; send right away
+                    this.flush(true);
+                }
+            }
+            return true;
+        }
+
+        // queues the group's pending batch and then the message, so it does not overtake earlier
+        // messages of its key, and retires the emptied group
+        synchronized boolean addAlone(IMessage message, CompletableFuture<Void> future) {
+            if (this.retired) {
+                return false;
+            }
+            this.flush(false);
+            PartitionAwareBatchSender.this.enqueue(Collections.singletonList(message), Collections.singletonList(future), true);
+            this.flush(true);
+            return true;
+        }
+
+        // retire removes the group from the map; a full group that keeps receiving messages stays.
+        // The batch is only queued here; the caller sends it with drain once the lock is released
+        synchronized void flush(boolean retire) {
+            if (this.lingerFlush != null) {
+                this.lingerFlush.cancel(false);
+                this.lingerFlush = null;
+            }
+            if (!this.messages.isEmpty()) {
+                List<IMessage> batch = this.messages;
+                List<CompletableFuture<Void>> batchFutures = this.futures;
+                this.messages = new ArrayList<>(batch.size());
+                this.futures = new ArrayList<>(batch.size());
+                this.sizeInBytes = 0;
+                // queued before the group is retired, so a new group for the key queues after it
+                PartitionAwareBatchSender.this.enqueue(batch, batchFutures, false);
+            }
+            if (retire && !this.retired) {
+                this.retired = true;
+                PartitionAwareBatchSender.this.batches.remove(this.key, this);
+            }
+        }
+    }
+
+    @Override
+    public void send(IMessage message) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendAsync(message));
+    }
+
+    @Override
+    public void sendBatch(Collection<? extends IMessage> messages) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendBatchAsync(messages));
+    }
+
+    @Override
+    public CompletableFuture<Long> scheduleMessageAsync(IMessage message, Instant scheduledEnqueueTimeUtc) {
+        return this.sender.scheduleMessageAsync(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public CompletableFuture<Void> cancelScheduledMessageAsync(long sequenceNumber) {
+        return this.sender.cancelScheduledMessageAsync(sequenceNumber);
+    }
+
+    @Override
+    public long scheduleMessage(IMessage message, Instant scheduledEnqueueTimeUtc) throws InterruptedException, ServiceBusException {
+        return this.sender.scheduleMessage(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public void cancelScheduledMessage(long sequenceNumber) throws InterruptedException, ServiceBusException {
+        this.sender.cancelScheduledMessage(sequenceNumber);
+    }
+
+    @Override
+    public String getEntityPath() {
+        return this.sender.getEntityPath();
+    }
+
+    /**
+     * Flushes all pending batches, waits for the batches in flight and closes the underlying sender.
+     */
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        this.closeLock.writeLock().lock();
+        try {
+            this.closed = true;
+        } finally {
+            this.closeLock.writeLock().unlock();
+        }
+        // no add is in progress or can start any more, so this flush queues the last batches
+        this.flush();
+        this.timer.shutdown();
+        CompletableFuture<?>[] inFlight = this.batchesInFlight.keySet().toArray(new CompletableFuture<?>[0]);
+        return CompletableFuture.allOf(inFlight)
+                .handle((v, error) -> null)
+                .thenCompose(v -> this.sender.closeAsync());
+    }
+
+    @Override
+    public void close() throws ServiceBusException {
+        try {
+            Futures.await(this.closeAsync());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static CompletableFuture<Void> closedFuture() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException("Operation not allowed after the MessageSender instance is closed."));
+        return future;
+    }
+}
@@ -6,6 +6,7 @@ package com.microsoft.azure.servicebus.samples.partitionedqueues;
 import com.google.gson.reflect.TypeToken;
 import com.microsoft.azure.servicebus.*;
 import com.microsoft.azure.servicebus.primitives.ConnectionStringBuilder;
+import com.microsoft.azure.servicebus.samples.queuesgettingstarted.HandlerExecutionMode;
 import com.google.gson.Gson;
 
 import static java.nio.charset.StandardCharsets.*;
@@ -21,6 +22,9 @@ public class PartitionedQueues {
 
     static final Gson GSON = new Gson();
 
+    // the executor that runs the key lanes, set with -e on the command line
+    static HandlerExecutionMode executionMode = HandlerExecutionMode.FIXED_POOL;
+
     public void run(String connectionString) throws Exception {
 
         QueueClient sendClient;
@@ -30,21 +34,30 @@ public class PartitionedQueues {
         // We set the receive mode to "PeekLock", meaning the message is delivered
         // under a lock and must be acknowledged ("completed") to be removed from the queue
         receiveClient = new QueueClient(new ConnectionStringBuilder(connectionString, "PartitionedQueue"), ReceiveMode.PEEKLOCK);
-        // We are using single thread executor as we are only processing one message at a time
+        // The message pump runs on a single thread and only hands each message to the lane of its
+        // partition key; the lanes handle messages of different keys in parallel on the lane executor,
+        // while messages with the same key are still handled one at a time and in order.
+        // The lanes run on 4 platform threads by default; -e virtual_threads gives each lane task a virtual thread
     	ExecutorService executorService = Executors.newSingleThreadExecutor();
-        this.registerMessageHandler(receiveClient, executorService);
+        ExecutorService laneExecutorService = executionMode.newExecutor(4);
+        this.registerMessageHandler(receiveClient, executorService, laneExecutorService);
 
         sendClient = new QueueClient(new ConnectionStringBuilder(connectionString, "PartitionedQueue"), ReceiveMode.PEEKLOCK);
-        this.sendMessagesAsync(sendClient).thenRunAsync(()->sendClient.closeAsync());
+        // A batch sent to a partitioned queue must target a single partition. The PartitionAwareBatchSender
+        // keeps a separate batch, with its own linger timer, for each partition key.
+        // Closing it flushes the pending batches and closes the QueueClient.
+        PartitionAwareBatchSender batchSender = new PartitionAwareBatchSender(sendClient);
+        this.sendMessagesAsync(batchSender).thenRunAsync(()->batchSender.closeAsync());
 
         // wait for ENTER or 10 seconds elapsing
         waitForEnter(10);
 
         receiveClient.close();
         executorService.shutdown();
+        laneExecutorService.shutdown();
     }
 
-    CompletableFuture<Void> sendMessagesAsync(QueueClient sendClient) {
+    CompletableFuture<Void> sendMessagesAsync(IMessageSender sendClient) {
 
         List<HashMap<String, String>> data =
                 GSON.fromJson(
@@ -80,9 +93,9 @@ public class PartitionedQueues {
         return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()]));
     }
 
-    void registerMessageHandler(QueueClient receiveClient, ExecutorService executorService) throws Exception {
-        // register the RegisterMessageHandler callback    	
-        receiveClient.registerMessageHandler(new IMessageHandler() {
+    void registerMessageHandler(QueueClient receiveClient, ExecutorService executorService, ExecutorService laneExecutorService) throws Exception {
+        // register the RegisterMessageHandler callback, dispatched to 4 lanes by partition key
+        KeyOrderedMessageHandler handler = new KeyOrderedMessageHandler(new IMessageHandler() {
                   // callback invoked when the message handler loop has obtained a message
                   public CompletableFuture<Void> onMessageAsync(IMessage message) {
                       // receives message is passed to callback
@@ -105,16 +118,19 @@ public class PartitionedQueues {
                                   scientist != null ? scientist.get("firstName") : "",
                                   scientist != null ? scientist.get("name") : "");
                       }
-                      return receiveClient.completeAsync(message.getLockToken());
+                      // the pump completes the message once the returned future is done
+                      return CompletableFuture.completedFuture(null);
                   }
 
                   // callback invoked when the message handler has an exception to report
                   public void notifyException(Throwable throwable, ExceptionPhase exceptionPhase) {
                       System.out.printf(exceptionPhase + "-" + throwable.getMessage());
                   }
-              },
-              // 1 concurrent call, messages are auto-completed, auto-renew duration
-              new MessageHandlerOptions(1, false, Duration.ofMinutes(1)),
+              }, 4, laneExecutorService);
+        // a pump call per message a lane may hold, so the pump renews the locks of the waiting messages;
+        // messages are auto-completed, auto-renew duration
+        receiveClient.registerMessageHandler(handler,
+              new MessageHandlerOptions(handler.getMaxConcurrentCalls(), true, Duration.ofMinutes(1)),
               executorService);
 
     }
@@ -143,11 +159,15 @@ public class PartitionedQueues {
             // parse connection string from command line
             Options options = new Options();
             options.addOption(new Option("c", true, "Connection string"));
+            options.addOption(new Option("e", true, "Handler execution mode: single_thread, fixed_pool, cached_pool or virtual_threads"));
             CommandLineParser clp = new DefaultParser();
             CommandLine cl = clp.parse(options, args);
             if (cl.getOptionValue("c") != null) {
                 connectionString = cl.getOptionValue("c");
             }
+            if (cl.getOptionValue("e") != null) {
+                executionMode = HandlerExecutionMode.parse(cl.getOptionValue("e"));
+            }
 
             // get overrides from the environment
             String env = System.getenv(SB_SAMPLES_CONNECTIONSTRING);
@@ -0,0 +1,231 @@
+package com.microsoft.azure.servicebus.samples.partitionedqueues;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.IQueueClient;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.MessageHandlerOptions;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class KeyOrderedMessageHandlerTest {
+
+    private ServiceBusEmulator emulator;
+    private ExecutorService laneExecutor;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        laneExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        laneExecutor.shutdownNow();
+        emulator.close();
+    }
+
+    @Test
+    public void messagesOfAKeyStayInOrderWhileKeysRunInParallel() throws Exception {
+        Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        KeyOrderedMessageHandler handler = new KeyOrderedMessageHandler(new IMessageHandler() {
+            @Override
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                received.computeIfAbsent(message.getPartitionKey(), k -> new CopyOnWriteArrayList<>())
+                        .add(Integer.parseInt(new String(message.getBody(), UTF_8)));
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                active.decrementAndGet();
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void notifyException(Throwable exception, ExceptionPhase phase) {
+            }
+        }, 4, laneExecutor);
+
+        // handed over in this order, as by pump calls that do not wait for each other
+        List<CompletableFuture<Void>> handled = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            for (String key : new String[]{"E", "H", "C", "N"}) {
+                Message message = new Message(Integer.toString(i));
+                message.setPartitionKey(key);
+                handled.add(handler.onMessageAsync(message));
+            }
+        }
+        CompletableFuture.allOf(handled.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+
+        Assert.assertEquals(4, received.size());
+        for (List<Integer> order : received.values()) {
+            Assert.assertEquals(50, order.size());
+            for (int i = 0; i < order.size(); i++) {
+                Assert.assertEquals(i, (int) order.get(i));
+            }
+        }
+        Assert.assertTrue("lanes did not run in parallel", maxActive.get() > 1);
+        Assert.assertEquals(200, handler.getHandledMessageCount());
+    }
+
+    @Test
+    public void pumpSettlesEveryMessageAfterItsLane() throws Exception {
+        IMessageSender sender = emulator.createMessageSender("PartitionedQueue");
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            for (String key : new String[]{"E", "H", "C", "N"}) {
+                Message message = new Message(Integer.toString(i));
+                message.setPartitionKey(key);
+                messages.add(message);
+            }
+        }
+        sender.sendBatch(messages);
+
+        IQueueClient client = emulator.createQueueClient("PartitionedQueue", ReceiveMode.PEEKLOCK);
+        KeyOrderedMessageHandler handler = new KeyOrderedMessageHandler(new IMessageHandler() {
+            @Override
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                // every tenth message fails and is abandoned by the pump, then delivered again
+                if (message.getDeliveryCount() == 1 && Integer.parseInt(new String(message.getBody(), UTF_8)) % 10 == 0) {
+                    throw new IllegalStateException("failed");
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void notifyException(Throwable exception, ExceptionPhase phase) {
+            }
+        }, 4, 4, KeyOrderedMessageHandler::defaultKeyOf, laneExecutor);
+        Assert.assertEquals(16, handler.getMaxConcurrentCalls());
+
+        ExecutorService pumpExecutor = Executors.newFixedThreadPool(4);
+        client.registerMessageHandler(handler, new MessageHandlerOptions(handler.getMaxConcurrentCalls(), true, Duration.ofMinutes(1)), pumpExecutor);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (emulator.getEntity("PartitionedQueue").getMessageCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        client.close();
+        pumpExecutor.shutdown();
+
+        Assert.assertEquals(0, emulator.getEntity("PartitionedQueue").getMessageCount());
+        // 200 messages, 20 of them twice
+        Assert.assertEquals(220, handler.getHandledMessageCount());
+    }
+
+    @Test
+    public void futureCompletesOnceTheMessageIsHandled() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        KeyOrderedMessageHandler handler = new KeyOrderedMessageHandler(new IMessageHandler() {
+            @Override
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                started.countDown();
+                return message.getPartitionKey().equals("A") ? release : CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void notifyException(Throwable exception, ExceptionPhase phase) {
+            }
+        }, 2, 2, IMessage::getPartitionKey, laneExecutor);
+
+        CompletableFuture<Void> first = handler.onMessageAsync(keyed("A"));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> second = handler.onMessageAsync(keyed("A"));
+        Assert.assertFalse(first.isDone());
+        Assert.assertFalse(second.isDone());
+        Assert.assertEquals(1, handler.getQueuedMessageCount());
+
+        release.complete(null);
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, handler.getHandledMessageCount());
+    }
+
+    @Test
+    public void rejectedLaneHandsItsQueuedMessagesBack() throws Exception {
+        CompletableFuture<Void> release = new CompletableFuture<>();
+        // accepts the first task and rejects all later ones, like an executor being shut down
+        AtomicInteger executions = new AtomicInteger();
+        Executor closing = task -> {
+            if (executions.incrementAndGet() > 1) {
+                throw new RejectedExecutionException("shut down");
+            }
+            laneExecutor.execute(task);
+        };
+        KeyOrderedMessageHandler handler = new KeyOrderedMessageHandler(new IMessageHandler() {
+            @Override
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                return release;
+            }
+
+            @Override
+            public void notifyException(Throwable exception, ExceptionPhase phase) {
+            }
+        }, 1, 4, IMessage::getPartitionKey, closing);
+
+        CompletableFuture<Void> first = handler.onMessageAsync(keyed("A"));
+        List<CompletableFuture<Void>> queued = new ArrayList<>();
+        queued.add(handler.onMessageAsync(keyed("A")));
+        queued.add(handler.onMessageAsync(keyed("A")));
+        release.complete(null);
+
+        first.get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<Void> future : queued) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+        Assert.assertEquals(0, handler.getQueuedMessageCount());
+    }
+
+    @Test
+    public void customKeyExtractorChoosesTheLane() {
+        KeyOrderedMessageHandler handler = new KeyOrderedMessageHandler(null, 8, 1, message -> message.getProperties().get("tenant"), laneExecutor);
+        for (int i = 0; i < 100; i++) {
+            Message first = new Message("a");
+            first.getProperties().put("tenant", "tenant-" + i);
+            first.setPartitionKey("X");
+            Message second = new Message("b");
+            second.getProperties().put("tenant", "tenant-" + i);
+            second.setPartitionKey("Y");
+            Assert.assertEquals(handler.laneOf(first), handler.laneOf(second));
+        }
+    }
+
+    private static Message keyed(String key) {
+        Message message = new Message(key);
+        message.setPartitionKey(key);
+        return message;
+    }
+}
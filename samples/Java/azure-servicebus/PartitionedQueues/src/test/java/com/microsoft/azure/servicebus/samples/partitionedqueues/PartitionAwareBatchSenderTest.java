@@ -0,0 +1,204 @@
+package com.microsoft.azure.servicebus.samples.partitionedqueues;
+
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class PartitionAwareBatchSenderTest {
+
+    private ServiceBusEmulator emulator;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        emulator.setEnablePartitioning(true);
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test(expected = ExecutionException.class)
+    public void mixedPartitionBatchIsRejected() throws Exception {
+        IMessageSender sender = emulator.createMessageSender("PartitionedQueue");
+        List<Message> messages = new ArrayList<>();
+        messages.add(partitioned("E"));
+        messages.add(partitioned("H"));
+        sender.sendBatchAsync(messages).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void messagesAreBatchedPerPartitionKey() throws Exception {
+        PartitionAwareBatchSender sender = new PartitionAwareBatchSender(emulator.createMessageSender("PartitionedQueue"), 64 * 1024, Duration.ofSeconds(10));
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            sends.add(sender.sendAsync(partitioned(Character.toString((char) ('A' + i % 3)))));
+        }
+        Message session = new Message("session");
+        session.setSessionId("A");
+        sends.add(sender.sendAsync(session));
+        sends.add(sender.sendAsync(new Message("no key")));
+        Assert.assertEquals(4, sender.getPendingPartitionCount());
+
+        sender.flush();
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()])).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(4, sender.getBatchCount());
+        Assert.assertEquals(0, sender.getPendingPartitionCount());
+        Assert.assertEquals(32, emulator.getEntity("PartitionedQueue").getActiveMessageCount());
+        sender.close();
+    }
+
+    @Test
+    public void partitionsLingerIndependently() throws Exception {
+        PartitionAwareBatchSender sender = new PartitionAwareBatchSender(emulator.createMessageSender("PartitionedQueue"), 64 * 1024, Duration.ofMillis(100));
+        CompletableFuture<Void> first = sender.sendAsync(partitioned("E"));
+        Thread.sleep(60);
+        CompletableFuture<Void> second = sender.sendAsync(partitioned("H"));
+
+        first.get(5, TimeUnit.SECONDS);
+        Assert.assertFalse(second.isDone());
+        second.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, sender.getBatchCount());
+        sender.close();
+    }
+
+    @Test
+    public void sampleSendsThroughPartitionAwareSender() throws Exception {
+        PartitionAwareBatchSender sender = new PartitionAwareBatchSender(emulator.createMessageSender("PartitionedQueue"));
+        new PartitionedQueues().sendMessagesAsync(sender).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(10, emulator.getEntity("PartitionedQueue").getActiveMessageCount());
+        // Einstein, Heisenberg, Curie, Hawking, Newton, Bohr, Faraday, Galilei, Kepler, Kopernikus
+        Assert.assertEquals(8, sender.getBatchCount());
+        sender.close();
+    }
+
+    @Test
+    public void sendThatThrowsFailsTheFuturesOfItsMessages() throws Exception {
+        IMessageSender inner = emulator.createMessageSender("PartitionedQueue");
+        // a sender that throws instead of returning a failed future
+        IMessageSender throwing = (IMessageSender) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{IMessageSender.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("sendBatchAsync") || method.getName().equals("sendAsync")) {
+                        throw new IllegalStateException("send failed");
+                    }
+                    try {
+                        return method.invoke(inner, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        PartitionAwareBatchSender sender = new PartitionAwareBatchSender(throwing, 1000, Duration.ofMillis(20));
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        // two messages of about 400 bytes fit into a batch; the third flushes them from sendAsync,
+        // and is itself flushed by the linger timer
+        for (int i = 0; i < 3; i++) {
+            Message message = new Message(new byte[300]);
+            message.setPartitionKey("E");
+            sends.add(sender.sendAsync(message));
+        }
+        // too large for a batch, so it is sent on its own
+        sends.add(sender.sendAsync(new Message(new byte[2048])));
+
+        for (CompletableFuture<Void> send : sends) {
+            try {
+                send.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        sender.close();
+    }
+
+    @Test
+    public void oversizedMessageIsSentAfterTheBatchOfItsKey() throws Exception {
+        IMessageSender inner = emulator.createMessageSender("PartitionedQueue");
+        List<String> sends = new CopyOnWriteArrayList<>();
+        IMessageSender recording = (IMessageSender) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{IMessageSender.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("sendBatchAsync")) {
+                        sends.add("batch of " + ((Collection<?>) args[0]).size());
+                    } else if (method.getName().equals("sendAsync")) {
+                        sends.add("alone");
+                    }
+                    try {
+                        return method.invoke(inner, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        // the linger time is long enough that only the oversized message flushes the batch
+        PartitionAwareBatchSender sender = new PartitionAwareBatchSender(recording, 1000, Duration.ofSeconds(30));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(sender.sendAsync(partitioned("A")));
+        futures.add(sender.sendAsync(partitioned("A")));
+        Message oversized = new Message(new byte[2048]);
+        oversized.setPartitionKey("A");
+        futures.add(sender.sendAsync(oversized));
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(Arrays.asList("batch of 2", "alone"), sends);
+        Assert.assertEquals(1, sender.getBatchCount());
+        Assert.assertEquals(0, sender.getPendingPartitionCount());
+        sender.close();
+    }
+
+    @Test
+    public void sendsThatRaceWithCloseAreSentOrRejected() throws Exception {
+        PartitionAwareBatchSender sender = new PartitionAwareBatchSender(emulator.createMessageSender("PartitionedQueue"), 1000, Duration.ofSeconds(30));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<List<CompletableFuture<Void>>>> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            String key = "K" + p;
+            producers.add(executor.submit(() -> {
+                List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for (int i = 0; i < 500; i++) {
+                    futures.add(sender.sendAsync(partitioned(key)));
+                }
+                return futures;
+            }));
+        }
+        sender.closeAsync().get(5, TimeUnit.SECONDS);
+
+        // every send is either in the queue or failed because the sender was closed; none is left pending
+        long sent = 0;
+        for (Future<List<CompletableFuture<Void>>> producer : producers) {
+            for (CompletableFuture<Void> future : producer.get(5, TimeUnit.SECONDS)) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    sent++;
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+        }
+        executor.shutdown();
+        Assert.assertEquals(sent, emulator.getEntity("PartitionedQueue").getMessageCount());
+    }
+
+    private static Message partitioned(String partitionKey) {
+        Message message = new Message(partitionKey);
+        message.setPartitionKey(partitionKey);
+        return message;
+    }
+}
@@ -0,0 +1,624 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.prefetch;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps an {@link IMessageReceiver} and keeps retuning its prefetch count while messages flow.
+ * <p>
+ * The controller observes how fast messages are consumed, how long the caller holds a message
+ * before settling it, how long a round trip takes and how much lock time is left when a message
+ * is handed out. Once per retune interval it picks a prefetch count that covers a round trip at
+ * the current consume rate, grows it while receives stall, and caps it so that buffered messages
+ * are handled well within their lock. Each decision is published as a {@link Metrics} snapshot.
+ * <p>
+ * Retuning happens on the receive path; no background thread is involved.
+ */
+public class AdaptivePrefetchController implements IMessageReceiver {
+
+    public static final Duration DEFAULT_RETUNE_INTERVAL = Duration.ofSeconds(1);
+
+    // weight of the latest window in the smoothed averages
+    private static final double SMOOTHING = 0.3;
+    // prefetch covers this many round trips of consumption
+    private static final double HEADROOM = 2.0;
+    // fraction of the lock duration that a message may spend in the prefetch buffer
+    private static final double LOCK_SAFETY = 0.5;
+    // fraction of wall time spent blocked in receive above which prefetch is grown
+    private static final double STALL_RATIO = 0.1;
+    private static final UUID NO_LOCK_TOKEN = new UUID(0L, 0L);
+
+    public enum Decision {
+        // the prefetch count was left unchanged
+        HOLD,
+        // receives stalled or the consume rate rose
+        GROW,
+        // the consume rate dropped
+        SHRINK,
+        // the prefetch count was capped by the remaining lock time
+        LOCK_LIMITED
+    }
+
+    /**
+     * Snapshot of the controller state after a retune.
+     */
+    public static final class Metrics {
+        private final int prefetchCount;
+        private final Decision decision;
+        private final long adjustmentCount;
+        private final double consumeRate;
+        private final Duration handlerTime;
+        private final Duration roundTripTime;
+        private final double stallRatio;
+        private final Duration minimumLockRemaining;
+
+        Metrics(int prefetchCount, Decision decision, long adjustmentCount, double consumeRate,
+                double handlerSeconds, double roundTripSeconds, double stallRatio, long minimumLockRemainingMillis) {
+            this.prefetchCount = prefetchCount;
+            this.decision = decision;
+            this.adjustmentCount = adjustmentCount;
+            this.consumeRate = consumeRate;
+            this.handlerTime = toDuration(handlerSeconds);
+            this.roundTripTime = toDuration(roundTripSeconds);
+            this.stallRatio = stallRatio;
+            this.minimumLockRemaining = minimumLockRemainingMillis == Long.MAX_VALUE ? null : Duration.ofMillis(minimumLockRemainingMillis);
+        }
+
+        public int getPrefetchCount() {
+            return this.prefetchCount;
+        }
+
+        public Decision getDecision() {
+            return this.decision;
+        }
+
+        public long getAdjustmentCount() {
+            return this.adjustmentCount;
+        }
+
+        /** Messages handed out per second, smoothed. */
+        public double getConsumeRate() {
+            return this.consumeRate;
+        }
+
+        /** Time between handing out a message and settling it, smoothed. */
+        public Duration getHandlerTime() {
+            return this.handlerTime;
+        }
+
+        /** Duration of a settlement, or of a receive when nothing is settled, smoothed. */
+        public Duration getRoundTripTime() {
+            return this.roundTripTime;
+        }
+
+        /** Fraction of the last window spent blocked in receive calls. */
+        public double getStallRatio() {
+            return this.stallRatio;
+        }
+
+        /** Least lock time left on a message handed out in the last window, or null if none was locked. */
+        public Duration getMinimumLockRemaining() {
+            return this.minimumLockRemaining;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("prefetch=%d decision=%s adjustments=%d rate=%.1f/s handler=%dus roundTrip=%dus stall=%.2f lockRemaining=%s",
+                    this.prefetchCount, this.decision, this.adjustmentCount, this.consumeRate,
+                    TimeUnit.NANOSECONDS.toMicros(this.handlerTime.toNanos()),
+                    TimeUnit.NANOSECONDS.toMicros(this.roundTripTime.toNanos()),
+                    this.stallRatio, this.minimumLockRemaining);
+        }
+
+        private static Duration toDuration(double seconds) {
+            return Duration.ofNanos((long) (seconds * 1e9));
+        }
+    }
+
+    private final IMessageReceiver receiver;
+    private final int minPrefetchCount;
+    private final int maxPrefetchCount;
+    private final long retuneIntervalNanos;
+
+    // observations of the current window
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder receiveCalls = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder handlerNanos = new LongAdder();
+    private final LongAdder settled = new LongAdder();
+    private final LongAdder settleNanos = new LongAdder();
+    private final AtomicLong minimumLockRemainingMillis = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong lockDurationMillis = new AtomicLong();
+    private final Map<UUID, Long> deliveredAt = new ConcurrentHashMap<>();
+
+    // smoothed state, only touched by the thread that holds the retuning flag
+    private final AtomicBoolean retuning = new AtomicBoolean();
+    private volatile long windowStart = System.nanoTime();
+    private double consumeRate;
+    private double handlerSeconds;
+    private double roundTripSeconds;
+    private long adjustmentCount;
+
+    private volatile int prefetchCount;
+    private volatile Metrics metrics;
+
+    public AdaptivePrefetchController(IMessageReceiver receiver, int minPrefetchCount, int maxPrefetchCount) throws ServiceBusException {
+        this(receiver, minPrefetchCount, maxPrefetchCount, DEFAULT_RETUNE_INTERVAL);
+    }
+
+    public AdaptivePrefetchController(IMessageReceiver receiver, int minPrefetchCount, int maxPrefetchCount, Duration retuneInterval) throws ServiceBusException {
+        if (minPrefetchCount < 0 || maxPrefetchCount < minPrefetchCount) {
+            throw new IllegalArgumentException("Prefetch bounds must satisfy 0 <= minPrefetchCount <= maxPrefetchCount.");
+        }
+        if (retuneInterval.isNegative() || retuneInterval.isZero()) {
+            throw new IllegalArgumentException("Retune interval must be positive.");
+        }
+        this.receiver = receiver;
+        this.minPrefetchCount = minPrefetchCount;
+        this.maxPrefetchCount = maxPrefetchCount;
+        this.retuneIntervalNanos = retuneInterval.toNanos();
+        this.prefetchCount = Math.max(minPrefetchCount, Math.min(maxPrefetchCount, receiver.getPrefetchCount()));
+        receiver.setPrefetchCount(this.prefetchCount);
+        this.metrics = new Metrics(this.prefetchCount, Decision.HOLD, 0, 0, 0, 0, 0, Long.MAX_VALUE);
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    // ---- tuning
+
+    private void onReceived(IMessage message, long start) {
+        long now = System.nanoTime();
+        this.receiveCalls.increment();
+        if (message != null) {
+            this.blockedNanos.add(now - start);
+            this.onDelivered(message, now);
+        }
+        this.maybeRetune(now);
+    }
+
+    private void onReceived(Collection<IMessage> messages, long start) {
+        long now = System.nanoTime();
+        this.receiveCalls.increment();
+        if (messages != null && !messages.isEmpty()) {
+            this.blockedNanos.add(now - start);
+            for (IMessage message : messages) {
+                this.onDelivered(message, now);
+            }
+        }
+        this.maybeRetune(now);
+    }
+
+    private void onDelivered(IMessage message, long now) {
+        this.delivered.increment();
+        UUID lockToken = message.getLockToken();
+        if (lockToken == null || NO_LOCK_TOKEN.equals(lockToken)) {
+            return;
+        }
+        this.deliveredAt.put(lockToken, now);
+        Instant lockedUntil = message.getLockedUntilUtc();
+        if (lockedUntil != null) {
+            long remaining = lockedUntil.toEpochMilli() - System.currentTimeMillis();
+            this.minimumLockRemainingMillis.accumulateAndGet(remaining, Math::min);
+            this.lockDurationMillis.accumulateAndGet(remaining, Math::max);
+        }
+    }
+
+    private long beginSettle(UUID lockToken) {
+        long start = System.nanoTime();
+        Long at = this.deliveredAt.remove(lockToken);
+        if (at != null) {
+            this.handled.increment();
+            this.handlerNanos.add(start - at);
+        }
+        return start;
+    }
+
+    private void endSettle(long start, Throwable error) {
+        if (error == null) {
+            this.settled.increment();
+            this.settleNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private CompletableFuture<Void> settleAsync(long start, CompletableFuture<Void> settlement) {
+        return settlement.whenComplete((v, error) -> this.endSettle(start, error));
+    }
+
+    private void maybeRetune(long now) {
+        if (now - this.windowStart < this.retuneIntervalNanos || !this.retuning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.retune(now);
+        } finally {
+            this.retuning.set(false);
+        }
+    }
+
+    private void retune(long now) {
+        double windowSeconds = (now - this.windowStart) / 1e9;
+        this.windowStart = now;
+
+        long deliveredCount = this.delivered.sumThenReset();
+        long receiveCount = this.receiveCalls.sumThenReset();
+        long blocked = this.blockedNanos.sumThenReset();
+        long handledCount = this.handled.sumThenReset();
+        long handlerTotal = this.handlerNanos.sumThenReset();
+        long settledCount = this.settled.sumThenReset();
+        long settleTotal = this.settleNanos.sumThenReset();
+        long lockRemaining = this.minimumLockRemainingMillis.getAndSet(Long.MAX_VALUE);
+        double stallRatio = blocked / 1e9 / windowSeconds;
+
+        // locks of messages that were never settled run out eventually
+        long expiredBefore = now - TimeUnit.MILLISECONDS.toNanos(this.lockDurationMillis.get());
+        this.deliveredAt.values().removeIf(at -> at < expiredBefore);
+
+        this.consumeRate = smooth(this.consumeRate, deliveredCount / windowSeconds);
+        if (handledCount > 0) {
+            this.handlerSeconds = smooth(this.handlerSeconds, handlerTotal / 1e9 / handledCount);
+        }
+        if (settledCount > 0) {
+            this.roundTripSeconds = smooth(this.roundTripSeconds, settleTotal / 1e9 / settledCount);
+        } else if (receiveCount > 0) {
+            this.roundTripSeconds = smooth(this.roundTripSeconds, blocked / 1e9 / receiveCount);
+        }
+
+        int current = this.prefetchCount;
+        int target = current;
+        Decision decision = Decision.HOLD;
+        if (deliveredCount > 0) {
+            int demand = (int) Math.min(Integer.MAX_VALUE, Math.ceil(this.consumeRate * this.roundTripSeconds * HEADROOM));
+            if (stallRatio > STALL_RATIO) {
+                target = Math.max(demand, Math.max(1, current * 2));
+            } else if (demand < current) {
+                target = Math.max(demand, current / 2);
+            } else {
+                target = demand;
+            }
+
+            if (this.receiver.getReceiveMode() == ReceiveMode.PEEKLOCK && this.lockDurationMillis.get() > 0) {
+                // a buffered message waits prefetchCount / consumeRate before it is handed out
+                double budgetSeconds = this.lockDurationMillis.get() / 1e3 * LOCK_SAFETY - this.handlerSeconds;
+                int cap = (int) Math.min(Integer.MAX_VALUE, Math.max(0, Math.floor(this.consumeRate * budgetSeconds)));
+                if (lockRemaining < TimeUnit.NANOSECONDS.toMillis((long) (this.handlerSeconds * 2e9))) {
+                    cap = Math.min(cap, current / 2);
+                }
+                if (target > cap) {
+                    target = cap;
+                    decision = Decision.LOCK_LIMITED;
+                }
+            }
+            target = Math.max(this.minPrefetchCount, Math.min(this.maxPrefetchCount, target));
+            if (decision != Decision.LOCK_LIMITED) {
+                decision = target > current ? Decision.GROW : target < current ? Decision.SHRINK : Decision.HOLD;
+            }
+        }
+
+        if (target != current) {
+            try {
+                this.receiver.setPrefetchCount(target);
+                this.prefetchCount = target;
+                this.adjustmentCount++;
+            } catch (ServiceBusException e) {
+                // keep the previous value and try again next window
+                target = current;
+                decision = Decision.HOLD;
+            }
+        }
+        this.metrics = new Metrics(target, decision, this.adjustmentCount, this.consumeRate,
+                this.handlerSeconds, this.roundTripSeconds, stallRatio, lockRemaining);
+    }
+
+    private static double smooth(double average, double sample) {
+        return average == 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    // ---- IMessageReceiver
+
+    @Override
+    public ReceiveMode getReceiveMode() {
+        return this.receiver.getReceiveMode();
+    }
+
+    @Override
+    public String getEntityPath() {
+        return this.receiver.getEntityPath();
+    }
+
+    @Override
+    public int getPrefetchCount() {
+        return this.prefetchCount;
+    }
+
+    // sets the starting point for the next windows; later retunes still keep to the bounds
+    @Override
+    public void setPrefetchCount(int prefetchCount) throws ServiceBusException {
+        this.receiver.setPrefetchCount(prefetchCount);
+        this.prefetchCount = prefetchCount;
+    }
+
+    @Override
+    public IMessage receive() throws InterruptedException, ServiceBusException {
+        long start = System.nanoTime();
+        IMessage message = this.receiver.receive();
+        this.onReceived(message, start);
+        return message;
+    }
+
+    @Override
+    public IMessage receive(Duration serverWaitTime) throws InterruptedException, ServiceBusException {
+        long start = System.nanoTime();
+        IMessage message = this.receiver.receive(serverWaitTime);
+        this.onReceived(message, start);
+        return message;
+    }
+
+    @Override
+    public CompletableFuture<IMessage> receiveAsync() {
+        long start = System.nanoTime();
+        return this.receiver.receiveAsync().thenApply(message -> {
+            this.onReceived(message, start);
+            return message;
+        });
+    }
+
+    @Override
+    public CompletableFuture<IMessage> receiveAsync(Duration serverWaitTime) {
+        long start = System.nanoTime();
+        return this.receiver.receiveAsync(serverWaitTime).thenApply(message -> {
+            this.onReceived(message, start);
+            return message;
+        });
+    }
+
+    @Override
+    public Collection<IMessage> receiveBatch(int maxMessageCount) throws InterruptedException, ServiceBusException {
+        long start = System.nanoTime();
+        Collection<IMessage> messages = this.receiver.receiveBatch(maxMessageCount);
+        this.onReceived(messages, start);
+        return messages;
+    }
+
+    @Override
+    public Collection<IMessage> receiveBatch(int maxMessageCount, Duration serverWaitTime) throws InterruptedException, ServiceBusException {
+        long start = System.nanoTime();
+        Collection<IMessage> messages = this.receiver.receiveBatch(maxMessageCount, serverWaitTime);
+        this.onReceived(messages, start);
+        return messages;
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> receiveBatchAsync(int maxMessageCount) {
+        long start = System.nanoTime();
+        return this.receiver.receiveBatchAsync(maxMessageCount).thenApply(messages -> {
+            this.onReceived(messages, start);
+            return messages;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> receiveBatchAsync(int maxMessageCount, Duration serverWaitTime) {
+        long start = System.nanoTime();
+        return this.receiver.receiveBatchAsync(maxMessageCount, serverWaitTime).thenApply(messages -> {
+            this.onReceived(messages, start);
+            return messages;
+        });
+    }
+
+    @Override
+    public IMessage receiveDeferredMessage(long sequenceNumber) throws InterruptedException, ServiceBusException {
+        return this.receiver.receiveDeferredMessage(sequenceNumber);
+    }
+
+    @Override
+    public CompletableFuture<IMessage> receiveDeferredMessageAsync(long sequenceNumber) {
+        return this.receiver.receiveDeferredMessageAsync(sequenceNumber);
+    }
+
+    @Override
+    public Collection<IMessage> receiveDeferredMessageBatch(Collection<Long> sequenceNumbers) throws InterruptedException, ServiceBusException {
+        return this.receiver.receiveDeferredMessageBatch(sequenceNumbers);
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> receiveDeferredMessageBatchAsync(Collection<Long> sequenceNumbers) {
+        return this.receiver.receiveDeferredMessageBatchAsync(sequenceNumbers);
+    }
+
+    @Override
+    public void complete(UUID lockToken) throws InterruptedException, ServiceBusException {
+        long start = this.beginSettle(lockToken);
+        this.receiver.complete(lockToken);
+        this.endSettle(start, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> completeAsync(UUID lockToken) {
+        long start = this.beginSettle(lockToken);
+        return this.settleAsync(start, this.receiver.completeAsync(lockToken));
+    }
+
+    @Override
+    public void abandon(UUID lockToken) throws InterruptedException, ServiceBusException {
+        long start = this.beginSettle(lockToken);
+        this.receiver.abandon(lockToken);
+        this.endSettle(start, null);
+    }
+
+    @Override
+    public void abandon(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        long start = this.beginSettle(lockToken);
+        this.receiver.abandon(lockToken, propertiesToModify);
+        this.endSettle(start, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> abandonAsync(UUID lockToken) {
+        long start = this.beginSettle(lockToken);
+        return this.settleAsync(start, this.receiver.abandonAsync(lockToken));
+    }
+
+    @Override
+    public CompletableFuture<Void> abandonAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        long start = this.beginSettle(lockToken);
+        return this.settleAsync(start, this.receiver.abandonAsync(lockToken, propertiesToModify));
+    }
+
+    @Override
+    public void defer(UUID lockToken) throws InterruptedException, ServiceBusException {
+        long start = this.beginSettle(lockToken);
+        this.receiver.defer(lockToken);
+        this.endSettle(start, null);
+    }
+
+    @Override
+    public void defer(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        long start = this.beginSettle(lockToken);
+        this.receiver.defer(lockToken, propertiesToModify);
+        this.endSettle(start, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deferAsync(UUID lockToken) {
+        long start = this.beginSettle(lockToken);
+        return this.settleAsync(start, this.receiver.deferAsync(lockToken));
+    }
+
+    @Override
+    public CompletableFuture<Void> deferAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        long start = this.beginSettle(lockToken);
+        return this.settleAsync(start, this.receiver.deferAsync(lockToken, propertiesToModify));
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken) throws InterruptedException, ServiceBusException {
+        long start = this.beginSettle(lockToken);
+        this.receiver.deadLetter(lockToken);
+        this.endSettle(start, null);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        long start = this.beginSettle(lockToken);
+        this.receiver.deadLetter(lockToken, propertiesToModify);
+        this.endSettle(start, null);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription) throws InterruptedException, ServiceBusException {
+        long start = this.beginSettle(lockToken);
+        this.receiver.deadLetter(lockToken, deadLetterReason, deadLetterErrorDescription);
+        this.endSettle(start, null);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        long start = this.beginSettle(lockToken);
+        this.receiver.deadLetter(lockToken, deadLetterReason, deadLetterErrorDescription, propertiesToModify);
+        this.endSettle(start, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken) {
+        long start = this.beginSettle(lockToken);
+        return this.settleAsync(start, this.receiver.deadLetterAsync(lockToken));
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        long start = this.beginSettle(lockToken);
+        return this.settleAsync(start, this.receiver.deadLetterAsync(lockToken, propertiesToModify));
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription) {
+        long start = this.beginSettle(lockToken);
+        return this.settleAsync(start, this.receiver.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription));
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription, Map<String, Object> propertiesToModify) {
+        long start = this.beginSettle(lockToken);
+        return this.settleAsync(start, this.receiver.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription, propertiesToModify));
+    }
+
+    @Override
+    public Instant renewMessageLock(IMessage message) throws InterruptedException, ServiceBusException {
+        return this.receiver.renewMessageLock(message);
+    }
+
+    @Override
+    public CompletableFuture<Instant> renewMessageLockAsync(IMessage message) {
+        return this.receiver.renewMessageLockAsync(message);
+    }
+
+    @Override
+    public IMessage peek() throws InterruptedException, ServiceBusException {
+        return this.receiver.peek();
+    }
+
+    @Override
+    public IMessage peek(long fromSequenceNumber) throws InterruptedException, ServiceBusException {
+        return this.receiver.peek(fromSequenceNumber);
+    }
+
+    @Override
+    public Collection<IMessage> peekBatch(int maxMessageCount) throws InterruptedException, ServiceBusException {
+        return this.receiver.peekBatch(maxMessageCount);
+    }
+
+    @Override
+    public Collection<IMessage> peekBatch(long fromSequenceNumber, int maxMessageCount) throws InterruptedException, ServiceBusException {
+        return this.receiver.peekBatch(fromSequenceNumber, maxMessageCount);
+    }
+
+    @Override
+    public CompletableFuture<IMessage> peekAsync() {
+        return this.receiver.peekAsync();
+    }
+
+    @Override
+    public CompletableFuture<IMessage> peekAsync(long fromSequenceNumber) {
+        return this.receiver.peekAsync(fromSequenceNumber);
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> peekBatchAsync(int maxMessageCount) {
+        return this.receiver.peekBatchAsync(maxMessageCount);
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> peekBatchAsync(long fromSequenceNumber, int maxMessageCount) {
+        return this.receiver.peekBatchAsync(fromSequenceNumber, maxMessageCount);
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        return this.receiver.closeAsync();
+    }
+
+    @Override
+    public void close() throws ServiceBusException {
+        this.receiver.close();
+    }
+}
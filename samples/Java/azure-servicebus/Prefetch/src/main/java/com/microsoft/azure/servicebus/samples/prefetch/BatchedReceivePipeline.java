@@ -0,0 +1,202 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.prefetch;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.ReceiveMode;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Receives, processes and settles messages in batches instead of one round trip at a time.
+ * <p>
+ * The pipeline pulls with {@code receiveBatchAsync} and asks for the next batch while the current
+ * one is being processed. Messages of a batch are handed to the handler in parallel on the given
+ * executor. A message whose handler returns normally is queued for completion; the queue is
+ * flushed when it holds {@code settleBatchSize} lock tokens or when the oldest token has waited
+ * for {@code settleLinger}. A message whose handler throws is abandoned right away; it does not
+ * count as processed, and {@link #getAbandonedCount} reports it instead.
+ * <p>
+ * The receiver interface has no batch completion, so a flush issues one {@code completeAsync} per
+ * lock token at once; the completions share the link and their round trips overlap.
+ * In {@code RECEIVEANDDELETE} mode nothing is settled. A failed receive ends the processing with
+ * its error once the messages received before it are processed and settled.
+ */
+public class BatchedReceivePipeline implements AutoCloseable {
+
+    private final IMessageReceiver receiver;
+    private final int receiveBatchSize;
+    private final int settleBatchSize;
+    private final long settleLingerNanos;
+    private final ExecutorService executorService;
+    private final ScheduledExecutorService timer;
+
+    private final ConcurrentLinkedQueue<UUID> pendingSettlements = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> settlementsInFlight = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<Throwable> settlementError = new AtomicReference<>();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong abandonedCount = new AtomicLong();
+    private volatile ScheduledFuture<?> lingerFlush;
+
+    public BatchedReceivePipeline(IMessageReceiver receiver, int receiveBatchSize, int settleBatchSize, Duration settleLinger, ExecutorService executorService) {
+        if (receiveBatchSize <= 0 || settleBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch sizes must be greater than 0.");
+        }
+        this.receiver = receiver;
+        this.receiveBatchSize = receiveBatchSize;
+        this.settleBatchSize = settleBatchSize;
+        this.settleLingerNanos = settleLinger.toNanos();
+        this.executorService = executorService;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "batched-receive-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Processes up to {@code maxMessageCount} messages, or until a receive returns nothing within
+     * {@code serverWaitTime}. The returned future completes with the number of messages whose
+     * handler returned normally, once all settlements have completed.
+     */
+    public CompletableFuture<Long> processAsync(int maxMessageCount, Duration serverWaitTime, Consumer<IMessage> handler) {
+        AtomicLong processed = new AtomicLong();
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        this.receiveNext(maxMessageCount, serverWaitTime, handler, CompletableFuture.completedFuture(null), processed, result);
+        return result;
+    }
+
+    public long getFlushCount() {
+        return this.flushCount.get();
+    }
+
+    /**
+     * Number of messages whose handler threw, over all runs of this pipeline.
+     */
+    public long getAbandonedCount() {
+        return this.abandonedCount.get();
+    }
+
+    private void receiveNext(int remaining, Duration serverWaitTime, Consumer<IMessage> handler,
+                             CompletableFuture<Void> previousBatch, AtomicLong processed, CompletableFuture<Long> result) {
+        if (remaining <= 0) {
+            this.finish(previousBatch, null, processed, result);
+            return;
+        }
+        // the receive round trip overlaps with processing of the previous batch; the next step runs
+        // on the executor, so a receiver that completes synchronously does not grow the stack
+        this.receiver.receiveBatchAsync(Math.min(remaining, this.receiveBatchSize), serverWaitTime)
+                .thenCombine(previousBatch, (messages, ignored) -> messages)
+                .whenCompleteAsync((messages, error) -> {
+                    if (error != null) {
+                        this.finish(previousBatch, error, processed, result);
+                    } else if (messages == null || messages.isEmpty()) {
+                        this.finish(previousBatch, null, processed, result);
+                    } else {
+                        CompletableFuture<Void> batch = this.dispatch(messages, handler, processed);
+                        this.receiveNext(remaining - messages.size(), serverWaitTime, handler, batch, processed, result);
+                    }
+                }, this.executorService);
+    }
+
+    private CompletableFuture<Void> dispatch(Collection<IMessage> messages, Consumer<IMessage> handler, AtomicLong processed) {
+        List<CompletableFuture<Void>> handlers = new ArrayList<>(messages.size());
+        for (IMessage message : messages) {
+            handlers.add(CompletableFuture.runAsync(() -> handler.accept(message), this.executorService)
+                    .handle((v, error) -> {
+                        if (error == null) {
+                            processed.incrementAndGet();
+                        } else {
+                            this.abandonedCount.incrementAndGet();
+                        }
+                        if (this.receiver.getReceiveMode() == ReceiveMode.PEEKLOCK) {
+                            if (error == null) {
+                                this.settle(message.getLockToken());
+                            } else {
+                                this.track(this.receiver.abandonAsync(message.getLockToken()));
+                            }
+                        }
+                        return null;
+                    }));
+        }
+        return CompletableFuture.allOf(handlers.toArray(new CompletableFuture<?>[handlers.size()]));
+    }
+
+    private void settle(UUID lockToken) {
+        this.pendingSettlements.add(lockToken);
+        int pending = this.pendingCount.incrementAndGet();
+        if (pending >= this.settleBatchSize) {
+            this.flush();
+        } else if (pending == 1) {
+            this.lingerFlush = this.timer.schedule(this::flush, this.settleLingerNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void flush() {
+        ScheduledFuture<?> linger = this.lingerFlush;
+        if (linger != null) {
+            linger.cancel(false);
+        }
+        List<CompletableFuture<Void>> completions = new ArrayList<>(this.settleBatchSize);
+        for (UUID lockToken; (lockToken = this.pendingSettlements.poll()) != null; ) {
+            this.pendingCount.decrementAndGet();
+            completions.add(this.receiver.completeAsync(lockToken));
+        }
+        if (!completions.isEmpty()) {
+            this.flushCount.incrementAndGet();
+            this.track(CompletableFuture.allOf(completions.toArray(new CompletableFuture<?>[completions.size()])));
+        }
+    }
+
+    private void track(CompletableFuture<Void> settlement) {
+        this.settlementsInFlight.add(settlement);
+        settlement.whenComplete((v, error) -> {
+            if (error != null) {
+                this.settlementError.compareAndSet(null, error);
+            }
+            this.settlementsInFlight.remove(settlement);
+        });
+    }
+
+    // settles the messages already handed out before completing, also when a receive failed, so
+    // that their locks are not left to expire
+    private void finish(CompletableFuture<Void> lastBatch, Throwable receiveError, AtomicLong processed, CompletableFuture<Long> result) {
+        lastBatch.whenComplete((v, ignored) -> {
+            this.flush();
+            CompletableFuture.allOf(this.settlementsInFlight.toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((r, ignoredError) -> {
+                        Throwable error = this.settlementError.getAndSet(null);
+                        if (receiveError != null) {
+                            result.completeExceptionally(receiveError);
+                        } else if (error != null) {
+                            result.completeExceptionally(error);
+                        } else {
+                            result.complete(processed.get());
+                        }
+                    });
+        });
+    }
+
+    @Override
+    public void close() {
+        this.timer.shutdownNow();
+    }
+}
@@ -0,0 +1,561 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.prefetch;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+import com.microsoft.azure.servicebus.samples.common.Futures;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps an {@link IMessageReceiver} with a receive buffer that hands out only messages that can
+ * still be processed before their deadline.
+ * <p>
+ * A message's deadline is the earlier of its {@code ExpiresAtUtc} and, in {@code PEEKLOCK} mode,
+ * its {@code LockedUntilUtc}. When the buffer is empty, a receive fills it with up to
+ * {@code bufferSize} messages of the inner receiver in one {@code receiveBatchAsync}. Messages are
+ * handed out earliest deadline first, or in arrival order. A message that would pass its deadline
+ * within the processing time is not handed out: in {@code PEEKLOCK} mode it is abandoned, or
+ * dead-lettered if it would expire and {@link #setDeadLetterExpiring} is set; in
+ * {@code RECEIVEANDDELETE} mode it is dropped. In earliest deadline first order, such messages are
+ * always at the head of the buffer, so they are found without looking at the others. A message
+ * whose lock would expire is only skipped if the lock it was received with covers the processing
+ * time, so that receiving it again helps; otherwise it is handed out and the caller has to renew
+ * its lock. When every buffered message is skipped, a receive refills the buffer until a message
+ * can be handed out, the entity returns no more messages or the server wait time passes.
+ * <p>
+ * The processing time is the larger of the configured one and the smoothed time the caller takes
+ * from receiving a message to settling it through this receiver. The counters report how many
+ * messages were skipped because they would expire or lose their lock, and the handler time that
+ * was not spent on them.
+ * <p>
+ * Deadlines and handling times are measured with the given {@link Clock}, the system clock by
+ * default.
+ */
+public class DeadlineAwareReceiver implements IMessageReceiver {
+
+    public static final String EXPIRING_DEAD_LETTER_REASON = "TTLExpiredException";
+
+    // weight of the latest handling time in the smoothed average
+    private static final double SMOOTHING = 0.1;
+    private static final UUID NO_LOCK_TOKEN = new UUID(0L, 0L);
+    // how long a receive without a server wait time keeps refilling, the client's operation timeout
+    private static final Duration DEFAULT_SERVER_WAIT_TIME = Duration.ofSeconds(30);
+
+    private final IMessageReceiver receiver;
+    private final int bufferSize;
+    private final long configuredProcessingNanos;
+    private final boolean earliestDeadlineFirst;
+    private final Clock clock;
+    private final PriorityQueue<Buffered> buffer;
+    private final Map<UUID, Instant> handedOutAt = new ConcurrentHashMap<>();
+    private long arrivals;
+    private volatile double observedProcessingNanos;
+    private volatile boolean deadLetterExpiring;
+    private volatile boolean closed;
+
+    // metrics
+    private final LongAdder deliveredCount = new LongAdder();
+    private final LongAdder skippedExpiringCount = new LongAdder();
+    private final LongAdder skippedLockCount = new LongAdder();
+    private final LongAdder savedNanos = new LongAdder();
+
+    public DeadlineAwareReceiver(IMessageReceiver receiver, int bufferSize, Duration processingTime) {
+        this(receiver, bufferSize, processingTime, true);
+    }
+
+    public DeadlineAwareReceiver(IMessageReceiver receiver, int bufferSize, Duration processingTime, boolean earliestDeadlineFirst) {
+        this(receiver, bufferSize, processingTime, earliestDeadlineFirst, Clock.systemUTC());
+    }
+
+    public DeadlineAwareReceiver(IMessageReceiver receiver, int bufferSize, Duration processingTime, boolean earliestDeadlineFirst, Clock clock) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be greater than 0.");
+        }
+        if (processingTime.isNegative()) {
+            throw new IllegalArgumentException("processingTime must not be negative.");
+        }
+        this.receiver = receiver;
+        this.bufferSize = bufferSize;
+        this.configuredProcessingNanos = processingTime.toNanos();
+        this.earliestDeadlineFirst = earliestDeadlineFirst;
+        this.clock = clock;
+        Comparator<Buffered> arrival = Comparator.comparingLong(b -> b.arrival);
+        this.buffer = new PriorityQueue<>(bufferSize,
+                earliestDeadlineFirst ? Comparator.<Buffered>comparingLong(Buffered::deadlineMillis).thenComparing(arrival) : arrival);
+    }
+
+    /**
+     * Dead-letters messages that would expire before they are processed instead of abandoning them,
+     * so that they are not received again until they expire.
+     */
+    public void setDeadLetterExpiring(boolean deadLetterExpiring) {
+        this.deadLetterExpiring = deadLetterExpiring;
+    }
+
+    /** Messages handed out to the caller. */
+    public long getDeliveredCount() {
+        return this.deliveredCount.sum();
+    }
+
+    /** Messages not handed out because they would expire before they are processed. */
+    public long getSkippedExpiringCount() {
+        return this.skippedExpiringCount.sum();
+    }
+
+    /** Messages not handed out because their lock would expire before they are processed. */
+    public long getSkippedLockCount() {
+        return this.skippedLockCount.sum();
+    }
+
+    /** Processing time not spent on skipped messages. */
+    public Duration getSavedProcessingTime() {
+        return Duration.ofNanos(this.savedNanos.sum());
+    }
+
+    /** The processing time a message must have left before its deadline to be handed out. */
+    public Duration getProcessingTime() {
+        return Duration.ofNanos(this.processingNanos());
+    }
+
+    public synchronized int getBufferedCount() {
+        return this.buffer.size();
+    }
+
+    public boolean isEarliestDeadlineFirst() {
+        return this.earliestDeadlineFirst;
+    }
+
+    // ---- buffer
+
+    private long processingNanos() {
+        return Math.max(this.configuredProcessingNanos, (long) this.observedProcessingNanos);
+    }
+
+    private CompletableFuture<List<IMessage>> takeAsync(int maxMessageCount, Duration serverWaitTime) {
+        if (this.closed) {
+            CompletableFuture<List<IMessage>> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("Operation not allowed after the DeadlineAwareReceiver instance is closed."));
+            return future;
+        }
+        List<IMessage> taken = this.take(maxMessageCount);
+        if (!taken.isEmpty()) {
+            return CompletableFuture.completedFuture(taken);
+        }
+        Duration waitTime = serverWaitTime == null ? DEFAULT_SERVER_WAIT_TIME : serverWaitTime;
+        return this.fillAsync(maxMessageCount, System.nanoTime() + waitTime.toNanos(), serverWaitTime);
+    }
+
+    // refills until a message can be handed out, the inner receiver returns nothing or the wait
+    // time passes; refills after the first run on the common pool so that a receiver completing
+    // synchronously does not grow the stack
+    private CompletableFuture<List<IMessage>> fillAsync(int maxMessageCount, long deadlineNanos, Duration serverWaitTime) {
+        long remainingNanos = deadlineNanos - System.nanoTime();
+        CompletableFuture<Collection<IMessage>> fill = serverWaitTime == null
+                ? this.receiver.receiveBatchAsync(this.bufferSize)
+                : this.receiver.receiveBatchAsync(this.bufferSize, Duration.ofNanos(Math.max(remainingNanos, 0)));
+        return fill.thenComposeAsync(messages -> {
+            if (messages == null || messages.isEmpty()) {
+                return CompletableFuture.completedFuture(this.take(maxMessageCount));
+            }
+            this.add(messages);
+            List<IMessage> taken = this.take(maxMessageCount);
+            if (!taken.isEmpty() || this.closed || System.nanoTime() - deadlineNanos >= 0) {
+                return CompletableFuture.completedFuture(taken);
+            }
+            return this.fillAsync(maxMessageCount, deadlineNanos, serverWaitTime);
+        });
+    }
+
+    private synchronized void add(Collection<IMessage> messages) {
+        boolean locked = this.receiver.getReceiveMode() == ReceiveMode.PEEKLOCK;
+        long now = this.clock.millis();
+        for (IMessage message : messages) {
+            long expiresAt = toEpochMilli(message.getExpiresAtUtc());
+            long lockedUntil = locked ? toEpochMilli(message.getLockedUntilUtc()) : Long.MAX_VALUE;
+            this.buffer.add(new Buffered(message, expiresAt, lockedUntil, lockedUntil - now, this.arrivals++));
+        }
+    }
+
+    private List<IMessage> take(int maxMessageCount) {
+        List<IMessage> taken = new ArrayList<>(Math.min(maxMessageCount, this.bufferSize));
+        List<Buffered> skippedExpiring = new ArrayList<>();
+        List<Buffered> skippedLock = new ArrayList<>();
+        long processing = this.processingNanos();
+        long processingMillis = processing / 1_000_000;
+        synchronized (this) {
+            // a message handed out now is processed by this time
+            long finishedAt = this.clock.millis() + processingMillis;
+            while (taken.size() < maxMessageCount && !this.buffer.isEmpty()) {
+                Buffered next = this.buffer.poll();
+                if (next.expiresAtMillis < finishedAt) {
+                    skippedExpiring.add(next);
+                } else if (next.lockedUntilMillis < finishedAt && next.lockWindowMillis >= processingMillis) {
+                    // a fresh lock covers the processing time, so the message is worth receiving again
+                    skippedLock.add(next);
+                } else {
+                    // when not even a fresh lock covers the processing time, abandoning the message
+                    // would only make it come back with the same problem until it is dead-lettered;
+                    // it is handed out and the caller has to renew its lock
+                    taken.add(next.message);
+                }
+            }
+        }
+        Instant now = this.clock.instant();
+        for (IMessage message : taken) {
+            this.deliveredCount.increment();
+            UUID lockToken = message.getLockToken();
+            if (lockToken != null && !NO_LOCK_TOKEN.equals(lockToken)) {
+                this.handedOutAt.put(lockToken, now);
+            }
+        }
+        for (Buffered message : skippedExpiring) {
+            this.skip(message, true, processing);
+        }
+        for (Buffered message : skippedLock) {
+            this.skip(message, false, processing);
+        }
+        return taken;
+    }
+
+    private void skip(Buffered buffered, boolean expiring, long processingNanos) {
+        (expiring ? this.skippedExpiringCount : this.skippedLockCount).increment();
+        this.savedNanos.add(processingNanos);
+        if (this.receiver.getReceiveMode() != ReceiveMode.PEEKLOCK) {
+            return;
+        }
+        UUID lockToken = buffered.message.getLockToken();
+        // the broker moves an abandoned message that has expired to the dead-letter queue itself;
+        // a lost lock fails the settlement, which leaves nothing to do
+        if (expiring && this.deadLetterExpiring) {
+            this.receiver.deadLetterAsync(lockToken, EXPIRING_DEAD_LETTER_REASON, "The message would expire before it is processed.");
+        } else {
+            this.receiver.abandonAsync(lockToken);
+        }
+    }
+
+    private void onSettle(UUID lockToken) {
+        Instant at = this.handedOutAt.remove(lockToken);
+        if (at != null) {
+            double sample = Duration.between(at, this.clock.instant()).toNanos();
+            double average = this.observedProcessingNanos;
+            this.observedProcessingNanos = average == 0 ? sample : average + SMOOTHING * (sample - average);
+        }
+    }
+
+    private static long toEpochMilli(Instant instant) {
+        if (instant == null) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            return instant.toEpochMilli();
+        } catch (ArithmeticException e) {
+            return instant.isBefore(Instant.EPOCH) ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    private static final class Buffered {
+        final IMessage message;
+        final long expiresAtMillis;
+        final long lockedUntilMillis;
+        // the lock time the message had when it was received, which a fresh lock has again
+        final long lockWindowMillis;
+        final long arrival;
+
+        Buffered(IMessage message, long expiresAtMillis, long lockedUntilMillis, long lockWindowMillis, long arrival) {
+            this.message = message;
+            this.expiresAtMillis = expiresAtMillis;
+            this.lockedUntilMillis = lockedUntilMillis;
+            this.lockWindowMillis = lockWindowMillis;
+            this.arrival = arrival;
+        }
+
+        long deadlineMillis() {
+            return Math.min(this.expiresAtMillis, this.lockedUntilMillis);
+        }
+    }
+
+    // ---- IMessageReceiver
+
+    @Override
+    public ReceiveMode getReceiveMode() {
+        return this.receiver.getReceiveMode();
+    }
+
+    @Override
+    public String getEntityPath() {
+        return this.receiver.getEntityPath();
+    }
+
+    @Override
+    public int getPrefetchCount() {
+        return this.receiver.getPrefetchCount();
+    }
+
+    @Override
+    public void setPrefetchCount(int prefetchCount) throws ServiceBusException {
+        this.receiver.setPrefetchCount(prefetchCount);
+    }
+
+    @Override
+    public IMessage receive() throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveAsync());
+    }
+
+    @Override
+    public IMessage receive(Duration serverWaitTime) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveAsync(serverWaitTime));
+    }
+
+    @Override
+    public CompletableFuture<IMessage> receiveAsync() {
+        return this.takeAsync(1, null).thenApply(messages -> messages.isEmpty() ? null : messages.get(0));
+    }
+
+    @Override
+    public CompletableFuture<IMessage> receiveAsync(Duration serverWaitTime) {
+        return this.takeAsync(1, serverWaitTime).thenApply(messages -> messages.isEmpty() ? null : messages.get(0));
+    }
+
+    @Override
+    public Collection<IMessage> receiveBatch(int maxMessageCount) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveBatchAsync(maxMessageCount));
+    }
+
+    @Override
+    public Collection<IMessage> receiveBatch(int maxMessageCount, Duration serverWaitTime) throws InterruptedException, ServiceBusException {
+        return Futures.await(this.receiveBatchAsync(maxMessageCount, serverWaitTime));
+    }
+
+    // an empty result is returned as null, like the receiver does
+    @Override
+    public CompletableFuture<Collection<IMessage>> receiveBatchAsync(int maxMessageCount) {
+        return this.takeAsync(maxMessageCount, null).thenApply(messages -> messages.isEmpty() ? null : messages);
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> receiveBatchAsync(int maxMessageCount, Duration serverWaitTime) {
+        return this.takeAsync(maxMessageCount, serverWaitTime).thenApply(messages -> messages.isEmpty() ? null : messages);
+    }
+
+    @Override
+    public IMessage receiveDeferredMessage(long sequenceNumber) throws InterruptedException, ServiceBusException {
+        return this.receiver.receiveDeferredMessage(sequenceNumber);
+    }
+
+    @Override
+    public CompletableFuture<IMessage> receiveDeferredMessageAsync(long sequenceNumber) {
+        return this.receiver.receiveDeferredMessageAsync(sequenceNumber);
+    }
+
+    @Override
+    public Collection<IMessage> receiveDeferredMessageBatch(Collection<Long> sequenceNumbers) throws InterruptedException, ServiceBusException {
+        return this.receiver.receiveDeferredMessageBatch(sequenceNumbers);
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> receiveDeferredMessageBatchAsync(Collection<Long> sequenceNumbers) {
+        return this.receiver.receiveDeferredMessageBatchAsync(sequenceNumbers);
+    }
+
+    @Override
+    public void complete(UUID lockToken) throws InterruptedException, ServiceBusException {
+        this.onSettle(lockToken);
+        this.receiver.complete(lockToken);
+    }
+
+    @Override
+    public CompletableFuture<Void> completeAsync(UUID lockToken) {
+        this.onSettle(lockToken);
+        return this.receiver.completeAsync(lockToken);
+    }
+
+    @Override
+    public void abandon(UUID lockToken) throws InterruptedException, ServiceBusException {
+        this.onSettle(lockToken);
+        this.receiver.abandon(lockToken);
+    }
+
+    @Override
+    public void abandon(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        this.onSettle(lockToken);
+        this.receiver.abandon(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public CompletableFuture<Void> abandonAsync(UUID lockToken) {
+        this.onSettle(lockToken);
+        return this.receiver.abandonAsync(lockToken);
+    }
+
+    @Override
+    public CompletableFuture<Void> abandonAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        this.onSettle(lockToken);
+        return this.receiver.abandonAsync(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public void defer(UUID lockToken) throws InterruptedException, ServiceBusException {
+        this.onSettle(lockToken);
+        this.receiver.defer(lockToken);
+    }
+
+    @Override
+    public void defer(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        this.onSettle(lockToken);
+        this.receiver.defer(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public CompletableFuture<Void> deferAsync(UUID lockToken) {
+        this.onSettle(lockToken);
+        return this.receiver.deferAsync(lockToken);
+    }
+
+    @Override
+    public CompletableFuture<Void> deferAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        this.onSettle(lockToken);
+        return this.receiver.deferAsync(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken) throws InterruptedException, ServiceBusException {
+        this.onSettle(lockToken);
+        this.receiver.deadLetter(lockToken);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        this.onSettle(lockToken);
+        this.receiver.deadLetter(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription) throws InterruptedException, ServiceBusException {
+        this.onSettle(lockToken);
+        this.receiver.deadLetter(lockToken, deadLetterReason, deadLetterErrorDescription);
+    }
+
+    @Override
+    public void deadLetter(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription, Map<String, Object> propertiesToModify) throws InterruptedException, ServiceBusException {
+        this.onSettle(lockToken);
+        this.receiver.deadLetter(lockToken, deadLetterReason, deadLetterErrorDescription, propertiesToModify);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken) {
+        this.onSettle(lockToken);
+        return this.receiver.deadLetterAsync(lockToken);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, Map<String, Object> propertiesToModify) {
+        this.onSettle(lockToken);
+        return this.receiver.deadLetterAsync(lockToken, propertiesToModify);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription) {
+        this.onSettle(lockToken);
+        return this.receiver.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription);
+    }
+
+    @Override
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription, Map<String, Object> propertiesToModify) {
+        this.onSettle(lockToken);
+        return this.receiver.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription, propertiesToModify);
+    }
+
+    @Override
+    public Instant renewMessageLock(IMessage message) throws InterruptedException, ServiceBusException {
+        return this.receiver.renewMessageLock(message);
+    }
+
+    @Override
+    public CompletableFuture<Instant> renewMessageLockAsync(IMessage message) {
+        return this.receiver.renewMessageLockAsync(message);
+    }
+
+    @Override
+    public IMessage peek() throws InterruptedException, ServiceBusException {
+        return this.receiver.peek();
+    }
+
+    @Override
+    public IMessage peek(long fromSequenceNumber) throws InterruptedException, ServiceBusException {
+        return this.receiver.peek(fromSequenceNumber);
+    }
+
+    @Override
+    public Collection<IMessage> peekBatch(int maxMessageCount) throws InterruptedException, ServiceBusException {
+        return this.receiver.peekBatch(maxMessageCount);
+    }
+
+    @Override
+    public Collection<IMessage> peekBatch(long fromSequenceNumber, int maxMessageCount) throws InterruptedException, ServiceBusException {
+        return this.receiver.peekBatch(fromSequenceNumber, maxMessageCount);
+    }
+
+    @Override
+    public CompletableFuture<IMessage> peekAsync() {
+        return this.receiver.peekAsync();
+    }
+
+    @Override
+    public CompletableFuture<IMessage> peekAsync(long fromSequenceNumber) {
+        return this.receiver.peekAsync(fromSequenceNumber);
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> peekBatchAsync(int maxMessageCount) {
+        return this.receiver.peekBatchAsync(maxMessageCount);
+    }
+
+    @Override
+    public CompletableFuture<Collection<IMessage>> peekBatchAsync(long fromSequenceNumber, int maxMessageCount) {
+        return this.receiver.peekBatchAsync(fromSequenceNumber, maxMessageCount);
+    }
+
+    /**
+     * Abandons the buffered messages in {@code PEEKLOCK} mode and closes the inner receiver.
+     */
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        this.closed = true;
+        List<CompletableFuture<Void>> abandons = new ArrayList<>();
+        synchronized (this) {
+            for (Buffered buffered; (buffered = this.buffer.poll()) != null; ) {
+                if (this.receiver.getReceiveMode() == ReceiveMode.PEEKLOCK) {
+                    abandons.add(this.receiver.abandonAsync(buffered.message.getLockToken()).handle((v, error) -> null));
+                }
+            }
+        }
+        return CompletableFuture.allOf(abandons.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(v -> this.receiver.closeAsync());
+    }
+
+    @Override
+    public void close() throws ServiceBusException {
+        try {
+            Futures.await(this.closeAsync());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
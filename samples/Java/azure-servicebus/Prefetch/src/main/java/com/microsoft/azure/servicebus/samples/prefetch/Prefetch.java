@@ -42,27 +42,76 @@ public class Prefetch {
         long timeDifference = timeTaken1 - timeTaken2;
 
         System.out.printf("\nTime difference = %d milliseconds\n", timeDifference);
+
+        // run 3
+        // Let the prefetch count follow the observed consume rate, round trip and lock time
+        AdaptivePrefetchController adaptiveReceiver = new AdaptivePrefetchController(
+                ClientFactory.createMessageReceiverFromConnectionStringBuilder(new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK),
+                0, 500, Duration.ofMillis(100));
+        this.sendAndReceiveMessages(sender, adaptiveReceiver, 100);
+        System.out.printf("Adaptive prefetch: %s\n", adaptiveReceiver.getMetrics());
+        adaptiveReceiver.close();
+
+        // run 4
+        // Receive in batches, process in parallel and complete in batches
+        receiver = ClientFactory.createMessageReceiverFromConnectionStringBuilder(new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK);
+        receiver.setPrefetchCount(50);
+        long timeTaken4 = this.sendAndProcessMessagesInBatches(sender, receiver, 100);
+        receiver.close();
+
+        System.out.printf("\nTime difference to the batched pipeline = %d milliseconds\n", timeTaken2 - timeTaken4);
+
+        // run 5
+        // Hand out the earliest-expiring messages first and skip those that would expire before they are processed
+        DeadlineAwareReceiver deadlineReceiver = new DeadlineAwareReceiver(
+                ClientFactory.createMessageReceiverFromConnectionStringBuilder(new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK),
+                50, Duration.ofMillis(20));
+        this.sendMessagesWithDeadlines(sender, 100, Duration.ofSeconds(1));
+        this.receiveMessagesBeforeDeadline(deadlineReceiver, Duration.ofMillis(20));
+        deadlineReceiver.close();
     }
 
-    long sendAndReceiveMessages(IMessageSender sender, IMessageReceiver receiver, int messageCount) throws Exception
+    void sendMessagesWithDeadlines(IMessageSender sender, int messageCount, Duration shortTimeToLive)
     {
-        // Now we can start sending messages.
+        // every fourth message has to be processed within the short time-to-live
         Random rnd = new Random();
-        byte[] mockPayload = new byte[100]; // 100 random-byte payload
-
+        byte[] mockPayload = new byte[100];
         rnd.nextBytes(mockPayload);
 
-        System.out.printf("\nSending %d messages to the queue\n", messageCount);
+        System.out.printf("\nSending %d messages with mixed time-to-live to the queue\n", messageCount);
         ArrayList<CompletableFuture<Void>> sendOps = new ArrayList<>();
         for (int i = 0; i < messageCount; i++)
         {
             IMessage message = new Message(mockPayload);
-            message.setTimeToLive(Duration.ofMinutes(5));
+            message.setTimeToLive(i % 4 == 3 ? shortTimeToLive : Duration.ofMinutes(5));
             sendOps.add(sender.sendAsync(message));
         }
         CompletableFuture.allOf(sendOps.toArray(new CompletableFuture<?>[sendOps.size()])).join();
 
         System.out.printf("Send completed\n");
+    }
+
+    long receiveMessagesBeforeDeadline(DeadlineAwareReceiver receiver, Duration processingTime) throws Exception
+    {
+        System.out.printf("Receiving messages before their deadline...\n");
+        long processed = 0;
+        IMessage receivedMessage = receiver.receive(Duration.ofSeconds(1));
+        while (receivedMessage != null) {
+            // here's where you'd do any work
+            Thread.sleep(processingTime.toMillis());
+            receiver.complete(receivedMessage.getLockToken());
+            processed++;
+            receivedMessage = receiver.receive(Duration.ofSeconds(1));
+        }
+
+        System.out.printf("Processed %d messages, skipped %d expiring and %d with expiring locks, saved %d milliseconds of processing\n",
+                processed, receiver.getSkippedExpiringCount(), receiver.getSkippedLockCount(), receiver.getSavedProcessingTime().toMillis());
+        return processed;
+    }
+
+    long sendAndReceiveMessages(IMessageSender sender, IMessageReceiver receiver, int messageCount) throws Exception
+    {
+        this.sendMessages(sender, messageCount);
 
         // Receive the messages
         System.out.printf("Receiving messages...\n");
@@ -94,6 +143,53 @@ public class Prefetch {
         return timeTaken;
     }
 
+    long sendAndProcessMessagesInBatches(IMessageSender sender, IMessageReceiver receiver, int messageCount) throws Exception
+    {
+        this.sendMessages(sender, messageCount);
+
+        System.out.printf("Receiving messages in batches...\n");
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        Stopwatch stopWatch = Stopwatch.createStarted();
+
+        // pull 20 messages per round trip and complete every 20 messages, or after 10 milliseconds
+        try (BatchedReceivePipeline pipeline = new BatchedReceivePipeline(receiver, 20, 20, Duration.ofMillis(10), executorService)) {
+            long processed = pipeline.processAsync(messageCount, Duration.ofSeconds(5), message -> {
+                // here's where you'd do any work
+            }).join();
+            stopWatch.stop();
+            System.out.printf("Processed %d messages, abandoned %d, with %d settlement flushes\n",
+                    processed, pipeline.getAbandonedCount(), pipeline.getFlushCount());
+        } finally {
+            executorService.shutdown();
+        }
+
+        long timeTaken = stopWatch.elapsed(TimeUnit.MILLISECONDS);
+        System.out.printf("Time to receive and complete all messages = %d milliseconds\n", timeTaken);
+
+        return timeTaken;
+    }
+
+    void sendMessages(IMessageSender sender, int messageCount)
+    {
+        // Now we can start sending messages.
+        Random rnd = new Random();
+        byte[] mockPayload = new byte[100]; // 100 random-byte payload
+
+        rnd.nextBytes(mockPayload);
+
+        System.out.printf("\nSending %d messages to the queue\n", messageCount);
+        ArrayList<CompletableFuture<Void>> sendOps = new ArrayList<>();
+        for (int i = 0; i < messageCount; i++)
+        {
+            IMessage message = new Message(mockPayload);
+            message.setTimeToLive(Duration.ofMinutes(5));
+            sendOps.add(sender.sendAsync(message));
+        }
+        CompletableFuture.allOf(sendOps.toArray(new CompletableFuture<?>[sendOps.size()])).join();
+
+        System.out.printf("Send completed\n");
+    }
+
 
     public static void main(String[] args) {
 
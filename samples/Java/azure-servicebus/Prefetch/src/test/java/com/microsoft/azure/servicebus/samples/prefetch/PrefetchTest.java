@@ -1,7 +1,32 @@
 package com.microsoft.azure.servicebus.samples.prefetch;
 
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
 import org.junit.Assert;
 
+import java.lang.reflect.Proxy;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class PrefetchTest {
     @org.junit.Test
     public void runApp() throws Exception {
@@ -18,4 +43,303 @@ public class PrefetchTest {
                 }));
     }
 
-}
\ No newline at end of file
+    @org.junit.Test
+    public void sendAndReceiveMessagesOnEmulator() throws Exception {
+        try (ServiceBusEmulator emulator = new ServiceBusEmulator()) {
+            IMessageSender sender = emulator.createMessageSender("BasicQueue");
+            IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK);
+            receiver.setPrefetchCount(50);
+
+            new Prefetch().sendAndReceiveMessages(sender, receiver, 100);
+            Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+        }
+    }
+
+    @org.junit.Test
+    public void adaptivePrefetchGrowsWhenReceivesStall() throws Exception {
+        try (ServiceBusEmulator emulator = new ServiceBusEmulator()) {
+            IMessageSender sender = emulator.createMessageSender("BasicQueue");
+            emulator.setRoundTripLatency(Duration.ofMillis(2));
+            IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK);
+            AdaptivePrefetchController controller = new AdaptivePrefetchController(receiver, 0, 500, Duration.ofMillis(20));
+
+            new Prefetch().sendAndReceiveMessages(sender, controller, 500);
+            AdaptivePrefetchController.Metrics metrics = controller.getMetrics();
+            Assert.assertTrue(metrics.toString(), metrics.getAdjustmentCount() > 0);
+            Assert.assertTrue(metrics.toString(), controller.getPrefetchCount() > 0);
+            Assert.assertEquals(controller.getPrefetchCount(), receiver.getPrefetchCount());
+            Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+        }
+    }
+
+    @org.junit.Test
+    public void batchedPipelineProcessesAndCompletesAllMessages() throws Exception {
+        try (ServiceBusEmulator emulator = new ServiceBusEmulator()) {
+            IMessageSender sender = emulator.createMessageSender("BasicQueue");
+            emulator.setRoundTripLatency(Duration.ofMillis(1));
+            IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK);
+            receiver.setPrefetchCount(50);
+
+            new Prefetch().sendAndProcessMessagesInBatches(sender, receiver, 250);
+            Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+        }
+    }
+
+    @org.junit.Test
+    public void batchedPipelineAbandonsFailedMessages() throws Exception {
+        try (ServiceBusEmulator emulator = new ServiceBusEmulator()) {
+            IMessageSender sender = emulator.createMessageSender("BasicQueue");
+            IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK);
+            new Prefetch().sendMessages(sender, 10);
+
+            ExecutorService executorService = Executors.newFixedThreadPool(2);
+            try (BatchedReceivePipeline pipeline = new BatchedReceivePipeline(receiver, 4, 100, Duration.ofSeconds(1), executorService)) {
+                long processed = pipeline.processAsync(10, Duration.ofSeconds(1), message -> {
+                    if (message.getSequenceNumber() % 2 == 0) {
+                        throw new IllegalStateException("failed");
+                    }
+                }).join();
+                // the abandoned messages are not counted as processed
+                Assert.assertEquals(5, processed);
+                Assert.assertEquals(5, pipeline.getAbandonedCount());
+                // the lingering completions are flushed when the run ends
+                Assert.assertEquals(1, pipeline.getFlushCount());
+            } finally {
+                executorService.shutdown();
+            }
+            Assert.assertEquals(5, emulator.getEntity("BasicQueue").getActiveMessageCount());
+            Assert.assertEquals(0, emulator.getEntity("BasicQueue").getLockedMessageCount());
+        }
+    }
+
+    @org.junit.Test
+    public void batchedPipelineSettlesReceivedMessagesWhenAReceiveFails() throws Exception {
+        try (ServiceBusEmulator emulator = new ServiceBusEmulator()) {
+            IMessageSender sender = emulator.createMessageSender("BasicQueue");
+            IMessageReceiver inner = emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK);
+            new Prefetch().sendMessages(sender, 10);
+
+            // the second receive fails
+            AtomicInteger receives = new AtomicInteger();
+            IllegalStateException receiveError = new IllegalStateException("receive failed");
+            IMessageReceiver receiver = (IMessageReceiver) Proxy.newProxyInstance(IMessageReceiver.class.getClassLoader(),
+                    new Class<?>[]{IMessageReceiver.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("receiveBatchAsync") && receives.incrementAndGet() == 2) {
+                            CompletableFuture<Object> failed = new CompletableFuture<>();
+                            failed.completeExceptionally(receiveError);
+                            return failed;
+                        }
+                        return method.invoke(inner, args);
+                    });
+
+            ExecutorService executorService = Executors.newFixedThreadPool(2);
+            try (BatchedReceivePipeline pipeline = new BatchedReceivePipeline(receiver, 4, 100, Duration.ofSeconds(10), executorService)) {
+                try {
+                    pipeline.processAsync(10, Duration.ofSeconds(1), message -> { }).get(5, TimeUnit.SECONDS);
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertSame(receiveError, e.getCause());
+                }
+            } finally {
+                executorService.shutdown();
+            }
+            // the first batch is completed without waiting for the linger time
+            Assert.assertEquals(6, emulator.getEntity("BasicQueue").getActiveMessageCount());
+            Assert.assertEquals(0, emulator.getEntity("BasicQueue").getLockedMessageCount());
+        }
+    }
+
+    @org.junit.Test
+    public void deadlineAwareReceiverProcessesEarliestExpiringFirst() throws Exception {
+        // handling a message takes 100 milliseconds; "short" expires 250 milliseconds after it arrives
+        MutableClock clock = new MutableClock();
+        Instant start = clock.instant();
+        Instant lockedUntil = start.plus(Duration.ofMinutes(1));
+        List<IMessage> batch = Arrays.asList(
+                stubMessage("long-1", start.plus(Duration.ofMinutes(5)), lockedUntil),
+                stubMessage("long-2", start.plus(Duration.ofMinutes(5)), lockedUntil),
+                stubMessage("long-3", start.plus(Duration.ofMinutes(5)), lockedUntil),
+                stubMessage("short", start.plus(Duration.ofMillis(250)), lockedUntil));
+
+        // in arrival order, "short" comes up after 300 milliseconds and is skipped
+        StubReceiver fifoInner = new StubReceiver(batch);
+        DeadlineAwareReceiver fifo = new DeadlineAwareReceiver(fifoInner.receiver, 10, Duration.ofMillis(100), false, clock);
+        fifo.setDeadLetterExpiring(true);
+        Assert.assertEquals(Arrays.asList("long-1", "long-2", "long-3"), receiveAll(fifo, clock, Duration.ofMillis(100)));
+        Assert.assertEquals(1, fifo.getSkippedExpiringCount());
+        Assert.assertEquals(Collections.singletonList(batch.get(3).getLockToken()), fifoInner.deadLettered);
+
+        // earliest deadline first, "short" is handed out before it expires
+        clock.set(start);
+        StubReceiver edfInner = new StubReceiver(batch);
+        DeadlineAwareReceiver edf = new DeadlineAwareReceiver(edfInner.receiver, 10, Duration.ofMillis(100), true, clock);
+        edf.setDeadLetterExpiring(true);
+        Assert.assertEquals(Arrays.asList("short", "long-1", "long-2", "long-3"), receiveAll(edf, clock, Duration.ofMillis(100)));
+        Assert.assertEquals(0, edf.getSkippedExpiringCount());
+        Assert.assertEquals(4, edf.getDeliveredCount());
+        Assert.assertEquals(4, edfInner.completed.size());
+        Assert.assertTrue(edfInner.deadLettered.isEmpty());
+    }
+
+    @org.junit.Test
+    public void deadlineAwareReceiverAbandonsMessagesWhoseLockExpiresFirst() throws Exception {
+        MutableClock clock = new MutableClock();
+        // ten messages locked for 300 milliseconds, and the nine not handed out again with fresh locks
+        List<IMessage> received = stubBatch("a", 10, clock.instant(), Duration.ofMillis(300));
+        List<IMessage> redelivered = stubBatch("b", 9, clock.instant().plus(Duration.ofMillis(250)), Duration.ofMillis(300));
+        StubReceiver inner = new StubReceiver(received, redelivered);
+
+        DeadlineAwareReceiver receiver = new DeadlineAwareReceiver(inner.receiver, 10, Duration.ofMillis(100), true, clock);
+        IMessage first = receiver.receive(Duration.ofSeconds(1));
+        receiver.complete(first.getLockToken());
+        clock.advance(Duration.ofMillis(250));
+
+        // the buffered locks run out within the processing time, so the receive abandons the
+        // buffered messages and refills the buffer with freshly locked ones
+        IMessage second = receiver.receive(Duration.ofSeconds(1));
+        Assert.assertEquals("b-0", second.getMessageId());
+        Assert.assertEquals(9, receiver.getSkippedLockCount());
+        Assert.assertEquals(2, receiver.getDeliveredCount());
+        Assert.assertEquals(8, receiver.getBufferedCount());
+        List<UUID> skipped = new ArrayList<>();
+        for (IMessage message : received.subList(1, 10)) {
+            skipped.add(message.getLockToken());
+        }
+        Assert.assertEquals(skipped, inner.abandoned);
+    }
+
+    @org.junit.Test
+    public void deadlineAwareReceiverHandsOutMessagesNoLockCanCover() throws Exception {
+        try (ServiceBusEmulator emulator = new ServiceBusEmulator()) {
+            emulator.setLockDuration(Duration.ofMillis(200));
+            IMessageSender sender = emulator.createMessageSender("BasicQueue");
+            new Prefetch().sendMessages(sender, 10);
+
+            DeadlineAwareReceiver receiver = new DeadlineAwareReceiver(
+                    emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK), 10, Duration.ofMillis(300));
+            IMessage message = receiver.receive(Duration.ofSeconds(1));
+            Assert.assertNotNull(message);
+            Assert.assertEquals(0, receiver.getSkippedLockCount());
+            Assert.assertEquals(1, receiver.getDeliveredCount());
+            receiver.close();
+            Assert.assertEquals(10, emulator.getEntity("BasicQueue").getActiveMessageCount());
+            Assert.assertEquals(0, emulator.getEntity("BasicQueue").getDeadLetterMessageCount());
+        }
+    }
+
+    @org.junit.Test
+    public void deadlineAwareReceiverAbandonsBufferedMessagesOnClose() throws Exception {
+        try (ServiceBusEmulator emulator = new ServiceBusEmulator()) {
+            IMessageSender sender = emulator.createMessageSender("BasicQueue");
+            new Prefetch().sendMessages(sender, 10);
+
+            DeadlineAwareReceiver receiver = new DeadlineAwareReceiver(
+                    emulator.createMessageReceiver("BasicQueue", ReceiveMode.PEEKLOCK), 10, Duration.ZERO);
+            IMessage message = receiver.receive(Duration.ofSeconds(1));
+            Assert.assertEquals(9, receiver.getBufferedCount());
+            receiver.complete(message.getLockToken());
+            receiver.close();
+            Assert.assertEquals(9, emulator.getEntity("BasicQueue").getActiveMessageCount());
+            Assert.assertEquals(0, emulator.getEntity("BasicQueue").getLockedMessageCount());
+        }
+    }
+
+    // receives until the receiver returns nothing, advancing the clock by the handling time of each message
+    private static List<String> receiveAll(DeadlineAwareReceiver receiver, MutableClock clock, Duration handlingTime) throws Exception {
+        List<String> handled = new ArrayList<>();
+        for (IMessage message; (message = receiver.receive(Duration.ofSeconds(1))) != null; ) {
+            clock.advance(handlingTime);
+            receiver.complete(message.getLockToken());
+            handled.add(message.getMessageId());
+        }
+        return handled;
+    }
+
+    private static List<IMessage> stubBatch(String prefix, int count, Instant receivedAt, Duration lockDuration) {
+        List<IMessage> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            batch.add(stubMessage(prefix + "-" + i, receivedAt.plus(Duration.ofMinutes(5)), receivedAt.plus(lockDuration)));
+        }
+        return batch;
+    }
+
+    private static IMessage stubMessage(String messageId, Instant expiresAtUtc, Instant lockedUntilUtc) {
+        UUID lockToken = UUID.randomUUID();
+        return (IMessage) Proxy.newProxyInstance(IMessage.class.getClassLoader(), new Class<?>[]{IMessage.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMessageId":
+                    return messageId;
+                case "getLockToken":
+                    return lockToken;
+                case "getExpiresAtUtc":
+                    return expiresAtUtc;
+                case "getLockedUntilUtc":
+                    return lockedUntilUtc;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    // a peek-lock receiver that returns the given batches, one per receive, and records the settlements
+    private static final class StubReceiver {
+        final Queue<List<IMessage>> batches = new ArrayDeque<>();
+        final List<UUID> completed = new ArrayList<>();
+        final List<UUID> abandoned = new ArrayList<>();
+        final List<UUID> deadLettered = new ArrayList<>();
+        final IMessageReceiver receiver;
+
+        @SafeVarargs
+        StubReceiver(List<IMessage>... batches) {
+            this.batches.addAll(Arrays.asList(batches));
+            this.receiver = (IMessageReceiver) Proxy.newProxyInstance(IMessageReceiver.class.getClassLoader(),
+                    new Class<?>[]{IMessageReceiver.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getReceiveMode":
+                                return ReceiveMode.PEEKLOCK;
+                            case "receiveBatchAsync":
+                                return CompletableFuture.completedFuture(this.batches.poll());
+                            case "complete":
+                                this.completed.add((UUID) args[0]);
+                                return null;
+                            case "abandonAsync":
+                                this.abandoned.add((UUID) args[0]);
+                                return CompletableFuture.completedFuture(null);
+                            case "deadLetterAsync":
+                                this.deadLettered.add((UUID) args[0]);
+                                return CompletableFuture.completedFuture(null);
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+
+    // a clock that only moves when the test moves it
+    private static final class MutableClock extends Clock {
+        private volatile Instant instant = Instant.now();
+
+        void advance(Duration duration) {
+            this.instant = this.instant.plus(duration);
+        }
+
+        void set(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public Instant instant() {
+            return this.instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.queuesgettingstarted;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+import com.microsoft.azure.servicebus.samples.common.Futures;
+import com.microsoft.azure.servicebus.samples.common.MessageSize;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link IMessageSender} that collects messages and sends them with {@code sendBatchAsync}.
+ * <p>
+ * A batch is flushed when adding the next message would exceed the maximum batch size, or when
+ * the linger time has passed since the first message of the batch was added. Every message keeps
+ * its own future, which completes when the batch that carried it has been acknowledged. A
+ * collection passed to {@code sendBatchAsync} is split over as many batches as its size needs.
+ * A message that does not fit into an empty batch is sent on its own, after the batch collected
+ * before it. Batches are sent outside the lock, in the order they were collected.
+ * <p>
+ * Message sizes are estimated by {@link MessageSize}.
+ */
+public class BatchingMessageSender implements IMessageSender {
+
+    // the message size limit of a Standard tier namespace, which also applies to a batch
+    public static final int DEFAULT_MAX_BATCH_SIZE_IN_BYTES = 256 * 1024;
+    public static final Duration DEFAULT_LINGER = Duration.ofMillis(10);
+
+    private final IMessageSender sender;
+    private final int maxBatchSizeInBytes;
+    private final long lingerNanos;
+    private final ScheduledExecutorService timer;
+    private final Map<CompletableFuture<Void>, Boolean> batchesInFlight = new ConcurrentHashMap<>();
+    // sends of collected batches not yet started, in collection order; drained by one thread at a time
+    private final Queue<Runnable> sendQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    // the batch being collected, guarded by this
+    private List<IMessage> messages = new ArrayList<>();
+    private List<CompletableFuture<Void>> futures = new ArrayList<>();
+    private int batchSizeInBytes;
+    private ScheduledFuture<?> lingerFlush;
+    private boolean closed;
+
+    public BatchingMessageSender(IMessageSender sender) {
+        this(sender, DEFAULT_MAX_BATCH_SIZE_IN_BYTES, DEFAULT_LINGER);
+    }
+
+    public BatchingMessageSender(IMessageSender sender, int maxBatchSizeInBytes, Duration linger) {
+        if (maxBatchSizeInBytes <= 0) {
+            throw new IllegalArgumentException("maxBatchSizeInBytes must be greater than 0.");
+        }
+        this.sender = sender;
+        this.maxBatchSizeInBytes = maxBatchSizeInBytes;
+        this.lingerNanos = linger.toNanos();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "batching-message-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(IMessage message) {
+        int size = MessageSize.estimate(message);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (this.closed) {
+                return closedFuture();
+            }
+            if (size > this.maxBatchSizeInBytes) {
+                // too large to share a batch; the service decides whether it fits on its own
+                this.flushLocked();
+                this.enqueue(Collections.singletonList(message), Collections.singletonList(future));
+            } else {
+                if (this.batchSizeInBytes + size > this.maxBatchSizeInBytes) {
+                    this.flushLocked();
+                }
+                this.messages.add(message);
+                this.futures.add(future);
+                this.batchSizeInBytes += size;
+                if (this.messages.size() == 1) {
+                    this.lingerFlush = this.timer.schedule(this::flush, this.lingerNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        this.drain();
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> sendBatchAsync(Collection<? extends IMessage> messages) {
+        List<CompletableFuture<Void>> sends = new ArrayList<>(messages.size());
+        for (IMessage message : messages) {
+            sends.add(this.sendAsync(message));
+        }
+        return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[sends.size()]));
+    }
+
+    /**
+     * Sends the batch being collected without waiting for the linger time.
+     */
+    public void flush() {
+        synchronized (this) {
+            this.flushLocked();
+        }
+        this.drain();
+    }
+
+    private void flushLocked() {
+        if (this.lingerFlush != null) {
+            this.lingerFlush.cancel(false);
+            this.lingerFlush = null;
+        }
+        if (this.messages.isEmpty()) {
+            return;
+        }
+        List<IMessage> batch = this.messages;
+        List<CompletableFuture<Void>> batchFutures = this.futures;
+        this.messages = new ArrayList<>(batch.size());
+        this.futures = new ArrayList<>(batch.size());
+        this.batchSizeInBytes = 0;
+        this.enqueue(batch, batchFutures);
+    }
+
+    // called with the lock held, so the queue has the batches in the order they were collected;
+    // the batch counts as in flight from here, so that closing waits for it
+    private void enqueue(List<IMessage> batch, List<CompletableFuture<Void>> batchFutures) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        this.batchesInFlight.put(sent, Boolean.TRUE);
+        sent.whenComplete((v, error) -> {
+            this.batchesInFlight.remove(sent);
+            for (CompletableFuture<Void> future : batchFutures) {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(null);
+                }
+            }
+        });
+        this.sendQueue.add(() -> {
+            CompletableFuture<Void> send;
+            try {
+                send = batch.size() == 1 ? this.sender.sendAsync(batch.get(0)) : this.sender.sendBatchAsync(batch);
+            } catch (RuntimeException e) {
+                sent.completeExceptionally(e);
+                return;
+            }
+            send.whenComplete((v, error) -> {
+                if (error != null) {
+                    sent.completeExceptionally(error);
+                } else {
+                    sent.complete(null);
+                }
+            });
+        });
+    }
+
+    // starts the queued sends outside the lock; one thread starts them at a time, so they keep
+    // their order, and a thread that finds another one draining leaves its batches to it
+    private void drain() {
+        while (!this.sendQueue.isEmpty() && this.draining.compareAndSet(false, true)) {
+            try {
+                for (Runnable send; (send = this.sendQueue.poll()) != null; ) {
+                    send.run();
+                }
+            } finally {
+                this.draining.set(false);
+            }
+        }
+    }
+
+    @Override
+    public void send(IMessage message) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendAsync(message));
+    }
+
+    @Override
+    public void sendBatch(Collection<? extends IMessage> messages) throws InterruptedException, ServiceBusException {
+        Futures.await(this.sendBatchAsync(messages));
+    }
+
+    @Override
+    public CompletableFuture<Long> scheduleMessageAsync(IMessage message, Instant scheduledEnqueueTimeUtc) {
+        return this.sender.scheduleMessageAsync(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public CompletableFuture<Void> cancelScheduledMessageAsync(long sequenceNumber) {
+        return this.sender.cancelScheduledMessageAsync(sequenceNumber);
+    }
+
+    @Override
+    public long scheduleMessage(IMessage message, Instant scheduledEnqueueTimeUtc) throws InterruptedException, ServiceBusException {
+        return this.sender.scheduleMessage(message, scheduledEnqueueTimeUtc);
+    }
+
+    @Override
+    public void cancelScheduledMessage(long sequenceNumber) throws InterruptedException, ServiceBusException {
+        this.sender.cancelScheduledMessage(sequenceNumber);
+    }
+
+    @Override
+    public String getEntityPath() {
+        return this.sender.getEntityPath();
+    }
+
+    /**
+     * Flushes the batch being collected, waits for all batches in flight and closes the underlying sender.
+     */
+    @Override
+    public CompletableFuture<Void> closeAsync() {
+        synchronized (this) {
+            this.closed = true;
+            this.flushLocked();
+        }
+        this.drain();
+        this.timer.shutdown();
+        CompletableFuture<?>[] inFlight = this.batchesInFlight.keySet().toArray(new CompletableFuture<?>[0]);
+        return CompletableFuture.allOf(inFlight)
+                .handle((v, error) -> null)
+                .thenCompose(v -> this.sender.closeAsync());
+    }
+
+    @Override
+    public void close() throws ServiceBusException {
+        try {
+            Futures.await(this.closeAsync());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static CompletableFuture<Void> closedFuture() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(new IllegalStateException("Operation not allowed after the MessageSender instance is closed."));
+        return future;
+    }
+}
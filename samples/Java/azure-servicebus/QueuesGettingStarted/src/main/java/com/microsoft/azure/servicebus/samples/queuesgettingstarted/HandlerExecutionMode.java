@@ -0,0 +1,72 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.queuesgettingstarted;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Ways to run the {@code onMessageAsync} callbacks of a message handler.
+ * <p>
+ * The executor passed to {@code registerMessageHandler} is the one that calls
+ * {@code onMessageAsync}. A handler that blocks, for example on a synchronous {@code send},
+ * holds its thread until the call returns. With {@link #VIRTUAL_THREADS} every callback gets its
+ * own virtual thread, so {@code maxConcurrentCalls} can go into the thousands without a platform
+ * thread per call. Virtual threads need a build with the {@code java21} profile, which Maven
+ * activates on JDK 21 and later; in a Java 8 build {@link #VIRTUAL_THREADS} falls back to
+ * {@link #CACHED_POOL}, which {@link #resolve} reports.
+ */
+public enum HandlerExecutionMode {
+
+    // one callback at a time, as in the getting started samples
+    SINGLE_THREAD,
+    // a fixed number of platform threads
+    FIXED_POOL,
+    // a platform thread per concurrent callback, reused when idle
+    CACHED_POOL,
+    // a new virtual thread per callback
+    VIRTUAL_THREADS;
+
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.SUPPORTED;
+    }
+
+    /**
+     * Parses a mode name as given on a sample's command line, ignoring case.
+     */
+    public static HandlerExecutionMode parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown execution mode " + name + "; use one of " + Arrays.toString(values()) + ".");
+        }
+    }
+
+    /**
+     * @return the mode {@link #newExecutor} runs in this build
+     */
+    public HandlerExecutionMode resolve() {
+        return this == VIRTUAL_THREADS && !isVirtualThreadSupported() ? CACHED_POOL : this;
+    }
+
+    /**
+     * @param threads the pool size for {@link #FIXED_POOL}; ignored by the other modes
+     */
+    public ExecutorService newExecutor(int threads) {
+        switch (this.resolve()) {
+            case SINGLE_THREAD:
+                return Executors.newSingleThreadExecutor();
+            case FIXED_POOL:
+                return Executors.newFixedThreadPool(threads);
+            case CACHED_POOL:
+                return Executors.newCachedThreadPool();
+            case VIRTUAL_THREADS:
+                return VirtualThreads.newVirtualThreadPerTaskExecutor();
+            default:
+                throw new IllegalStateException("Unknown execution mode " + this);
+        }
+    }
+}
@@ -21,20 +21,28 @@ public class QueuesGettingStarted {
 
     static final Gson GSON = new Gson();
 
+    // the executor that runs the handler callbacks, set with -e on the command line
+    static HandlerExecutionMode executionMode = HandlerExecutionMode.SINGLE_THREAD;
+
     public void run(String connectionString) throws Exception {
 
         // Create a QueueClient instance for receiving using the connection string builder
         // We set the receive mode to "PeekLock", meaning the message is delivered
         // under a lock and must be acknowledged ("completed") to be removed from the queue
         QueueClient receiveClient = new QueueClient(new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK);
-        // We are using single thread executor as we are only processing one message at a time
-    	ExecutorService executorService = Executors.newSingleThreadExecutor();
+        // By default we are using single thread executor as we are only processing one message at a time.
+        // With -e virtual_threads each callback runs on its own virtual thread, which lets blocking
+        // handler code run many concurrent calls; a build before Java 21 uses a cached thread pool instead
+        ExecutorService executorService = executionMode.newExecutor(Runtime.getRuntime().availableProcessors());
         this.registerReceiver(receiveClient, executorService);
 
         // Create a QueueClient instance for sending and then asynchronously send messages.
-        // Close the sender once the send operation is complete.
+        // The BatchingMessageSender collects the messages and sends them in batches of up to
+        // 256 KB, or whatever it has after 10 milliseconds. Each message still has its own future.
+        // Close the sender once the send operation is complete; this also closes the QueueClient.
         QueueClient sendClient = new QueueClient(new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK);
-        this.sendMessagesAsync(sendClient).thenRunAsync(() -> sendClient.closeAsync());
+        BatchingMessageSender batchingSender = new BatchingMessageSender(sendClient);
+        this.sendMessagesAsync(batchingSender).thenRunAsync(() -> batchingSender.closeAsync());
 
         // wait for ENTER or 10 seconds elapsing
         waitForEnter(10);
@@ -44,7 +52,7 @@ public class QueuesGettingStarted {
         executorService.shutdown();
     }
 
-    CompletableFuture<Void> sendMessagesAsync(QueueClient sendClient) {
+    CompletableFuture<Void> sendMessagesAsync(IMessageSender sendClient) {
         List<HashMap<String, String>> data =
                 GSON.fromJson(
                         "[" +
@@ -113,8 +121,8 @@ public class QueuesGettingStarted {
                                                    System.out.printf(exceptionPhase + "-" + throwable.getMessage());
                                                }
                                            },
-                // 1 concurrent call, messages are auto-completed, auto-renew duration
-                new MessageHandlerOptions(1, true, Duration.ofMinutes(1)),
+                // 1 concurrent call on a single thread, otherwise 16; messages are auto-completed, auto-renew duration
+                new MessageHandlerOptions(executionMode == HandlerExecutionMode.SINGLE_THREAD ? 1 : 16, true, Duration.ofMinutes(1)),
                 executorService);
 
     }
@@ -143,11 +151,15 @@ public class QueuesGettingStarted {
             // parse connection string from command line
             Options options = new Options();
             options.addOption(new Option("c", true, "Connection string"));
+            options.addOption(new Option("e", true, "Handler execution mode: single_thread, fixed_pool, cached_pool or virtual_threads"));
             CommandLineParser clp = new DefaultParser();
             CommandLine cl = clp.parse(options, args);
             if (cl.getOptionValue("c") != null) {
                 connectionString = cl.getOptionValue("c");
             }
+            if (cl.getOptionValue("e") != null) {
+                executionMode = HandlerExecutionMode.parse(cl.getOptionValue("e"));
+            }
 
             // get overrides from the environment
             String env = System.getenv(SB_SAMPLES_CONNECTIONSTRING);
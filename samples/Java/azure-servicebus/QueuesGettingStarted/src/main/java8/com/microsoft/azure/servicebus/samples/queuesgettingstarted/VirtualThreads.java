@@ -0,0 +1,22 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.queuesgettingstarted;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Compiled when Maven runs on a JDK before 21, which has no virtual threads. The {@code java21}
+ * profile compiles the version in {@code src/main/java21} instead.
+ */
+final class VirtualThreads {
+
+    static final boolean SUPPORTED = false;
+
+    private VirtualThreads() {
+    }
+
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        throw new UnsupportedOperationException("Virtual threads need a build with the java21 profile.");
+    }
+}
@@ -0,0 +1,106 @@
+package com.microsoft.azure.servicebus.samples.queuesgettingstarted;
+
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+public class BatchingMessageSenderTest {
+
+    private ServiceBusEmulator emulator;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void sendMessagesAsyncDeliversAllMessages() throws Exception {
+        BatchingMessageSender sender = new BatchingMessageSender(emulator.createMessageSender("BasicQueue"));
+        new QueuesGettingStarted().sendMessagesAsync(sender).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(10, emulator.getEntity("BasicQueue").getActiveMessageCount());
+        sender.close();
+    }
+
+    @Test
+    public void lingerFlushesPartialBatch() throws Exception {
+        BatchingMessageSender sender = new BatchingMessageSender(emulator.createMessageSender("BasicQueue"), 1024, Duration.ofMillis(50));
+        CompletableFuture<Void> send = sender.sendAsync(new Message("hello"));
+        Assert.assertFalse(send.isDone());
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getActiveMessageCount());
+
+        send.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, emulator.getEntity("BasicQueue").getActiveMessageCount());
+        sender.close();
+    }
+
+    @Test
+    public void batchesAreSplitBelowTheSizeLimit() throws Exception {
+        // the entity rejects any batch above 1000 bytes
+        emulator.setMaxMessageSizeInBytes(1000);
+        BatchingMessageSender sender = new BatchingMessageSender(emulator.createMessageSender("BasicQueue"), 1000, Duration.ofSeconds(10));
+
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            messages.add(new Message(new byte[200]));
+        }
+        CompletableFuture<Void> batch = sender.sendBatchAsync(messages);
+        sender.flush();
+        batch.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(20, emulator.getEntity("BasicQueue").getActiveMessageCount());
+        sender.close();
+    }
+
+    @Test
+    public void oversizedMessageFailsOnItsOwn() throws Exception {
+        emulator.setMaxMessageSizeInBytes(1000);
+        IMessageSender sender = new BatchingMessageSender(emulator.createMessageSender("BasicQueue"), 1000, Duration.ofMillis(10));
+
+        CompletableFuture<Void> small = sender.sendAsync(new Message(new byte[100]));
+        CompletableFuture<Void> oversized = sender.sendAsync(new Message(new byte[2000]));
+        small.get(5, TimeUnit.SECONDS);
+        try {
+            oversized.join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause().getMessage().contains("exceeds the limit"));
+        }
+        Assert.assertEquals(1, emulator.getEntity("BasicQueue").getActiveMessageCount());
+        sender.close();
+    }
+
+    @Test
+    public void oversizedMessageIsSentAfterTheCollectedBatch() throws Exception {
+        BatchingMessageSender sender = new BatchingMessageSender(emulator.createMessageSender("BasicQueue"), 1000, Duration.ofSeconds(10));
+        Message small = new Message(new byte[100]);
+        small.setMessageId("small");
+        Message oversized = new Message(new byte[2000]);
+        oversized.setMessageId("oversized");
+
+        CompletableFuture<Void> first = sender.sendAsync(small);
+        CompletableFuture<Void> second = sender.sendAsync(oversized);
+        CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.RECEIVEANDDELETE);
+        Assert.assertEquals("small", receiver.receive(Duration.ofSeconds(1)).getMessageId());
+        Assert.assertEquals("oversized", receiver.receive(Duration.ofSeconds(1)).getMessageId());
+        sender.close();
+    }
+}
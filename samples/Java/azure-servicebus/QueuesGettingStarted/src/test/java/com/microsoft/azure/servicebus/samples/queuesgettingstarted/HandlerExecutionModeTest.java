@@ -0,0 +1,88 @@
+package com.microsoft.azure.servicebus.samples.queuesgettingstarted;
+
+import com.microsoft.azure.servicebus.*;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class HandlerExecutionModeTest {
+
+    private ServiceBusEmulator emulator;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void blockingHandlerOnFixedPool() throws Exception {
+        this.resubmitWithBlockingSends(HandlerExecutionMode.FIXED_POOL);
+    }
+
+    @Test
+    public void blockingHandlerOnCachedPool() throws Exception {
+        this.resubmitWithBlockingSends(HandlerExecutionMode.CACHED_POOL);
+    }
+
+    @Test
+    public void blockingHandlerOnVirtualThreads() throws Exception {
+        Assume.assumeTrue(HandlerExecutionMode.isVirtualThreadSupported());
+        this.resubmitWithBlockingSends(HandlerExecutionMode.VIRTUAL_THREADS);
+    }
+
+    @Test
+    public void virtualThreadsFallBackToACachedPoolBeforeJava21() throws Exception {
+        Assume.assumeFalse(HandlerExecutionMode.isVirtualThreadSupported());
+        Assert.assertEquals(HandlerExecutionMode.CACHED_POOL, HandlerExecutionMode.VIRTUAL_THREADS.resolve());
+        this.resubmitWithBlockingSends(HandlerExecutionMode.VIRTUAL_THREADS);
+    }
+
+    private void resubmitWithBlockingSends(HandlerExecutionMode mode) throws Exception {
+        int count = 200;
+        IMessageSender feeder = emulator.createMessageSender("BasicQueue");
+        for (int i = 0; i < count; i++) {
+            feeder.send(new Message(Integer.toString(i)));
+        }
+        emulator.setRoundTripLatency(Duration.ofMillis(2));
+        IQueueClient client = emulator.createQueueClient("BasicQueue", ReceiveMode.PEEKLOCK);
+        IMessageSender resubmitSender = emulator.createMessageSender("ResubmitQueue");
+        CountDownLatch latch = new CountDownLatch(count);
+        ExecutorService executorService = mode.newExecutor(8);
+
+        client.registerMessageHandler(new IMessageHandler() {
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                try {
+                    // blocks the calling thread for a round trip
+                    resubmitSender.send(new Message(message.getBody()));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                latch.countDown();
+                return CompletableFuture.completedFuture(null);
+            }
+
+            public void notifyException(Throwable throwable, ExceptionPhase exceptionPhase) {
+                System.out.printf(exceptionPhase + "-" + throwable.getMessage());
+            }
+        }, new MessageHandlerOptions(50, true, Duration.ofMinutes(1)), executorService);
+
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(count, emulator.getEntity("ResubmitQueue").getActiveMessageCount());
+        client.close();
+        executorService.shutdown();
+    }
+}
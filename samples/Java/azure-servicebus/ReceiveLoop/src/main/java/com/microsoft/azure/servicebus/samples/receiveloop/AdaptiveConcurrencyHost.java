@@ -0,0 +1,425 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.ReceiveMode;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs an {@link IMessageHandler} over an {@link IMessageReceiver} with a number of concurrent
+ * calls that is adjusted while it runs, between a configured minimum and maximum.
+ * <p>
+ * Each concurrent call is a receive loop: receive, call {@code onMessageAsync} on the executor,
+ * complete the message (or abandon it if the handler failed) and receive again. Once per adjust
+ * interval the host computes a new limit:
+ * <ul>
+ * <li>the ratio of the long-term to the recent handler latency (the gradient) scales the limit
+ * down when handlers slow down under load, and a headroom of the square root of the limit lets
+ * it grow while latency stays flat;</li>
+ * <li>an error rate above the threshold halves the limit (multiplicative decrease);</li>
+ * <li>when a backlog probe is set, the limit does not grow beyond the number of waiting messages.</li>
+ * </ul>
+ * Loops above the limit finish after their current message; new loops start when the limit rises.
+ * Every change is reported as a {@link ConcurrencyChange}.
+ */
+public class AdaptiveConcurrencyHost {
+
+    public static final Duration DEFAULT_ADJUST_INTERVAL = Duration.ofSeconds(1);
+    public static final double DEFAULT_ERROR_RATE_THRESHOLD = 0.05;
+
+    // weight of the latest window in the limit and in the short-term latency
+    private static final double SMOOTHING = 0.2;
+    // weight of the latest window in the long-term latency
+    private static final double LONG_TERM_SMOOTHING = 0.02;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final Duration DEFAULT_SERVER_WAIT_TIME = Duration.ofSeconds(30);
+
+    public enum Reason {
+        // latency stable; the limit grows by its headroom
+        LATENCY_GRADIENT,
+        // handlers failed more often than the threshold
+        ERROR_RATE,
+        // fewer messages are waiting than the limit allows
+        BACKLOG
+    }
+
+    /**
+     * One change of the concurrency limit and the observations it was based on.
+     */
+    public static final class ConcurrencyChange {
+        private final Instant time;
+        private final int previousLimit;
+        private final int newLimit;
+        private final Reason reason;
+        private final Duration latency;
+        private final Duration longTermLatency;
+        private final double errorRate;
+        private final long backlog;
+
+        ConcurrencyChange(int previousLimit, int newLimit, Reason reason, double latencyNanos, double longTermLatencyNanos, double errorRate, long backlog) {
+            this.time = Instant.now();
+            this.previousLimit = previousLimit;
+            this.newLimit = newLimit;
+            this.reason = reason;
+            this.latency = Duration.ofNanos((long) latencyNanos);
+            this.longTermLatency = Duration.ofNanos((long) longTermLatencyNanos);
+            this.errorRate = errorRate;
+            this.backlog = backlog;
+        }
+
+        public Instant getTime() {
+            return this.time;
+        }
+
+        public int getPreviousLimit() {
+            return this.previousLimit;
+        }
+
+        public int getNewLimit() {
+            return this.newLimit;
+        }
+
+        public Reason getReason() {
+            return this.reason;
+        }
+
+        /** Recent handler latency, smoothed. */
+        public Duration getLatency() {
+            return this.latency;
+        }
+
+        /** Long-term handler latency, the baseline for the gradient. */
+        public Duration getLongTermLatency() {
+            return this.longTermLatency;
+        }
+
+        /** Fraction of failed handler calls in the last window. */
+        public double getErrorRate() {
+            return this.errorRate;
+        }
+
+        /** Messages waiting in the entity, or -1 if unknown. */
+        public long getBacklog() {
+            return this.backlog;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d -> %d (%s) latency=%dus longTerm=%dus errors=%.2f backlog=%d",
+                    this.time, this.previousLimit, this.newLimit, this.reason,
+                    TimeUnit.NANOSECONDS.toMicros(this.latency.toNanos()),
+                    TimeUnit.NANOSECONDS.toMicros(this.longTermLatency.toNanos()),
+                    this.errorRate, this.backlog);
+        }
+    }
+
+    private final IMessageReceiver receiver;
+    private final int minConcurrentCalls;
+    private final int maxConcurrentCalls;
+    private final long adjustIntervalNanos;
+
+    private volatile Supplier<CompletableFuture<Long>> backlogProbe;
+    private volatile double errorRateThreshold = DEFAULT_ERROR_RATE_THRESHOLD;
+    private volatile Duration messageWaitDuration = DEFAULT_SERVER_WAIT_TIME;
+    private volatile Consumer<ConcurrencyChange> changeListener = change -> { };
+
+    private IMessageHandler handler;
+    private ExecutorService executorService;
+    // a new one for every start, since stop shuts it down
+    private ScheduledExecutorService timer;
+    private volatile boolean running;
+    private final AtomicInteger activeCalls = new AtomicInteger();
+    private final AtomicInteger loops = new AtomicInteger();
+
+    // observations of the current window
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong backlog = new AtomicLong(-1);
+
+    // state of the limit, only touched by adjust, which runs on the timer one call at a time
+    private double limit;
+    private double shortLatencyNanos;
+    private double longLatencyNanos;
+    private volatile int concurrencyLimit;
+    private final AtomicLong changeCount = new AtomicLong();
+    private volatile ConcurrencyChange lastChange;
+
+    public AdaptiveConcurrencyHost(IMessageReceiver receiver, int minConcurrentCalls, int maxConcurrentCalls) {
+        this(receiver, minConcurrentCalls, maxConcurrentCalls, DEFAULT_ADJUST_INTERVAL);
+    }
+
+    public AdaptiveConcurrencyHost(IMessageReceiver receiver, int minConcurrentCalls, int maxConcurrentCalls, Duration adjustInterval) {
+        if (minConcurrentCalls < 1 || maxConcurrentCalls < minConcurrentCalls) {
+            throw new IllegalArgumentException("Concurrency bounds must satisfy 1 <= minConcurrentCalls <= maxConcurrentCalls.");
+        }
+        this.receiver = receiver;
+        this.minConcurrentCalls = minConcurrentCalls;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.adjustIntervalNanos = adjustInterval.toNanos();
+        this.limit = minConcurrentCalls;
+        this.concurrencyLimit = minConcurrentCalls;
+    }
+
+    /**
+     * Sets the source of the number of messages waiting in the entity, queried once per adjust
+     * interval, for example a {@link QueueBacklogProbe}. A failed query is reported to the handler's
+     * {@code notifyException} as a {@code USERCALLBACK} error, and the limit is not capped by the
+     * backlog until a query succeeds again.
+     */
+    public void setBacklogProbe(Supplier<CompletableFuture<Long>> backlogProbe) {
+        this.backlogProbe = backlogProbe;
+    }
+
+    public void setErrorRateThreshold(double errorRateThreshold) {
+        this.errorRateThreshold = errorRateThreshold;
+    }
+
+    public void setMessageWaitDuration(Duration messageWaitDuration) {
+        this.messageWaitDuration = messageWaitDuration;
+    }
+
+    public void setChangeListener(Consumer<ConcurrencyChange> changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    public int getConcurrencyLimit() {
+        return this.concurrencyLimit;
+    }
+
+    /** Handler calls in progress. */
+    public int getActiveCalls() {
+        return this.activeCalls.get();
+    }
+
+    public long getChangeCount() {
+        return this.changeCount.get();
+    }
+
+    public ConcurrencyChange getLastChange() {
+        return this.lastChange;
+    }
+
+    /**
+     * Starts the receive loops and the adjustments. A stopped host can be started again; it goes on
+     * from the limit it had reached.
+     */
+    public synchronized void start(IMessageHandler handler, ExecutorService executorService) {
+        if (this.running) {
+            throw new IllegalStateException("The host is already running.");
+        }
+        this.handler = handler;
+        this.executorService = executorService;
+        this.backlog.set(-1);
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "adaptive-concurrency-host");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.running = true;
+        this.startLoops();
+        this.timer.scheduleWithFixedDelay(this::adjust, this.adjustIntervalNanos, this.adjustIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops starting new receives; handler calls in progress still finish and settle.
+     */
+    public synchronized void stop() {
+        this.running = false;
+        if (this.timer != null) {
+            this.timer.shutdownNow();
+            this.timer = null;
+        }
+    }
+
+    // ---- receive loops
+
+    private void startLoops() {
+        while (true) {
+            int current = this.loops.get();
+            if (current >= this.concurrencyLimit) {
+                return;
+            }
+            if (this.loops.compareAndSet(current, current + 1)) {
+                this.receiveAndHandle();
+            }
+        }
+    }
+
+    // a loop above the limit ends instead of receiving again
+    private boolean retireIfOverLimit() {
+        while (true) {
+            int current = this.loops.get();
+            if (current <= this.concurrencyLimit) {
+                return false;
+            }
+            if (this.loops.compareAndSet(current, current - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void receiveAndHandle() {
+        if (!this.running) {
+            this.loops.decrementAndGet();
+            return;
+        }
+        if (this.retireIfOverLimit()) {
+            return;
+        }
+        this.receiver.receiveAsync(this.messageWaitDuration).handleAsync((message, receiveError) -> {
+            if (receiveError != null) {
+                if (this.running) {
+                    this.handler.notifyException(receiveError, ExceptionPhase.RECEIVE);
+                }
+            } else if (message != null) {
+                this.handle(message).whenComplete((r, t) -> this.receiveAndHandle());
+                return null;
+            }
+            this.receiveAndHandle();
+            return null;
+        }, this.executorService).exceptionally(t -> {
+            // executor shut down; the loop ends
+            this.loops.decrementAndGet();
+            if (!(t.getCause() instanceof RejectedExecutionException)) {
+                this.handler.notifyException(t, ExceptionPhase.RECEIVE);
+            }
+            return null;
+        });
+    }
+
+    private CompletableFuture<Void> handle(IMessage message) {
+        this.activeCalls.incrementAndGet();
+        long start = System.nanoTime();
+        CompletableFuture<Void> callback;
+        try {
+            callback = this.handler.onMessageAsync(message);
+        } catch (Throwable t) {
+            callback = new CompletableFuture<>();
+            callback.completeExceptionally(t);
+        }
+        return callback.handle((r, userError) -> {
+            this.activeCalls.decrementAndGet();
+            this.latencyNanos.add(System.nanoTime() - start);
+            this.handled.increment();
+            if (userError != null) {
+                this.failed.increment();
+                this.handler.notifyException(userError, ExceptionPhase.USERCALLBACK);
+            }
+            if (this.receiver.getReceiveMode() != ReceiveMode.PEEKLOCK) {
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (userError != null) {
+                return this.receiver.abandonAsync(message.getLockToken()).exceptionally(t -> {
+                    this.handler.notifyException(t, ExceptionPhase.ABANDON);
+                    return null;
+                });
+            }
+            return this.receiver.completeAsync(message.getLockToken()).exceptionally(t -> {
+                this.handler.notifyException(t, ExceptionPhase.COMPLETE);
+                return null;
+            });
+        }).thenCompose(settle -> settle);
+    }
+
+    // ---- limit
+
+    // runs on the timer with a fixed delay, where an exception would cancel every later run; the
+    // backlog probe and the change listener are the caller's code, so failures are reported as such
+    private synchronized void adjust() {
+        try {
+            this.adjustLimit();
+        } catch (Throwable t) {
+            this.handler.notifyException(t, ExceptionPhase.USERCALLBACK);
+        }
+    }
+
+    private void adjustLimit() {
+        Supplier<CompletableFuture<Long>> probe = this.backlogProbe;
+        if (probe != null) {
+            CompletableFuture<Long> answer;
+            try {
+                answer = probe.get();
+            } catch (Throwable t) {
+                answer = new CompletableFuture<>();
+                answer.completeExceptionally(t);
+            }
+            // the answer is used in the next window; without one the backlog is unknown
+            answer.whenComplete((waiting, t) -> {
+                if (t != null || waiting == null) {
+                    this.backlog.set(-1);
+                    if (t != null && this.running) {
+                        this.handler.notifyException(t, ExceptionPhase.USERCALLBACK);
+                    }
+                } else {
+                    this.backlog.set(waiting);
+                }
+            });
+        }
+
+        long count = this.handled.sumThenReset();
+        long failures = this.failed.sumThenReset();
+        long latencyTotal = this.latencyNanos.sumThenReset();
+        if (count == 0) {
+            return;
+        }
+        double latency = (double) latencyTotal / count;
+        double errorRate = (double) failures / count;
+        this.shortLatencyNanos = this.shortLatencyNanos == 0 ? latency : this.shortLatencyNanos + SMOOTHING * (latency - this.shortLatencyNanos);
+        this.longLatencyNanos = this.longLatencyNanos == 0 ? latency : this.longLatencyNanos + LONG_TERM_SMOOTHING * (latency - this.longLatencyNanos);
+        // the long-term baseline follows recovery right away
+        if (this.longLatencyNanos > this.shortLatencyNanos) {
+            this.longLatencyNanos = this.shortLatencyNanos;
+        }
+
+        double next;
+        Reason reason;
+        if (errorRate > this.errorRateThreshold) {
+            next = this.limit / 2;
+            reason = Reason.ERROR_RATE;
+        } else {
+            double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, this.longLatencyNanos / this.shortLatencyNanos));
+            double target = this.limit * gradient + Math.sqrt(this.limit);
+            next = this.limit + SMOOTHING * (target - this.limit);
+            reason = Reason.LATENCY_GRADIENT;
+        }
+        long waiting = this.backlog.get();
+        if (waiting >= 0 && next > this.limit && next > waiting) {
+            next = Math.max(this.limit, waiting);
+            reason = Reason.BACKLOG;
+        }
+        this.limit = Math.max(this.minConcurrentCalls, Math.min(this.maxConcurrentCalls, next));
+
+        int previous = this.concurrencyLimit;
+        int current = (int) this.limit;
+        if (current != previous) {
+            this.concurrencyLimit = current;
+            ConcurrencyChange change = new ConcurrencyChange(previous, current, reason,
+                    this.shortLatencyNanos, this.longLatencyNanos, errorRate, waiting);
+            this.lastChange = change;
+            this.changeCount.incrementAndGet();
+            this.changeListener.accept(change);
+            if (current > previous && this.running) {
+                this.startLoops();
+            }
+        }
+    }
+}
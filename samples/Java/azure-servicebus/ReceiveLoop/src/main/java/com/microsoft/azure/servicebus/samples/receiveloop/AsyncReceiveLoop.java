@@ -0,0 +1,187 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.ReceiveMode;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A receive loop that holds no thread while it waits for messages.
+ * <p>
+ * Each iteration calls {@code receiveBatchAsync} and continues on the completion executor when the
+ * receive completes: the handler is called for each message of the batch, in order, and the next
+ * receive starts once the futures returned by the handler, typically the settlements, have all
+ * completed. While a receive is pending, no thread is used, so any number of loops can share a
+ * small executor.
+ * <p>
+ * {@link #pause()} lets the current iteration finish and then issues no further receive until
+ * {@link #resume()}. {@link #stop()}, or cancelling the future returned by {@link #start()}, ends
+ * the loop after the current iteration; messages that still arrive from the pending receive are
+ * abandoned in {@code PEEKLOCK} mode. A failed receive ends the loop with that failure. A handler
+ * that throws, or whose future fails, is reported to the error handler and the loop goes on. A
+ * handler that has nothing to wait for may return {@code null}.
+ */
+public class AsyncReceiveLoop {
+
+    public static final int DEFAULT_BATCH_SIZE = 1;
+    public static final Duration DEFAULT_SERVER_WAIT_TIME = Duration.ofSeconds(30);
+
+    private final IMessageReceiver receiver;
+    private final Function<IMessage, CompletableFuture<Void>> handler;
+    private final Executor completionExecutor;
+    private final int batchSize;
+    private final Duration serverWaitTime;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    // set while the loop is paused between iterations and no receive is pending
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private volatile Consumer<Throwable> errorHandler = error -> { };
+    private volatile boolean paused;
+    private volatile boolean stopped;
+
+    public AsyncReceiveLoop(IMessageReceiver receiver, Function<IMessage, CompletableFuture<Void>> handler, Executor completionExecutor) {
+        this(receiver, handler, completionExecutor, DEFAULT_BATCH_SIZE, DEFAULT_SERVER_WAIT_TIME);
+    }
+
+    public AsyncReceiveLoop(IMessageReceiver receiver, Function<IMessage, CompletableFuture<Void>> handler, Executor completionExecutor,
+                            int batchSize, Duration serverWaitTime) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be greater than 0.");
+        }
+        this.receiver = receiver;
+        this.handler = handler;
+        this.completionExecutor = completionExecutor;
+        this.batchSize = batchSize;
+        this.serverWaitTime = serverWaitTime;
+        this.completion.whenComplete((v, t) -> {
+            if (this.completion.isCancelled()) {
+                this.stop();
+            }
+        });
+    }
+
+    public void setErrorHandler(Consumer<Throwable> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Starts the loop.
+     *
+     * @return a future that completes when the loop has stopped; cancelling it stops the loop
+     */
+    public CompletableFuture<Void> start() {
+        if (!this.started.compareAndSet(false, true)) {
+            throw new IllegalStateException("The loop has already been started.");
+        }
+        this.completionExecutor.execute(this::iterate);
+        return this.completion;
+    }
+
+    public void pause() {
+        this.paused = true;
+    }
+
+    public void resume() {
+        this.paused = false;
+        if (this.parked.compareAndSet(true, false)) {
+            this.completionExecutor.execute(this::iterate);
+        }
+    }
+
+    public void stop() {
+        this.stopped = true;
+        if (this.parked.compareAndSet(true, false)) {
+            this.completion.complete(null);
+        }
+    }
+
+    public boolean isPaused() {
+        return this.paused;
+    }
+
+    public long getReceivedCount() {
+        return this.receivedCount.get();
+    }
+
+    private void iterate() {
+        if (this.stopped) {
+            this.completion.complete(null);
+            return;
+        }
+        if (this.paused) {
+            this.parked.set(true);
+            // resume or stop may have run before the loop was parked
+            if ((!this.paused || this.stopped) && this.parked.compareAndSet(true, false)) {
+                this.iterate();
+            }
+            return;
+        }
+        CompletableFuture<Collection<IMessage>> receive;
+        try {
+            receive = this.receiver.receiveBatchAsync(this.batchSize, this.serverWaitTime);
+        } catch (RuntimeException e) {
+            this.completion.completeExceptionally(e);
+            return;
+        }
+        receive.whenCompleteAsync(this::handle, this.completionExecutor);
+    }
+
+    private void handle(Collection<IMessage> messages, Throwable error) {
+        if (error != null) {
+            this.completion.completeExceptionally(error);
+            return;
+        }
+        if (messages == null || messages.isEmpty()) {
+            this.iterate();
+            return;
+        }
+        if (this.stopped) {
+            this.release(messages);
+            this.completion.complete(null);
+            return;
+        }
+        List<CompletableFuture<Void>> handled = new ArrayList<>(messages.size());
+        for (IMessage message : messages) {
+            this.receivedCount.incrementAndGet();
+            CompletableFuture<Void> future;
+            try {
+                future = this.handler.apply(message);
+                if (future == null) {
+                    // a handler with nothing to wait for may return null
+                    future = CompletableFuture.completedFuture(null);
+                }
+            } catch (Throwable t) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(t);
+            }
+            handled.add(future.exceptionally(t -> {
+                this.errorHandler.accept(t);
+                return null;
+            }));
+        }
+        CompletableFuture.allOf(handled.toArray(new CompletableFuture<?>[handled.size()]))
+                .whenCompleteAsync((v, t) -> this.iterate(), this.completionExecutor);
+    }
+
+    private void release(Collection<IMessage> messages) {
+        if (this.receiver.getReceiveMode() == ReceiveMode.PEEKLOCK) {
+            for (IMessage message : messages) {
+                this.receiver.abandonAsync(message.getLockToken());
+            }
+        }
+    }
+}
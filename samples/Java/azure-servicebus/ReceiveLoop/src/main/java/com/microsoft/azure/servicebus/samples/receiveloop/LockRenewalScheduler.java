@@ -0,0 +1,403 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Renews the locks of many messages from one thread, in batches, shortly before they expire.
+ * <p>
+ * The message handler of {@code QueueClient} renews each lock with a timer of its own. With tens
+ * of thousands of messages in flight, those timers and their renewal calls add up. This scheduler
+ * keeps every registered lock in a hashed timing wheel: a ring of buckets, one per tick, where a
+ * lock sits in the bucket of the tick at which it must be renewed, with a count of the wheel
+ * rotations still to wait. Registering and cancelling a lock take constant time and only lock the
+ * lock's bucket, and each tick only looks at one bucket. The locks that are due in a tick are
+ * grouped by receiver and handed to the receiver's {@link LockRenewer} as one batch. Each renewed
+ * lock goes back into the wheel at its new {@code LockedUntilUtc}, until it is unregistered on
+ * settlement or its maximum renewal duration has passed.
+ * <p>
+ * A lock becomes due in the last tick that ends no later than {@code renewAhead} before it
+ * expires, so it is renewed up to one tick early but never late; the tick duration therefore has
+ * to be well below {@code renewAhead}.
+ */
+public class LockRenewalScheduler implements AutoCloseable {
+
+    public static final Duration DEFAULT_TICK_DURATION = Duration.ofMillis(100);
+    public static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    public static final Duration DEFAULT_RENEW_AHEAD = Duration.ofSeconds(10);
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    /**
+     * Renews the locks of a batch of messages received by the same receiver, returning the new
+     * lock expiry of each message in the order of the batch.
+     */
+    @FunctionalInterface
+    public interface LockRenewer {
+        CompletableFuture<Collection<Instant>> renewAsync(List<IMessage> messages);
+    }
+
+    /**
+     * Returns a renewer that issues the {@code renewMessageLockAsync} calls of a batch together and
+     * completes when all of them have. The 1.2.8 client has no public batch renewal, so a batch of
+     * locks still costs one request per lock; what the scheduler saves is a timer per lock.
+     */
+    public static LockRenewer renewerOf(IMessageReceiver receiver) {
+        return messages -> {
+            List<CompletableFuture<Instant>> renewals = new ArrayList<>(messages.size());
+            for (IMessage message : messages) {
+                renewals.add(receiver.renewMessageLockAsync(message));
+            }
+            return CompletableFuture.allOf(renewals.toArray(new CompletableFuture<?>[renewals.size()])).thenApply(v -> {
+                List<Instant> lockedUntil = new ArrayList<>(renewals.size());
+                for (CompletableFuture<Instant> renewal : renewals) {
+                    lockedUntil.add(renewal.join());
+                }
+                return lockedUntil;
+            });
+        };
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final long renewAheadNanos;
+    private final int maxBatchSize;
+    private final Bucket[] wheel;
+    private final Thread worker;
+    private final long startNanos;
+
+    private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+    // one renewer per receiver, so that the locks of a receiver are renewed together
+    private final Map<IMessageReceiver, LockRenewer> renewers = new ConcurrentHashMap<>();
+    private volatile BiConsumer<IMessage, Throwable> errorHandler = (message, error) -> { };
+    private volatile boolean running = true;
+    // wall clock minus System.nanoTime, refreshed every tick so that clock adjustments are followed
+    private volatile long epochOffsetNanos;
+    // the next tick to expire; only advanced by the worker while it holds that tick's bucket
+    private volatile long tick;
+
+    private final AtomicLong renewedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public LockRenewalScheduler() {
+        this(DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL, DEFAULT_RENEW_AHEAD, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    public LockRenewalScheduler(Duration tickDuration, int ticksPerWheel, Duration renewAhead, int maxBatchSize) {
+        if (tickDuration.isNegative() || tickDuration.isZero() || ticksPerWheel <= 0 || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("tickDuration, ticksPerWheel and maxBatchSize must be greater than 0.");
+        }
+        this.tickNanos = tickDuration.toNanos();
+        // a power of two, so that the bucket of a tick is a mask instead of a division
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.wheel = new Bucket[Math.max(1, size)];
+        for (int i = 0; i < this.wheel.length; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = this.wheel.length - 1;
+        this.renewAheadNanos = renewAhead.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.startNanos = System.nanoTime();
+        this.epochOffsetNanos = epochNanos(Instant.now()) - this.startNanos;
+        this.worker = new Thread(this::run, "lock-renewal-scheduler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Called with the message and the error when renewing its lock fails; the lock is no longer
+     * tracked afterwards.
+     */
+    public void setErrorHandler(BiConsumer<IMessage, Throwable> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * Starts renewing the lock of a message received by {@code receiver} until it is unregistered
+     * or {@code maxRenewDuration} has passed. The due locks of a receiver are renewed in batches
+     * with the receiver's {@link #renewerOf renewer}, which is kept until the scheduler is closed.
+     */
+    public void register(IMessage message, IMessageReceiver receiver, Duration maxRenewDuration) {
+        this.register(message, this.renewers.computeIfAbsent(receiver, LockRenewalScheduler::renewerOf), maxRenewDuration);
+    }
+
+    /**
+     * Starts renewing the lock of a message with the given renewer until it is unregistered or
+     * {@code maxRenewDuration} has passed. Due locks are batched per renewer instance, so the
+     * messages of one receiver have to share a renewer.
+     */
+    public void register(IMessage message, LockRenewer renewer, Duration maxRenewDuration) {
+        if (!this.running) {
+            throw new IllegalStateException("Operation not allowed after the LockRenewalScheduler instance is closed.");
+        }
+        long renewUntil = maxRenewDuration == null ? Long.MAX_VALUE : System.nanoTime() + maxRenewDuration.toNanos();
+        Entry entry = new Entry(message, renewer, renewUntil);
+        Entry previous = this.entries.put(entry.lockToken, entry);
+        if (previous != null) {
+            cancel(previous);
+        }
+        this.schedule(entry, message.getLockedUntilUtc());
+    }
+
+    /**
+     * Stops renewing the lock; call this when the message has been settled.
+     *
+     * @return whether the lock was tracked
+     */
+    public boolean unregister(UUID lockToken) {
+        Entry entry = this.entries.remove(lockToken);
+        if (entry == null) {
+            return false;
+        }
+        cancel(entry);
+        return true;
+    }
+
+    public int getTrackedLockCount() {
+        return this.entries.size();
+    }
+
+    public long getRenewedCount() {
+        return this.renewedCount.get();
+    }
+
+    /** Number of batch renewal calls. */
+    public long getBatchCount() {
+        return this.batchCount.get();
+    }
+
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        this.worker.interrupt();
+        this.entries.clear();
+        this.renewers.clear();
+    }
+
+    private void schedule(Entry entry, Instant lockedUntilUtc) {
+        long dueNanos = epochNanos(lockedUntilUtc) - this.epochOffsetNanos - this.renewAheadNanos;
+        // tick n is expired at the end of the tick, startNanos + (n + 1) * tickNanos; the last tick
+        // that ends by the due time is the one before the tick the due time falls into
+        long ticks = Math.floorDiv(dueNanos - this.startNanos, this.tickNanos) - 1;
+        while (true) {
+            long current = this.tick;
+            long dueTick = Math.max(current, ticks);
+            Bucket bucket = this.wheel[(int) (dueTick & this.mask)];
+            synchronized (bucket) {
+                if (this.tick != current) {
+                    // the worker moved on; the rounds would be off by one
+                    continue;
+                }
+                if (!entry.cancelled) {
+                    entry.remainingRounds = (dueTick - current) / this.wheel.length;
+                    bucket.add(entry);
+                }
+                return;
+            }
+        }
+    }
+
+    private static void cancel(Entry entry) {
+        entry.cancelled = true;
+        Bucket bucket = entry.bucket;
+        if (bucket != null) {
+            synchronized (bucket) {
+                if (entry.bucket == bucket) {
+                    bucket.remove(entry);
+                }
+            }
+        }
+    }
+
+    private static long epochNanos(Instant instant) {
+        return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+    }
+
+    // ---- worker
+
+    private void run() {
+        long current = 0;
+        while (this.running) {
+            long sleepNanos = this.startNanos + (current + 1) * this.tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!this.running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            this.epochOffsetNanos = epochNanos(Instant.now()) - System.nanoTime();
+            Bucket bucket = this.wheel[(int) (current & this.mask)];
+            Map<LockRenewer, List<Entry>> due;
+            synchronized (bucket) {
+                due = bucket.expire();
+                this.tick = ++current;
+            }
+            for (Map.Entry<LockRenewer, List<Entry>> group : due.entrySet()) {
+                this.renew(group.getKey(), group.getValue());
+            }
+        }
+    }
+
+    private void renew(LockRenewer renewer, List<Entry> due) {
+        long now = System.nanoTime();
+        List<Entry> batch = new ArrayList<>(Math.min(due.size(), this.maxBatchSize));
+        for (Entry entry : due) {
+            if (now - entry.renewUntilNanos >= 0) {
+                // renewed for as long as it may be
+                this.entries.remove(entry.lockToken, entry);
+                continue;
+            }
+            batch.add(entry);
+            if (batch.size() == this.maxBatchSize) {
+                this.renewBatch(renewer, batch);
+                batch = new ArrayList<>(Math.min(due.size(), this.maxBatchSize));
+            }
+        }
+        if (!batch.isEmpty()) {
+            this.renewBatch(renewer, batch);
+        }
+    }
+
+    private void renewBatch(LockRenewer renewer, List<Entry> batch) {
+        List<IMessage> messages = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            messages.add(entry.message);
+        }
+        this.batchCount.incrementAndGet();
+        CompletableFuture<Collection<Instant>> renewal;
+        try {
+            renewal = renewer.renewAsync(messages);
+        } catch (RuntimeException e) {
+            renewal = new CompletableFuture<>();
+            renewal.completeExceptionally(e);
+        }
+        renewal.whenComplete((lockedUntil, error) -> {
+            if (error != null) {
+                this.failed(batch, error);
+                return;
+            }
+            if (lockedUntil == null || lockedUntil.size() != batch.size()) {
+                // the renewer broke its contract; without an expiry per lock none can be rescheduled
+                this.failed(batch, new IllegalStateException("The renewer returned "
+                        + (lockedUntil == null ? 0 : lockedUntil.size()) + " lock expiries for a batch of " + batch.size() + " messages."));
+                return;
+            }
+            Iterator<Instant> times = lockedUntil.iterator();
+            for (Entry entry : batch) {
+                Instant next = times.next();
+                this.renewedCount.incrementAndGet();
+                if (this.running) {
+                    this.schedule(entry, next);
+                }
+            }
+        });
+    }
+
+    private void failed(List<Entry> batch, Throwable error) {
+        for (Entry entry : batch) {
+            if (this.entries.remove(entry.lockToken, entry)) {
+                this.failedCount.incrementAndGet();
+                this.errorHandler.accept(entry.message, error);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final UUID lockToken;
+        final IMessage message;
+        final LockRenewer renewer;
+        final long renewUntilNanos;
+        volatile boolean cancelled;
+        // the bucket holding the entry, or null while it is due or being renewed
+        volatile Bucket bucket;
+        // guarded by the bucket
+        long remainingRounds;
+        Entry previous;
+        Entry next;
+
+        Entry(IMessage message, LockRenewer renewer, long renewUntilNanos) {
+            this.lockToken = message.getLockToken();
+            this.message = message;
+            this.renewer = renewer;
+            this.renewUntilNanos = renewUntilNanos;
+        }
+    }
+
+    // a doubly linked list of entries, guarded by its own monitor
+    private static final class Bucket {
+        private Entry head;
+        private Entry tail;
+
+        void add(Entry entry) {
+            entry.bucket = this;
+            entry.previous = this.tail;
+            entry.next = null;
+            if (this.tail == null) {
+                this.head = entry;
+            } else {
+                this.tail.next = entry;
+            }
+            this.tail = entry;
+        }
+
+        void remove(Entry entry) {
+            if (entry.previous == null) {
+                this.head = entry.next;
+            } else {
+                entry.previous.next = entry.next;
+            }
+            if (entry.next == null) {
+                this.tail = entry.previous;
+            } else {
+                entry.next.previous = entry.previous;
+            }
+            entry.bucket = null;
+            entry.previous = null;
+            entry.next = null;
+        }
+
+        Map<LockRenewer, List<Entry>> expire() {
+            Map<LockRenewer, List<Entry>> due = new IdentityHashMap<>();
+            Entry entry = this.head;
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.cancelled) {
+                    this.remove(entry);
+                } else if (entry.remainingRounds <= 0) {
+                    this.remove(entry);
+                    due.computeIfAbsent(entry.renewer, r -> new ArrayList<>()).add(entry);
+                } else {
+                    entry.remainingRounds--;
+                }
+                entry = next;
+            }
+            return due;
+        }
+    }
+}
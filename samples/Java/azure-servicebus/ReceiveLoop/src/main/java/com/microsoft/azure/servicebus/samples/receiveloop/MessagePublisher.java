@@ -0,0 +1,192 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.ReceiveMode;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A {@link Flow.Publisher} of the messages of an {@link IMessageReceiver}.
+ * <p>
+ * A subscription receives only what its subscriber has requested: every receive asks for the
+ * outstanding demand, up to {@code maxBatchSize}, with {@code receiveBatchAsync}, so the link is
+ * given credit for as many messages as the subscriber can take. The publisher leaves the
+ * receiver's prefetch count alone: prefetched messages are locked before anyone asks for them, so
+ * demand is only followed exactly with a prefetch count of 0. While there is no demand, no receive
+ * is pending and no thread is held. Signals are delivered on the given executor, one at a time per
+ * subscription: {@code onSubscribe}, {@code onNext} and {@code onError} are only issued by whoever
+ * holds the subscription's drain, and the drain is not released after a terminal signal.
+ * <p>
+ * The subscriber settles the messages itself, for example with {@code receiver.completeAsync}.
+ * When the subscription is cancelled, messages that arrive from a receive still in flight are
+ * abandoned in {@code PEEKLOCK} mode, so they are redelivered right away instead of after their
+ * lock expires. In {@code RECEIVEANDDELETE} mode they are lost, as with any receive that is not
+ * consumed. A receive error is passed to {@code onError} and ends the subscription. Each subscriber
+ * gets its own subscription; several subscribers compete for the messages of the receiver.
+ */
+public class MessagePublisher implements Flow.Publisher<IMessage> {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final Duration DEFAULT_SERVER_WAIT_TIME = Duration.ofSeconds(30);
+
+    private final IMessageReceiver receiver;
+    private final Executor executor;
+    private final int maxBatchSize;
+    private final Duration serverWaitTime;
+
+    public MessagePublisher(IMessageReceiver receiver, Executor executor) {
+        this(receiver, executor, DEFAULT_MAX_BATCH_SIZE, DEFAULT_SERVER_WAIT_TIME);
+    }
+
+    public MessagePublisher(IMessageReceiver receiver, Executor executor, int maxBatchSize, Duration serverWaitTime) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("maxBatchSize must be greater than 0.");
+        }
+        this.receiver = receiver;
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+        this.serverWaitTime = serverWaitTime;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super IMessage> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        MessageSubscription subscription = new MessageSubscription(subscriber);
+        this.executor.execute(subscription::signalSubscribe);
+    }
+
+    private final class MessageSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super IMessage> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        // the drain: held while onSubscribe runs, and while a receive or the delivery of its messages is in progress
+        private final AtomicBoolean receiving = new AtomicBoolean(true);
+        // an invalid request, signalled by the holder of the drain
+        private final AtomicReference<Throwable> pendingError = new AtomicReference<>();
+        private volatile boolean cancelled;
+
+        MessageSubscription(Flow.Subscriber<? super IMessage> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (this.cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                this.pendingError.compareAndSet(null,
+                        new IllegalArgumentException("The number of requested messages must be positive, was " + n + "."));
+                this.startReceiving();
+                return;
+            }
+            // demand is capped at Long.MAX_VALUE, which means unbounded
+            this.demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            this.startReceiving();
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+        }
+
+        private void signalSubscribe() {
+            try {
+                this.subscriber.onSubscribe(this);
+            } catch (Throwable t) {
+                // a subscriber that throws is treated as having cancelled
+                this.cancelled = true;
+            }
+            this.release();
+        }
+
+        private void startReceiving() {
+            if (this.receiving.compareAndSet(false, true)) {
+                this.receiveNext();
+            }
+        }
+
+        private void receiveNext() {
+            Throwable error = this.pendingError.get();
+            if (error != null && !this.cancelled) {
+                // terminal; the drain is kept, so no signal follows
+                this.cancelled = true;
+                MessagePublisher.this.executor.execute(() -> this.subscriber.onError(error));
+                return;
+            }
+            if (this.cancelled || this.demand.get() == 0) {
+                this.release();
+                return;
+            }
+            int count = (int) Math.min(this.demand.get(), MessagePublisher.this.maxBatchSize);
+            CompletableFuture<Collection<IMessage>> receive;
+            try {
+                receive = MessagePublisher.this.receiver.receiveBatchAsync(count, MessagePublisher.this.serverWaitTime);
+            } catch (Throwable t) {
+                // a receiver that throws right away fails the subscription like a failed receive
+                receive = new CompletableFuture<>();
+                receive.completeExceptionally(t);
+            }
+            receive.whenCompleteAsync(this::deliver, MessagePublisher.this.executor);
+        }
+
+        private void deliver(Collection<IMessage> messages, Throwable error) {
+            if (error != null) {
+                if (!this.cancelled) {
+                    this.cancelled = true;
+                    this.subscriber.onError(error);
+                }
+                return;
+            }
+            if (messages != null) {
+                Iterator<IMessage> iterator = messages.iterator();
+                while (iterator.hasNext()) {
+                    IMessage message = iterator.next();
+                    if (this.cancelled || this.pendingError.get() != null) {
+                        this.abandon(message);
+                        continue;
+                    }
+                    // Long.MAX_VALUE is unbounded demand and stays so
+                    this.demand.getAndUpdate(current -> current == Long.MAX_VALUE ? current : current - 1);
+                    try {
+                        this.subscriber.onNext(message);
+                    } catch (Throwable t) {
+                        // a subscriber that throws is treated as having cancelled
+                        this.cancelled = true;
+                        while (iterator.hasNext()) {
+                            this.abandon(iterator.next());
+                        }
+                    }
+                }
+            }
+            this.receiveNext();
+        }
+
+        // gives up the drain; a request, or an invalid one, may have arrived after the check
+        private void release() {
+            this.receiving.set(false);
+            if (!this.cancelled && (this.demand.get() > 0 || this.pendingError.get() != null)) {
+                this.startReceiving();
+            }
+        }
+
+        private void abandon(IMessage message) {
+            if (MessagePublisher.this.receiver.getReceiveMode() == ReceiveMode.PEEKLOCK) {
+                MessagePublisher.this.receiver.abandonAsync(message.getLockToken());
+            }
+        }
+    }
+}
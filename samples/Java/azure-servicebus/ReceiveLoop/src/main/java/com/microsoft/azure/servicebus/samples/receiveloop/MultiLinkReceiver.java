@@ -0,0 +1,403 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.ClientFactory;
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.primitives.ConnectionStringBuilder;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Receives from one entity over several links and feeds the messages of all of them to a single
+ * {@link IMessageHandler}.
+ * <p>
+ * A single receiver is one AMQP link, and the throughput of a link is limited. This class opens
+ * {@code linkCount} receivers on the same entity and runs an {@link AsyncReceiveLoop} on each, all
+ * on the same completion executor and calling the same handler. A message can only be settled on
+ * the link it was received on, so the class remembers the originating link of every lock token:
+ * with {@code autoComplete} it completes (or, if the handler failed, abandons) each message there,
+ * and a handler that settles itself calls {@link #completeAsync}, {@link #abandonAsync} or
+ * {@link #deadLetterAsync} of this class instead of a receiver.
+ * <p>
+ * The link count can be changed while messages flow. Links that are removed stop receiving, and
+ * their receiver is closed once their remaining messages are settled. A link that fails to open,
+ * or whose receive fails, is reported to {@code notifyException} with {@link ExceptionPhase#RECEIVE}
+ * as the cause of a {@link ServiceBusException} that states how many links are left open. The
+ * missing links are opened again after a delay that doubles with every consecutive failure, from
+ * the minimum to the maximum retry delay, and falls back to the minimum once a link receives.
+ * <p>
+ * Where the links come from is up to the {@link LinkFactory}. With the 1.2.8 client every receiver
+ * created through {@link ClientFactory} owns its own {@code MessagingFactory}, so the links of
+ * {@link #linksOf(ConnectionStringBuilder, ReceiveMode)} each have their own connection.
+ */
+public class MultiLinkReceiver implements AutoCloseable {
+
+    public static final int DEFAULT_BATCH_SIZE = 10;
+    public static final Duration DEFAULT_SERVER_WAIT_TIME = Duration.ofSeconds(30);
+    public static final Duration DEFAULT_MIN_RETRY_DELAY = Duration.ofSeconds(1);
+    public static final Duration DEFAULT_MAX_RETRY_DELAY = Duration.ofSeconds(30);
+
+    /**
+     * Opens the receivers of the links.
+     */
+    @FunctionalInterface
+    public interface LinkFactory {
+        /**
+         * @param linkIndex a number unique to each link opened by one {@link MultiLinkReceiver}
+         */
+        CompletableFuture<IMessageReceiver> createAsync(int linkIndex);
+    }
+
+    /**
+     * Opens each link with {@code ClientFactory.createMessageReceiverFromConnectionStringBuilderAsync}.
+     */
+    public static LinkFactory linksOf(ConnectionStringBuilder connectionStringBuilder, ReceiveMode receiveMode) {
+        return linkIndex -> ClientFactory.createMessageReceiverFromConnectionStringBuilderAsync(connectionStringBuilder, receiveMode);
+    }
+
+    private final LinkFactory linkFactory;
+    private final Executor executor;
+    private final int batchSize;
+    private final Duration serverWaitTime;
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<UUID, Link> origins = new ConcurrentHashMap<>();
+    private final AtomicInteger nextLinkIndex = new AtomicInteger();
+    private final AtomicLong receivedCount = new AtomicLong();
+    private final AtomicLong settledCount = new AtomicLong();
+    private int linkCount;
+    private int openingLinkCount;
+    private long minRetryDelayMillis = DEFAULT_MIN_RETRY_DELAY.toMillis();
+    private long maxRetryDelayMillis = DEFAULT_MAX_RETRY_DELAY.toMillis();
+    // link failures since a link last received, and whether the missing links are about to be reopened
+    private int failureCount;
+    private boolean retryScheduled;
+    private IMessageHandler handler;
+    private boolean autoComplete;
+    private volatile boolean closed;
+
+    public MultiLinkReceiver(LinkFactory linkFactory, int linkCount, Executor executor) {
+        this(linkFactory, linkCount, executor, DEFAULT_BATCH_SIZE, DEFAULT_SERVER_WAIT_TIME);
+    }
+
+    public MultiLinkReceiver(LinkFactory linkFactory, int linkCount, Executor executor, int batchSize, Duration serverWaitTime) {
+        if (linkCount <= 0) {
+            throw new IllegalArgumentException("linkCount must be greater than 0.");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be greater than 0.");
+        }
+        this.linkFactory = linkFactory;
+        this.linkCount = linkCount;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.serverWaitTime = serverWaitTime;
+    }
+
+    /**
+     * Sets the bounds of the delay after which links that failed are opened again.
+     */
+    public synchronized void setRetryDelay(Duration minRetryDelay, Duration maxRetryDelay) {
+        if (minRetryDelay.isNegative() || minRetryDelay.isZero() || maxRetryDelay.compareTo(minRetryDelay) < 0) {
+            throw new IllegalArgumentException("minRetryDelay must be greater than 0 and not greater than maxRetryDelay.");
+        }
+        this.minRetryDelayMillis = minRetryDelay.toMillis();
+        this.maxRetryDelayMillis = maxRetryDelay.toMillis();
+    }
+
+    /**
+     * Opens the links and starts passing their messages to the handler.
+     *
+     * @return a future that completes when every link has been opened or has failed to open; the
+     *         links that failed are retried later
+     */
+    public synchronized CompletableFuture<Void> startAsync(IMessageHandler handler, boolean autoComplete) {
+        if (this.closed) {
+            throw new IllegalStateException("Operation not allowed after the MultiLinkReceiver instance is closed.");
+        }
+        if (this.handler != null) {
+            throw new IllegalStateException("The receiver has already been started.");
+        }
+        this.handler = handler;
+        this.autoComplete = autoComplete;
+        return this.openLinksAsync();
+    }
+
+    /**
+     * Changes the number of links. New links are opened right away; removed links stop receiving and
+     * are closed once the messages received on them are settled.
+     *
+     * @return a future that completes when the new links are open
+     */
+    public synchronized CompletableFuture<Void> setLinkCountAsync(int linkCount) {
+        if (linkCount <= 0) {
+            throw new IllegalArgumentException("linkCount must be greater than 0.");
+        }
+        if (this.closed) {
+            throw new IllegalStateException("Operation not allowed after the MultiLinkReceiver instance is closed.");
+        }
+        this.linkCount = linkCount;
+        if (this.handler == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        while (this.links.size() > linkCount) {
+            this.retire(this.links.remove(this.links.size() - 1));
+        }
+        return this.openLinksAsync();
+    }
+
+    public synchronized int getLinkCount() {
+        return this.linkCount;
+    }
+
+    /**
+     * The number of links that are open and receiving. It stays below {@link #getLinkCount()} while
+     * links that failed wait to be opened again.
+     */
+    public int getOpenLinkCount() {
+        return this.links.size();
+    }
+
+    public long getReceivedCount() {
+        return this.receivedCount.get();
+    }
+
+    public long getSettledCount() {
+        return this.settledCount.get();
+    }
+
+    /**
+     * The number of received messages that are not settled yet.
+     */
+    public int getUnsettledCount() {
+        return this.origins.size();
+    }
+
+    public CompletableFuture<Void> completeAsync(UUID lockToken) {
+        return this.settleAsync(lockToken, receiver -> receiver.completeAsync(lockToken));
+    }
+
+    public CompletableFuture<Void> abandonAsync(UUID lockToken) {
+        return this.settleAsync(lockToken, receiver -> receiver.abandonAsync(lockToken));
+    }
+
+    public CompletableFuture<Void> deadLetterAsync(UUID lockToken, String deadLetterReason, String deadLetterErrorDescription) {
+        return this.settleAsync(lockToken, receiver -> receiver.deadLetterAsync(lockToken, deadLetterReason, deadLetterErrorDescription));
+    }
+
+    /**
+     * Stops all links and closes their receivers. Messages that are not settled yet can no longer
+     * be settled; their locks expire.
+     */
+    @Override
+    public void close() {
+        List<CompletableFuture<Void>> closing = new ArrayList<>();
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            for (Link link : this.links) {
+                link.retired = true;
+                link.loop.stop();
+                if (link.closed.compareAndSet(false, true)) {
+                    closing.add(link.receiver.closeAsync());
+                }
+            }
+            this.links.clear();
+        }
+        CompletableFuture.allOf(closing.toArray(new CompletableFuture<?>[closing.size()])).join();
+    }
+
+    private CompletableFuture<Void> openLinksAsync() {
+        List<CompletableFuture<Void>> opening = new ArrayList<>();
+        // counted up front: a link that fails to open synchronously must wait for its retry
+        int missing = this.linkCount - this.links.size() - this.openingLinkCount;
+        for (int i = 0; i < missing; i++) {
+            this.openingLinkCount++;
+            opening.add(this.linkFactory.createAsync(this.nextLinkIndex.getAndIncrement())
+                    .handle((receiver, error) -> {
+                        this.opened(receiver, error);
+                        return null;
+                    }));
+        }
+        return CompletableFuture.allOf(opening.toArray(new CompletableFuture<?>[opening.size()]));
+    }
+
+    private void opened(IMessageReceiver receiver, Throwable error) {
+        Throwable failure = error;
+        synchronized (this) {
+            this.openingLinkCount--;
+            if (error == null && !this.closed && this.links.size() < this.linkCount) {
+                Link link = new Link(receiver);
+                this.links.add(link);
+                link.start();
+                return;
+            }
+            if (error != null && !this.closed) {
+                failure = this.retryLocked(error);
+            }
+        }
+        if (error != null) {
+            this.handler.notifyException(failure, ExceptionPhase.RECEIVE);
+        } else {
+            // the link count was lowered, or the instance closed, while the link was opening
+            receiver.closeAsync();
+        }
+    }
+
+    // called with the lock held after a link failed; schedules the missing links to be opened
+    // again and returns the error to report, which states how many links are left
+    private Throwable retryLocked(Throwable error) {
+        this.failureCount++;
+        long delay = Math.min(this.maxRetryDelayMillis, this.minRetryDelayMillis << Math.min(this.failureCount - 1, 20));
+        if (!this.retryScheduled) {
+            this.retryScheduled = true;
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(this::retry);
+        }
+        return new ServiceBusException(true, String.format("%d of %d links are open; the missing links are opened again in %d ms.",
+                this.links.size(), this.linkCount, delay), error);
+    }
+
+    private synchronized void retry() {
+        this.retryScheduled = false;
+        if (!this.closed) {
+            this.openLinksAsync();
+        }
+    }
+
+    private CompletableFuture<Void> onMessageAsync(Link link, IMessage message) {
+        this.receivedCount.incrementAndGet();
+        if (!link.received) {
+            link.received = true;
+            synchronized (this) {
+                this.failureCount = 0;
+            }
+        }
+        UUID lockToken = message.getLockToken();
+        boolean locked = link.receiver.getReceiveMode() == ReceiveMode.PEEKLOCK;
+        if (locked) {
+            link.unsettledCount.incrementAndGet();
+            this.origins.put(lockToken, link);
+        }
+        CompletableFuture<Void> handled;
+        try {
+            handled = this.handler.onMessageAsync(message);
+        } catch (Throwable t) {
+            handled = new CompletableFuture<>();
+            handled.completeExceptionally(t);
+        }
+        if (!this.autoComplete || !locked) {
+            return handled;
+        }
+        return handled.handle((v, t) -> t).thenCompose(error -> {
+            if (error != null) {
+                this.handler.notifyException(error, ExceptionPhase.USERCALLBACK);
+                return this.abandonAsync(lockToken).exceptionally(t -> {
+                    this.handler.notifyException(t, ExceptionPhase.ABANDON);
+                    return null;
+                });
+            }
+            return this.completeAsync(lockToken).exceptionally(t -> {
+                this.handler.notifyException(t, ExceptionPhase.COMPLETE);
+                return null;
+            });
+        });
+    }
+
+    private CompletableFuture<Void> settleAsync(UUID lockToken, Function<IMessageReceiver, CompletableFuture<Void>> settlement) {
+        Link link = this.origins.get(lockToken);
+        if (link == null) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalArgumentException(
+                    "The lock token " + lockToken + " does not belong to an unsettled message of this receiver."));
+            return failed;
+        }
+        CompletableFuture<Void> settled;
+        try {
+            settled = settlement.apply(link.receiver);
+        } catch (RuntimeException e) {
+            settled = new CompletableFuture<>();
+            settled.completeExceptionally(e);
+        }
+        return settled.whenComplete((v, t) -> {
+            if (this.origins.remove(lockToken, link)) {
+                if (t == null) {
+                    this.settledCount.incrementAndGet();
+                }
+                link.unsettledCount.decrementAndGet();
+                link.closeIfDone();
+            }
+        });
+    }
+
+    private void retire(Link link) {
+        link.retired = true;
+        link.loop.stop();
+    }
+
+    private void stopped(Link link, Throwable error) {
+        if (error == null || link.retired) {
+            link.closeIfDone();
+            return;
+        }
+        // the link failed; replace it unless it was removed in the meantime
+        Throwable failure = error;
+        synchronized (this) {
+            link.retired = true;
+            if (this.links.remove(link) && !this.closed) {
+                failure = this.retryLocked(error);
+            }
+        }
+        this.handler.notifyException(failure, ExceptionPhase.RECEIVE);
+        link.closeIfDone();
+    }
+
+    private final class Link {
+        private final IMessageReceiver receiver;
+        private final AsyncReceiveLoop loop;
+        private final AtomicInteger unsettledCount = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile CompletableFuture<Void> task;
+        private volatile boolean retired;
+        private volatile boolean received;
+
+        Link(IMessageReceiver receiver) {
+            this.receiver = receiver;
+            this.loop = new AsyncReceiveLoop(receiver, message -> MultiLinkReceiver.this.onMessageAsync(this, message),
+                    MultiLinkReceiver.this.executor, MultiLinkReceiver.this.batchSize, MultiLinkReceiver.this.serverWaitTime);
+            this.loop.setErrorHandler(t -> MultiLinkReceiver.this.handler.notifyException(t, ExceptionPhase.USERCALLBACK));
+        }
+
+        void start() {
+            this.task = this.loop.start();
+            this.task.whenComplete((v, t) -> MultiLinkReceiver.this.stopped(this, t));
+        }
+
+        void closeIfDone() {
+            CompletableFuture<Void> task = this.task;
+            if (this.retired && task != null && task.isDone() && this.unsettledCount.get() == 0
+                    && this.closed.compareAndSet(false, true)) {
+                this.receiver.closeAsync();
+            }
+        }
+    }
+}
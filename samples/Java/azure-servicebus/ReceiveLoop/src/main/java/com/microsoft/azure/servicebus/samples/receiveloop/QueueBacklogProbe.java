@@ -0,0 +1,40 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.IMessageBrowser;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * A backlog probe for {@link AdaptiveConcurrencyHost#setBacklogProbe}: the number of messages in an
+ * entity, counted up to {@code limit} by peeking from its first sequence number.
+ * <p>
+ * The 1.2.8 client has no management client, so the active message count of the entity's runtime
+ * information is not available. Peeking is a single round trip that does not lock anything, but
+ * it also returns messages that are locked, deferred or scheduled, so the count is an upper bound
+ * of what a receive can get. Use the host's maximum concurrency as the limit; a larger backlog
+ * does not change the host's decision.
+ */
+public class QueueBacklogProbe implements Supplier<CompletableFuture<Long>> {
+
+    private final IMessageBrowser browser;
+    private final int limit;
+
+    public QueueBacklogProbe(IMessageBrowser browser, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be greater than 0.");
+        }
+        this.browser = browser;
+        this.limit = limit;
+    }
+
+    @Override
+    public CompletableFuture<Long> get() {
+        // from sequence number 0, so every probe starts at the oldest message, not where the last one stopped
+        return this.browser.peekBatchAsync(0, this.limit)
+                .thenApply(messages -> messages == null ? 0L : (long) messages.size());
+    }
+}
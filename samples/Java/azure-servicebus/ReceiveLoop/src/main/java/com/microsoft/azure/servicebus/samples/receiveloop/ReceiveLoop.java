@@ -21,6 +21,8 @@ public class ReceiveLoop {
 
     static final Gson GSON = new Gson();
 
+    // set with -a: handle the messages with an AdaptiveConcurrencyHost instead of an AsyncReceiveLoop
+    static boolean adaptiveConcurrency;
 
     public void run(String connectionString) throws Exception {
 
@@ -38,6 +40,10 @@ public class ReceiveLoop {
 
         receiver = ClientFactory.createMessageReceiverFromConnectionStringBuilder(
                 new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK);
+        if (adaptiveConcurrency) {
+            this.receiveMessagesAdaptively(receiver);
+            return;
+        }
         receiveTask = this.receiveMessagesAsync(receiver);
 
         waitForEnter(10);
@@ -87,47 +93,75 @@ public class ReceiveLoop {
 
     CompletableFuture receiveMessagesAsync(IMessageReceiver receiver) {
 
-        CompletableFuture currentTask = new CompletableFuture();
+        // renews the locks of the messages being handled, in batches from one thread, until
+        // they are settled or five minutes have passed
+        LockRenewalScheduler lockRenewal = new LockRenewalScheduler();
+        lockRenewal.setErrorHandler((message, e) -> System.out.printf("Renewing the lock of %s failed: %s\n", message.getMessageId(), e.toString()));
+
+        // the loop chains receiveBatchAsync continuations on the common pool instead of
+        // blocking a thread in receive(); cancelling the returned future stops it
+        AsyncReceiveLoop loop = new AsyncReceiveLoop(receiver, message -> {
+            lockRenewal.register(message, receiver, Duration.ofMinutes(5));
+            this.printMessage(message);
+            return receiver.completeAsync(message.getLockToken())
+                    .whenComplete((r, e) -> lockRenewal.unregister(message.getLockToken()));
+        }, ForkJoinPool.commonPool(), 10, Duration.ofSeconds(60));
+        loop.setErrorHandler(e -> System.out.printf("%s\n", e.toString()));
+        CompletableFuture<Void> task = loop.start();
+        task.whenComplete((r, e) -> lockRenewal.close());
+        return task;
+    }
 
-        try {
-            CompletableFuture.runAsync(() -> {
-                while (!currentTask.isCancelled()) {
-                    try {
-                        IMessage message = receiver.receive(Duration.ofSeconds(60));
-                        if (message != null) {
-                            // receives message is passed to callback
-                            if (message.getLabel() != null &&
-                                    message.getContentType() != null &&
-                                    message.getLabel().contentEquals("Scientist") &&
-                                    message.getContentType().contentEquals("application/json")) {
-
-                                byte[] body = message.getBody();
-                                Map scientist = GSON.fromJson(new String(body, UTF_8), Map.class);
-
-                                System.out.printf(
-                                        "\n\t\t\t\tMessage received: \n\t\t\t\t\t\tMessageId = %s, \n\t\t\t\t\t\tSequenceNumber = %s, \n\t\t\t\t\t\tEnqueuedTimeUtc = %s," +
-                                                "\n\t\t\t\t\t\tExpiresAtUtc = %s, \n\t\t\t\t\t\tContentType = \"%s\",  \n\t\t\t\t\t\tContent: [ firstName = %s, name = %s ]\n",
-                                        message.getMessageId(),
-                                        message.getSequenceNumber(),
-                                        message.getEnqueuedTimeUtc(),
-                                        message.getExpiresAtUtc(),
-                                        message.getContentType(),
-                                        scientist != null ? scientist.get("firstName") : "",
-                                        scientist != null ? scientist.get("name") : "");
-                            }
-                            receiver.completeAsync(message.getLockToken());
-                        }
-                    } catch (Exception e) {
-                        currentTask.completeExceptionally(e);
-                    }
-                }
-                currentTask.complete(null);
-            });
-            return currentTask;
-        } catch (Exception e) {
-            currentTask.completeExceptionally(e);
+    void receiveMessagesAdaptively(IMessageReceiver receiver) throws Exception {
+        ExecutorService executorService = Executors.newCachedThreadPool();
+
+        // between 1 and 32 receive loops, adjusted every second to the handler latency, the error
+        // rate and the number of messages in the queue, counted up to 32 by peeking
+        AdaptiveConcurrencyHost host = new AdaptiveConcurrencyHost(receiver, 1, 32);
+        host.setBacklogProbe(new QueueBacklogProbe(receiver, 32));
+        host.setChangeListener(change -> System.out.printf("Concurrency: %s\n", change));
+        host.start(new IMessageHandler() {
+            @Override
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                ReceiveLoop.this.printMessage(message);
+                // the host completes the message once the returned future is done
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void notifyException(Throwable exception, ExceptionPhase phase) {
+                System.out.printf(phase + "-" + exception.getMessage() + "\n");
+            }
+        }, executorService);
+
+        waitForEnter(10);
+
+        host.stop();
+        receiver.close();
+        executorService.shutdown();
+    }
+
+    void printMessage(IMessage message) {
+        // only the scientists sent by this sample are printed
+        if (message.getLabel() != null &&
+                message.getContentType() != null &&
+                message.getLabel().contentEquals("Scientist") &&
+                message.getContentType().contentEquals("application/json")) {
+
+            byte[] body = message.getBody();
+            Map scientist = GSON.fromJson(new String(body, UTF_8), Map.class);
+
+            System.out.printf(
+                    "\n\t\t\t\tMessage received: \n\t\t\t\t\t\tMessageId = %s, \n\t\t\t\t\t\tSequenceNumber = %s, \n\t\t\t\t\t\tEnqueuedTimeUtc = %s," +
+                            "\n\t\t\t\t\t\tExpiresAtUtc = %s, \n\t\t\t\t\t\tContentType = \"%s\",  \n\t\t\t\t\t\tContent: [ firstName = %s, name = %s ]\n",
+                    message.getMessageId(),
+                    message.getSequenceNumber(),
+                    message.getEnqueuedTimeUtc(),
+                    message.getExpiresAtUtc(),
+                    message.getContentType(),
+                    scientist != null ? scientist.get("firstName") : "",
+                    scientist != null ? scientist.get("name") : "");
         }
-        return currentTask;
     }
 
 
@@ -155,11 +189,13 @@ public class ReceiveLoop {
             // parse connection string from command line
             Options options = new Options();
             options.addOption(new Option("c", true, "Connection string"));
+            options.addOption(new Option("a", false, "Adjust the number of concurrent receives with an AdaptiveConcurrencyHost"));
             CommandLineParser clp = new DefaultParser();
             CommandLine cl = clp.parse(options, args);
             if (cl.getOptionValue("c") != null) {
                 connectionString = cl.getOptionValue("c");
             }
+            adaptiveConcurrency = cl.hasOption("a");
 
             // get overrides from the environment
             String env = System.getenv(SB_SAMPLES_CONNECTIONSTRING);
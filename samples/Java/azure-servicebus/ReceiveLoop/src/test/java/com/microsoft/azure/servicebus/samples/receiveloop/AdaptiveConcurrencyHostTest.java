@@ -0,0 +1,269 @@
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+public class AdaptiveConcurrencyHostTest {
+
+    private ServiceBusEmulator emulator;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        executor = Executors.newFixedThreadPool(64);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        emulator.close();
+    }
+
+    @Test
+    public void limitGrowsWhileLatencyIsFlat() throws Exception {
+        fill(2000);
+        AdaptiveConcurrencyHost host = new AdaptiveConcurrencyHost(emulator.createMessageReceiver("BasicQueue"), 1, 32, Duration.ofMillis(50));
+        host.setMessageWaitDuration(Duration.ofMillis(100));
+        List<AdaptiveConcurrencyHost.ConcurrencyChange> changes = new CopyOnWriteArrayList<>();
+        host.setChangeListener(changes::add);
+        AtomicInteger handled = new AtomicInteger();
+
+        host.start(new Handler(message -> {
+            sleep(5);
+            handled.incrementAndGet();
+        }), executor);
+        waitFor(() -> host.getConcurrencyLimit() >= 8);
+        host.stop();
+
+        Assert.assertTrue(host.getChangeCount() > 0);
+        Assert.assertEquals(host.getChangeCount(), changes.size());
+        for (AdaptiveConcurrencyHost.ConcurrencyChange change : changes) {
+            Assert.assertEquals(AdaptiveConcurrencyHost.Reason.LATENCY_GRADIENT, change.getReason());
+            Assert.assertTrue(change.getNewLimit() > change.getPreviousLimit());
+        }
+        Assert.assertTrue(handled.get() > 0);
+    }
+
+    @Test
+    public void errorsHalveTheLimit() throws Exception {
+        fill(4000);
+        AdaptiveConcurrencyHost host = new AdaptiveConcurrencyHost(emulator.createMessageReceiver("BasicQueue"), 1, 64, Duration.ofMillis(50));
+        host.setMessageWaitDuration(Duration.ofMillis(100));
+        AtomicBoolean failing = new AtomicBoolean();
+        AtomicInteger failures = new AtomicInteger();
+
+        host.start(new Handler(message -> {
+            sleep(2);
+            if (failing.get()) {
+                failures.incrementAndGet();
+                throw new IllegalStateException("handler failure");
+            }
+        }), executor);
+        waitFor(() -> host.getConcurrencyLimit() >= 8);
+        int grown = host.getConcurrencyLimit();
+        failing.set(true);
+        waitFor(() -> host.getLastChange().getReason() == AdaptiveConcurrencyHost.Reason.ERROR_RATE);
+        host.stop();
+
+        AdaptiveConcurrencyHost.ConcurrencyChange change = host.getLastChange();
+        Assert.assertTrue(change.getErrorRate() > AdaptiveConcurrencyHost.DEFAULT_ERROR_RATE_THRESHOLD);
+        Assert.assertTrue(change.getNewLimit() <= Math.max(1, change.getPreviousLimit() / 2));
+        Assert.assertTrue(change.getPreviousLimit() >= grown);
+        Assert.assertTrue(failures.get() > 0);
+    }
+
+    @Test
+    public void backlogCapsTheLimit() throws Exception {
+        fill(2000);
+        AdaptiveConcurrencyHost host = new AdaptiveConcurrencyHost(emulator.createMessageReceiver("BasicQueue"), 1, 32, Duration.ofMillis(50));
+        host.setMessageWaitDuration(Duration.ofMillis(100));
+        host.setBacklogProbe(() -> CompletableFuture.completedFuture(3L));
+        List<AdaptiveConcurrencyHost.ConcurrencyChange> changes = new CopyOnWriteArrayList<>();
+        host.setChangeListener(changes::add);
+
+        host.start(new Handler(message -> sleep(5)), executor);
+        waitFor(() -> host.getConcurrencyLimit() == 3);
+        Thread.sleep(500);
+        host.stop();
+
+        Assert.assertEquals(3, host.getConcurrencyLimit());
+        for (AdaptiveConcurrencyHost.ConcurrencyChange change : changes) {
+            Assert.assertTrue(change.getNewLimit() <= 3);
+            Assert.assertEquals(3, change.getBacklog());
+        }
+    }
+
+    @Test
+    public void failingChangeListenerDoesNotStopTheAdjustments() throws Exception {
+        fill(2000);
+        AdaptiveConcurrencyHost host = new AdaptiveConcurrencyHost(emulator.createMessageReceiver("BasicQueue"), 1, 32, Duration.ofMillis(50));
+        host.setMessageWaitDuration(Duration.ofMillis(100));
+        host.setChangeListener(change -> {
+            throw new IllegalStateException("listener failed");
+        });
+        List<ExceptionPhase> phases = new CopyOnWriteArrayList<>();
+
+        host.start(new IMessageHandler() {
+            @Override
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                sleep(5);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void notifyException(Throwable exception, ExceptionPhase phase) {
+                phases.add(phase);
+            }
+        }, executor);
+        // every change fails the listener, yet the limit keeps climbing
+        waitFor(() -> host.getConcurrencyLimit() >= 4);
+        host.stop();
+
+        Assert.assertTrue(phases.size() >= 3);
+        Assert.assertTrue(phases.stream().allMatch(phase -> phase == ExceptionPhase.USERCALLBACK));
+    }
+
+    @Test
+    public void failedBacklogProbeIsReportedAndLeavesTheBacklogUnknown() throws Exception {
+        fill(2000);
+        AdaptiveConcurrencyHost host = new AdaptiveConcurrencyHost(emulator.createMessageReceiver("BasicQueue"), 1, 32, Duration.ofMillis(50));
+        host.setMessageWaitDuration(Duration.ofMillis(100));
+        AtomicBoolean probeFails = new AtomicBoolean();
+        host.setBacklogProbe(() -> {
+            if (!probeFails.get()) {
+                return CompletableFuture.completedFuture(3L);
+            }
+            CompletableFuture<Long> failure = new CompletableFuture<>();
+            failure.completeExceptionally(new IllegalStateException("management endpoint unavailable"));
+            return failure;
+        });
+        List<ExceptionPhase> errors = new CopyOnWriteArrayList<>();
+
+        host.start(new IMessageHandler() {
+            @Override
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                sleep(5);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public void notifyException(Throwable exception, ExceptionPhase phase) {
+                errors.add(phase);
+            }
+        }, executor);
+        waitFor(() -> host.getConcurrencyLimit() == 3);
+        probeFails.set(true);
+        // without a backlog the limit is no longer capped at the last answer
+        waitFor(() -> host.getConcurrencyLimit() > 3);
+        host.stop();
+
+        Assert.assertFalse(errors.isEmpty());
+        Assert.assertTrue(errors.stream().allMatch(phase -> phase == ExceptionPhase.USERCALLBACK));
+        Assert.assertEquals(-1, host.getLastChange().getBacklog());
+        Assert.assertEquals(AdaptiveConcurrencyHost.Reason.LATENCY_GRADIENT, host.getLastChange().getReason());
+    }
+
+    @Test
+    public void stoppedHostCanBeStartedAgain() throws Exception {
+        fill(2000);
+        AdaptiveConcurrencyHost host = new AdaptiveConcurrencyHost(emulator.createMessageReceiver("BasicQueue"), 1, 32, Duration.ofMillis(50));
+        host.setMessageWaitDuration(Duration.ofMillis(100));
+        AtomicInteger handled = new AtomicInteger();
+
+        host.start(new Handler(message -> {
+            sleep(5);
+            handled.incrementAndGet();
+        }), executor);
+        waitFor(() -> host.getConcurrencyLimit() >= 2);
+        host.stop();
+        long changes = host.getChangeCount();
+        int before = handled.get();
+
+        host.start(new Handler(message -> {
+            sleep(5);
+            handled.incrementAndGet();
+        }), executor);
+        // both the receive loops and the adjustments run again
+        waitFor(() -> handled.get() > before + 50 && host.getChangeCount() > changes);
+        host.stop();
+    }
+
+    @Test
+    public void queueBacklogProbeCountsUpToItsLimit() throws Exception {
+        fill(5);
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        Assert.assertEquals(3L, (long) new QueueBacklogProbe(receiver, 3).get().get(5, TimeUnit.SECONDS));
+        // peeking locks nothing, and every probe starts again at the oldest message
+        Assert.assertEquals(5L, (long) new QueueBacklogProbe(receiver, 32).get().get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(5, receiver.receiveBatch(10, Duration.ofSeconds(1)).size());
+    }
+
+    private void fill(int count) throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        for (int i = 0; i < count; i += 500) {
+            List<Message> batch = new ArrayList<>();
+            for (int j = i; j < Math.min(count, i + 500); j++) {
+                batch.add(new Message("message " + j));
+            }
+            sender.sendBatch(batch);
+        }
+        sender.close();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    private static final class Handler implements IMessageHandler {
+        private final Consumer<IMessage> body;
+
+        Handler(Consumer<IMessage> body) {
+            this.body = body;
+        }
+
+        @Override
+        public CompletableFuture<Void> onMessageAsync(IMessage message) {
+            this.body.accept(message);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void notifyException(Throwable exception, ExceptionPhase phase) {
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncReceiveLoopTest {
+
+    private ServiceBusEmulator emulator;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        emulator.close();
+    }
+
+    @Test
+    public void handlesAndCompletesAllMessages() throws Exception {
+        fill(200);
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        CountDownLatch handled = new CountDownLatch(200);
+        AsyncReceiveLoop loop = new AsyncReceiveLoop(receiver, message -> {
+            handled.countDown();
+            return receiver.completeAsync(message.getLockToken());
+        }, executor, 16, Duration.ofMillis(200));
+
+        CompletableFuture<Void> task = loop.start();
+
+        Assert.assertTrue(handled.await(10, TimeUnit.SECONDS));
+        loop.stop();
+        task.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(200, loop.getReceivedCount());
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+    }
+
+    @Test
+    public void handlerReturningNullDoesNotStopTheLoop() throws Exception {
+        fill(20);
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.RECEIVEANDDELETE);
+        AtomicInteger handled = new AtomicInteger();
+        AsyncReceiveLoop loop = new AsyncReceiveLoop(receiver, message -> {
+            handled.incrementAndGet();
+            return null;
+        }, executor, 8, Duration.ofMillis(100));
+
+        CompletableFuture<Void> task = loop.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handled.get() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(20, handled.get());
+        loop.stop();
+        task.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void pauseStopsReceivingUntilResumed() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        AtomicInteger handled = new AtomicInteger();
+        AsyncReceiveLoop loop = new AsyncReceiveLoop(receiver, message -> {
+            handled.incrementAndGet();
+            return receiver.completeAsync(message.getLockToken());
+        }, executor, 10, Duration.ofMillis(100));
+
+        CompletableFuture<Void> task = loop.start();
+        loop.pause();
+        // the receive pending when the loop was paused completes empty
+        Thread.sleep(300);
+        fill(20);
+        Thread.sleep(300);
+        Assert.assertEquals(0, handled.get());
+        Assert.assertEquals(20, emulator.getEntity("BasicQueue").getActiveMessageCount());
+
+        loop.resume();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (handled.get() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(20, handled.get());
+
+        loop.pause();
+        Thread.sleep(300);
+        // a paused loop holds no receive, so stopping it ends it right away
+        loop.stop();
+        task.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void cancelReleasesMessagesOfReceiveInFlight() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        List<Object> handled = new ArrayList<>();
+        AsyncReceiveLoop loop = new AsyncReceiveLoop(receiver, message -> {
+            handled.add(message);
+            return CompletableFuture.completedFuture(null);
+        }, executor, 10, Duration.ofSeconds(5));
+
+        CompletableFuture<Void> task = loop.start();
+        // the receive is waiting on the empty queue when the loop is cancelled
+        Thread.sleep(100);
+        task.cancel(true);
+        fill(10);
+        Thread.sleep(500);
+
+        Assert.assertTrue(handled.isEmpty());
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getLockedMessageCount());
+        Assert.assertEquals(10, emulator.getEntity("BasicQueue").getActiveMessageCount());
+        try {
+            task.join();
+            Assert.fail();
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    private void fill(int count) throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(Integer.toString(i)));
+        }
+        sender.sendBatch(messages);
+        sender.close();
+    }
+}
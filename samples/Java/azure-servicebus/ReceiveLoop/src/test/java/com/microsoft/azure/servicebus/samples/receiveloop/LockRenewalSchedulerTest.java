@@ -0,0 +1,155 @@
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class LockRenewalSchedulerTest {
+
+    private ServiceBusEmulator emulator;
+    private LockRenewalScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator(Duration.ofMillis(50));
+        emulator.setLockDuration(Duration.ofSeconds(1));
+        // a wheel of 8 ticks covers 160 ms, so a one second lock waits several rotations
+        scheduler = new LockRenewalScheduler(Duration.ofMillis(20), 8, Duration.ofMillis(400), 100);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.close();
+        emulator.close();
+    }
+
+    @Test
+    public void locksAreRenewedInBatchesUntilSettled() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        List<IMessage> messages = receive(receiver, 50);
+        LockRenewalScheduler.LockRenewer renewer = LockRenewalScheduler.renewerOf(receiver);
+        for (IMessage message : messages) {
+            scheduler.register(message, renewer, null);
+        }
+        Assert.assertEquals(50, scheduler.getTrackedLockCount());
+
+        Thread.sleep(2500);
+        for (IMessage message : messages) {
+            receiver.complete(message.getLockToken());
+            Assert.assertTrue(scheduler.unregister(message.getLockToken()));
+        }
+
+        Assert.assertEquals(0, scheduler.getTrackedLockCount());
+        Assert.assertEquals(0, scheduler.getFailedCount());
+        Assert.assertTrue(scheduler.getRenewedCount() >= 100);
+        Assert.assertTrue(scheduler.getBatchCount() * 10 < scheduler.getRenewedCount());
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+    }
+
+    @Test
+    public void locksOfAReceiverAreBatchedWithoutASharedRenewer() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        List<IMessage> messages = receive(receiver, 50);
+        for (IMessage message : messages) {
+            scheduler.register(message, receiver, null);
+        }
+
+        Thread.sleep(2500);
+        for (IMessage message : messages) {
+            receiver.complete(message.getLockToken());
+            Assert.assertTrue(scheduler.unregister(message.getLockToken()));
+        }
+
+        Assert.assertEquals(0, scheduler.getFailedCount());
+        Assert.assertTrue(scheduler.getRenewedCount() >= 100);
+        Assert.assertTrue(scheduler.getBatchCount() * 10 < scheduler.getRenewedCount());
+    }
+
+    @Test
+    public void unregisteredLockExpires() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        List<IMessage> messages = receive(receiver, 2);
+        LockRenewalScheduler.LockRenewer renewer = LockRenewalScheduler.renewerOf(receiver);
+        scheduler.register(messages.get(0), renewer, null);
+        scheduler.register(messages.get(1), renewer, null);
+        Assert.assertTrue(scheduler.unregister(messages.get(1).getLockToken()));
+        Assert.assertFalse(scheduler.unregister(messages.get(1).getLockToken()));
+
+        Thread.sleep(1600);
+        receiver.completeAsync(messages.get(0).getLockToken()).get(5, TimeUnit.SECONDS);
+        assertLockLost(receiver, messages.get(1));
+    }
+
+    @Test
+    public void renewalStopsAfterMaxRenewDuration() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        IMessage message = receive(receiver, 1).get(0);
+        scheduler.register(message, receiver, Duration.ofMillis(700));
+
+        Thread.sleep(2500);
+        Assert.assertEquals(0, scheduler.getTrackedLockCount());
+        Assert.assertTrue(scheduler.getRenewedCount() >= 1);
+        assertLockLost(receiver, message);
+    }
+
+    @Test
+    public void renewerReturningTooFewExpiriesFailsTheBatch() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        List<IMessage> messages = receive(receiver, 3);
+        LockRenewalScheduler.LockRenewer renewer = batch -> CompletableFuture.<Collection<Instant>>completedFuture(
+                Collections.singletonList(Instant.now().plusSeconds(1)));
+        List<IMessage> failed = Collections.synchronizedList(new ArrayList<>());
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        scheduler.setErrorHandler((message, error) -> {
+            failed.add(message);
+            errors.add(error);
+        });
+        for (IMessage message : messages) {
+            scheduler.register(message, renewer, null);
+        }
+
+        Thread.sleep(1500);
+        Assert.assertEquals(0, scheduler.getTrackedLockCount());
+        Assert.assertEquals(3, scheduler.getFailedCount());
+        Assert.assertEquals(3, failed.size());
+        Assert.assertTrue(errors.get(0) instanceof IllegalStateException);
+    }
+
+    private static void assertLockLost(IMessageReceiver receiver, IMessage message) throws Exception {
+        try {
+            receiver.completeAsync(message.getLockToken()).get(5, TimeUnit.SECONDS);
+            Assert.fail("the lock should have expired");
+        } catch (ExecutionException e) {
+            // expected
+        }
+    }
+
+    private List<IMessage> receive(IMessageReceiver receiver, int count) throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(Integer.toString(i)));
+        }
+        sender.sendBatch(messages);
+        sender.close();
+        Collection<IMessage> received = receiver.receiveBatch(count, Duration.ofSeconds(1));
+        Assert.assertEquals(count, received.size());
+        return new ArrayList<>(received);
+    }
+}
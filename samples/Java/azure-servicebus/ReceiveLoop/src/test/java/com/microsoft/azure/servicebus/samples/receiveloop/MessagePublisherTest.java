@@ -0,0 +1,265 @@
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessagePublisherTest {
+
+    private ServiceBusEmulator emulator;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        emulator.close();
+    }
+
+    @Test
+    public void deliversNoMoreThanRequested() throws Exception {
+        fill(100);
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        MessagePublisher publisher = new MessagePublisher(receiver, executor, 100, Duration.ofMillis(200));
+        AtomicInteger outstanding = new AtomicInteger();
+        AtomicInteger maxOutstanding = new AtomicInteger();
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+
+        publisher.subscribe(new Flow.Subscriber<IMessage>() {
+            private Flow.Subscription subscription;
+            private int received;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                outstanding.addAndGet(5);
+                subscription.request(5);
+            }
+
+            @Override
+            public void onNext(IMessage message) {
+                maxOutstanding.accumulateAndGet((int) emulator.getEntity("BasicQueue").getLockedMessageCount(), Math::max);
+                receiver.completeAsync(message.getLockToken()).join();
+                received++;
+                if (outstanding.decrementAndGet() == 0) {
+                    if (received == 100) {
+                        this.subscription.cancel();
+                        done.complete(received);
+                        return;
+                    }
+                    outstanding.addAndGet(5);
+                    this.subscription.request(5);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        Assert.assertEquals(100, (int) done.get(10, TimeUnit.SECONDS));
+        // with a prefetch count of 0 the receiver holds at most the requested messages
+        Assert.assertTrue(maxOutstanding.get() <= 5);
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+    }
+
+    @Test
+    public void cancelReleasesMessagesOfReceiveInFlight() throws Exception {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        MessagePublisher publisher = new MessagePublisher(receiver, executor, 10, Duration.ofSeconds(5));
+        CompletableFuture<Flow.Subscription> subscribed = new CompletableFuture<>();
+        List<IMessage> delivered = new ArrayList<>();
+
+        publisher.subscribe(new Flow.Subscriber<IMessage>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(10);
+                subscribed.complete(subscription);
+            }
+
+            @Override
+            public void onNext(IMessage message) {
+                delivered.add(message);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        // the receive is waiting on the empty queue when the subscription is cancelled
+        subscribed.get(5, TimeUnit.SECONDS).cancel();
+        Thread.sleep(100);
+        fill(10);
+        Thread.sleep(500);
+
+        Assert.assertTrue(delivered.isEmpty());
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getLockedMessageCount());
+        Assert.assertEquals(10, emulator.getEntity("BasicQueue").getActiveMessageCount());
+    }
+
+    @Test
+    public void nonPositiveRequestSignalsError() throws Exception {
+        MessagePublisher publisher = new MessagePublisher(emulator.createMessageReceiver("BasicQueue"), executor);
+        CompletableFuture<Throwable> error = new CompletableFuture<>();
+
+        publisher.subscribe(new Flow.Subscriber<IMessage>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(0);
+            }
+
+            @Override
+            public void onNext(IMessage message) {
+                error.completeExceptionally(new AssertionError("unexpected message"));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.complete(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        Assert.assertTrue(error.get(5, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void invalidRequestDuringOnNextSignalsErrorAfterIt() throws Exception {
+        fill(10);
+        MessagePublisher publisher = new MessagePublisher(emulator.createMessageReceiver("BasicQueue"), executor, 10, Duration.ofMillis(200));
+        CompletableFuture<Flow.Subscription> subscribed = new CompletableFuture<>();
+        CountDownLatch inOnNext = new CountDownLatch(1);
+        AtomicBoolean signalling = new AtomicBoolean();
+        AtomicInteger delivered = new AtomicInteger();
+        CompletableFuture<Throwable> error = new CompletableFuture<>();
+
+        publisher.subscribe(new Flow.Subscriber<IMessage>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscribed.complete(subscription);
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(IMessage message) {
+                if (!signalling.compareAndSet(false, true)) {
+                    error.completeExceptionally(new AssertionError("concurrent signals"));
+                }
+                delivered.incrementAndGet();
+                inOnNext.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                signalling.set(false);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                if (signalling.get()) {
+                    error.completeExceptionally(new AssertionError("onError while onNext runs"));
+                }
+                error.complete(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        Assert.assertTrue(inOnNext.await(5, TimeUnit.SECONDS));
+        subscribed.get().request(-1);
+
+        Assert.assertTrue(error.get(5, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+        // the rest of the batch is abandoned; only the delivered message, which the subscriber did not settle, stays locked
+        Assert.assertEquals(1, delivered.get());
+        Thread.sleep(200);
+        Assert.assertEquals(1, emulator.getEntity("BasicQueue").getLockedMessageCount());
+    }
+
+    @Test
+    public void receiverThrowingRightAwaySignalsError() throws Exception {
+        IMessageReceiver inner = emulator.createMessageReceiver("BasicQueue");
+        IllegalStateException receiveError = new IllegalStateException("receiver closed");
+        IMessageReceiver receiver = (IMessageReceiver) Proxy.newProxyInstance(IMessageReceiver.class.getClassLoader(),
+                new Class<?>[]{IMessageReceiver.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("receiveBatchAsync")) {
+                        throw receiveError;
+                    }
+                    return method.invoke(inner, args);
+                });
+        MessagePublisher publisher = new MessagePublisher(receiver, executor);
+        CompletableFuture<Throwable> error = new CompletableFuture<>();
+
+        publisher.subscribe(new Flow.Subscriber<IMessage>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(10);
+            }
+
+            @Override
+            public void onNext(IMessage message) {
+                error.completeExceptionally(new AssertionError("unexpected message"));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.complete(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        Assert.assertSame(receiveError, error.get(5, TimeUnit.SECONDS));
+    }
+
+    private void fill(int count) throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(Integer.toString(i)));
+        }
+        sender.sendBatch(messages);
+        sender.close();
+    }
+}
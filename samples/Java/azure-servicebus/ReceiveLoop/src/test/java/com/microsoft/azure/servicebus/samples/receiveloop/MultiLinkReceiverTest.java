@@ -0,0 +1,251 @@
+package com.microsoft.azure.servicebus.samples.receiveloop;
+
+import com.microsoft.azure.servicebus.ExceptionPhase;
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageHandler;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+public class MultiLinkReceiverTest {
+
+    private ServiceBusEmulator emulator;
+    private ExecutorService executor;
+    private List<IMessageReceiver> receivers;
+    private Set<Object> closed;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        executor = Executors.newFixedThreadPool(4);
+        receivers = new ArrayList<>();
+        closed = ConcurrentHashMap.newKeySet();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        emulator.close();
+    }
+
+    @Test
+    public void mergesAllLinksIntoOneHandler() throws Exception {
+        fill(400);
+        CountDownLatch handled = new CountDownLatch(400);
+        MultiLinkReceiver receiver = new MultiLinkReceiver(linkIndex -> CompletableFuture.completedFuture(newReceiver()),
+                4, executor, 5, Duration.ofMillis(100));
+
+        receiver.startAsync(handler(message -> {
+            handled.countDown();
+            return CompletableFuture.completedFuture(null);
+        }), true).get(5, TimeUnit.SECONDS);
+
+        Assert.assertTrue(handled.await(10, TimeUnit.SECONDS));
+        waitFor(() -> receiver.getSettledCount() == 400);
+        Assert.assertEquals(4, receiver.getOpenLinkCount());
+        Assert.assertEquals(0, receiver.getUnsettledCount());
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+        receiver.close();
+    }
+
+    @Test
+    public void settlementGoesBackToTheOriginatingLink() throws Exception {
+        fill(100);
+        Map<UUID, Integer> receivedOn = new ConcurrentHashMap<>();
+        Map<UUID, Integer> completedOn = new ConcurrentHashMap<>();
+        MultiLinkReceiver receiver = new MultiLinkReceiver(
+                linkIndex -> CompletableFuture.completedFuture(tracking(newReceiver(), linkIndex, receivedOn, completedOn)),
+                3, executor, 5, Duration.ofMillis(100));
+
+        receiver.startAsync(handler(message -> receiver.completeAsync(message.getLockToken())), false).get(5, TimeUnit.SECONDS);
+
+        waitFor(() -> receiver.getSettledCount() == 100);
+        Assert.assertEquals(100, receivedOn.size());
+        Assert.assertEquals(receivedOn, completedOn);
+        Assert.assertTrue(receivedOn.values().stream().distinct().count() > 1);
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+
+        try {
+            receiver.completeAsync(UUID.randomUUID()).get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        receiver.close();
+    }
+
+    @Test
+    public void linkCountChangesWhileReceiving() throws Exception {
+        MultiLinkReceiver receiver = new MultiLinkReceiver(linkIndex -> CompletableFuture.completedFuture(newReceiver()),
+                2, executor, 5, Duration.ofMillis(100));
+        AtomicInteger handled = new AtomicInteger();
+        receiver.startAsync(handler(message -> {
+            handled.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }), true).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, receiver.getOpenLinkCount());
+
+        receiver.setLinkCountAsync(6).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(6, receiver.getOpenLinkCount());
+        fill(100);
+        waitFor(() -> handled.get() == 100);
+
+        receiver.setLinkCountAsync(1).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, receiver.getOpenLinkCount());
+        // the removed links close once their pending receives have returned
+        waitFor(() -> receivers.stream().filter(r -> !isClosed(r)).count() == 1);
+        fill(50);
+        waitFor(() -> handled.get() == 150);
+        receiver.close();
+        Assert.assertEquals(0, receivers.stream().filter(r -> !isClosed(r)).count());
+    }
+
+    @Test
+    public void failedLinksAreOpenedAgainWithBackoff() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        List<Long> attemptTimes = new CopyOnWriteArrayList<>();
+        MultiLinkReceiver receiver = new MultiLinkReceiver(linkIndex -> {
+            attemptTimes.add(System.nanoTime());
+            if (attempts.getAndIncrement() < 3) {
+                CompletableFuture<IMessageReceiver> failed = new CompletableFuture<>();
+                failed.completeExceptionally(new IllegalStateException("link unavailable"));
+                return failed;
+            }
+            return CompletableFuture.completedFuture(newReceiver());
+        }, 2, executor, 5, Duration.ofMillis(100));
+        receiver.setRetryDelay(Duration.ofMillis(100), Duration.ofSeconds(1));
+        List<Throwable> reported = new CopyOnWriteArrayList<>();
+        AtomicInteger handled = new AtomicInteger();
+
+        receiver.startAsync(handler(message -> {
+            handled.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+        }, (error, phase) -> reported.add(error)), true).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(0, receiver.getOpenLinkCount());
+
+        waitFor(() -> receiver.getOpenLinkCount() == 2);
+        Assert.assertEquals(5, attempts.get());
+        Assert.assertEquals(3, reported.size());
+        Assert.assertTrue(reported.get(0) instanceof ServiceBusException);
+        Assert.assertTrue(reported.get(0).getCause() instanceof IllegalStateException);
+        Assert.assertTrue(reported.get(2).getMessage().startsWith("0 of 2 links are open"));
+        // the retries wait 100 ms and then 200 ms
+        Assert.assertTrue(attemptTimes.get(2) - attemptTimes.get(0) >= TimeUnit.MILLISECONDS.toNanos(90));
+        Assert.assertTrue(attemptTimes.get(4) - attemptTimes.get(2) >= TimeUnit.MILLISECONDS.toNanos(190));
+
+        fill(20);
+        waitFor(() -> handled.get() == 20);
+        receiver.close();
+    }
+
+    // records which receivers have been closed
+    private synchronized IMessageReceiver newReceiver() {
+        IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue");
+        IMessageReceiver closing = (IMessageReceiver) Proxy.newProxyInstance(IMessageReceiver.class.getClassLoader(), new Class<?>[]{IMessageReceiver.class},
+                (proxy, method, args) -> {
+                    if (method.getName().startsWith("close")) {
+                        closed.add(proxy);
+                    }
+                    try {
+                        return method.invoke(receiver, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        receivers.add(closing);
+        return closing;
+    }
+
+    private boolean isClosed(IMessageReceiver receiver) {
+        return closed.contains(receiver);
+    }
+
+    // records on which link each message was received and completed
+    @SuppressWarnings("unchecked")
+    private static IMessageReceiver tracking(IMessageReceiver receiver, int linkIndex, Map<UUID, Integer> receivedOn, Map<UUID, Integer> completedOn) {
+        return (IMessageReceiver) Proxy.newProxyInstance(IMessageReceiver.class.getClassLoader(), new Class<?>[]{IMessageReceiver.class},
+                (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(receiver, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (method.getName().equals("receiveBatchAsync")) {
+                        return ((CompletableFuture<Collection<IMessage>>) result).thenApply(messages -> {
+                            if (messages != null) {
+                                messages.forEach(message -> receivedOn.put(message.getLockToken(), linkIndex));
+                            }
+                            return messages;
+                        });
+                    }
+                    if (method.getName().equals("completeAsync")) {
+                        completedOn.put((UUID) args[0], linkIndex);
+                    }
+                    return result;
+                });
+    }
+
+    private static IMessageHandler handler(Function<IMessage, CompletableFuture<Void>> onMessage) {
+        return handler(onMessage, (exception, phase) -> { });
+    }
+
+    private static IMessageHandler handler(Function<IMessage, CompletableFuture<Void>> onMessage, BiConsumer<Throwable, ExceptionPhase> onException) {
+        return new IMessageHandler() {
+            @Override
+            public CompletableFuture<Void> onMessageAsync(IMessage message) {
+                return onMessage.apply(message);
+            }
+
+            @Override
+            public void notifyException(Throwable exception, ExceptionPhase phase) {
+                onException.accept(exception, phase);
+            }
+        };
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(condition.getAsBoolean());
+    }
+
+    private void fill(int count) throws Exception {
+        IMessageSender sender = emulator.createMessageSender("BasicQueue");
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new Message(Integer.toString(i)));
+        }
+        sender.sendBatch(messages);
+        sender.close();
+    }
+}
@@ -0,0 +1,298 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.scheduledmessages;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.primitives.MessageNotFoundException;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Schedules and cancels many messages on the broker with parallel calls, and remembers the
+ * sequence number of each scheduled message under a business key in a {@link SequenceNumberIndex}.
+ * <p>
+ * {@code scheduleMessageAsync} and {@code cancelScheduledMessageAsync} each take a round trip, so
+ * scheduling or cancelling thousands of messages one call at a time takes thousands of round
+ * trips. Here up to {@code maxCallsInFlight} calls run at once: the calling thread blocks until
+ * the window has room for the next call, and the permit is given back when the call completes.
+ * A key is a group, such as an order batch, and a key within the group, such as one of its
+ * reminders, so {@link #cancelGroupAsync} cancels all reminders of a batch at once.
+ * <p>
+ * A message the broker has enqueued can no longer be cancelled. Entries whose scheduled time has
+ * passed are dropped from the index instead of being cancelled, and a cancel that finds no
+ * message counts as missing rather than failed. If the calling thread is interrupted while
+ * waiting for the window, the remaining messages count as failed and the thread keeps its
+ * interrupt status.
+ */
+public class BulkScheduler {
+
+    private final IMessageSender sender;
+    private final int maxCallsInFlight;
+    private final Semaphore callPermits;
+    private final SequenceNumberIndex index = new SequenceNumberIndex();
+    private final LongAdder scheduledCount = new LongAdder();
+    private final LongAdder cancelledCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    public BulkScheduler(IMessageSender sender) {
+        this(sender, 64);
+    }
+
+    public BulkScheduler(IMessageSender sender, int maxCallsInFlight) {
+        if (maxCallsInFlight <= 0) {
+            throw new IllegalArgumentException("maxCallsInFlight must be greater than 0.");
+        }
+        this.sender = sender;
+        this.maxCallsInFlight = maxCallsInFlight;
+        this.callPermits = new Semaphore(maxCallsInFlight, true);
+    }
+
+    public SequenceNumberIndex getIndex() {
+        return this.index;
+    }
+
+    public int getCallsInFlight() {
+        return this.maxCallsInFlight - this.callPermits.availablePermits();
+    }
+
+    public long getScheduledCount() {
+        return this.scheduledCount.sum();
+    }
+
+    public long getCancelledCount() {
+        return this.cancelledCount.sum();
+    }
+
+    public long getFailedCount() {
+        return this.failedCount.sum();
+    }
+
+    /**
+     * Schedules each message at its {@code ScheduledEnqueueTimeUtc} under the key at the same
+     * position. A key that was scheduled before is replaced in the index; its earlier message is
+     * not cancelled.
+     */
+    public CompletableFuture<Outcome> scheduleAsync(long group, long[] keys, List<? extends IMessage> messages) {
+        if (keys.length != messages.size()) {
+            throw new IllegalArgumentException("keys and messages must have the same length.");
+        }
+        for (IMessage message : messages) {
+            if (message.getScheduledEnqueueTimeUtc() == null) {
+                throw new IllegalArgumentException("Each message must have a ScheduledEnqueueTimeUtc.");
+            }
+        }
+        Outcome outcome = new Outcome(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            IMessage message = messages.get(i);
+            Instant scheduledEnqueueTimeUtc = message.getScheduledEnqueueTimeUtc();
+            if (!this.acquire()) {
+                this.failRemaining(outcome, keys, i);
+                break;
+            }
+            this.call(() -> this.sender.scheduleMessageAsync(message, scheduledEnqueueTimeUtc)).whenComplete((sequenceNumber, error) -> {
+                if (error == null) {
+                    this.index.put(group, key, sequenceNumber, scheduledEnqueueTimeUtc.toEpochMilli());
+                    this.scheduledCount.increment();
+                    outcome.succeeded(key);
+                } else {
+                    this.failedCount.increment();
+                    outcome.failed(key, error);
+                }
+            });
+        }
+        return outcome.future;
+    }
+
+    public Outcome schedule(long group, long[] keys, List<? extends IMessage> messages) throws InterruptedException, ExecutionException {
+        return this.scheduleAsync(group, keys, messages).get();
+    }
+
+    /**
+     * Cancels the scheduled messages of the given keys of the group.
+     */
+    public CompletableFuture<Outcome> cancelAsync(long group, long[] keys) {
+        long[] sequenceNumbers = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            sequenceNumbers[i] = this.index.get(group, keys[i]);
+        }
+        return this.cancelEntries(group, keys, sequenceNumbers);
+    }
+
+    /**
+     * Cancels the scheduled messages of all keys of the group.
+     */
+    public CompletableFuture<Outcome> cancelGroupAsync(long group) {
+        long now = System.currentTimeMillis();
+        int count = this.index.groupSize(group);
+        long[] keys = new long[count];
+        long[] sequenceNumbers = new long[count];
+        int[] next = new int[1];
+        this.index.forEachInGroup(group, (key, sequenceNumber, scheduledMillis) -> {
+            if (next[0] < count) {
+                keys[next[0]] = key;
+                // the broker has enqueued the message already
+                sequenceNumbers[next[0]++] = scheduledMillis > now ? sequenceNumber : -1;
+            }
+        });
+        return this.cancelEntries(group, Arrays.copyOf(keys, next[0]), Arrays.copyOf(sequenceNumbers, next[0]));
+    }
+
+    public Outcome cancelGroup(long group) throws InterruptedException, ExecutionException {
+        return this.cancelGroupAsync(group).get();
+    }
+
+    private CompletableFuture<Outcome> cancelEntries(long group, long[] keys, long[] sequenceNumbers) {
+        Outcome outcome = new Outcome(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            long sequenceNumber = sequenceNumbers[i];
+            if (sequenceNumber < 0) {
+                this.index.remove(group, key);
+                outcome.missing(key);
+                continue;
+            }
+            if (!this.acquire()) {
+                this.failRemaining(outcome, keys, i);
+                break;
+            }
+            this.call(() -> this.sender.cancelScheduledMessageAsync(sequenceNumber)).whenComplete((v, error) -> {
+                Throwable cause = unwrap(error);
+                if (cause == null || cause instanceof MessageNotFoundException) {
+                    this.index.remove(group, key, sequenceNumber);
+                    if (cause == null) {
+                        this.cancelledCount.increment();
+                        outcome.succeeded(key);
+                    } else {
+                        outcome.missing(key);
+                    }
+                } else {
+                    this.failedCount.increment();
+                    outcome.failed(key, cause);
+                }
+            });
+        }
+        return outcome.future;
+    }
+
+    private boolean acquire() {
+        try {
+            this.callPermits.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void failRemaining(Outcome outcome, long[] keys, int from) {
+        InterruptedException error = new InterruptedException("Interrupted while waiting for the call window.");
+        for (int i = from; i < keys.length; i++) {
+            this.failedCount.increment();
+            outcome.failed(keys[i], error);
+        }
+    }
+
+    private <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        return future.whenComplete((v, error) -> this.callPermits.release());
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * The result of a bulk call: how many keys succeeded, were missing, or failed, and which keys
+     * failed.
+     */
+    public static final class Outcome {
+        private final int count;
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger missing = new AtomicInteger();
+        private final List<Long> failedKeys = new ArrayList<>();
+        private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+        private final CompletableFuture<Outcome> future = new CompletableFuture<>();
+
+        Outcome(int count) {
+            this.count = count;
+            if (count == 0) {
+                this.future.complete(this);
+            }
+        }
+
+        public int getSucceededCount() {
+            return this.succeeded.get();
+        }
+
+        /** Keys that had no scheduled message left to cancel. */
+        public int getMissingCount() {
+            return this.missing.get();
+        }
+
+        public synchronized int getFailedCount() {
+            return this.failedKeys.size();
+        }
+
+        public synchronized long[] getFailedKeys() {
+            return this.failedKeys.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        /** The error of the first failed key, or null. */
+        public Throwable getFirstError() {
+            return this.firstError.get();
+        }
+
+        void succeeded(long key) {
+            this.succeeded.incrementAndGet();
+            this.completed();
+        }
+
+        void missing(long key) {
+            this.missing.incrementAndGet();
+            this.completed();
+        }
+
+        void failed(long key, Throwable error) {
+            synchronized (this) {
+                this.failedKeys.add(key);
+            }
+            this.firstError.compareAndSet(null, unwrap(error));
+            this.completed();
+        }
+
+        private void completed() {
+            if (this.completed.incrementAndGet() == this.count) {
+                this.future.complete(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("succeeded = %d, missing = %d, failed = %d", this.getSucceededCount(), this.getMissingCount(), this.getFailedCount());
+        }
+    }
+}
@@ -0,0 +1,367 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.scheduledmessages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An append-only journal of scheduled and removed entries in memory-mapped segment files.
+ * <p>
+ * A schedule record holds the entry's handle, due time and serialized message; a remove record
+ * holds the handle and the position of its schedule record. A record's length is written after its
+ * content, so a record that was cut short by a crash reads as the end of the journal.
+ * <p>
+ * Each segment counts the schedule records in it that have not been removed, and their bytes. A
+ * segment whose records are all removed is deleted; one that is at most a quarter live is compacted
+ * when a new segment is started: its live schedule records are copied into the newest segment,
+ * each followed by a remove record for the original, and the {@link Owner} is told the new
+ * positions. Before a segment is deleted, its remove records whose schedule records are in an
+ * older segment that is kept are copied as well, so that replaying the journal does not bring
+ * removed entries back. The class is not thread-safe.
+ * <p>
+ * A file that is still mapped cannot be deleted on Windows, and the mapping of a closed channel
+ * only goes away when its buffer is garbage collected. A segment file whose delete fails is
+ * therefore kept in a list, and the delete is tried again each time a new segment is started and
+ * on close. A file that is left over is harmless: everything it holds that is still needed was
+ * copied, so replaying it finds all its records removed, and it is released again.
+ */
+final class ScheduleJournal implements AutoCloseable {
+
+    interface Visitor {
+        /** Called again with a newer position when compaction copied the record. */
+        void scheduled(long handle, long dueMillis, long position);
+
+        void removed(long handle, long position);
+    }
+
+    /** The user of the journal, which knows which schedule records are still needed. */
+    interface Owner {
+        /** Whether the schedule record at the position is the current record of the handle. */
+        boolean isLive(long handle, long position);
+
+        /** Called when compaction has copied the schedule record of a handle to a new position. */
+        void moved(long handle, long position, long newPosition);
+    }
+
+    static final int MIN_SEGMENT_SIZE = 1 << 20;
+    private static final long MAGIC = 0x5342534348454455L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final byte SCHEDULE = 1;
+    private static final byte REMOVE = 2;
+    // length, type, handle, due time or position
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8 + 8;
+    private static final String SUFFIX = ".journal";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Owner owner;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    // released segment files that could not be deleted yet
+    private final List<Path> pendingDeletes = new ArrayList<>();
+    private Segment current;
+    private boolean compacting;
+    private boolean closed;
+
+    ScheduleJournal(Path directory, int segmentSize, Owner owner) throws IOException {
+        if (segmentSize < MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be at least " + MIN_SEGMENT_SIZE + ".");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.owner = owner;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int number = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+                this.segments.put(number, Segment.open(file, number));
+            }
+        } catch (IOException | RuntimeException e) {
+            this.closeSegments();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads all records in order and positions the journal after the last one. Removes of entries
+     * whose segment was deleted are passed on too.
+     */
+    void replay(Visitor visitor) throws IOException {
+        // a remove record can have been copied by a compaction that did not delete the original
+        Set<Long> removed = new HashSet<>();
+        for (Segment segment : this.segments.values()) {
+            MappedByteBuffer buffer = segment.buffer;
+            int offset = HEADER_SIZE;
+            while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length <= 0 || offset + length > buffer.capacity()) {
+                    break;
+                }
+                long handle = buffer.getLong(offset + 5);
+                long value = buffer.getLong(offset + 13);
+                if (buffer.get(offset + 4) == SCHEDULE) {
+                    segment.live++;
+                    segment.liveBytes += length;
+                    visitor.scheduled(handle, value, position(segment.number, offset));
+                } else {
+                    Segment scheduledIn = this.segments.get(segmentOf(value));
+                    if (scheduledIn != null && removed.add(value)) {
+                        scheduledIn.removed(offsetOf(value));
+                    }
+                    visitor.removed(handle, value);
+                }
+                offset += length;
+            }
+            segment.writeOffset = offset;
+        }
+        if (!this.segments.isEmpty()) {
+            this.current = this.segments.lastEntry().getValue();
+        }
+        this.releaseSegments(false);
+    }
+
+    /** @return the position of the record, to read its content with {@link #read} */
+    long appendSchedule(long handle, long dueMillis, byte[] content) throws IOException {
+        int length = RECORD_HEADER_SIZE + content.length;
+        Segment segment = this.reserve(length);
+        int offset = segment.writeOffset;
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.put(offset + 4, SCHEDULE);
+        buffer.putLong(offset + 5, handle);
+        buffer.putLong(offset + 13, dueMillis);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.put(content);
+        buffer.putInt(offset, length);
+        segment.writeOffset += length;
+        segment.live++;
+        segment.liveBytes += length;
+        return position(segment.number, offset);
+    }
+
+    void appendRemove(long handle, long position) throws IOException {
+        this.writeRemove(handle, position);
+        Segment scheduledIn = this.segments.get(segmentOf(position));
+        if (scheduledIn != null && scheduledIn.removed(offsetOf(position)) == 0) {
+            this.releaseSegments(false);
+        }
+    }
+
+    private void writeRemove(long handle, long position) throws IOException {
+        Segment segment = this.reserve(RECORD_HEADER_SIZE);
+        int offset = segment.writeOffset;
+        segment.buffer.put(offset + 4, REMOVE);
+        segment.buffer.putLong(offset + 5, handle);
+        segment.buffer.putLong(offset + 13, position);
+        segment.buffer.putInt(offset, RECORD_HEADER_SIZE);
+        segment.writeOffset += RECORD_HEADER_SIZE;
+    }
+
+    byte[] read(long position) {
+        Segment segment = this.segments.get(segmentOf(position));
+        if (segment == null) {
+            throw new IllegalArgumentException("The journal has no segment for position " + position + ".");
+        }
+        int offset = offsetOf(position);
+        byte[] content = new byte[segment.buffer.getInt(offset) - RECORD_HEADER_SIZE];
+        ByteBuffer view = segment.buffer.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.get(content);
+        return content;
+    }
+
+    int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    /** Forces the records written so far to the storage device. */
+    void flush() {
+        for (Segment segment : this.segments.values()) {
+            segment.buffer.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.flush();
+        this.closeSegments();
+        this.retryDeletes();
+    }
+
+    private Segment reserve(int length) throws IOException {
+        if (this.closed) {
+            throw new IllegalStateException("Operation not allowed after the ScheduleJournal instance is closed.");
+        }
+        if (length > this.segmentSize - HEADER_SIZE) {
+            throw new IllegalArgumentException("A record of " + length + " bytes does not fit into a segment of " + this.segmentSize + " bytes.");
+        }
+        if (this.current == null || this.current.writeOffset + length > this.current.buffer.capacity()) {
+            int number = this.current == null ? 0 : this.current.number + 1;
+            Path file = this.directory.resolve(String.format("%010d%s", number, SUFFIX));
+            this.current = Segment.create(file, number, this.segmentSize);
+            this.segments.put(number, this.current);
+            this.retryDeletes();
+            this.releaseSegments(true);
+        }
+        return this.current;
+    }
+
+    // deletes the segments without live records and, when compact is set, compacts the ones that are
+    // mostly removed; the records copied meanwhile can start new segments, which do not recurse
+    private void releaseSegments(boolean compact) throws IOException {
+        if (this.compacting) {
+            return;
+        }
+        this.compacting = true;
+        try {
+            for (Segment segment : new ArrayList<>(this.segments.values())) {
+                if (segment == this.current) {
+                    break;
+                }
+                if (segment.live == 0 || compact && segment.liveBytes <= this.segmentSize / 4) {
+                    this.release(segment);
+                }
+            }
+        } finally {
+            this.compacting = false;
+        }
+    }
+
+    private void release(Segment segment) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        for (int offset = HEADER_SIZE; offset < segment.writeOffset; ) {
+            int length = buffer.getInt(offset);
+            long handle = buffer.getLong(offset + 5);
+            long value = buffer.getLong(offset + 13);
+            long position = position(segment.number, offset);
+            if (buffer.get(offset + 4) == SCHEDULE) {
+                if (segment.live > 0 && this.owner.isLive(handle, position)) {
+                    long newPosition = this.appendSchedule(handle, value, this.read(position));
+                    this.owner.moved(handle, position, newPosition);
+                    this.writeRemove(handle, position);
+                }
+            } else if (segmentOf(value) != segment.number && this.segments.containsKey(segmentOf(value))) {
+                this.writeRemove(handle, value);
+            }
+            offset += length;
+        }
+        this.segments.remove(segment.number);
+        segment.channel.close();
+        this.delete(segment.file);
+    }
+
+    private void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // still mapped, or otherwise in use; schedule and cancel must not fail because of it
+            this.pendingDeletes.add(file);
+        }
+    }
+
+    private void retryDeletes() {
+        if (this.pendingDeletes.isEmpty()) {
+            return;
+        }
+        List<Path> files = new ArrayList<>(this.pendingDeletes);
+        this.pendingDeletes.clear();
+        for (Path file : files) {
+            this.delete(file);
+        }
+    }
+
+    private void closeSegments() throws IOException {
+        List<IOException> failures = new ArrayList<>();
+        for (Map.Entry<Integer, Segment> entry : this.segments.entrySet()) {
+            try {
+                entry.getValue().channel.close();
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+    }
+
+    static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    private static final class Segment {
+        final Path file;
+        final int number;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writeOffset = HEADER_SIZE;
+        int live;
+        long liveBytes;
+
+        private Segment(Path file, int number, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.number = number;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        // accounts for the removal of the schedule record at the offset; returns the live records left
+        int removed(int offset) {
+            this.liveBytes -= this.buffer.getInt(offset);
+            return --this.live;
+        }
+
+        static Segment create(Path file, int number, int size) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putLong(0, MAGIC);
+                buffer.putInt(8, VERSION);
+                return new Segment(file, number, channel, buffer);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        static Segment open(Path file, int number) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                if (buffer.capacity() < HEADER_SIZE || buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION) {
+                    throw new IllegalArgumentException("The file " + file + " is not a schedule journal segment.");
+                }
+                return new Segment(file, number, channel, buffer);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+}
@@ -6,10 +6,13 @@ package com.microsoft.azure.servicebus.samples.scheduledmessages;
 import com.google.gson.reflect.TypeToken;
 import com.microsoft.azure.servicebus.*;
 import com.microsoft.azure.servicebus.primitives.ConnectionStringBuilder;
+import com.microsoft.azure.servicebus.samples.queuesgettingstarted.HandlerExecutionMode;
 import com.google.gson.Gson;
 
 import static java.nio.charset.StandardCharsets.*;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.time.Clock;
 import java.time.Duration;
 import java.util.*;
@@ -22,6 +25,9 @@ public class ScheduledMessages {
 
     static final Gson GSON = new Gson();
 
+    // the executor that runs the handler callbacks, set with -e on the command line
+    static HandlerExecutionMode executionMode = HandlerExecutionMode.SINGLE_THREAD;
+
     public void run(String connectionString) throws Exception {
 
         QueueClient sendClient;
@@ -31,15 +37,27 @@ public class ScheduledMessages {
         // We set the receive mode to "PeekLock", meaning the message is delivered
         // under a lock and must be acknowledged ("completed") to be removed from the queue
         receiveClient = new QueueClient(new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK);
-        // We are using single thread executor as we are only processing one message at a time
-    	ExecutorService executorService = Executors.newSingleThreadExecutor();
+        // By default we are using single thread executor as we are only processing one message at a time
+    	ExecutorService executorService = executionMode.newExecutor(Runtime.getRuntime().availableProcessors());
         this.initializeReceiver(receiveClient, executorService);
 
         sendClient = new QueueClient(new ConnectionStringBuilder(connectionString, "BasicQueue"), ReceiveMode.PEEKLOCK);
-        this.sendMessagesAsync(sendClient).thenRunAsync(() -> sendClient.closeAsync());
+        this.sendMessagesAsync(sendClient);
+
+        // Schedule a batch of reminders with parallel calls, then cancel the whole batch by its key
+        BulkScheduler bulkScheduler = new BulkScheduler(sendClient);
+        this.scheduleAndCancelReminders(bulkScheduler, 42);
+
+        // Hold more messages on the client instead of the broker; the journal keeps them across restarts
+        ScheduledSendEngine engine = new ScheduledSendEngine(sendClient, Paths.get(System.getProperty("java.io.tmpdir"), "scheduledmessages"));
+        System.out.printf("Restored %d pending messages from the journal\n", engine.getRecoveredCount());
+        this.scheduleMessagesLocally(engine);
+        engine.start();
 
         waitForEnter(150);
 
+        engine.close();
+        sendClient.close();
         receiveClient.close();
         executorService.shutdown();
 
@@ -81,6 +99,49 @@ public class ScheduledMessages {
         return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()]));
     }
 
+    void scheduleAndCancelReminders(BulkScheduler bulkScheduler, long orderBatch) throws Exception {
+        List<Message> reminders = new ArrayList<>();
+        long[] keys = new long[10];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            Message message = new Message(("Reminder " + i + " for order batch " + orderBatch).getBytes(UTF_8));
+            message.setLabel("Reminder");
+            message.setMessageId(orderBatch + "-" + i);
+            message.setScheduledEnqueueTimeUtc(Clock.systemUTC().instant().plus(Duration.ofDays(1).plusMinutes(i)));
+            reminders.add(message);
+        }
+        BulkScheduler.Outcome scheduled = bulkScheduler.schedule(orderBatch, keys, reminders);
+        System.out.printf("Reminders scheduled: %s\n", scheduled);
+        for (long key : keys) {
+            System.out.printf("\tReminder %d: SequenceNumber = %d\n", key, bulkScheduler.getIndex().get(orderBatch, key));
+        }
+
+        // the order batch was cancelled, so are its reminders
+        BulkScheduler.Outcome cancelled = bulkScheduler.cancelGroup(orderBatch);
+        System.out.printf("Reminders cancelled: %s\n", cancelled);
+    }
+
+    void scheduleMessagesLocally(ScheduledSendEngine engine) throws IOException {
+        List<HashMap<String, String>> data =
+                GSON.fromJson(
+                        "[" +
+                                "{'name' = 'Lovelace', 'firstName' = 'Ada'}," +
+                                "{'name' = 'Noether', 'firstName' = 'Emmy'}," +
+                                "{'name' = 'Meitner', 'firstName' = 'Lise'}" +
+                                "]",
+                        new TypeToken<List<HashMap<String, String>>>() {}.getType());
+
+        for (int i = 0; i < data.size(); i++) {
+            Message message = new Message(GSON.toJson(data.get(i), Map.class).getBytes(UTF_8));
+            message.setContentType("application/json");
+            message.setLabel("Scientist");
+            message.setMessageId("local-" + i);
+            message.setTimeToLive(Duration.ofMinutes(2));
+            long scheduleId = engine.schedule(message, Clock.systemUTC().instant().plusSeconds(120));
+            System.out.printf("Message scheduled locally: Id = %s, ScheduleId = %d\n", message.getMessageId(), scheduleId);
+        }
+    }
+
     void initializeReceiver(QueueClient receiveClient, ExecutorService executorService) throws Exception {
         // register the RegisterMessageHandler callback
         receiveClient.registerMessageHandler(new IMessageHandler() {
@@ -114,8 +175,8 @@ public class ScheduledMessages {
                       System.out.printf(exceptionPhase + "-" + throwable.getMessage());
                   }
               },
-              // 1 concurrent call, messages are auto-completed, auto-renew duration
-              new MessageHandlerOptions(1, true, Duration.ofMinutes(1)),
+              // 1 concurrent call on a single thread, otherwise 16; messages are auto-completed, auto-renew duration
+              new MessageHandlerOptions(executionMode == HandlerExecutionMode.SINGLE_THREAD ? 1 : 16, true, Duration.ofMinutes(1)),
               executorService);
 
     }
@@ -144,11 +205,15 @@ public class ScheduledMessages {
             // parse connection string from command line
             Options options = new Options();
             options.addOption(new Option("c", true, "Connection string"));
+            options.addOption(new Option("e", true, "Handler execution mode: single_thread, fixed_pool, cached_pool or virtual_threads"));
             CommandLineParser clp = new DefaultParser();
             CommandLine cl = clp.parse(options, args);
             if (cl.getOptionValue("c") != null) {
                 connectionString = cl.getOptionValue("c");
             }
+            if (cl.getOptionValue("e") != null) {
+                executionMode = HandlerExecutionMode.parse(cl.getOptionValue("e"));
+            }
 
             // get overrides from the environment
             String env = System.getenv(SB_SAMPLES_CONNECTIONSTRING);
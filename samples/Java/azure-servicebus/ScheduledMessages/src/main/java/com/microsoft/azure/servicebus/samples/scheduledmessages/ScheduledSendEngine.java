@@ -0,0 +1,507 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.scheduledmessages;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.common.MessageSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Holds scheduled messages on the client and sends them when they come due, instead of scheduling
+ * each of them on the broker.
+ * <p>
+ * A message scheduled on the broker with {@code setScheduledEnqueueTimeUtc} or
+ * {@code scheduleMessageAsync} counts against the entity's quota until it is due, and cancelling it
+ * takes a round trip and its sequence number. This engine keeps pending messages in a
+ * {@link TimingWheel}, so scheduling and cancelling take constant time at any number of pending
+ * messages, and in a memory-mapped {@link ScheduleJournal}, so they survive a restart of the
+ * process. The wheel holds only the due time and the journal position of each message, which the
+ * journal updates when it compacts; the message itself is read back from the journal when it is
+ * sent.
+ * <p>
+ * Once {@link #start} has been called, a timer releases the messages that are due within the send
+ * ahead time every tick and sends them with {@code sendBatchAsync}, in batches of at most
+ * {@code maxBatchCount} messages and 256 KB. With a send ahead time, messages are sent that much
+ * early with their due time as {@code ScheduledEnqueueTimeUtc}, so that the broker activates them on
+ * time. A message whose batch fails keeps its due time, but after a tick with a failed batch no
+ * messages are released for two ticks, and the pause doubles with every further failed tick up to
+ * {@link #MAX_RETRY_DELAY}. A message is removed from the
+ * journal once its batch was acknowledged; one that was sent but not yet removed when the process
+ * stopped is sent again after the restart, with the same {@code MessageId}, so that duplicate
+ * detection can drop it.
+ */
+public class ScheduledSendEngine implements AutoCloseable {
+
+    public static final Duration DEFAULT_TICK_DURATION = Duration.ofMillis(100);
+    public static final int DEFAULT_MAX_BATCH_COUNT = 100;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    public static final Duration MAX_RETRY_DELAY = Duration.ofSeconds(30);
+    // the message size limit of a Standard tier namespace, which also applies to a batch
+    static final int MAX_BATCH_SIZE_IN_BYTES = 256 * 1024;
+
+    private final IMessageSender sender;
+    private final long tickMillis;
+    private final long sendAheadMillis;
+    private final int maxBatchCount;
+    private final ScheduleJournal journal;
+    private final TimingWheel wheel;
+    private final ScheduledExecutorService timer;
+    private final long recoveredCount;
+    private boolean started;
+    private volatile boolean closed;
+    // ticks in a row with a failed batch, and the time before which nothing is released, guarded by this
+    private int failedTickCount;
+    private long retryAtMillis;
+
+    // metrics
+    private final LongAdder scheduledCount = new LongAdder();
+    private final LongAdder cancelledCount = new LongAdder();
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder failedBatchCount = new LongAdder();
+    private final LongAdder unreadableCount = new LongAdder();
+
+    public ScheduledSendEngine(IMessageSender sender, Path journalDirectory) throws IOException {
+        this(sender, journalDirectory, DEFAULT_TICK_DURATION, Duration.ZERO, DEFAULT_MAX_BATCH_COUNT, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the journal in the given directory, or creates it, and restores the messages that were
+     * pending in it.
+     *
+     * @param tickDuration the resolution of due times and the interval of the timer
+     * @param sendAhead how long before their due time messages are sent
+     * @param segmentSize the size of a journal file, which limits the size of a serialized message
+     */
+    public ScheduledSendEngine(IMessageSender sender, Path journalDirectory, Duration tickDuration, Duration sendAhead,
+                               int maxBatchCount, int segmentSize) throws IOException {
+        if (tickDuration.toMillis() <= 0) {
+            throw new IllegalArgumentException("tickDuration must be at least 1 millisecond.");
+        }
+        if (sendAhead.isNegative()) {
+            throw new IllegalArgumentException("sendAhead must not be negative.");
+        }
+        if (maxBatchCount <= 0) {
+            throw new IllegalArgumentException("maxBatchCount must be greater than 0.");
+        }
+        this.sender = sender;
+        this.tickMillis = tickDuration.toMillis();
+        this.sendAheadMillis = sendAhead.toMillis();
+        this.maxBatchCount = maxBatchCount;
+        this.wheel = new TimingWheel(this.tickMillis, System.currentTimeMillis(), 1024);
+        this.journal = new ScheduleJournal(journalDirectory, segmentSize, new ScheduleJournal.Owner() {
+            public boolean isLive(long handle, long position) {
+                return wheel.payloadOf(handle) == position;
+            }
+
+            public void moved(long handle, long position, long newPosition) {
+                wheel.setPayload(handle, newPosition);
+            }
+        });
+        try {
+            int[] newestGeneration = {0};
+            this.journal.replay(new ScheduleJournal.Visitor() {
+                public void scheduled(long handle, long dueMillis, long position) {
+                    if (wheel.payloadOf(handle) >= 0) {
+                        // a copy made by compaction; a remove record for the original follows
+                        wheel.setPayload(handle, position);
+                    } else {
+                        wheel.restore(handle, dueMillis, position);
+                    }
+                    newestGeneration[0] = Math.max(newestGeneration[0], TimingWheel.generationOf(handle) + 1);
+                }
+
+                public void removed(long handle, long position) {
+                    // the entry is unknown if its segment was deleted
+                    if (wheel.payloadOf(handle) == position) {
+                        wheel.remove(handle);
+                    }
+                    newestGeneration[0] = Math.max(newestGeneration[0], TimingWheel.generationOf(handle) + 1);
+                }
+            });
+            this.wheel.endRestore(newestGeneration[0]);
+        } catch (IOException | RuntimeException e) {
+            this.journal.close();
+            throw e;
+        }
+        this.recoveredCount = this.wheel.size();
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "scheduled-send-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Journals the message and holds it until it is due.
+     *
+     * @return the id with which the message can be cancelled
+     */
+    public long schedule(IMessage message, Instant scheduledEnqueueTimeUtc) throws IOException {
+        // the same estimate that batching uses, so that every scheduled message fits into a batch
+        int size = MessageSize.estimate(message);
+        if (size > MAX_BATCH_SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("The message of " + size + " bytes exceeds the maximum message size.");
+        }
+        byte[] content = serialize(message);
+        long dueMillis = toEpochMilli(scheduledEnqueueTimeUtc);
+        synchronized (this) {
+            this.ensureOpen();
+            long scheduleId = this.wheel.add(dueMillis, -1);
+            long position;
+            try {
+                position = this.journal.appendSchedule(scheduleId, dueMillis, content);
+            } catch (IOException | RuntimeException e) {
+                this.wheel.remove(scheduleId);
+                throw e;
+            }
+            this.wheel.setPayload(scheduleId, position);
+            this.scheduledCount.increment();
+            return scheduleId;
+        }
+    }
+
+    /**
+     * Cancels a scheduled message that has not been sent.
+     *
+     * @return false if the message is unknown, was cancelled before, or has been released for sending
+     */
+    public boolean cancel(long scheduleId) throws IOException {
+        synchronized (this) {
+            this.ensureOpen();
+            long position = this.wheel.payloadOf(scheduleId);
+            if (position < 0 || !this.wheel.contains(scheduleId)) {
+                return false;
+            }
+            this.journal.appendRemove(scheduleId, position);
+            this.wheel.remove(scheduleId);
+            this.cancelledCount.increment();
+            return true;
+        }
+    }
+
+    /**
+     * Starts the timer that sends the messages as they come due.
+     */
+    public synchronized void start() {
+        this.ensureOpen();
+        if (!this.started) {
+            this.started = true;
+            this.timer.scheduleWithFixedDelay(() -> {
+                try {
+                    this.releaseDue();
+                } catch (RuntimeException e) {
+                    // an exception would end the timer; the next tick tries again
+                }
+            }, 0, this.tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Messages that are scheduled and have not been released for sending. */
+    public synchronized int getPendingCount() {
+        return this.wheel.size();
+    }
+
+    /** Messages restored from the journal when the engine was opened. */
+    public long getRecoveredCount() {
+        return this.recoveredCount;
+    }
+
+    public long getScheduledCount() {
+        return this.scheduledCount.sum();
+    }
+
+    public long getCancelledCount() {
+        return this.cancelledCount.sum();
+    }
+
+    public long getSentCount() {
+        return this.sentCount.sum();
+    }
+
+    public long getBatchCount() {
+        return this.batchCount.sum();
+    }
+
+    /** Batches that failed and whose messages were retried. */
+    public long getFailedBatchCount() {
+        return this.failedBatchCount.sum();
+    }
+
+    /** Messages dropped because their journal record could not be read back. */
+    public long getUnreadableCount() {
+        return this.unreadableCount.sum();
+    }
+
+    /**
+     * Forces the journal to the storage device. Without it, the journal survives a crash of the
+     * process, but not of the operating system.
+     */
+    public synchronized void flush() {
+        this.ensureOpen();
+        this.journal.flush();
+    }
+
+    /**
+     * Stops the timer and closes the journal. Pending messages stay in the journal and are restored
+     * by the next engine on the same directory.
+     */
+    @Override
+    public void close() throws IOException {
+        this.timer.shutdown();
+        try {
+            this.timer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (!this.closed) {
+                this.closed = true;
+                this.journal.close();
+            }
+        }
+    }
+
+    // one tick: releases what is due, sends it in batches and waits for the batches
+    void releaseDue() {
+        List<Long> handles = new ArrayList<>();
+        List<Long> dues = new ArrayList<>();
+        List<IMessage> messages = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (this.closed || now < this.retryAtMillis) {
+                return;
+            }
+            List<Long> released = new ArrayList<>();
+            List<Long> releasedDues = new ArrayList<>();
+            List<Long> positions = new ArrayList<>();
+            this.wheel.advance(now + this.sendAheadMillis, (handle, dueMillis, position) -> {
+                released.add(handle);
+                releasedDues.add(dueMillis);
+                positions.add(position);
+            });
+            // read once the wheel is consistent again, so that a record that cannot be read only
+            // affects its own entry
+            for (int i = 0; i < released.size(); i++) {
+                long handle = released.get(i);
+                long dueMillis = releasedDues.get(i);
+                IMessage message;
+                try {
+                    message = deserialize(this.journal.read(positions.get(i)), this.sendAheadMillis > 0 ? Instant.ofEpochMilli(dueMillis) : null);
+                } catch (RuntimeException e) {
+                    // a damaged record can never be sent; drop it rather than fail every tick
+                    this.unreadableCount.increment();
+                    this.removeFromJournal(handle);
+                    this.wheel.free(handle);
+                    continue;
+                }
+                handles.add(handle);
+                dues.add(dueMillis);
+                messages.add(message);
+            }
+        }
+
+        // read before sending, since a batch can fail synchronously
+        long failedBefore = this.failedBatchCount.sum();
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        int start = 0;
+        int size = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            int messageSize = MessageSize.estimate(messages.get(i));
+            if (i > start && (i - start == this.maxBatchCount || size + messageSize > MAX_BATCH_SIZE_IN_BYTES)) {
+                batches.add(this.sendBatch(handles.subList(start, i), dues.subList(start, i), messages.subList(start, i)));
+                start = i;
+                size = 0;
+            }
+            size += messageSize;
+        }
+        if (start < messages.size()) {
+            int end = messages.size();
+            batches.add(this.sendBatch(handles.subList(start, end), dues.subList(start, end), messages.subList(start, end)));
+        }
+        CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).join();
+        if (batches.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (this.failedBatchCount.sum() == failedBefore) {
+                this.failedTickCount = 0;
+            } else {
+                this.failedTickCount++;
+                long delay = Math.min(MAX_RETRY_DELAY.toMillis(), this.tickMillis << Math.min(this.failedTickCount, 20));
+                this.retryAtMillis = System.currentTimeMillis() + delay;
+            }
+        }
+    }
+
+    private CompletableFuture<Void> sendBatch(List<Long> handles, List<Long> dues, List<IMessage> messages) {
+        CompletableFuture<Void> send;
+        try {
+            send = this.sender.sendBatchAsync(messages);
+        } catch (RuntimeException e) {
+            send = new CompletableFuture<>();
+            send.completeExceptionally(e);
+        }
+        return send.handle((v, error) -> {
+            synchronized (this) {
+                if (this.closed) {
+                    return null;
+                }
+                if (error != null) {
+                    this.failedBatchCount.increment();
+                    // back at its due time, which has passed, so it goes out with the next release
+                    for (int i = 0; i < handles.size(); i++) {
+                        this.wheel.reschedule(handles.get(i), dues.get(i));
+                    }
+                    return null;
+                }
+                this.batchCount.increment();
+                this.sentCount.add(messages.size());
+                for (long handle : handles) {
+                    this.removeFromJournal(handle);
+                    this.wheel.free(handle);
+                }
+                return null;
+            }
+        });
+    }
+
+    // called with the lock held; looks the position up, since compaction may have moved the record
+    private void removeFromJournal(long handle) {
+        try {
+            this.journal.appendRemove(handle, this.wheel.payloadOf(handle));
+        } catch (IOException e) {
+            // the message is sent again after a restart
+        }
+    }
+
+    private void ensureOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("Operation not allowed after the ScheduledSendEngine instance is closed.");
+        }
+    }
+
+    private static long toEpochMilli(Instant instant) {
+        try {
+            return instant.toEpochMilli();
+        } catch (ArithmeticException e) {
+            return instant.isBefore(Instant.EPOCH) ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+    }
+
+    // ---- message serialization
+
+    static byte[] serialize(IMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 + (message.getBody() == null ? 0 : message.getBody().length));
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, message.getMessageId());
+        writeString(out, message.getContentType());
+        writeString(out, message.getLabel());
+        writeString(out, message.getSessionId());
+        writeString(out, message.getPartitionKey());
+        writeString(out, message.getCorrelationId());
+        writeString(out, message.getTo());
+        writeString(out, message.getReplyTo());
+        writeString(out, message.getReplyToSessionId());
+        Duration timeToLive = message.getTimeToLive();
+        out.writeBoolean(timeToLive != null);
+        if (timeToLive != null) {
+            out.writeLong(timeToLive.getSeconds());
+            out.writeInt(timeToLive.getNano());
+        }
+        Map<String, String> properties = message.getProperties();
+        out.writeInt(properties == null ? 0 : properties.size());
+        if (properties != null) {
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                writeString(out, property.getKey());
+                writeString(out, property.getValue());
+            }
+        }
+        byte[] body = message.getBody();
+        out.writeInt(body == null ? -1 : body.length);
+        if (body != null) {
+            out.write(body);
+        }
+        return bytes.toByteArray();
+    }
+
+    static IMessage deserialize(byte[] content, Instant scheduledEnqueueTimeUtc) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            Message message = new Message();
+            message.setMessageId(readString(in));
+            message.setContentType(readString(in));
+            message.setLabel(readString(in));
+            message.setSessionId(readString(in));
+            message.setPartitionKey(readString(in));
+            message.setCorrelationId(readString(in));
+            message.setTo(readString(in));
+            message.setReplyTo(readString(in));
+            message.setReplyToSessionId(readString(in));
+            if (in.readBoolean()) {
+                message.setTimeToLive(Duration.ofSeconds(in.readLong(), in.readInt()));
+            }
+            int propertyCount = in.readInt();
+            Map<String, String> properties = new HashMap<>();
+            for (int i = 0; i < propertyCount; i++) {
+                properties.put(readString(in), readString(in));
+            }
+            message.setProperties(properties);
+            int bodyLength = in.readInt();
+            if (bodyLength >= 0) {
+                byte[] body = new byte[bodyLength];
+                in.readFully(body);
+                message.setBody(body);
+            }
+            if (scheduledEnqueueTimeUtc != null) {
+                message.setScheduledEnqueueTimeUtc(scheduledEnqueueTimeUtc);
+            }
+            return message;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
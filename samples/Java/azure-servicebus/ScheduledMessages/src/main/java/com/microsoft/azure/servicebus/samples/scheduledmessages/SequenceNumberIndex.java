@@ -0,0 +1,342 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.scheduledmessages;
+
+import java.util.Arrays;
+
+/**
+ * Maps business keys of scheduled messages to the sequence numbers the broker assigned to them.
+ * <p>
+ * A key is a pair of {@code long}s: a group, such as an order batch, and a key within the group,
+ * such as a reminder. Every entry holds its group, key, sequence number and scheduled time in
+ * primitive arrays and is found through an open-addressing hash table of {@code int}s, about 48
+ * bytes per entry and no object. The entries of a group are linked, so all of them are listed
+ * without a scan of the index. Removing an entry shifts the following entries of its probe
+ * sequence back, so the table never fills with deleted markers. The class is thread-safe.
+ */
+public final class SequenceNumberIndex {
+
+    public interface EntryConsumer {
+        void accept(long key, long sequenceNumber, long scheduledMillis);
+    }
+
+    private static final int NONE = -1;
+
+    // entries
+    private long[] groups;
+    private long[] keys;
+    private long[] sequenceNumbers;
+    private long[] scheduledMillis;
+    private int[] groupNext;
+    private int[] groupPrevious;
+    private int highWater;
+    private int freeHead = NONE;
+    private int size;
+
+    // (group, key) to entry, and group to its first entry; NONE marks an empty slot
+    private int[] entrySlots;
+    private long[] groupSlotKeys;
+    private int[] groupSlotHeads;
+    private int[] groupSlotCounts;
+    private int groupCount;
+
+    public SequenceNumberIndex() {
+        this(1024);
+    }
+
+    public SequenceNumberIndex(int initialCapacity) {
+        int capacity = Math.max(16, initialCapacity);
+        this.groups = new long[capacity];
+        this.keys = new long[capacity];
+        this.sequenceNumbers = new long[capacity];
+        this.scheduledMillis = new long[capacity];
+        this.groupNext = new int[capacity];
+        this.groupPrevious = new int[capacity];
+        this.entrySlots = newSlots(tableSize(capacity));
+        this.groupSlotKeys = new long[16];
+        this.groupSlotHeads = newSlots(16);
+        this.groupSlotCounts = new int[16];
+    }
+
+    public synchronized int size() {
+        return this.size;
+    }
+
+    public synchronized int groupCount() {
+        return this.groupCount;
+    }
+
+    public synchronized int groupSize(long group) {
+        int slot = this.findGroup(group);
+        return this.groupSlotHeads[slot] == NONE ? 0 : this.groupSlotCounts[slot];
+    }
+
+    /**
+     * @return the sequence number of the key, or -1
+     */
+    public synchronized long get(long group, long key) {
+        int entry = this.entrySlots[this.findEntry(group, key)];
+        return entry == NONE ? -1 : this.sequenceNumbers[entry];
+    }
+
+    /**
+     * @return the sequence number the key had before, or -1
+     */
+    public synchronized long put(long group, long key, long sequenceNumber, long scheduledMillis) {
+        int slot = this.findEntry(group, key);
+        int entry = this.entrySlots[slot];
+        if (entry != NONE) {
+            long previous = this.sequenceNumbers[entry];
+            this.sequenceNumbers[entry] = sequenceNumber;
+            this.scheduledMillis[entry] = scheduledMillis;
+            return previous;
+        }
+        if (this.freeHead != NONE) {
+            entry = this.freeHead;
+            this.freeHead = this.groupNext[entry];
+        } else {
+            entry = this.highWater++;
+            this.ensureCapacity(this.highWater);
+        }
+        this.groups[entry] = group;
+        this.keys[entry] = key;
+        this.sequenceNumbers[entry] = sequenceNumber;
+        this.scheduledMillis[entry] = scheduledMillis;
+        this.linkToGroup(entry);
+        this.size++;
+        if (this.size * 2 > this.entrySlots.length) {
+            this.rehashEntries(this.entrySlots.length * 2);
+        } else {
+            this.entrySlots[slot] = entry;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the sequence number of the removed key, or -1
+     */
+    public synchronized long remove(long group, long key) {
+        int slot = this.findEntry(group, key);
+        int entry = this.entrySlots[slot];
+        if (entry == NONE) {
+            return -1;
+        }
+        long sequenceNumber = this.sequenceNumbers[entry];
+        this.removeEntry(slot, entry);
+        return sequenceNumber;
+    }
+
+    /**
+     * Removes the key only if it still maps to the given sequence number.
+     */
+    public synchronized boolean remove(long group, long key, long sequenceNumber) {
+        int slot = this.findEntry(group, key);
+        int entry = this.entrySlots[slot];
+        if (entry == NONE || this.sequenceNumbers[entry] != sequenceNumber) {
+            return false;
+        }
+        this.removeEntry(slot, entry);
+        return true;
+    }
+
+    /**
+     * Passes the entries of the group to the consumer, which must not modify the index.
+     */
+    public synchronized void forEachInGroup(long group, EntryConsumer consumer) {
+        int slot = this.findGroup(group);
+        for (int entry = this.groupSlotHeads[slot]; entry != NONE; entry = this.groupNext[entry]) {
+            consumer.accept(this.keys[entry], this.sequenceNumbers[entry], this.scheduledMillis[entry]);
+        }
+    }
+
+    /**
+     * Removes the entries scheduled at or before the given time, whose messages the broker has
+     * enqueued and which can no longer be cancelled.
+     *
+     * @return the number of removed entries
+     */
+    public synchronized int removeScheduledBefore(long nowMillis) {
+        int removed = 0;
+        for (int entry = 0; entry < this.highWater; entry++) {
+            if (this.isUsed(entry) && this.scheduledMillis[entry] <= nowMillis) {
+                this.removeEntry(this.findEntry(this.groups[entry], this.keys[entry]), entry);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    // ---- entries
+
+    private boolean isUsed(int entry) {
+        // free entries are unlinked from their group and point at themselves
+        return this.groupPrevious[entry] != entry;
+    }
+
+    private void removeEntry(int slot, int entry) {
+        this.unlinkFromGroup(entry);
+        this.groupPrevious[entry] = entry;
+        this.groupNext[entry] = this.freeHead;
+        this.freeHead = entry;
+        this.size--;
+        // backward shift: move later entries of the probe sequence into the hole
+        int mask = this.entrySlots.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; this.entrySlots[next] != NONE; next = (next + 1) & mask) {
+            int moved = this.entrySlots[next];
+            int home = hash(this.groups[moved], this.keys[moved]) & mask;
+            // the entry may move if its home slot is not cyclically between the hole and its slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.entrySlots[hole] = moved;
+                hole = next;
+            }
+        }
+        this.entrySlots[hole] = NONE;
+    }
+
+    private int findEntry(long group, long key) {
+        int mask = this.entrySlots.length - 1;
+        for (int slot = hash(group, key) & mask; ; slot = (slot + 1) & mask) {
+            int entry = this.entrySlots[slot];
+            if (entry == NONE || (this.groups[entry] == group && this.keys[entry] == key)) {
+                return slot;
+            }
+        }
+    }
+
+    private void rehashEntries(int tableSize) {
+        this.entrySlots = newSlots(tableSize);
+        int mask = tableSize - 1;
+        for (int entry = 0; entry < this.highWater; entry++) {
+            if (this.isUsed(entry)) {
+                int slot = hash(this.groups[entry], this.keys[entry]) & mask;
+                while (this.entrySlots[slot] != NONE) {
+                    slot = (slot + 1) & mask;
+                }
+                this.entrySlots[slot] = entry;
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= this.groups.length) {
+            return;
+        }
+        int grown = Math.max(capacity, this.groups.length + (this.groups.length >> 1));
+        this.groups = Arrays.copyOf(this.groups, grown);
+        this.keys = Arrays.copyOf(this.keys, grown);
+        this.sequenceNumbers = Arrays.copyOf(this.sequenceNumbers, grown);
+        this.scheduledMillis = Arrays.copyOf(this.scheduledMillis, grown);
+        this.groupNext = Arrays.copyOf(this.groupNext, grown);
+        this.groupPrevious = Arrays.copyOf(this.groupPrevious, grown);
+    }
+
+    // ---- groups
+
+    private void linkToGroup(int entry) {
+        int slot = this.findGroup(this.groups[entry]);
+        if (this.groupSlotHeads[slot] == NONE) {
+            this.groupSlotKeys[slot] = this.groups[entry];
+            this.groupSlotCounts[slot] = 0;
+            this.groupCount++;
+        }
+        int head = this.groupSlotHeads[slot];
+        this.groupNext[entry] = head;
+        this.groupPrevious[entry] = NONE;
+        if (head != NONE) {
+            this.groupPrevious[head] = entry;
+        }
+        this.groupSlotHeads[slot] = entry;
+        this.groupSlotCounts[slot]++;
+        if (this.groupCount * 2 > this.groupSlotHeads.length) {
+            this.rehashGroups(this.groupSlotHeads.length * 2);
+        }
+    }
+
+    private void unlinkFromGroup(int entry) {
+        int slot = this.findGroup(this.groups[entry]);
+        int before = this.groupPrevious[entry];
+        int after = this.groupNext[entry];
+        if (before == NONE) {
+            this.groupSlotHeads[slot] = after;
+        } else {
+            this.groupNext[before] = after;
+        }
+        if (after != NONE) {
+            this.groupPrevious[after] = before;
+        }
+        if (--this.groupSlotCounts[slot] == 0) {
+            this.removeGroupSlot(slot);
+        }
+    }
+
+    private void removeGroupSlot(int slot) {
+        this.groupCount--;
+        int mask = this.groupSlotHeads.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; this.groupSlotHeads[next] != NONE; next = (next + 1) & mask) {
+            int home = mix(this.groupSlotKeys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                this.groupSlotKeys[hole] = this.groupSlotKeys[next];
+                this.groupSlotHeads[hole] = this.groupSlotHeads[next];
+                this.groupSlotCounts[hole] = this.groupSlotCounts[next];
+                hole = next;
+            }
+        }
+        this.groupSlotHeads[hole] = NONE;
+    }
+
+    private int findGroup(long group) {
+        int mask = this.groupSlotHeads.length - 1;
+        for (int slot = mix(group) & mask; ; slot = (slot + 1) & mask) {
+            if (this.groupSlotHeads[slot] == NONE || this.groupSlotKeys[slot] == group) {
+                return slot;
+            }
+        }
+    }
+
+    private void rehashGroups(int tableSize) {
+        long[] oldKeys = this.groupSlotKeys;
+        int[] oldHeads = this.groupSlotHeads;
+        int[] oldCounts = this.groupSlotCounts;
+        this.groupSlotKeys = new long[tableSize];
+        this.groupSlotHeads = newSlots(tableSize);
+        this.groupSlotCounts = new int[tableSize];
+        int mask = tableSize - 1;
+        for (int i = 0; i < oldHeads.length; i++) {
+            if (oldHeads[i] != NONE) {
+                int slot = mix(oldKeys[i]) & mask;
+                while (this.groupSlotHeads[slot] != NONE) {
+                    slot = (slot + 1) & mask;
+                }
+                this.groupSlotKeys[slot] = oldKeys[i];
+                this.groupSlotHeads[slot] = oldHeads[i];
+                this.groupSlotCounts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    // ---- hashing
+
+    private static int[] newSlots(int size) {
+        int[] slots = new int[size];
+        Arrays.fill(slots, NONE);
+        return slots;
+    }
+
+    private static int tableSize(int capacity) {
+        return Integer.highestOneBit(capacity - 1) << 2;
+    }
+
+    private static int hash(long group, long key) {
+        return mix(group * 0x9e3779b97f4a7c15L + key);
+    }
+
+    private static int mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+}
@@ -0,0 +1,293 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.scheduledmessages;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchical timing wheel of four levels of 256 slots over entries held in primitive arrays.
+ * <p>
+ * An entry is a due time and a payload, identified by a handle that combines its array index with
+ * a generation, so that a handle of a removed entry does not match the entry that reuses the index.
+ * Level 0 holds the entries due within 256 ticks, one slot per tick; each higher level covers 256
+ * times the span of the level below. When the wheel reaches the start of a slot of a higher level,
+ * that slot's entries move down, so an entry moves at most three times. Each slot is a doubly
+ * linked list threaded through the arrays, so adding and removing an entry take constant time and
+ * allocate nothing once the arrays have grown.
+ * <p>
+ * Entries that come due are released: they keep their handle until they are {@link #free}d or
+ * {@link #reschedule}d. The class is not thread-safe.
+ */
+final class TimingWheel {
+
+    // must not modify the wheel
+    interface ReleaseConsumer {
+        void released(long handle, long dueMillis, long payload);
+    }
+
+    static final int WHEEL_BITS = 8;
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    static final int LEVELS = 4;
+    private static final int NONE = -1;
+    // bucket of an entry that is not in a slot
+    private static final int FREE = -1;
+    private static final int RELEASED = -2;
+
+    private final long tickMillis;
+    private final int[] heads = new int[LEVELS * WHEEL_SIZE];
+    private long currentTick;
+    private long[] dueMillis;
+    private long[] payloads;
+    private int[] next;
+    private int[] previous;
+    private int[] buckets;
+    private int[] generations;
+    private int highWater;
+    private int freeHead = NONE;
+    private int size;
+
+    TimingWheel(long tickMillis, long nowMillis, int initialCapacity) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        Arrays.fill(this.heads, NONE);
+        int capacity = Math.max(16, initialCapacity);
+        this.dueMillis = new long[capacity];
+        this.payloads = new long[capacity];
+        this.next = new int[capacity];
+        this.previous = new int[capacity];
+        this.buckets = new int[capacity];
+        this.generations = new int[capacity];
+    }
+
+    /** Entries in the wheel, not counting released ones. */
+    int size() {
+        return this.size;
+    }
+
+    long add(long dueMillis, long payload) {
+        int index;
+        if (this.freeHead != NONE) {
+            index = this.freeHead;
+            this.freeHead = this.next[index];
+        } else {
+            index = this.highWater++;
+            this.ensureCapacity(index + 1);
+        }
+        this.dueMillis[index] = dueMillis;
+        this.payloads[index] = payload;
+        this.insert(index);
+        this.size++;
+        return handle(this.generations[index], index);
+    }
+
+    /**
+     * Adds an entry under the handle it had before, while the wheel is rebuilt from a journal.
+     * {@link #endRestore} must follow the last call.
+     */
+    void restore(long handle, long dueMillis, long payload) {
+        int index = indexOf(handle);
+        this.ensureCapacity(index + 1);
+        if (index >= this.highWater) {
+            for (int i = this.highWater; i < index; i++) {
+                this.buckets[i] = FREE;
+            }
+            this.highWater = index + 1;
+        } else if (this.buckets[index] != FREE) {
+            throw new IllegalStateException("The handle " + handle + " is restored twice.");
+        }
+        this.generations[index] = generationOf(handle);
+        this.dueMillis[index] = dueMillis;
+        this.payloads[index] = payload;
+        this.insert(index);
+        this.size++;
+    }
+
+    /**
+     * @param minGeneration the generation after the newest handle that is known but not restored
+     */
+    void endRestore(int minGeneration) {
+        // unused indexes get a newer generation than any handle given out before the restart, so
+        // that no such handle matches the entries that reuse them
+        int generation = minGeneration;
+        for (int i = 0; i < this.highWater; i++) {
+            if (this.buckets[i] != FREE) {
+                generation = Math.max(generation, this.generations[i] + 1);
+            }
+        }
+        this.freeHead = NONE;
+        for (int i = this.highWater - 1; i >= 0; i--) {
+            if (this.buckets[i] == FREE) {
+                this.generations[i] = generation;
+                this.next[i] = this.freeHead;
+                this.freeHead = i;
+            }
+        }
+    }
+
+    boolean contains(long handle) {
+        int index = this.validIndex(handle);
+        return index != NONE && this.buckets[index] >= 0;
+    }
+
+    long payloadOf(long handle) {
+        int index = this.validIndex(handle);
+        return index == NONE ? -1 : this.payloads[index];
+    }
+
+    void setPayload(long handle, long payload) {
+        int index = this.validIndex(handle);
+        if (index != NONE) {
+            this.payloads[index] = payload;
+        }
+    }
+
+    /**
+     * Removes an entry that has not been released.
+     *
+     * @return the entry's payload, or -1 if the handle is unknown or the entry was released
+     */
+    long remove(long handle) {
+        int index = this.validIndex(handle);
+        if (index == NONE || this.buckets[index] < 0) {
+            return -1;
+        }
+        this.unlink(index);
+        this.size--;
+        long payload = this.payloads[index];
+        this.release(index);
+        return payload;
+    }
+
+    /** Frees a released entry. */
+    void free(long handle) {
+        int index = this.validIndex(handle);
+        if (index != NONE && this.buckets[index] == RELEASED) {
+            this.release(index);
+        }
+    }
+
+    /** Puts a released entry back into the wheel with a new due time. */
+    void reschedule(long handle, long dueMillis) {
+        int index = this.validIndex(handle);
+        if (index != NONE && this.buckets[index] == RELEASED) {
+            this.dueMillis[index] = dueMillis;
+            this.insert(index);
+            this.size++;
+        }
+    }
+
+    /**
+     * Moves the wheel up to the tick of the given time and releases the entries due by then.
+     *
+     * @return the number of released entries
+     */
+    int advance(long nowMillis, ReleaseConsumer consumer) {
+        long nowTick = nowMillis / this.tickMillis;
+        int released = 0;
+        for (; this.currentTick <= nowTick; this.currentTick++) {
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((this.currentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                    this.cascade(level * WHEEL_SIZE + (int) ((this.currentTick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1)));
+                }
+            }
+            int bucket = (int) (this.currentTick & (WHEEL_SIZE - 1));
+            for (int index = this.heads[bucket]; index != NONE; ) {
+                int following = this.next[index];
+                this.buckets[index] = RELEASED;
+                this.size--;
+                released++;
+                consumer.released(handle(this.generations[index], index), this.dueMillis[index], this.payloads[index]);
+                index = following;
+            }
+            this.heads[bucket] = NONE;
+            // while the wheel is empty, a gap in time needs no walk over its ticks
+            if (this.size == 0 && this.currentTick < nowTick) {
+                this.currentTick = nowTick - 1;
+            }
+        }
+        return released;
+    }
+
+    private void cascade(int bucket) {
+        int index = this.heads[bucket];
+        this.heads[bucket] = NONE;
+        while (index != NONE) {
+            int following = this.next[index];
+            this.insert(index);
+            index = following;
+        }
+    }
+
+    private void insert(int index) {
+        long tick = Math.max(this.dueMillis[index] / this.tickMillis, this.currentTick);
+        long delta = tick - this.currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        int bucket = level * WHEEL_SIZE + (int) ((tick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1));
+        int head = this.heads[bucket];
+        this.next[index] = head;
+        this.previous[index] = NONE;
+        if (head != NONE) {
+            this.previous[head] = index;
+        }
+        this.heads[bucket] = index;
+        this.buckets[index] = bucket;
+    }
+
+    private void unlink(int index) {
+        int bucket = this.buckets[index];
+        int before = this.previous[index];
+        int after = this.next[index];
+        if (before == NONE) {
+            this.heads[bucket] = after;
+        } else {
+            this.next[before] = after;
+        }
+        if (after != NONE) {
+            this.previous[after] = before;
+        }
+    }
+
+    private void release(int index) {
+        this.buckets[index] = FREE;
+        this.generations[index]++;
+        this.next[index] = this.freeHead;
+        this.freeHead = index;
+    }
+
+    private int validIndex(long handle) {
+        int index = indexOf(handle);
+        if (index < 0 || index >= this.highWater || this.generations[index] != generationOf(handle) || this.buckets[index] == FREE) {
+            return NONE;
+        }
+        return index;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= this.dueMillis.length) {
+            return;
+        }
+        int grown = Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, this.dueMillis.length + (this.dueMillis.length >> 1)));
+        this.dueMillis = Arrays.copyOf(this.dueMillis, grown);
+        this.payloads = Arrays.copyOf(this.payloads, grown);
+        this.next = Arrays.copyOf(this.next, grown);
+        this.previous = Arrays.copyOf(this.previous, grown);
+        this.buckets = Arrays.copyOf(this.buckets, grown);
+        this.generations = Arrays.copyOf(this.generations, grown);
+    }
+
+    static long handle(int generation, int index) {
+        return ((long) generation << 32) | index;
+    }
+
+    static int indexOf(long handle) {
+        return (int) handle;
+    }
+
+    static int generationOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+}
@@ -0,0 +1,114 @@
+package com.microsoft.azure.servicebus.samples.scheduledmessages;
+
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class BulkSchedulerTest {
+
+    private ServiceBusEmulator emulator;
+    private IMessageSender sender;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        emulator.setRoundTripLatency(Duration.ofMillis(20));
+        sender = emulator.createMessageSender("BasicQueue");
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void schedulesAndCancelsAGroupInParallel() throws Exception {
+        BulkScheduler scheduler = new BulkScheduler(sender, 10);
+        long start = System.nanoTime();
+        BulkScheduler.Outcome scheduled = scheduler.schedule(1, keys(50), reminders(50, Instant.now().plusSeconds(3600)));
+        // 50 calls through a window of 10 take 5 round trips rather than 50
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        Assert.assertEquals(50, scheduled.getSucceededCount());
+        scheduler.schedule(2, keys(5), reminders(5, Instant.now().plusSeconds(3600)));
+        Assert.assertEquals(55, emulator.getEntity("BasicQueue").getScheduledMessageCount());
+        Assert.assertEquals(50, scheduler.getIndex().groupSize(1));
+
+        BulkScheduler.Outcome cancelled = scheduler.cancelGroup(1);
+        Assert.assertEquals(50, cancelled.getSucceededCount());
+        Assert.assertEquals(0, cancelled.getFailedCount());
+        Assert.assertEquals(5, emulator.getEntity("BasicQueue").getScheduledMessageCount());
+        Assert.assertEquals(0, scheduler.getIndex().groupSize(1));
+        Assert.assertEquals(5, scheduler.getIndex().size());
+        Assert.assertEquals(0, scheduler.getCallsInFlight());
+    }
+
+    @Test
+    public void windowBoundsCallsInFlight() throws Exception {
+        BulkScheduler scheduler = new BulkScheduler(sender, 4);
+        CompletableFuture<BulkScheduler.Outcome> outcome = scheduler.scheduleAsync(1, keys(20), reminders(20, Instant.now().plusSeconds(3600)));
+        Assert.assertTrue(scheduler.getCallsInFlight() <= 4);
+        Assert.assertEquals(20, outcome.get(5, TimeUnit.SECONDS).getSucceededCount());
+    }
+
+    @Test
+    public void enqueuedAndUnknownMessagesCountAsMissing() throws Exception {
+        BulkScheduler scheduler = new BulkScheduler(sender);
+        scheduler.schedule(1, keys(4), reminders(4, Instant.now().plusSeconds(3600)));
+        // cancelled behind the scheduler's back
+        sender.cancelScheduledMessage(scheduler.getIndex().get(1, 0));
+
+        BulkScheduler.Outcome cancelled = scheduler.cancelAsync(1, new long[]{0, 1, 99}).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, cancelled.getSucceededCount());
+        Assert.assertEquals(2, cancelled.getMissingCount());
+        Assert.assertEquals(0, cancelled.getFailedCount());
+        Assert.assertEquals(2, scheduler.getIndex().groupSize(1));
+
+        scheduler.schedule(2, keys(3), reminders(3, Instant.now().plusMillis(50)));
+        Thread.sleep(200);
+        BulkScheduler.Outcome late = scheduler.cancelGroup(2);
+        Assert.assertEquals(3, late.getMissingCount());
+        Assert.assertEquals(3, emulator.getEntity("BasicQueue").getActiveMessageCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void messagesNeedAScheduledTime() {
+        List<Message> messages = new ArrayList<>();
+        messages.add(new Message("reminder"));
+        new BulkScheduler(sender).scheduleAsync(1, new long[]{1}, messages);
+    }
+
+    @Test
+    public void sampleSchedulesAndCancelsReminders() throws Exception {
+        new ScheduledMessages().scheduleAndCancelReminders(new BulkScheduler(sender), 42);
+        Assert.assertEquals(0, emulator.getEntity("BasicQueue").getScheduledMessageCount());
+    }
+
+    private static long[] keys(int count) {
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = i;
+        }
+        return keys;
+    }
+
+    private static List<Message> reminders(int count, Instant due) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message("reminder " + i);
+            message.setScheduledEnqueueTimeUtc(due);
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,245 @@
+package com.microsoft.azure.servicebus.samples.scheduledmessages;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.IMessageReceiver;
+import com.microsoft.azure.servicebus.IMessageSender;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.ReceiveMode;
+import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+import com.microsoft.azure.servicebus.samples.emulator.ServiceBusEmulator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class ScheduledSendEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ServiceBusEmulator emulator;
+    private IMessageSender sender;
+
+    @Before
+    public void setUp() {
+        emulator = new ServiceBusEmulator();
+        sender = emulator.createMessageSender("BasicQueue");
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void sendsMessagesInBatchesWhenTheyAreDue() throws Exception {
+        try (ScheduledSendEngine engine = newEngine(folder.getRoot().toPath())) {
+            Instant due = Instant.now().plusMillis(300);
+            for (int i = 0; i < 250; i++) {
+                Message message = new Message(("Einstein " + i).getBytes(UTF_8));
+                message.setLabel("Scientist");
+                message.setContentType("application/json");
+                message.getProperties().put("index", Integer.toString(i));
+                engine.schedule(message, due);
+            }
+            engine.start();
+            Thread.sleep(150);
+            Assert.assertEquals(0, emulator.getEntity("BasicQueue").getMessageCount());
+            Assert.assertEquals(250, engine.getPendingCount());
+
+            awaitSent(engine, 250);
+            Assert.assertTrue(Instant.now().isAfter(due));
+            Assert.assertEquals(250, emulator.getEntity("BasicQueue").getMessageCount());
+            Assert.assertEquals(3, engine.getBatchCount());
+            Assert.assertEquals(0, engine.getPendingCount());
+
+            IMessageReceiver receiver = emulator.createMessageReceiver("BasicQueue", ReceiveMode.RECEIVEANDDELETE);
+            IMessage message = receiver.receive(Duration.ofSeconds(1));
+            Assert.assertEquals("Scientist", message.getLabel());
+            Assert.assertEquals("application/json", message.getContentType());
+            Assert.assertEquals("Einstein " + message.getProperties().get("index"), new String(message.getBody(), UTF_8));
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void cancelledMessagesAreNotSent() throws Exception {
+        try (ScheduledSendEngine engine = newEngine(folder.getRoot().toPath())) {
+            List<Long> scheduleIds = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                scheduleIds.add(engine.schedule(new Message("reminder"), Instant.now().plusMillis(200)));
+            }
+            for (int i = 0; i < 10; i += 2) {
+                Assert.assertTrue(engine.cancel(scheduleIds.get(i)));
+            }
+            Assert.assertFalse(engine.cancel(scheduleIds.get(0)));
+            Assert.assertEquals(5, engine.getPendingCount());
+
+            engine.start();
+            awaitSent(engine, 5);
+            Thread.sleep(100);
+            Assert.assertEquals(5, emulator.getEntity("BasicQueue").getMessageCount());
+            // released messages can no longer be cancelled
+            Assert.assertFalse(engine.cancel(scheduleIds.get(1)));
+        }
+    }
+
+    @Test
+    public void restoresPendingMessagesFromTheJournal() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        List<Long> scheduleIds = new ArrayList<>();
+        ScheduledSendEngine engine = newEngine(directory);
+        for (int i = 0; i < 100; i++) {
+            scheduleIds.add(engine.schedule(new Message("later " + i), Instant.now().plus(Duration.ofDays(30))));
+        }
+        for (int i = 0; i < 50; i++) {
+            engine.schedule(new Message("soon " + i), Instant.now().plusMillis(200));
+        }
+        for (int i = 0; i < 10; i++) {
+            engine.cancel(scheduleIds.get(i));
+        }
+        // the engine stops without sending anything, as if the process had ended
+        engine.close();
+
+        try (ScheduledSendEngine restored = newEngine(directory)) {
+            Assert.assertEquals(140, restored.getRecoveredCount());
+            Assert.assertEquals(140, restored.getPendingCount());
+            Assert.assertFalse(restored.cancel(scheduleIds.get(0)));
+            Assert.assertTrue(restored.cancel(scheduleIds.get(10)));
+
+            restored.start();
+            awaitSent(restored, 50);
+            Assert.assertEquals(50, emulator.getEntity("BasicQueue").getMessageCount());
+            Assert.assertEquals(89, restored.getPendingCount());
+        }
+
+        try (ScheduledSendEngine restored = newEngine(directory)) {
+            Assert.assertEquals(89, restored.getRecoveredCount());
+        }
+    }
+
+    @Test
+    public void failedBatchesAreRetriedWithGrowingDelay() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        List<Long> attemptTimes = new CopyOnWriteArrayList<>();
+        IMessageSender failing = (IMessageSender) Proxy.newProxyInstance(IMessageSender.class.getClassLoader(), new Class<?>[]{IMessageSender.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("sendBatchAsync")) {
+                        attemptTimes.add(System.currentTimeMillis());
+                        if (attempts.getAndIncrement() < 3) {
+                            CompletableFuture<Void> failed = new CompletableFuture<>();
+                            failed.completeExceptionally(new ServiceBusException(true, "server busy"));
+                            return failed;
+                        }
+                    }
+                    try {
+                        return method.invoke(sender, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        try (ScheduledSendEngine engine = new ScheduledSendEngine(failing, folder.getRoot().toPath(), Duration.ofMillis(10), Duration.ZERO, 100, 1 << 20)) {
+            engine.schedule(new Message("Einstein"), Instant.now());
+            engine.start();
+
+            awaitSent(engine, 1);
+            Assert.assertEquals(3, engine.getFailedBatchCount());
+            Assert.assertEquals(4, attemptTimes.size());
+            // the retries wait 2, 4 and 8 ticks
+            Assert.assertTrue(attemptTimes.get(1) - attemptTimes.get(0) >= 20);
+            Assert.assertTrue(attemptTimes.get(2) - attemptTimes.get(1) >= 40);
+            Assert.assertTrue(attemptTimes.get(3) - attemptTimes.get(2) >= 80);
+            Assert.assertEquals(1, emulator.getEntity("BasicQueue").getMessageCount());
+        }
+    }
+
+    @Test
+    public void compactsSegmentsBehindALongPendingMessage() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        long farFuture;
+        try (ScheduledSendEngine engine = newEngine(directory)) {
+            farFuture = engine.schedule(new Message("Curie"), Instant.now().plus(Duration.ofDays(1)));
+            engine.start();
+            // 40 segments worth of messages that are sent right away
+            byte[] body = new byte[16 * 1024];
+            for (int i = 0; i < 40 * 64; i++) {
+                engine.schedule(new Message(body), Instant.now());
+                if (i % 256 == 255) {
+                    awaitSent(engine, i + 1);
+                }
+            }
+            awaitSent(engine, 40 * 64);
+            Assert.assertTrue(journalFileCount(directory) <= 3);
+        }
+
+        try (ScheduledSendEngine engine = newEngine(directory)) {
+            Assert.assertEquals(1, engine.getRecoveredCount());
+            Assert.assertTrue(engine.cancel(farFuture));
+            Assert.assertEquals(0, engine.getPendingCount());
+        }
+        try (ScheduledSendEngine engine = newEngine(directory)) {
+            Assert.assertEquals(0, engine.getRecoveredCount());
+        }
+    }
+
+    @Test
+    public void dropsARecordThatCannotBeRead() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (ScheduledSendEngine engine = newEngine(directory)) {
+            engine.schedule(new Message("Bohr"), Instant.now().plusMillis(200));
+            engine.schedule(new Message("Planck"), Instant.now().plusMillis(200));
+            // the message id length of the first record, which now runs past the end of the record
+            try (FileChannel channel = FileChannel.open(directory.resolve("0000000000.journal"), StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.allocate(4).putInt(0, 1_000_000), 16 + 21);
+            }
+            engine.start();
+
+            awaitSent(engine, 1);
+            Assert.assertEquals(1, engine.getUnreadableCount());
+            Assert.assertEquals(0, engine.getPendingCount());
+            Assert.assertEquals(1, emulator.getEntity("BasicQueue").getMessageCount());
+        }
+        try (ScheduledSendEngine engine = newEngine(directory)) {
+            Assert.assertEquals(0, engine.getRecoveredCount());
+        }
+    }
+
+    private static long journalFileCount(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".journal")).count();
+        }
+    }
+
+    private ScheduledSendEngine newEngine(Path directory) throws Exception {
+        return new ScheduledSendEngine(sender, directory, Duration.ofMillis(10), Duration.ZERO, 100, 1 << 20);
+    }
+
+    private static void awaitSent(ScheduledSendEngine engine, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (engine.getSentCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, engine.getSentCount());
+    }
+}
@@ -0,0 +1,62 @@
+package com.microsoft.azure.servicebus.samples.scheduledmessages;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class SequenceNumberIndexTest {
+
+    @Test
+    public void matchesAMapUnderRandomPutsAndRemoves() {
+        SequenceNumberIndex index = new SequenceNumberIndex(16);
+        Map<String, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            long group = random.nextInt(50);
+            long key = random.nextInt(500);
+            String name = group + "/" + key;
+            if (random.nextInt(3) == 0) {
+                Long removed = expected.remove(name);
+                Assert.assertEquals(removed == null ? -1 : removed, index.remove(group, key));
+            } else {
+                Long previous = expected.put(name, (long) i);
+                Assert.assertEquals(previous == null ? -1 : previous, index.put(group, key, i, i));
+            }
+        }
+        Assert.assertEquals(expected.size(), index.size());
+        for (long group = 0; group < 50; group++) {
+            Set<Long> keys = new HashSet<>();
+            long current = group;
+            index.forEachInGroup(group, (key, sequenceNumber, scheduledMillis) -> {
+                Assert.assertTrue(keys.add(key));
+                Assert.assertEquals(expected.get(current + "/" + key).longValue(), sequenceNumber);
+            });
+            Assert.assertEquals(keys.size(), index.groupSize(group));
+            for (long key = 0; key < 500; key++) {
+                Long sequenceNumber = expected.get(group + "/" + key);
+                Assert.assertEquals(sequenceNumber == null ? -1 : sequenceNumber, index.get(group, key));
+            }
+        }
+    }
+
+    @Test
+    public void removesOnlyMatchingSequenceNumbersAndDueEntries() {
+        SequenceNumberIndex index = new SequenceNumberIndex();
+        index.put(7, 1, 100, 1_000);
+        index.put(7, 2, 101, 2_000);
+        index.put(8, 1, 102, 3_000);
+        Assert.assertFalse(index.remove(7, 1, 99));
+        Assert.assertTrue(index.remove(7, 1, 100));
+        Assert.assertEquals(2, index.groupCount());
+
+        Assert.assertEquals(1, index.removeScheduledBefore(2_000));
+        Assert.assertEquals(0, index.groupSize(7));
+        Assert.assertEquals(1, index.groupCount());
+        Assert.assertEquals(102, index.get(8, 1));
+    }
+}
@@ -0,0 +1,59 @@
+package com.microsoft.azure.servicebus.samples.scheduledmessages;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class TimingWheelTest {
+
+    @Test
+    public void releasesEveryEntryInItsTickAcrossAllLevels() {
+        // a tick of 1 millisecond; due times up to 20 million ticks reach the third level
+        TimingWheel wheel = new TimingWheel(1, 0, 16);
+        Random random = new Random(42);
+        Map<Long, Long> dueByHandle = new HashMap<>();
+        for (int i = 0; i < 20_000; i++) {
+            long due = random.nextInt(4) == 0 ? random.nextInt(300) : random.nextInt(20_000_000);
+            dueByHandle.put(wheel.add(due, due), due);
+        }
+        Assert.assertEquals(20_000, wheel.size());
+
+        long[] now = {0};
+        int released = 0;
+        for (now[0] = 0; now[0] <= 20_000_000; now[0] += 1 + random.nextInt(5000)) {
+            released += wheel.advance(now[0], (handle, dueMillis, payload) -> {
+                Assert.assertEquals(dueByHandle.remove(handle).longValue(), dueMillis);
+                Assert.assertEquals(dueMillis, payload);
+                Assert.assertTrue(dueMillis + " released at " + now[0], dueMillis <= now[0]);
+                wheel.free(handle);
+            });
+        }
+        released += wheel.advance(now[0], (handle, dueMillis, payload) -> dueByHandle.remove(handle));
+        Assert.assertEquals(20_000, released);
+        Assert.assertTrue(dueByHandle.isEmpty());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void removedHandlesDoNotMatchReusedEntries() {
+        TimingWheel wheel = new TimingWheel(10, 0, 16);
+        long first = wheel.add(1000, 1);
+        Assert.assertEquals(1, wheel.remove(first));
+        Assert.assertEquals(-1, wheel.remove(first));
+        long second = wheel.add(2000, 2);
+        Assert.assertEquals(TimingWheel.indexOf(first), TimingWheel.indexOf(second));
+        Assert.assertFalse(wheel.contains(first));
+        Assert.assertTrue(wheel.contains(second));
+
+        // a released entry can no longer be removed, but can be put back
+        Assert.assertEquals(1, wheel.advance(2000, (handle, dueMillis, payload) -> Assert.assertEquals(second, handle)));
+        Assert.assertEquals(-1, wheel.remove(second));
+        wheel.reschedule(second, 2500);
+        Assert.assertTrue(wheel.contains(second));
+        Assert.assertEquals(0, wheel.advance(2490, (handle, dueMillis, payload) -> Assert.fail()));
+        Assert.assertEquals(1, wheel.advance(2500, (handle, dueMillis, payload) -> { }));
+    }
+}
@@ -16,6 +16,7 @@ import java.util.concurrent.*;
 import java.util.function.Function;
 
 import com.microsoft.azure.servicebus.primitives.ServiceBusException;
+import com.microsoft.azure.servicebus.samples.deadletterqueue.DeadLetterRepairPipeline;
 import org.apache.commons.cli.*;
 
 public class TimeToLive {
@@ -26,7 +27,7 @@ public class TimeToLive {
 
         IMessageSender sendClient;
         CompletableFuture<Void> receiveTask;
-        CompletableFuture<Void> fixUpTask;
+        CompletableFuture<DeadLetterRepairPipeline.Report> fixUpTask;
 
         // send messages
         sendClient = ClientFactory.createMessageSenderFromConnectionStringBuilder(
@@ -39,7 +40,8 @@ public class TimeToLive {
         ExecutorService executorService = Executors.newCachedThreadPool();
         // start the receiver tasks and the fixup tasks
         receiveTask = this.receiveMessagesAsync(connectionString, "BasicQueue", executorService);
-        fixUpTask = this.pickUpAndFixDeadLetters(connectionString, "BasicQueue", sendClient, executorService);
+        DeadLetterRepairPipeline fixUp = this.pickUpAndFixDeadLetters(connectionString, "BasicQueue", sendClient, executorService);
+        fixUpTask = fixUp.start();
 
         // wait for ENTER or 10 seconds elapsing
         waitForEnter(10);
@@ -50,9 +52,10 @@ public class TimeToLive {
 
         // wait for the tasks to complete
         CompletableFuture.allOf(
-            sendClient.closeAsync(),
             receiveTask.exceptionally(t ->{ if (t instanceof CancellationException) { return null; } throw new RuntimeException(t);}),
-            fixUpTask.exceptionally(t ->{if (t instanceof CancellationException) { return null; } throw new RuntimeException(t);})
+            // cancelling stops the pipeline, but its lanes may still be sending with sendClient,
+            // so it is closed only once the last lane is done
+            fixUp.getTermination().handle((report, t) -> null).thenCompose(v -> sendClient.closeAsync())
         ).join();
         
         executorService.shutdown();
@@ -148,54 +151,47 @@ public class TimeToLive {
         return running;
     }
 
-    CompletableFuture pickUpAndFixDeadLetters(String connectionString, String queueName, IMessageSender resubmitSender, ExecutorService executorService) throws Exception {
-        CompletableFuture running = new CompletableFuture();
-        QueueClient receiver = new QueueClient(new ConnectionStringBuilder(connectionString, "BasicQueue/$deadletterqueue"), ReceiveMode.PEEKLOCK);
-
-        running.whenComplete((r, t) -> {
+    DeadLetterRepairPipeline pickUpAndFixDeadLetters(String connectionString, String queueName, IMessageSender resubmitSender, ExecutorService executorService) throws Exception {
+        IMessageReceiver receiver = ClientFactory.createMessageReceiverFromConnectionStringBuilder(new ConnectionStringBuilder(connectionString, "BasicQueue/$deadletterqueue"), ReceiveMode.PEEKLOCK);
+
+        // expired messages are resubmitted in batches: 4 lanes receive up to 100 messages each,
+        // fix them in parallel, resend them with sendBatchAsync and complete them
+        DeadLetterRepairPipeline pipeline = new DeadLetterRepairPipeline(
+                receiver,
+                resubmitSender,
+                message -> {
+                    System.out.printf(
+                            "\n\t\tFixing: \n\t\t\tMessageId = %s, \n\t\t\tSequenceNumber = %s, \n\t\t\tLabel = %s\n",
+                            message.getMessageId(),
+                            message.getSequenceNumber(),
+                            message.getLabel());
+                    IMessage resubmitMessage = new Message(message.getBody());
+                    resubmitMessage.setMessageId(message.getMessageId());
+                    resubmitMessage.setLabel(message.getLabel());
+                    resubmitMessage.setContentType(message.getContentType());
+                    resubmitMessage.setTimeToLive(Duration.ofMinutes(2));
+                    return resubmitMessage;
+                },
+                // the receive loop moves the expired messages into the dead-letter queue as it
+                // comes across them, so the lanes keep waiting for more of them, up to 10 seconds
+                // per receive, until the sample stops the pipeline
+                executorService, 100, 4, Duration.ofSeconds(10), 0);
+        pipeline.setRunUntilStopped(true);
+
+        // the report is printed and the receiver closed when the last lane is done, also after a cancel
+        pipeline.getTermination().whenComplete((report, t) -> {
+            if (report != null) {
+                System.out.printf("\n\t\tRepair done: %s\n", report);
+            } else {
+                System.out.printf("\n\t\tRepair failed: %s\n", t);
+            }
             try {
                 receiver.close();
             } catch (ServiceBusException e) {
                 System.out.printf(e.getMessage());
             }
         });
-
-        // register the RegisterMessageHandler callback
-        receiver.registerMessageHandler(
-                new IMessageHandler() {
-                    // callback invoked when the message handler loop has obtained a message
-                    public CompletableFuture<Void> onMessageAsync(IMessage message) {
-                        try {
-                            IMessage resubmitMessage = new Message(message.getBody());
-                            System.out.printf(
-                                    "\n\t\tFixing: \n\t\t\tMessageId = %s, \n\t\t\tSequenceNumber = %s, \n\t\t\tLabel = %s\n",
-                                    message.getMessageId(),
-                                    message.getSequenceNumber(),
-                                    message.getLabel());
-                            resubmitMessage.setMessageId(message.getMessageId());
-                            resubmitMessage.setLabel(message.getLabel());
-                            resubmitMessage.setContentType(message.getContentType());
-                            resubmitMessage.setTimeToLive(Duration.ofMinutes(2));
-
-                            resubmitSender.send(resubmitMessage);
-                            return receiver.completeAsync(message.getLockToken());
-                        } catch (Exception e) {
-                            CompletableFuture failure = new CompletableFuture();
-                            failure.completeExceptionally(e);
-                            return failure;
-                        }
-                    }
-
-                    // callback invoked when the message handler has an exception to report
-                    public void notifyException(Throwable throwable, ExceptionPhase exceptionPhase) {
-                        System.out.printf(exceptionPhase + "-" + throwable.getMessage());
-                    }
-                },
-                // 1 concurrent call, messages are auto-completed, auto-renew duration
-                new MessageHandlerOptions(1, false, Duration.ofMinutes(1)),
-                executorService);
-
-        return running;
+        return pipeline;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,123 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.topicfilters;
+
+import java.util.Arrays;
+
+/**
+ * A pattern of the {@code LIKE} operator: {@code %} matches any sequence of characters, {@code _}
+ * matches one character, and the escape character makes the next character a literal. Patterns
+ * that are a literal with {@code %} at the start, the end or both become a plain string
+ * comparison; the rest are matched with a greedy scan that backtracks to the last {@code %}.
+ */
+final class LikePattern {
+
+    private static final byte LITERAL = 0;
+    private static final byte ONE = 1;
+    private static final byte MANY = 2;
+
+    private enum Kind { EXACT, PREFIX, SUFFIX, CONTAINS, GENERAL }
+
+    private final Kind kind;
+    private final String literal;
+    private final char[] chars;
+    private final byte[] kinds;
+
+    private LikePattern(Kind kind, String literal, char[] chars, byte[] kinds) {
+        this.kind = kind;
+        this.literal = literal;
+        this.chars = chars;
+        this.kinds = kinds;
+    }
+
+    /**
+     * @param escape the escape character, or -1
+     */
+    static LikePattern of(String pattern, int escape) {
+        char[] chars = new char[pattern.length()];
+        byte[] kinds = new byte[pattern.length()];
+        int length = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == escape) {
+                if (++i == pattern.length()) {
+                    throw new IllegalArgumentException("LIKE pattern must not end with the escape character: " + pattern);
+                }
+                chars[length] = pattern.charAt(i);
+                kinds[length++] = LITERAL;
+            } else if (c == '%') {
+                // consecutive % match the same as one
+                if (length == 0 || kinds[length - 1] != MANY) {
+                    kinds[length++] = MANY;
+                }
+            } else {
+                chars[length] = c;
+                kinds[length++] = c == '_' ? ONE : LITERAL;
+            }
+        }
+
+        int first = 0;
+        int last = length;
+        boolean leading = length > 0 && kinds[0] == MANY;
+        boolean trailing = length > (leading ? 1 : 0) && kinds[length - 1] == MANY;
+        if (leading) {
+            first++;
+        }
+        if (trailing) {
+            last--;
+        }
+        boolean plain = true;
+        for (int i = first; i < last && plain; i++) {
+            plain = kinds[i] == LITERAL;
+        }
+        if (plain) {
+            String literal = new String(chars, first, last - first);
+            Kind kind = leading && trailing ? Kind.CONTAINS : leading ? Kind.SUFFIX : trailing ? Kind.PREFIX : Kind.EXACT;
+            return new LikePattern(kind, literal, null, null);
+        }
+        return new LikePattern(Kind.GENERAL, null, Arrays.copyOf(chars, length), Arrays.copyOf(kinds, length));
+    }
+
+    boolean matches(String value) {
+        switch (this.kind) {
+            case EXACT:
+                return value.equals(this.literal);
+            case PREFIX:
+                return value.startsWith(this.literal);
+            case SUFFIX:
+                return value.endsWith(this.literal);
+            case CONTAINS:
+                return value.contains(this.literal);
+            default:
+                return this.matchesGeneral(value);
+        }
+    }
+
+    private boolean matchesGeneral(String value) {
+        int p = 0;
+        int v = 0;
+        // where to resume after the last %, or -1
+        int starPattern = -1;
+        int starValue = 0;
+        while (v < value.length()) {
+            if (p < this.kinds.length && this.kinds[p] != MANY
+                    && (this.kinds[p] == ONE || this.chars[p] == value.charAt(v))) {
+                p++;
+                v++;
+            } else if (p < this.kinds.length && this.kinds[p] == MANY) {
+                starPattern = ++p;
+                starValue = v;
+            } else if (starPattern >= 0) {
+                p = starPattern;
+                v = ++starValue;
+            } else {
+                return false;
+            }
+        }
+        while (p < this.kinds.length && this.kinds[p] == MANY) {
+            p++;
+        }
+        return p == this.kinds.length;
+    }
+}
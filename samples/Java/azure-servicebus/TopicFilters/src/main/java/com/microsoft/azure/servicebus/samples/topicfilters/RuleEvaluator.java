@@ -0,0 +1,235 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.topicfilters;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.rules.CorrelationFilter;
+import com.microsoft.azure.servicebus.rules.Filter;
+import com.microsoft.azure.servicebus.rules.RuleAction;
+import com.microsoft.azure.servicebus.rules.RuleDescription;
+import com.microsoft.azure.servicebus.rules.SqlFilter;
+import com.microsoft.azure.servicebus.rules.SqlRuleAction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Evaluates the rules of a subscription on the client, the way the broker applies them to the
+ * messages sent to the topic: a message reaches the subscription if any rule's filter matches,
+ * and the subscription receives one copy per matching rule with that rule's action applied.
+ * <p>
+ * {@link SqlFilter}s, including {@code TrueFilter} and {@code FalseFilter}, and
+ * {@link SqlRuleAction}s are parsed by {@link SqlRuleParser} and compiled into lambdas once, so
+ * evaluating a filter neither parses nor looks up names. {@link CorrelationFilter}s compile into a
+ * chain of equality checks of the properties they set. A rule without a filter matches every
+ * message. {@link #interpretFilter} and {@link #interpretAction} walk the parsed tree for every
+ * message instead; they give the same results and serve as a baseline. Instances are immutable
+ * and thread-safe, but actions modify the message they are applied to.
+ */
+public final class RuleEvaluator {
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Predicate<IMessage>> filters = new ArrayList<>();
+    private final List<Consumer<IMessage>> actions = new ArrayList<>();
+
+    public RuleEvaluator(Collection<RuleDescription> rules) {
+        this(rules, true);
+    }
+
+    private RuleEvaluator(Collection<RuleDescription> rules, boolean compile) {
+        for (RuleDescription rule : rules) {
+            this.names.add(rule.getName());
+            this.filters.add(compile ? compileFilter(rule.getFilter()) : interpretFilter(rule.getFilter()));
+            this.actions.add(compile ? compileAction(rule.getAction()) : interpretAction(rule.getAction()));
+        }
+    }
+
+    /**
+     * An evaluator that walks the parsed rules for every message.
+     */
+    public static RuleEvaluator interpreted(Collection<RuleDescription> rules) {
+        return new RuleEvaluator(rules, false);
+    }
+
+    public static Predicate<IMessage> compileFilter(Filter filter) {
+        if (filter == null) {
+            return message -> true;
+        }
+        if (filter instanceof SqlFilter) {
+            SqlNode.Condition condition = SqlRuleParser.parseFilter(((SqlFilter) filter).getSqlExpression()).compiledCondition();
+            return message -> condition.test(message) == SqlNode.TRUE;
+        }
+        if (filter instanceof CorrelationFilter) {
+            return compileCorrelationFilter((CorrelationFilter) filter);
+        }
+        throw new IllegalArgumentException("Unsupported filter type: " + filter.getClass().getName());
+    }
+
+    public static Predicate<IMessage> interpretFilter(Filter filter) {
+        if (filter == null) {
+            return message -> true;
+        }
+        if (filter instanceof SqlFilter) {
+            SqlNode root = SqlRuleParser.parseFilter(((SqlFilter) filter).getSqlExpression());
+            return message -> SqlNode.truth(root.evaluate(message)) == SqlNode.TRUE;
+        }
+        if (filter instanceof CorrelationFilter) {
+            CorrelationFilter correlation = (CorrelationFilter) filter;
+            return message -> matchesCorrelationFilter(correlation, message);
+        }
+        throw new IllegalArgumentException("Unsupported filter type: " + filter.getClass().getName());
+    }
+
+    /**
+     * @return the action, which does nothing for a rule without a SQL action
+     */
+    public static Consumer<IMessage> compileAction(RuleAction action) {
+        if (!(action instanceof SqlRuleAction)) {
+            return message -> { };
+        }
+        Consumer<IMessage> compiled = null;
+        for (SqlNode.Statement statement : SqlRuleParser.parseAction(((SqlRuleAction) action).getSqlExpression())) {
+            Consumer<IMessage> next = statement.compile();
+            compiled = compiled == null ? next : compiled.andThen(next);
+        }
+        return compiled;
+    }
+
+    public static Consumer<IMessage> interpretAction(RuleAction action) {
+        if (!(action instanceof SqlRuleAction)) {
+            return message -> { };
+        }
+        List<SqlNode.Statement> statements = SqlRuleParser.parseAction(((SqlRuleAction) action).getSqlExpression());
+        return message -> {
+            for (SqlNode.Statement statement : statements) {
+                statement.execute(message);
+            }
+        };
+    }
+
+    /** True if any rule matches the message. */
+    public boolean matches(IMessage message) {
+        for (Predicate<IMessage> filter : this.filters) {
+            if (filter.test(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The names of the rules that match the message. */
+    public List<String> matchingRules(IMessage message) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < this.names.size(); i++) {
+            if (this.filters.get(i).test(message)) {
+                names.add(this.names.get(i));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The messages the subscription would receive: a copy of the message for each matching rule,
+     * with the rule's action applied to it. The message itself is not modified. Copies keep the
+     * body and the properties an application sets; the broker sets the rest.
+     */
+    public List<IMessage> apply(IMessage message) {
+        List<IMessage> copies = new ArrayList<>(1);
+        for (int i = 0; i < this.names.size(); i++) {
+            if (this.filters.get(i).test(message)) {
+                IMessage copy = copy(message);
+                this.actions.get(i).accept(copy);
+                copies.add(copy);
+            }
+        }
+        return copies;
+    }
+
+    static IMessage copy(IMessage message) {
+        Message copy = new Message(message.getBody());
+        copy.setMessageId(message.getMessageId());
+        copy.setCorrelationId(message.getCorrelationId());
+        copy.setLabel(message.getLabel());
+        copy.setTo(message.getTo());
+        copy.setReplyTo(message.getReplyTo());
+        copy.setReplyToSessionId(message.getReplyToSessionId());
+        copy.setSessionId(message.getSessionId());
+        copy.setContentType(message.getContentType());
+        copy.setPartitionKey(message.getPartitionKey());
+        if (message.getTimeToLive() != null) {
+            copy.setTimeToLive(message.getTimeToLive());
+        }
+        if (message.getScheduledEnqueueTimeUtc() != null) {
+            copy.setScheduledEnqueueTimeUtc(message.getScheduledEnqueueTimeUtc());
+        }
+        if (message.getProperties() != null) {
+            copy.setProperties(new HashMap<>(message.getProperties()));
+        }
+        return copy;
+    }
+
+    // ---- correlation filters
+
+    private static Predicate<IMessage> compileCorrelationFilter(CorrelationFilter filter) {
+        Predicate<IMessage> compiled = null;
+        compiled = andEqual(compiled, IMessage::getCorrelationId, filter.getCorrelationId());
+        compiled = andEqual(compiled, IMessage::getMessageId, filter.getMessageId());
+        compiled = andEqual(compiled, IMessage::getTo, filter.getTo());
+        compiled = andEqual(compiled, IMessage::getReplyTo, filter.getReplyTo());
+        compiled = andEqual(compiled, IMessage::getLabel, filter.getLabel());
+        compiled = andEqual(compiled, IMessage::getSessionId, filter.getSessionId());
+        compiled = andEqual(compiled, IMessage::getReplyToSessionId, filter.getReplyToSessionId());
+        compiled = andEqual(compiled, IMessage::getContentType, filter.getContentType());
+        if (filter.getProperties() != null) {
+            for (Map.Entry<String, Object> property : filter.getProperties().entrySet()) {
+                String name = property.getKey();
+                compiled = andEqual(compiled, message -> SqlNode.userProperty(message.getProperties(), name), SqlNode.toText(property.getValue()));
+            }
+        }
+        return compiled == null ? message -> true : compiled;
+    }
+
+    private static Predicate<IMessage> andEqual(Predicate<IMessage> previous, Function<IMessage, String> getter, String expected) {
+        if (expected == null) {
+            return previous;
+        }
+        Predicate<IMessage> check = message -> expected.equals(getter.apply(message));
+        return previous == null ? check : previous.and(check);
+    }
+
+    private static boolean matchesCorrelationFilter(CorrelationFilter filter, IMessage message) {
+        return matches(filter.getCorrelationId(), message.getCorrelationId())
+                && matches(filter.getMessageId(), message.getMessageId())
+                && matches(filter.getTo(), message.getTo())
+                && matches(filter.getReplyTo(), message.getReplyTo())
+                && matches(filter.getLabel(), message.getLabel())
+                && matches(filter.getSessionId(), message.getSessionId())
+                && matches(filter.getReplyToSessionId(), message.getReplyToSessionId())
+                && matches(filter.getContentType(), message.getContentType())
+                && matchesProperties(filter.getProperties(), message);
+    }
+
+    private static boolean matchesProperties(Map<String, Object> properties, IMessage message) {
+        if (properties == null) {
+            return true;
+        }
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            if (!matches(SqlNode.toText(property.getValue()), SqlNode.userProperty(message.getProperties(), property.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(String expected, String actual) {
+        return expected == null || expected.equals(actual);
+    }
+}
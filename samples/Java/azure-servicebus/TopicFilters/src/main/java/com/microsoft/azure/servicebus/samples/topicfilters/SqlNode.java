@@ -0,0 +1,1013 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.topicfilters;
+
+import com.microsoft.azure.servicebus.IMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A node of a parsed SQL filter or action. Each node can be evaluated by walking the tree, or
+ * compiled into a lambda that does the same work.
+ * <p>
+ * Values are {@code String}, {@code Long}, {@code Double}, {@code Boolean} or null. Conditions
+ * follow SQL's three-valued logic: a comparison with null is unknown, and a filter matches only
+ * when its condition is true. User properties are strings in this SDK, so a property that holds a
+ * number compares as a number against a numeric value; property names are case-insensitive.
+ * <p>
+ * Compiling resolves everything that does not depend on the message once: constant subtrees are
+ * folded, system properties become getter references, a comparison of a property with a constant
+ * keeps the constant in the lambda, and {@code IN} lists and {@code LIKE} patterns are prepared.
+ * Compiled conditions return {@link #TRUE}, {@link #FALSE} or {@link #UNKNOWN} as an {@code int},
+ * so no {@code Boolean} is created while a filter runs.
+ */
+abstract class SqlNode {
+
+    static final int TRUE = 1;
+    static final int FALSE = 0;
+    static final int UNKNOWN = -1;
+
+    // result of compare() for values that cannot be compared
+    static final int INCOMPARABLE = Integer.MIN_VALUE;
+
+    interface Condition {
+        int test(IMessage message);
+    }
+
+    /** Evaluates the node by walking the tree. */
+    abstract Object evaluate(IMessage message);
+
+    /** True if the value of the node does not depend on the message. */
+    abstract boolean isConstant();
+
+    abstract Function<IMessage, Object> compileValue();
+
+    Condition compileCondition() {
+        Function<IMessage, Object> value = this.compileValue();
+        return message -> truth(value.apply(message));
+    }
+
+    final Function<IMessage, Object> compiledValue() {
+        if (this.isConstant()) {
+            Object value = this.evaluate(null);
+            return message -> value;
+        }
+        return this.compileValue();
+    }
+
+    final Condition compiledCondition() {
+        if (this.isConstant()) {
+            int value = truth(this.evaluate(null));
+            return message -> value;
+        }
+        return this.compileCondition();
+    }
+
+    // ---- values
+
+    static int truth(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? TRUE : FALSE;
+        }
+        if (value instanceof String) {
+            if ("true".equalsIgnoreCase((String) value)) {
+                return TRUE;
+            }
+            if ("false".equalsIgnoreCase((String) value)) {
+                return FALSE;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    static Boolean fromTruth(int truth) {
+        return truth == UNKNOWN ? null : truth == TRUE;
+    }
+
+    static Object toNumber(Object value) {
+        if (value instanceof Long || value instanceof Double) {
+            return value;
+        }
+        if (value instanceof String) {
+            String text = ((String) value).trim();
+            if (text.isEmpty()) {
+                return null;
+            }
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                // not an integer
+            }
+            char first = text.charAt(0);
+            if (first == '-' || first == '+' || first == '.' || Character.isDigit(first)) {
+                try {
+                    return Double.parseDouble(text);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the sign of the comparison, or {@link #INCOMPARABLE}
+     */
+    static int compare(Object left, Object right) {
+        if (left == null || right == null) {
+            return INCOMPARABLE;
+        }
+        if (left instanceof String && right instanceof String) {
+            return Integer.signum(((String) left).compareTo((String) right));
+        }
+        if (left instanceof Boolean || right instanceof Boolean) {
+            int l = truth(left);
+            int r = truth(right);
+            return l == UNKNOWN || r == UNKNOWN ? INCOMPARABLE : Integer.compare(l, r);
+        }
+        Object l = toNumber(left);
+        Object r = toNumber(right);
+        if (l == null || r == null) {
+            return INCOMPARABLE;
+        }
+        if (l instanceof Long && r instanceof Long) {
+            return Long.compare((Long) l, (Long) r);
+        }
+        return Integer.signum(Double.compare(((Number) l).doubleValue(), ((Number) r).doubleValue()));
+    }
+
+    static Object arithmetic(char operator, Object left, Object right) {
+        Object l = toNumber(left);
+        Object r = toNumber(right);
+        if (l == null || r == null) {
+            return null;
+        }
+        if (l instanceof Long && r instanceof Long) {
+            long a = (Long) l;
+            long b = (Long) r;
+            switch (operator) {
+                case '+':
+                    return a + b;
+                case '-':
+                    return a - b;
+                case '*':
+                    return a * b;
+                case '/':
+                    return b == 0 ? null : a / b;
+                default:
+                    return b == 0 ? null : a % b;
+            }
+        }
+        double a = ((Number) l).doubleValue();
+        double b = ((Number) r).doubleValue();
+        switch (operator) {
+            case '+':
+                return a + b;
+            case '-':
+                return a - b;
+            case '*':
+                return a * b;
+            case '/':
+                return a / b;
+            default:
+                return a % b;
+        }
+    }
+
+    // parseLong() result for text that is not a plain decimal integer
+    static final long NOT_A_LONG = Long.MIN_VALUE;
+
+    /**
+     * Parses an optionally signed decimal integer of up to 18 digits without creating an
+     * exception for other text.
+     *
+     * @return the value, or {@link #NOT_A_LONG}
+     */
+    static long parseLong(String text) {
+        int length = text.length();
+        int i = length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+') ? 1 : 0;
+        if (i == length || length - i > 18) {
+            return NOT_A_LONG;
+        }
+        long value = 0;
+        for (int j = i; j < length; j++) {
+            char c = text.charAt(j);
+            if (c < '0' || c > '9') {
+                return NOT_A_LONG;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return text.charAt(0) == '-' ? -value : value;
+    }
+
+    static String toText(Object value) {
+        return value == null ? null : value.toString();
+    }
+
+    static String userProperty(Map<String, String> properties, String name) {
+        if (properties == null) {
+            return null;
+        }
+        String value = properties.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    static String userPropertyKey(Map<String, String> properties, String name) {
+        if (properties == null || properties.containsKey(name)) {
+            return name;
+        }
+        for (String key : properties.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return key;
+            }
+        }
+        return name;
+    }
+
+    // ---- system properties
+
+    static final class SystemProperty {
+        final String name;
+        final Function<IMessage, Object> getter;
+        final BiConsumer<IMessage, String> setter;
+
+        SystemProperty(String name, Function<IMessage, Object> getter, BiConsumer<IMessage, String> setter) {
+            this.name = name;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    // keyed by the lower-case name
+    static final Map<String, SystemProperty> SYSTEM_PROPERTIES = new LinkedHashMap<>();
+
+    static {
+        systemProperty("MessageId", IMessage::getMessageId, IMessage::setMessageId);
+        systemProperty("CorrelationId", IMessage::getCorrelationId, IMessage::setCorrelationId);
+        systemProperty("Label", IMessage::getLabel, IMessage::setLabel);
+        systemProperty("To", IMessage::getTo, IMessage::setTo);
+        systemProperty("ReplyTo", IMessage::getReplyTo, IMessage::setReplyTo);
+        systemProperty("ReplyToSessionId", IMessage::getReplyToSessionId, IMessage::setReplyToSessionId);
+        systemProperty("SessionId", IMessage::getSessionId, IMessage::setSessionId);
+        systemProperty("ContentType", IMessage::getContentType, IMessage::setContentType);
+        systemProperty("PartitionKey", IMessage::getPartitionKey, IMessage::setPartitionKey);
+        systemProperty("DeliveryCount", IMessage::getDeliveryCount, null);
+        systemProperty("SequenceNumber", IMessage::getSequenceNumber, null);
+    }
+
+    private static void systemProperty(String name, Function<IMessage, Object> getter, BiConsumer<IMessage, String> setter) {
+        SYSTEM_PROPERTIES.put(name.toLowerCase(Locale.ROOT), new SystemProperty(name, getter, setter));
+    }
+
+    // ---- expressions
+
+    static final class Literal extends SqlNode {
+        final Object value;
+
+        Literal(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            return this.value;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+
+        @Override
+        Function<IMessage, Object> compileValue() {
+            Object value = this.value;
+            return message -> value;
+        }
+
+        @Override
+        public String toString() {
+            return this.value instanceof String ? "'" + ((String) this.value).replace("'", "''") + "'" : String.valueOf(this.value).toUpperCase(Locale.ROOT);
+        }
+    }
+
+    static final class Property extends SqlNode {
+        final String name;
+        // null for a user property
+        final SystemProperty system;
+        final String systemKey;
+
+        Property(String name, SystemProperty system) {
+            this.name = name;
+            this.system = system;
+            this.systemKey = system == null ? null : system.name.toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            if (this.systemKey != null) {
+                return SYSTEM_PROPERTIES.get(this.systemKey).getter.apply(message);
+            }
+            return userProperty(message.getProperties(), this.name);
+        }
+
+        boolean exists(IMessage message) {
+            if (this.system != null) {
+                return this.system.getter.apply(message) != null;
+            }
+            Map<String, String> properties = message.getProperties();
+            return properties != null && properties.containsKey(userPropertyKey(properties, this.name));
+        }
+
+        void set(IMessage message, Object value) {
+            if (this.system != null) {
+                this.system.setter.accept(message, toText(value));
+                return;
+            }
+            Map<String, String> properties = message.getProperties();
+            if (properties == null) {
+                properties = new HashMap<>();
+                message.setProperties(properties);
+            }
+            properties.put(userPropertyKey(properties, this.name), toText(value));
+        }
+
+        void remove(IMessage message) {
+            if (this.system != null) {
+                this.system.setter.accept(message, null);
+                return;
+            }
+            Map<String, String> properties = message.getProperties();
+            if (properties != null) {
+                properties.remove(userPropertyKey(properties, this.name));
+            }
+        }
+
+        @Override
+        boolean isConstant() {
+            return false;
+        }
+
+        @Override
+        Function<IMessage, Object> compileValue() {
+            if (this.system != null) {
+                return this.system.getter;
+            }
+            String name = this.name;
+            return message -> userProperty(message.getProperties(), name);
+        }
+
+        @Override
+        public String toString() {
+            return this.system != null ? "sys." + this.system.name : this.name;
+        }
+    }
+
+    static final class Negate extends SqlNode {
+        final SqlNode operand;
+
+        Negate(SqlNode operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            return arithmetic('-', 0L, this.operand.evaluate(message));
+        }
+
+        @Override
+        boolean isConstant() {
+            return this.operand.isConstant();
+        }
+
+        @Override
+        Function<IMessage, Object> compileValue() {
+            Function<IMessage, Object> operand = this.operand.compiledValue();
+            return message -> arithmetic('-', 0L, operand.apply(message));
+        }
+
+        @Override
+        public String toString() {
+            return "-" + this.operand;
+        }
+    }
+
+    static final class Arithmetic extends SqlNode {
+        final char operator;
+        final SqlNode left;
+        final SqlNode right;
+
+        Arithmetic(char operator, SqlNode left, SqlNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            return arithmetic(this.operator, this.left.evaluate(message), this.right.evaluate(message));
+        }
+
+        @Override
+        boolean isConstant() {
+            return this.left.isConstant() && this.right.isConstant();
+        }
+
+        @Override
+        Function<IMessage, Object> compileValue() {
+            char operator = this.operator;
+            Function<IMessage, Object> left = this.left.compiledValue();
+            Function<IMessage, Object> right = this.right.compiledValue();
+            return message -> arithmetic(operator, left.apply(message), right.apply(message));
+        }
+
+        @Override
+        public String toString() {
+            return "(" + this.left + " " + this.operator + " " + this.right + ")";
+        }
+    }
+
+    // ---- conditions
+
+    abstract static class ConditionNode extends SqlNode {
+
+        @Override
+        final Function<IMessage, Object> compileValue() {
+            Condition condition = this.compileCondition();
+            return message -> fromTruth(condition.test(message));
+        }
+
+        @Override
+        abstract Condition compileCondition();
+    }
+
+    enum Comparison {
+        EQUAL("="), NOT_EQUAL("<>"), LESS("<"), LESS_OR_EQUAL("<="), GREATER(">"), GREATER_OR_EQUAL(">=");
+
+        final String symbol;
+
+        Comparison(String symbol) {
+            this.symbol = symbol;
+        }
+
+        int result(int comparison) {
+            if (comparison == INCOMPARABLE) {
+                return UNKNOWN;
+            }
+            boolean result;
+            switch (this) {
+                case EQUAL:
+                    result = comparison == 0;
+                    break;
+                case NOT_EQUAL:
+                    result = comparison != 0;
+                    break;
+                case LESS:
+                    result = comparison < 0;
+                    break;
+                case LESS_OR_EQUAL:
+                    result = comparison <= 0;
+                    break;
+                case GREATER:
+                    result = comparison > 0;
+                    break;
+                default:
+                    result = comparison >= 0;
+                    break;
+            }
+            return result ? TRUE : FALSE;
+        }
+
+        Comparison mirrored() {
+            switch (this) {
+                case LESS:
+                    return GREATER;
+                case LESS_OR_EQUAL:
+                    return GREATER_OR_EQUAL;
+                case GREATER:
+                    return LESS;
+                case GREATER_OR_EQUAL:
+                    return LESS_OR_EQUAL;
+                default:
+                    return this;
+            }
+        }
+    }
+
+    static final class Compare extends ConditionNode {
+        final Comparison comparison;
+        final SqlNode left;
+        final SqlNode right;
+
+        Compare(Comparison comparison, SqlNode left, SqlNode right) {
+            this.comparison = comparison;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            return fromTruth(this.comparison.result(compare(this.left.evaluate(message), this.right.evaluate(message))));
+        }
+
+        @Override
+        boolean isConstant() {
+            return this.left.isConstant() && this.right.isConstant();
+        }
+
+        @Override
+        Condition compileCondition() {
+            if (this.left instanceof Property && this.right.isConstant()) {
+                return compileWithConstant(this.comparison, this.left.compileValue(), this.right.evaluate(null));
+            }
+            if (this.right instanceof Property && this.left.isConstant()) {
+                return compileWithConstant(this.comparison.mirrored(), this.right.compileValue(), this.left.evaluate(null));
+            }
+            Comparison comparison = this.comparison;
+            Function<IMessage, Object> left = this.left.compiledValue();
+            Function<IMessage, Object> right = this.right.compiledValue();
+            return message -> comparison.result(compare(left.apply(message), right.apply(message)));
+        }
+
+        private static Condition compileWithConstant(Comparison comparison, Function<IMessage, Object> property, Object constant) {
+            if (constant == null) {
+                return message -> UNKNOWN;
+            }
+            boolean equality = comparison == Comparison.EQUAL || comparison == Comparison.NOT_EQUAL;
+            int equal = comparison == Comparison.EQUAL ? TRUE : FALSE;
+            int notEqual = comparison == Comparison.EQUAL ? FALSE : TRUE;
+            if (equality && constant instanceof String) {
+                return message -> {
+                    Object value = property.apply(message);
+                    if (value instanceof String) {
+                        return constant.equals(value) ? equal : notEqual;
+                    }
+                    return comparison.result(compare(value, constant));
+                };
+            }
+            if (constant instanceof Long) {
+                long number = (Long) constant;
+                return message -> {
+                    Object value = property.apply(message);
+                    long parsed = value instanceof String ? parseLong((String) value) : NOT_A_LONG;
+                    if (parsed != NOT_A_LONG) {
+                        return comparison.result(Long.compare(parsed, number));
+                    }
+                    return comparison.result(compare(value, constant));
+                };
+            }
+            return message -> comparison.result(compare(property.apply(message), constant));
+        }
+
+        @Override
+        public String toString() {
+            return this.left + " " + this.comparison.symbol + " " + this.right;
+        }
+    }
+
+    static final class And extends ConditionNode {
+        final SqlNode left;
+        final SqlNode right;
+
+        And(SqlNode left, SqlNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            int left = truth(this.left.evaluate(message));
+            if (left == FALSE) {
+                return false;
+            }
+            int right = truth(this.right.evaluate(message));
+            if (right == FALSE) {
+                return false;
+            }
+            return left == TRUE && right == TRUE ? Boolean.TRUE : null;
+        }
+
+        @Override
+        boolean isConstant() {
+            return this.left.isConstant() && this.right.isConstant();
+        }
+
+        @Override
+        Condition compileCondition() {
+            Condition left = this.left.compiledCondition();
+            Condition right = this.right.compiledCondition();
+            return message -> {
+                int l = left.test(message);
+                if (l == FALSE) {
+                    return FALSE;
+                }
+                int r = right.test(message);
+                if (r == FALSE) {
+                    return FALSE;
+                }
+                return l == TRUE && r == TRUE ? TRUE : UNKNOWN;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "(" + this.left + " AND " + this.right + ")";
+        }
+    }
+
+    static final class Or extends ConditionNode {
+        final SqlNode left;
+        final SqlNode right;
+
+        Or(SqlNode left, SqlNode right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            int left = truth(this.left.evaluate(message));
+            if (left == TRUE) {
+                return true;
+            }
+            int right = truth(this.right.evaluate(message));
+            if (right == TRUE) {
+                return true;
+            }
+            return left == FALSE && right == FALSE ? Boolean.FALSE : null;
+        }
+
+        @Override
+        boolean isConstant() {
+            return this.left.isConstant() && this.right.isConstant();
+        }
+
+        @Override
+        Condition compileCondition() {
+            Condition left = this.left.compiledCondition();
+            Condition right = this.right.compiledCondition();
+            return message -> {
+                int l = left.test(message);
+                if (l == TRUE) {
+                    return TRUE;
+                }
+                int r = right.test(message);
+                if (r == TRUE) {
+                    return TRUE;
+                }
+                return l == FALSE && r == FALSE ? FALSE : UNKNOWN;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "(" + this.left + " OR " + this.right + ")";
+        }
+    }
+
+    static final class Not extends ConditionNode {
+        final SqlNode operand;
+
+        Not(SqlNode operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            int operand = truth(this.operand.evaluate(message));
+            return operand == UNKNOWN ? null : operand == FALSE;
+        }
+
+        @Override
+        boolean isConstant() {
+            return this.operand.isConstant();
+        }
+
+        @Override
+        Condition compileCondition() {
+            Condition operand = this.operand.compiledCondition();
+            return message -> {
+                int value = operand.test(message);
+                return value == UNKNOWN ? UNKNOWN : TRUE - value;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + this.operand;
+        }
+    }
+
+    static final class IsNull extends ConditionNode {
+        final SqlNode operand;
+        final boolean negated;
+
+        IsNull(SqlNode operand, boolean negated) {
+            this.operand = operand;
+            this.negated = negated;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            return (this.operand.evaluate(message) == null) != this.negated;
+        }
+
+        @Override
+        boolean isConstant() {
+            return this.operand.isConstant();
+        }
+
+        @Override
+        Condition compileCondition() {
+            Function<IMessage, Object> operand = this.operand.compiledValue();
+            int isNull = this.negated ? FALSE : TRUE;
+            int isNotNull = this.negated ? TRUE : FALSE;
+            return message -> operand.apply(message) == null ? isNull : isNotNull;
+        }
+
+        @Override
+        public String toString() {
+            return this.operand + (this.negated ? " IS NOT NULL" : " IS NULL");
+        }
+    }
+
+    static final class Exists extends ConditionNode {
+        final Property property;
+
+        Exists(Property property) {
+            this.property = property;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            return this.property.exists(message);
+        }
+
+        @Override
+        boolean isConstant() {
+            return false;
+        }
+
+        @Override
+        Condition compileCondition() {
+            Property property = this.property;
+            return message -> property.exists(message) ? TRUE : FALSE;
+        }
+
+        @Override
+        public String toString() {
+            return "EXISTS(" + this.property + ")";
+        }
+    }
+
+    static final class In extends ConditionNode {
+        final SqlNode operand;
+        final List<SqlNode> values;
+        final boolean negated;
+
+        In(SqlNode operand, List<SqlNode> values, boolean negated) {
+            this.operand = operand;
+            this.values = values;
+            this.negated = negated;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            Object operand = this.operand.evaluate(message);
+            if (operand == null) {
+                return null;
+            }
+            boolean unknown = false;
+            for (SqlNode node : this.values) {
+                int comparison = compare(operand, node.evaluate(message));
+                if (comparison == 0) {
+                    return !this.negated;
+                }
+                unknown |= comparison == INCOMPARABLE;
+            }
+            return unknown ? null : this.negated;
+        }
+
+        @Override
+        boolean isConstant() {
+            if (!this.operand.isConstant()) {
+                return false;
+            }
+            for (SqlNode node : this.values) {
+                if (!node.isConstant()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Condition compileCondition() {
+            Function<IMessage, Object> operand = this.operand.compiledValue();
+            int found = this.negated ? FALSE : TRUE;
+            int notFound = this.negated ? TRUE : FALSE;
+            Set<String> strings = new HashSet<>();
+            for (SqlNode node : this.values) {
+                Object value = node.isConstant() ? node.evaluate(null) : null;
+                if (!(value instanceof String)) {
+                    strings = null;
+                    break;
+                }
+                strings.add((String) value);
+            }
+            if (strings != null) {
+                Set<String> set = strings;
+                Condition general = this.compileGeneral(operand, found, notFound);
+                // a string either is in the set or differs from every value of the list
+                return message -> {
+                    Object value = operand.apply(message);
+                    if (value instanceof String) {
+                        return set.contains(value) ? found : notFound;
+                    }
+                    return general.test(message);
+                };
+            }
+            return this.compileGeneral(operand, found, notFound);
+        }
+
+        private Condition compileGeneral(Function<IMessage, Object> operand, int found, int notFound) {
+            List<Function<IMessage, Object>> values = new ArrayList<>(this.values.size());
+            for (SqlNode value : this.values) {
+                values.add(value.compiledValue());
+            }
+            return message -> {
+                Object value = operand.apply(message);
+                if (value == null) {
+                    return UNKNOWN;
+                }
+                boolean unknown = false;
+                for (Function<IMessage, Object> candidate : values) {
+                    int comparison = compare(value, candidate.apply(message));
+                    if (comparison == 0) {
+                        return found;
+                    }
+                    unknown |= comparison == INCOMPARABLE;
+                }
+                return unknown ? UNKNOWN : notFound;
+            };
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder().append(this.operand).append(this.negated ? " NOT IN (" : " IN (");
+            for (int i = 0; i < this.values.size(); i++) {
+                builder.append(i == 0 ? "" : ", ").append(this.values.get(i));
+            }
+            return builder.append(')').toString();
+        }
+    }
+
+    static final class Like extends ConditionNode {
+        final SqlNode operand;
+        final SqlNode pattern;
+        final int escape;
+        final boolean negated;
+
+        /**
+         * @param escape the escape character, or -1
+         */
+        Like(SqlNode operand, SqlNode pattern, int escape, boolean negated) {
+            this.operand = operand;
+            this.pattern = pattern;
+            this.escape = escape;
+            this.negated = negated;
+        }
+
+        @Override
+        Object evaluate(IMessage message) {
+            String value = toText(this.operand.evaluate(message));
+            String pattern = toText(this.pattern.evaluate(message));
+            if (value == null || pattern == null) {
+                return null;
+            }
+            return LikePattern.of(pattern, this.escape).matches(value) != this.negated;
+        }
+
+        @Override
+        boolean isConstant() {
+            return this.operand.isConstant() && this.pattern.isConstant();
+        }
+
+        @Override
+        Condition compileCondition() {
+            Function<IMessage, Object> operand = this.operand.compiledValue();
+            int matched = this.negated ? FALSE : TRUE;
+            int notMatched = this.negated ? TRUE : FALSE;
+            int escape = this.escape;
+            if (this.pattern.isConstant()) {
+                String text = toText(this.pattern.evaluate(null));
+                if (text == null) {
+                    return message -> UNKNOWN;
+                }
+                LikePattern pattern = LikePattern.of(text, escape);
+                return message -> {
+                    String value = toText(operand.apply(message));
+                    return value == null ? UNKNOWN : pattern.matches(value) ? matched : notMatched;
+                };
+            }
+            Function<IMessage, Object> pattern = this.pattern.compiledValue();
+            return message -> {
+                String value = toText(operand.apply(message));
+                String text = toText(pattern.apply(message));
+                if (value == null || text == null) {
+                    return UNKNOWN;
+                }
+                return LikePattern.of(text, escape).matches(value) ? matched : notMatched;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return this.operand + (this.negated ? " NOT LIKE " : " LIKE ") + this.pattern
+                    + (this.escape < 0 ? "" : " ESCAPE '" + (char) this.escape + "'");
+        }
+    }
+
+    // ---- actions
+
+    abstract static class Statement {
+
+        /** Executes the statement by walking the tree. */
+        abstract void execute(IMessage message);
+
+        abstract Consumer<IMessage> compile();
+    }
+
+    static final class SetStatement extends Statement {
+        final Property target;
+        final SqlNode value;
+
+        SetStatement(Property target, SqlNode value) {
+            this.target = target;
+            this.value = value;
+        }
+
+        @Override
+        void execute(IMessage message) {
+            this.target.set(message, this.value.evaluate(message));
+        }
+
+        @Override
+        Consumer<IMessage> compile() {
+            Property target = this.target;
+            Function<IMessage, Object> value = this.value.compiledValue();
+            if (target.system != null) {
+                BiConsumer<IMessage, String> setter = target.system.setter;
+                return message -> setter.accept(message, toText(value.apply(message)));
+            }
+            return message -> target.set(message, value.apply(message));
+        }
+
+        @Override
+        public String toString() {
+            return "SET " + this.target + " = " + this.value;
+        }
+    }
+
+    static final class RemoveStatement extends Statement {
+        final Property target;
+
+        RemoveStatement(Property target) {
+            this.target = target;
+        }
+
+        @Override
+        void execute(IMessage message) {
+            this.target.remove(message);
+        }
+
+        @Override
+        Consumer<IMessage> compile() {
+            Property target = this.target;
+            return target::remove;
+        }
+
+        @Override
+        public String toString() {
+            return "REMOVE " + this.target;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See LICENSE file in the project root for full license information.
+
+package com.microsoft.azure.servicebus.samples.topicfilters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Parses the SQL filter and action syntax of Service Bus rules into {@link SqlNode} trees.
+ * <p>
+ * A filter is a condition with {@code AND}, {@code OR}, {@code NOT}, the comparisons {@code =},
+ * {@code <>}, {@code !=}, {@code <}, {@code <=}, {@code >}, {@code >=}, {@code [NOT] LIKE} with an
+ * optional {@code ESCAPE}, {@code [NOT] IN (...)}, {@code IS [NOT] NULL} and {@code EXISTS(...)},
+ * over arithmetic ({@code + - * / %}) on string, integer, decimal, boolean and null constants and
+ * properties. A plain or {@code user.} name is a user property, a {@code sys.} name a system
+ * property, and a name in brackets may contain any character. An action is a list of
+ * {@code SET property = expression} and {@code REMOVE property} statements separated by
+ * semicolons. Keywords are case-insensitive. Syntax errors throw an
+ * {@link IllegalArgumentException} that gives the position.
+ */
+final class SqlRuleParser {
+
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "and", "or", "not", "like", "escape", "in", "is", "null", "exists", "true", "false", "set", "remove"));
+
+    private enum TokenType { IDENTIFIER, QUOTED_IDENTIFIER, STRING, NUMBER, SYMBOL, END }
+
+    private final String sql;
+    private TokenType type;
+    private String text;
+    private int tokenStart;
+    private int position;
+
+    private SqlRuleParser(String sql) {
+        this.sql = sql;
+        this.advance();
+    }
+
+    static SqlNode parseFilter(String sql) {
+        SqlRuleParser parser = new SqlRuleParser(sql);
+        SqlNode condition = parser.parseOr();
+        parser.expectEnd();
+        return condition;
+    }
+
+    static List<SqlNode.Statement> parseAction(String sql) {
+        SqlRuleParser parser = new SqlRuleParser(sql);
+        List<SqlNode.Statement> statements = new ArrayList<>();
+        while (parser.type != TokenType.END) {
+            if (parser.acceptSymbol(";")) {
+                continue;
+            }
+            if (parser.acceptKeyword("set")) {
+                SqlNode.Property target = parser.parseProperty();
+                if (target.system != null && target.system.setter == null) {
+                    throw new IllegalArgumentException(String.format("%s cannot be set in: %s", target, sql));
+                }
+                parser.expectSymbol("=");
+                statements.add(new SqlNode.SetStatement(target, parser.parseOr()));
+            } else if (parser.acceptKeyword("remove")) {
+                SqlNode.Property target = parser.parseProperty();
+                if (target.system != null && target.system.setter == null) {
+                    throw new IllegalArgumentException(String.format("%s cannot be removed in: %s", target, sql));
+                }
+                statements.add(new SqlNode.RemoveStatement(target));
+            } else {
+                throw parser.error("Expected SET or REMOVE");
+            }
+            if (parser.type != TokenType.END) {
+                parser.expectSymbol(";");
+            }
+        }
+        if (statements.isEmpty()) {
+            throw new IllegalArgumentException("An action must contain at least one statement.");
+        }
+        return statements;
+    }
+
+    // ---- conditions
+
+    private SqlNode parseOr() {
+        SqlNode left = this.parseAnd();
+        while (this.acceptKeyword("or")) {
+            left = new SqlNode.Or(left, this.parseAnd());
+        }
+        return left;
+    }
+
+    private SqlNode parseAnd() {
+        SqlNode left = this.parseNot();
+        while (this.acceptKeyword("and")) {
+            left = new SqlNode.And(left, this.parseNot());
+        }
+        return left;
+    }
+
+    private SqlNode parseNot() {
+        if (this.acceptKeyword("not")) {
+            return new SqlNode.Not(this.parseNot());
+        }
+        return this.parsePredicate();
+    }
+
+    private SqlNode parsePredicate() {
+        SqlNode left = this.parseAdditive();
+        SqlNode.Comparison comparison = this.acceptComparison();
+        if (comparison != null) {
+            return new SqlNode.Compare(comparison, left, this.parseAdditive());
+        }
+        if (this.acceptKeyword("is")) {
+            boolean negated = this.acceptKeyword("not");
+            this.expectKeyword("null");
+            return new SqlNode.IsNull(left, negated);
+        }
+        boolean negated = this.acceptKeyword("not");
+        if (this.acceptKeyword("like")) {
+            SqlNode pattern = this.parseAdditive();
+            int escape = -1;
+            if (this.acceptKeyword("escape")) {
+                if (this.type != TokenType.STRING || this.text.length() != 1) {
+                    throw this.error("Expected a single-character string after ESCAPE");
+                }
+                escape = this.text.charAt(0);
+                this.advance();
+            }
+            return new SqlNode.Like(left, pattern, escape, negated);
+        }
+        if (this.acceptKeyword("in")) {
+            this.expectSymbol("(");
+            List<SqlNode> values = new ArrayList<>();
+            do {
+                values.add(this.parseAdditive());
+            } while (this.acceptSymbol(","));
+            this.expectSymbol(")");
+            return new SqlNode.In(left, values, negated);
+        }
+        if (negated) {
+            throw this.error("Expected LIKE or IN after NOT");
+        }
+        return left;
+    }
+
+    private SqlNode.Comparison acceptComparison() {
+        if (this.type != TokenType.SYMBOL) {
+            return null;
+        }
+        for (SqlNode.Comparison comparison : SqlNode.Comparison.values()) {
+            if (comparison.symbol.equals(this.text)) {
+                this.advance();
+                return comparison;
+            }
+        }
+        if (this.text.equals("!=")) {
+            this.advance();
+            return SqlNode.Comparison.NOT_EQUAL;
+        }
+        return null;
+    }
+
+    // ---- expressions
+
+    private SqlNode parseAdditive() {
+        SqlNode left = this.parseMultiplicative();
+        while (this.type == TokenType.SYMBOL && (this.text.equals("+") || this.text.equals("-"))) {
+            char operator = this.text.charAt(0);
+            this.advance();
+            left = new SqlNode.Arithmetic(operator, left, this.parseMultiplicative());
+        }
+        return left;
+    }
+
+    private SqlNode parseMultiplicative() {
+        SqlNode left = this.parseUnary();
+        while (this.type == TokenType.SYMBOL && (this.text.equals("*") || this.text.equals("/") || this.text.equals("%"))) {
+            char operator = this.text.charAt(0);
+            this.advance();
+            left = new SqlNode.Arithmetic(operator, left, this.parseUnary());
+        }
+        return left;
+    }
+
+    private SqlNode parseUnary() {
+        if (this.acceptSymbol("-")) {
+            return new SqlNode.Negate(this.parseUnary());
+        }
+        if (this.acceptSymbol("+")) {
+            return this.parseUnary();
+        }
+        return this.parsePrimary();
+    }
+
+    private SqlNode parsePrimary() {
+        switch (this.type) {
+            case STRING: {
+                SqlNode literal = new SqlNode.Literal(this.text);
+                this.advance();
+                return literal;
+            }
+            case NUMBER: {
+                SqlNode literal = new SqlNode.Literal(this.parseNumber());
+                this.advance();
+                return literal;
+            }
+            case SYMBOL:
+                if (this.acceptSymbol("(")) {
+                    SqlNode inner = this.parseOr();
+                    this.expectSymbol(")");
+                    return inner;
+                }
+                throw this.error("Unexpected '" + this.text + "'");
+            case END:
+                throw this.error("Unexpected end of expression");
+            default:
+                break;
+        }
+        if (this.acceptKeyword("true")) {
+            return new SqlNode.Literal(Boolean.TRUE);
+        }
+        if (this.acceptKeyword("false")) {
+            return new SqlNode.Literal(Boolean.FALSE);
+        }
+        if (this.acceptKeyword("null")) {
+            return new SqlNode.Literal(null);
+        }
+        if (this.acceptKeyword("exists")) {
+            this.expectSymbol("(");
+            SqlNode.Property property = this.parseProperty();
+            this.expectSymbol(")");
+            return new SqlNode.Exists(property);
+        }
+        return this.parseProperty();
+    }
+
+    private Object parseNumber() {
+        try {
+            if (this.text.indexOf('.') < 0 && this.text.indexOf('e') < 0 && this.text.indexOf('E') < 0) {
+                return Long.parseLong(this.text);
+            }
+            return Double.parseDouble(this.text);
+        } catch (NumberFormatException e) {
+            throw this.error("Invalid number '" + this.text + "'");
+        }
+    }
+
+    private SqlNode.Property parseProperty() {
+        if (this.type == TokenType.IDENTIFIER && this.isKeyword()) {
+            throw this.error("Unexpected keyword '" + this.text + "'");
+        }
+        if (this.type != TokenType.IDENTIFIER && this.type != TokenType.QUOTED_IDENTIFIER) {
+            throw this.error("Expected a property name");
+        }
+        String name = this.text;
+        boolean quoted = this.type == TokenType.QUOTED_IDENTIFIER;
+        this.advance();
+        if (quoted || !this.acceptSymbol(".")) {
+            return new SqlNode.Property(name, null);
+        }
+        String scope = name.toLowerCase(Locale.ROOT);
+        if (this.type != TokenType.IDENTIFIER && this.type != TokenType.QUOTED_IDENTIFIER) {
+            throw this.error("Expected a property name");
+        }
+        String qualified = this.text;
+        int start = this.tokenStart;
+        this.advance();
+        if (scope.equals("user")) {
+            return new SqlNode.Property(qualified, null);
+        }
+        if (scope.equals("sys")) {
+            SqlNode.SystemProperty system = SqlNode.SYSTEM_PROPERTIES.get(qualified.toLowerCase(Locale.ROOT));
+            if (system == null) {
+                throw new IllegalArgumentException(String.format("Unknown system property '%s' at position %d in: %s", qualified, start, this.sql));
+            }
+            return new SqlNode.Property(qualified, system);
+        }
+        throw new IllegalArgumentException(String.format("Unknown property scope '%s' in: %s", name, this.sql));
+    }
+
+    // ---- tokens
+
+    private boolean isKeyword() {
+        return KEYWORDS.contains(this.text.toLowerCase(Locale.ROOT));
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        if (this.type == TokenType.IDENTIFIER && this.text.equalsIgnoreCase(keyword)) {
+            this.advance();
+            return true;
+        }
+        return false;
+    }
+
+    private void expectKeyword(String keyword) {
+        if (!this.acceptKeyword(keyword)) {
+            throw this.error("Expected " + keyword.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private boolean acceptSymbol(String symbol) {
+        if (this.type == TokenType.SYMBOL && this.text.equals(symbol)) {
+            this.advance();
+            return true;
+        }
+        return false;
+    }
+
+    private void expectSymbol(String symbol) {
+        if (!this.acceptSymbol(symbol)) {
+            throw this.error("Expected '" + symbol + "'");
+        }
+    }
+
+    private void expectEnd() {
+        if (this.type != TokenType.END) {
+            throw this.error("Unexpected '" + this.text + "'");
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(String.format("%s at position %d in: %s", message, this.tokenStart, this.sql));
+    }
+
+    private void advance() {
+        String sql = this.sql;
+        int i = this.position;
+        while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+        this.tokenStart = i;
+        if (i == sql.length()) {
+            this.type = TokenType.END;
+            this.text = "";
+            this.position = i;
+            return;
+        }
+        char c = sql.charAt(i);
+        if (c == '\'') {
+            StringBuilder builder = new StringBuilder();
+            for (i++; ; i++) {
+                if (i == sql.length()) {
+                    throw this.error("Unterminated string");
+                }
+                char s = sql.charAt(i);
+                if (s == '\'') {
+                    // '' stands for one quote
+                    if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                        builder.append('\'');
+                        i++;
+                        continue;
+                    }
+                    break;
+                }
+                builder.append(s);
+            }
+            this.type = TokenType.STRING;
+            this.text = builder.toString();
+            this.position = i + 1;
+        } else if (c == '[') {
+            int end = sql.indexOf(']', i + 1);
+            if (end < 0) {
+                throw this.error("Unterminated property name");
+            }
+            this.type = TokenType.QUOTED_IDENTIFIER;
+            this.text = sql.substring(i + 1, end);
+            this.position = end + 1;
+        } else if (Character.isDigit(c) || (c == '.' && i + 1 < sql.length() && Character.isDigit(sql.charAt(i + 1)))) {
+            int start = i;
+            while (i < sql.length() && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                i++;
+            }
+            if (i < sql.length() && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+                i++;
+                if (i < sql.length() && (sql.charAt(i) == '+' || sql.charAt(i) == '-')) {
+                    i++;
+                }
+                while (i < sql.length() && Character.isDigit(sql.charAt(i))) {
+                    i++;
+                }
+            }
+            this.type = TokenType.NUMBER;
+            this.text = sql.substring(start, i);
+            this.position = i;
+        } else if (Character.isLetter(c) || c == '_' || c == '@' || c == '$') {
+            int start = i;
+            while (i < sql.length() && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_' || sql.charAt(i) == '@' || sql.charAt(i) == '$')) {
+                i++;
+            }
+            this.type = TokenType.IDENTIFIER;
+            this.text = sql.substring(start, i);
+            this.position = i;
+        } else {
+            String two = i + 1 < sql.length() ? sql.substring(i, i + 2) : "";
+            if (two.equals("<>") || two.equals("<=") || two.equals(">=") || two.equals("!=")) {
+                this.text = two;
+            } else if ("=<>+-*/%(),;.".indexOf(c) >= 0) {
+                this.text = String.valueOf(c);
+            } else {
+                throw this.error("Unexpected character '" + c + "'");
+            }
+            this.type = TokenType.SYMBOL;
+            this.position = i + this.text.length();
+        }
+    }
+}
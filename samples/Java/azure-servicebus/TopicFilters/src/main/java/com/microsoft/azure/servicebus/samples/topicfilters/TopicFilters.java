@@ -5,6 +5,11 @@ package com.microsoft.azure.servicebus.samples.topicfilters;
 
 import com.microsoft.azure.servicebus.*;
 import com.microsoft.azure.servicebus.primitives.ConnectionStringBuilder;
+import com.microsoft.azure.servicebus.rules.CorrelationFilter;
+import com.microsoft.azure.servicebus.rules.RuleDescription;
+import com.microsoft.azure.servicebus.rules.SqlFilter;
+import com.microsoft.azure.servicebus.rules.SqlRuleAction;
+import com.microsoft.azure.servicebus.rules.TrueFilter;
 import com.google.gson.Gson;
 
 import static java.nio.charset.StandardCharsets.*;
@@ -26,7 +31,25 @@ public class TopicFilters {
     static final String SubscriptionColorRed = "ColorRed";
     static final String SubscriptionHighPriorityOrders = "HighPriorityOrders";
 
+    static final List<Order> Orders = Arrays.asList(
+            new Order(),
+            new Order("blue", 5, "low"),
+            new Order("red", 10, "high"),
+            new Order("yellow", 5, "low"),
+            new Order("blue", 10, "low"),
+            new Order("blue", 5, "high"),
+            new Order("blue", 10, "low"),
+            new Order("red", 5, "low"),
+            new Order("red", 10, "low"),
+            new Order("red", 5, "low"),
+            new Order("yellow", 10, "high"),
+            new Order("yellow", 5, "low"),
+            new Order("yellow", 10, "low"));
+
     void run(String connectionString) throws Exception {
+        // Predict what each subscription receives from the rules the setup template creates.
+        this.previewSubscriptions(subscriptionRules());
+
         // Send sample messages.
         this.sendMessagesToTopic(connectionString);
 
@@ -46,27 +69,24 @@ public class TopicFilters {
         System.out.printf("\nSending orders to topic.\n");
 
         // Now we can start sending orders.
-        CompletableFuture.allOf(
-                SendOrder(topicClient, new Order()),
-                SendOrder(topicClient, new Order("blue", 5, "low")),
-                SendOrder(topicClient, new Order("red", 10, "high")),
-                SendOrder(topicClient, new Order("yellow", 5, "low")),
-                SendOrder(topicClient, new Order("blue", 10, "low")),
-                SendOrder(topicClient, new Order("blue", 5, "high")),
-                SendOrder(topicClient, new Order("blue", 10, "low")),
-                SendOrder(topicClient, new Order("red", 5, "low")),
-                SendOrder(topicClient, new Order("red", 10, "low")),
-                SendOrder(topicClient, new Order("red", 5, "low")),
-                SendOrder(topicClient, new Order("yellow", 10, "high")),
-                SendOrder(topicClient, new Order("yellow", 5, "low")),
-                SendOrder(topicClient, new Order("yellow", 10, "low"))
-        ).join();
+        List<CompletableFuture<Void>> sends = new ArrayList<>();
+        for (Order order : Orders) {
+            sends.add(SendOrder(topicClient, order));
+        }
+        CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).join();
 
         System.out.printf("All messages sent.\n");
     }
 
     CompletableFuture<Void> SendOrder(TopicClient topicClient, Order order) throws Exception {
 
+        IMessage message = createMessage(order);
+
+        System.out.printf("Sent order with Color=%s, Quantity=%d, Priority=%s\n", order.getColor(), order.getQuantity(), order.getPriority());
+        return topicClient.sendAsync(message);
+    }
+
+    static IMessage createMessage(Order order) {
         IMessage message = new Message(GSON.toJson(order, Order.class).getBytes(UTF_8));
         message.setCorrelationId(order.getPriority());
         message.setLabel(order.getColor());
@@ -75,9 +95,43 @@ public class TopicFilters {
             put("Quantity", Integer.toString(order.getQuantity()));
             put("Priority", order.getPriority());
         }});
+        return message;
+    }
 
-        System.out.printf("Sent order with Color=%s, Quantity=%d, Priority=%s\n", order.getColor(), order.getQuantity(), order.getPriority());
-        return topicClient.sendAsync(message);
+    // The rules of the four subscriptions, as the setup template creates them.
+    static Map<String, RuleEvaluator> subscriptionRules() {
+        Map<String, RuleEvaluator> subscriptions = new LinkedHashMap<>();
+        subscriptions.put(SubscriptionAllMessages, new RuleEvaluator(Collections.singletonList(
+                new RuleDescription("rule1", new TrueFilter()))));
+        subscriptions.put(SubscriptionColorBlueSize10Orders, new RuleEvaluator(Collections.singletonList(
+                new RuleDescription("rule1", new SqlFilter("color = 'blue' AND quantity = 10")))));
+        RuleDescription colorRed = new RuleDescription("rule1", new SqlFilter("color = 'red'"));
+        colorRed.setAction(new SqlRuleAction("SET quantity = quantity / 2; REMOVE priority; SET sys.CorrelationId = 'low';"));
+        subscriptions.put(SubscriptionColorRed, new RuleEvaluator(Collections.singletonList(colorRed)));
+        CorrelationFilter highPriority = new CorrelationFilter();
+        highPriority.setLabel("red");
+        highPriority.setCorrelationId("high");
+        subscriptions.put(SubscriptionHighPriorityOrders, new RuleEvaluator(Collections.singletonList(
+                new RuleDescription("rule1", highPriority))));
+        return subscriptions;
+    }
+
+    /**
+     * Evaluates the subscription rules locally for each order, the way the broker will when the
+     * orders are sent, and returns the number of messages each subscription should receive.
+     */
+    Map<String, Integer> previewSubscriptions(Map<String, RuleEvaluator> subscriptions) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        System.out.printf("\nEvaluating subscription rules locally.\n");
+        for (Map.Entry<String, RuleEvaluator> subscription : subscriptions.entrySet()) {
+            int count = 0;
+            for (Order order : Orders) {
+                count += subscription.getValue().apply(createMessage(order)).size();
+            }
+            counts.put(subscription.getKey(), count);
+            System.out.printf("Subscription %s should receive %d messages.\n", subscription.getKey(), count);
+        }
+        return counts;
     }
 
     void receiveAllMessageFromSubscription(String connectionString, String subsName) throws Exception
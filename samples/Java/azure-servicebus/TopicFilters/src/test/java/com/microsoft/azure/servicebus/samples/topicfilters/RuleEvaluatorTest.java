@@ -0,0 +1,164 @@
+package com.microsoft.azure.servicebus.samples.topicfilters;
+
+import com.microsoft.azure.servicebus.IMessage;
+import com.microsoft.azure.servicebus.Message;
+import com.microsoft.azure.servicebus.rules.CorrelationFilter;
+import com.microsoft.azure.servicebus.rules.FalseFilter;
+import com.microsoft.azure.servicebus.rules.RuleDescription;
+import com.microsoft.azure.servicebus.rules.SqlFilter;
+import com.microsoft.azure.servicebus.rules.SqlRuleAction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+public class RuleEvaluatorTest {
+
+    private static IMessage message(String label, String correlationId, String... properties) {
+        Message message = new Message("body");
+        message.setLabel(label);
+        message.setCorrelationId(correlationId);
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            map.put(properties[i], properties[i + 1]);
+        }
+        message.setProperties(map);
+        return message;
+    }
+
+    // evaluates the filter compiled and interpreted, and checks that both agree
+    private static boolean matches(String sql, IMessage message) {
+        boolean compiled = RuleEvaluator.compileFilter(new SqlFilter(sql)).test(message);
+        boolean interpreted = RuleEvaluator.interpretFilter(new SqlFilter(sql)).test(message);
+        Assert.assertEquals(sql, interpreted, compiled);
+        return compiled;
+    }
+
+    @Test
+    public void comparesPropertiesWithThreeValuedLogic() {
+        IMessage red = message("Red", "important", "Color", "Red", "Quantity", "10", "Price", "2.5");
+        Assert.assertTrue(matches("Color = 'Red'", red));
+        Assert.assertTrue(matches("color = 'Red'", red));
+        Assert.assertFalse(matches("Color = 'red'", red));
+        Assert.assertTrue(matches("Quantity = 10 AND Quantity > 9.5 AND Price * 4 = 10", red));
+        Assert.assertTrue(matches("Quantity / 3 = 3 AND Quantity % 3 = 1 AND -Quantity < 0", red));
+        Assert.assertTrue(matches("10 = Quantity AND 11 > Quantity", red));
+        Assert.assertTrue(matches("sys.Label = 'Red' AND sys.CorrelationId <> 'other'", red));
+        Assert.assertTrue(matches("1=1", red));
+        Assert.assertFalse(matches("1=0", red));
+
+        // a missing property is null, which makes a comparison unknown, and NOT unknown is unknown
+        Assert.assertFalse(matches("Missing = 'x'", red));
+        Assert.assertFalse(matches("NOT (Missing = 'x')", red));
+        Assert.assertTrue(matches("Missing = 'x' OR Color = 'Red'", red));
+        Assert.assertFalse(matches("Missing = 'x' AND Color = 'Red'", red));
+        Assert.assertTrue(matches("NOT (Missing = 'x' AND Color = 'Blue')", red));
+        Assert.assertTrue(matches("Missing IS NULL AND Color IS NOT NULL", red));
+        Assert.assertTrue(matches("EXISTS(Color) AND NOT EXISTS(Missing) AND EXISTS(sys.Label)", red));
+        Assert.assertFalse(matches("Color = NULL", red));
+    }
+
+    @Test
+    public void matchesInAndLike() {
+        IMessage order = message("order-eu-17", null, "Color", "Blue", "Region", "50%_off");
+        Assert.assertTrue(matches("Color IN ('Red', 'Blue')", order));
+        Assert.assertTrue(matches("Color NOT IN ('Red', 'Green')", order));
+        Assert.assertFalse(matches("Missing IN ('Red', 'Blue')", order));
+        Assert.assertTrue(matches("sys.Label LIKE 'order%'", order));
+        Assert.assertTrue(matches("sys.Label LIKE '%17'", order));
+        Assert.assertTrue(matches("sys.Label LIKE '%eu%'", order));
+        Assert.assertTrue(matches("sys.Label LIKE 'order-__-1_'", order));
+        Assert.assertTrue(matches("sys.Label LIKE 'o%-%-%7'", order));
+        Assert.assertFalse(matches("sys.Label LIKE 'order-_-17'", order));
+        Assert.assertTrue(matches("sys.Label NOT LIKE 'invoice%'", order));
+        Assert.assertTrue(matches("Region LIKE '50!%!_%' ESCAPE '!'", order));
+        Assert.assertFalse(matches("Color LIKE '50!%%' ESCAPE '!'", order));
+    }
+
+    @Test
+    public void rejectsInvalidSyntax() {
+        for (String sql : Arrays.asList("Color =", "Color = 'Red", "Color == 'Red'", "(Color = 'Red'", "sys.Unknown = 1",
+                "Color NOT 'Red'", "Color LIKE 'a' ESCAPE 'ab'", "AND = 1", "")) {
+            try {
+                RuleEvaluator.compileFilter(new SqlFilter(sql));
+                Assert.fail(sql);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            RuleEvaluator.compileAction(new SqlRuleAction("SET sys.SequenceNumber = 1"));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void appliesActions() {
+        String sql = "SET quantity = quantity / 2; REMOVE priority; SET sys.CorrelationId = 'low'; SET [Total Price] = Quantity * 1.5;";
+        for (Consumer<IMessage> action : Arrays.asList(
+                RuleEvaluator.compileAction(new SqlRuleAction(sql)), RuleEvaluator.interpretAction(new SqlRuleAction(sql)))) {
+            IMessage message = message("red", "high", "Color", "red", "Quantity", "10", "Priority", "high");
+            action.accept(message);
+            Assert.assertEquals("5", message.getProperties().get("Quantity"));
+            Assert.assertFalse(message.getProperties().containsKey("Priority"));
+            Assert.assertEquals("low", message.getCorrelationId());
+            Assert.assertEquals("7.5", message.getProperties().get("Total Price"));
+        }
+    }
+
+    @Test
+    public void evaluatesCorrelationFilters() {
+        CorrelationFilter filter = new CorrelationFilter();
+        filter.setCorrelationId("important");
+        filter.setLabel("Red");
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("Quantity", 10);
+        filter.setProperties(properties);
+        List<Predicate<IMessage>> predicates = Arrays.asList(RuleEvaluator.compileFilter(filter), RuleEvaluator.interpretFilter(filter));
+        for (Predicate<IMessage> predicate : predicates) {
+            Assert.assertTrue(predicate.test(message("Red", "important", "Quantity", "10")));
+            Assert.assertFalse(predicate.test(message("Red", "notimportant", "Quantity", "10")));
+            Assert.assertFalse(predicate.test(message("Blue", "important", "Quantity", "10")));
+            Assert.assertFalse(predicate.test(message("Red", "important")));
+        }
+        Assert.assertTrue(RuleEvaluator.compileFilter(new CorrelationFilter()).test(message(null, null)));
+    }
+
+    @Test
+    public void appliesEachMatchingRuleToACopy() {
+        RuleDescription red = new RuleDescription("Red", new SqlFilter("Color = 'Red'"));
+        red.setAction(new SqlRuleAction("SET Color = 'RedProcessed'"));
+        RuleDescription large = new RuleDescription("Large", new SqlFilter("Quantity >= 10"));
+        RuleDescription never = new RuleDescription("Never", new FalseFilter());
+        for (RuleEvaluator evaluator : Arrays.asList(new RuleEvaluator(Arrays.asList(red, large, never)),
+                RuleEvaluator.interpreted(Arrays.asList(red, large, never)))) {
+            IMessage message = message("Red", null, "Color", "Red", "Quantity", "10");
+            Assert.assertTrue(evaluator.matches(message));
+            Assert.assertEquals(Arrays.asList("Red", "Large"), evaluator.matchingRules(message));
+            List<IMessage> delivered = evaluator.apply(message);
+            Assert.assertEquals(2, delivered.size());
+            Assert.assertEquals("RedProcessed", delivered.get(0).getProperties().get("Color"));
+            Assert.assertEquals("Red", delivered.get(1).getProperties().get("Color"));
+            Assert.assertEquals("Red", message.getProperties().get("Color"));
+            Assert.assertFalse(evaluator.matches(message("Blue", null, "Color", "Blue", "Quantity", "5")));
+        }
+        Assert.assertTrue(new RuleEvaluator(Collections.singletonList(new RuleDescription("Default"))).matches(message(null, null)));
+    }
+
+    @Test
+    public void predictsTheSampleSubscriptions() {
+        Map<String, Integer> counts = new TopicFilters().previewSubscriptions(TopicFilters.subscriptionRules());
+        Assert.assertEquals(Integer.valueOf(13), counts.get(TopicFilters.SubscriptionAllMessages));
+        Assert.assertEquals(Integer.valueOf(2), counts.get(TopicFilters.SubscriptionColorBlueSize10Orders));
+        Assert.assertEquals(Integer.valueOf(4), counts.get(TopicFilters.SubscriptionColorRed));
+        Assert.assertEquals(Integer.valueOf(1), counts.get(TopicFilters.SubscriptionHighPriorityOrders));
+    }
+}
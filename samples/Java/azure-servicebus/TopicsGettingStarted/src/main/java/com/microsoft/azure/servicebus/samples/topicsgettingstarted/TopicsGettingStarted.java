@@ -6,6 +6,8 @@ package com.microsoft.azure.servicebus.samples.topicsgettingstarted;
 import com.google.gson.reflect.TypeToken;
 import com.microsoft.azure.servicebus.*;
 import com.microsoft.azure.servicebus.primitives.ConnectionStringBuilder;
+import com.microsoft.azure.servicebus.samples.queuesgettingstarted.HandlerExecutionMode;
+import com.microsoft.azure.servicebus.samples.deadletterqueue.SettlementCoalescer;
 import com.google.gson.Gson;
 import static java.nio.charset.StandardCharsets.*;
 import java.time.Duration;
@@ -18,6 +20,9 @@ public class TopicsGettingStarted {
 
     static final Gson GSON = new Gson();
 
+    // the executor that runs the handler callbacks of the subscriptions, set with -e on the command line
+    static HandlerExecutionMode executionMode = HandlerExecutionMode.CACHED_POOL;
+
     public void run(String connectionString) throws Exception {
 
         TopicClient sendClient;
@@ -32,10 +37,11 @@ public class TopicsGettingStarted {
         subscription2Client = new SubscriptionClient(new ConnectionStringBuilder(connectionString, "BasicTopic/subscriptions/Subscription2"), ReceiveMode.PEEKLOCK);
         subscription3Client = new SubscriptionClient(new ConnectionStringBuilder(connectionString, "BasicTopic/subscriptions/Subscription3"), ReceiveMode.PEEKLOCK);
 
-        ExecutorService executorService = Executors.newCachedThreadPool();
-        registerMessageHandlerOnClient(subscription1Client, executorService);
-        registerMessageHandlerOnClient(subscription2Client, executorService);
-        registerMessageHandlerOnClient(subscription3Client, executorService);
+        // a cached thread pool by default; -e virtual_threads runs each callback on its own virtual thread
+        ExecutorService executorService = executionMode.newExecutor(Runtime.getRuntime().availableProcessors());
+        SettlementCoalescer subscription1Settlements = registerMessageHandlerOnClient(subscription1Client, executorService);
+        SettlementCoalescer subscription2Settlements = registerMessageHandlerOnClient(subscription2Client, executorService);
+        SettlementCoalescer subscription3Settlements = registerMessageHandlerOnClient(subscription3Client, executorService);
 
         sendClient = new TopicClient(new ConnectionStringBuilder(connectionString, "BasicTopic"));
         sendMessagesAsync(sendClient).thenRunAsync(() -> sendClient.closeAsync());
@@ -43,6 +49,10 @@ public class TopicsGettingStarted {
         // wait for ENTER or 10 seconds elapsing
         waitForEnter(10);
 
+        // issue the queued completions before the clients close
+        subscription1Settlements.close();
+        subscription2Settlements.close();
+        subscription3Settlements.close();
         CompletableFuture.allOf(
                 subscription1Client.closeAsync(),
                 subscription2Client.closeAsync(),
@@ -86,7 +96,11 @@ public class TopicsGettingStarted {
         return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()]));
     }
 
-    void registerMessageHandlerOnClient(SubscriptionClient receiveClient, ExecutorService executorService) throws Exception {
+    SettlementCoalescer registerMessageHandlerOnClient(SubscriptionClient receiveClient, ExecutorService executorService) throws Exception {
+
+        // Completions of concurrently handled messages are collected and issued together, every
+        // 64 lock tokens or 20 milliseconds, whichever comes first
+        SettlementCoalescer settlements = new SettlementCoalescer(SettlementCoalescer.settlerOf(receiveClient));
 
         // register the RegisterMessageHandler callback
         receiveClient.registerMessageHandler(
@@ -114,7 +128,7 @@ public class TopicsGettingStarted {
                                     scientist != null ? scientist.get("firstName") : "",
                                     scientist != null ? scientist.get("name") : "");
                         }
-                        return receiveClient.completeAsync(message.getLockToken());
+                        return settlements.completeAsync(message.getLockToken());
                     }
 
                     // callback invoked when the message handler has an exception to report
@@ -122,10 +136,11 @@ public class TopicsGettingStarted {
                         System.out.printf(exceptionPhase + "-" + throwable.getMessage());
                     }
                 },
-                // 1 concurrent call, messages are auto-completed, auto-renew duration
-                new MessageHandlerOptions(1, false, Duration.ofMinutes(1)),
+                // 16 concurrent calls so that completions can be coalesced, messages are completed by the handler, auto-renew duration
+                new MessageHandlerOptions(16, false, Duration.ofMinutes(1)),
                 executorService);
 
+        return settlements;
     }
 
     public static void main(String[] args) {
@@ -152,11 +167,15 @@ public class TopicsGettingStarted {
             // parse connection string from command line
             Options options = new Options();
             options.addOption(new Option("c", true, "Connection string"));
+            options.addOption(new Option("e", true, "Handler execution mode: single_thread, fixed_pool, cached_pool or virtual_threads"));
             CommandLineParser clp = new DefaultParser();
             CommandLine cl = clp.parse(options, args);
             if (cl.getOptionValue("c") != null) {
                 connectionString = cl.getOptionValue("c");
             }
+            if (cl.getOptionValue("e") != null) {
+                executionMode = HandlerExecutionMode.parse(cl.getOptionValue("e"));
+            }
 
             // get overrides from the environment
             String env = System.getenv(SB_SAMPLES_CONNECTIONSTRING);